@@ -0,0 +1,192 @@
+package com.twitchbotx.bot;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class is the compiled form of the auth list of a command.
+ *
+ * An auth list such as "+m -s +someuser -otheruser " is parsed once, when the
+ * command is loaded or changed, into a bitmask of allowed and denied roles and
+ * a map of allowed and denied users. Checking a user is then a few bit tests
+ * and one hash lookup.
+ *
+ * The order of the checks is the one the bot always used: a denied user, an
+ * allowed user, then moderators, VIPs, subscribers and everyone, where a
+ * denied role wins over an allowed one.
+ */
+public final class AuthRule {
+
+    // The roles of a chatter, read from the badges of a message
+    public static final int BROADCASTER = 1;
+
+    public static final int MOD = 1 << 1;
+
+    public static final int VIP = 1 << 2;
+
+    public static final int SUB = 1 << 3;
+
+    // Everybody has this role
+    public static final int EVERYONE = 1 << 4;
+
+    /**
+     * A rule that nobody but the broadcaster passes.
+     */
+    public static final AuthRule NONE = compile("");
+
+    private final int allowRoles;
+
+    private final int denyRoles;
+
+    // True for an allowed user, false for a denied one
+    private final Map<String, Boolean> users;
+
+    // -o hides the command from command lists
+    private final boolean hidden;
+
+    private AuthRule(final int allowRoles,
+            final int denyRoles,
+            final Map<String, Boolean> users,
+            final boolean hidden) {
+        this.allowRoles = allowRoles;
+        this.denyRoles = denyRoles;
+        this.users = users;
+        this.hidden = hidden;
+    }
+
+    /**
+     * This method compiles an auth list.
+     *
+     * Every entry is a + or - followed by either a role letter (m for
+     * moderators, v for VIPs, s for subscribers, a for everyone, o to hide the
+     * command) or a username. Twitch usernames are at least four characters,
+     * so they never clash with a role letter.
+     *
+     * @param auth The auth list, such as "+m -s "
+     *
+     * @return The compiled rule
+     */
+    public static AuthRule compile(final String auth) {
+        int allow = 0;
+        int deny = 0;
+        boolean hidden = false;
+        Map<String, Boolean> users = null;
+
+        final String[] entries = auth.trim().toLowerCase().split("\\s+");
+        for (String entry : entries) {
+            if (entry.length() < 2) {
+                continue;
+            }
+            final char sign = entry.charAt(0);
+            if (sign != '+' && sign != '-') {
+                continue;
+            }
+            final boolean allowed = sign == '+';
+            if (entry.length() == 2) {
+                final int role;
+                switch (entry.charAt(1)) {
+                    case 'm':
+                        role = MOD;
+                        break;
+                    case 'v':
+                        role = VIP;
+                        break;
+                    case 's':
+                        role = SUB;
+                        break;
+                    case 'a':
+                        role = EVERYONE;
+                        break;
+                    case 'o':
+                        hidden |= !allowed;
+                        continue;
+                    default:
+                        continue;
+                }
+                if (allowed) {
+                    allow |= role;
+                } else {
+                    deny |= role;
+                }
+                continue;
+            }
+            if (users == null) {
+                users = new HashMap<>();
+            }
+            // a denied user stays denied, whatever else the list says
+            if (!allowed || !users.containsKey(entry.substring(1))) {
+                users.put(entry.substring(1), allowed);
+            }
+        }
+        return new AuthRule(allow, deny,
+                users == null ? Collections.<String, Boolean>emptyMap() : users,
+                hidden);
+    }
+
+    /**
+     * This method reads the roles of the chatter who sent a message, from the
+     * badges tag and the older mod, vip and subscriber tags.
+     *
+     * @param message A parsed chat message
+     *
+     * @return A bitmask of roles, always including EVERYONE
+     */
+    public static int roles(final IrcMessage message) {
+        int roles = EVERYONE;
+        if (message.hasBadge("broadcaster")) {
+            roles |= BROADCASTER | MOD;
+        }
+        if (message.hasBadge("moderator") || message.tagEquals("mod", "1")) {
+            roles |= MOD;
+        }
+        if (message.hasBadge("vip") || message.tagEquals("vip", "1")) {
+            roles |= VIP;
+        }
+        if (message.hasBadge("subscriber") || message.hasBadge("founder")
+                || message.tagEquals("subscriber", "1")) {
+            roles |= SUB;
+        }
+        return roles;
+    }
+
+    /**
+     * This method checks a chatter against this rule.
+     *
+     * @param username The lowercased name of the chatter
+     *
+     * @param roles The roles of the chatter
+     *
+     * @return True if the chatter may use the command
+     */
+    public boolean permits(final String username, final int roles) {
+        if ((roles & BROADCASTER) != 0) {
+            return true;
+        }
+        if (!users.isEmpty()) {
+            final Boolean allowed = users.get(username);
+            if (allowed != null) {
+                return allowed;
+            }
+        }
+        // The roles are ordered by their bits, so the lowest role the rule
+        // says anything about is the one that decides
+        final int decisive = Integer.lowestOneBit((roles | EVERYONE) & (allowRoles | denyRoles));
+        return decisive != 0 && (denyRoles & decisive) == 0;
+    }
+
+    /**
+     * @return True if the command should not be listed
+     */
+    public boolean isHidden() {
+        return hidden;
+    }
+
+    @Override
+    public String toString() {
+        return "AuthRule{" + "allowRoles=" + allowRoles
+                + ", denyRoles=" + denyRoles
+                + ", users=" + users
+                + ", hidden=" + hidden + '}';
+    }
+}
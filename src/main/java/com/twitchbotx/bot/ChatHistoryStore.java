@@ -0,0 +1,856 @@
+package com.twitchbotx.bot;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This class keeps the chat history on disk, so the moderators can look up
+ * what a user said before.
+ *
+ * The messages are appended to a segment file per hour, in compressed blocks
+ * of up to 64 KB of messages. When the hour is over an index is written next
+ * to the segment, with the time range of every block and, for every user, the
+ * blocks they posted in, sorted by a hash of the username. Finding the last
+ * messages of a user reads a few entries of the index of each hour, newest
+ * first, and only decompresses the blocks of that user. The index of the hour
+ * being written, and the block being filled, are kept in memory.
+ *
+ * A segment is self describing, every block starts with its length and time
+ * range, so a segment left without an index by a crash is indexed again and
+ * a block cut short is dropped.
+ *
+ * The messages are appended by one thread, see {@link ChatLogWriter}, and
+ * searched by any. A search can read the index of every hour kept, so the
+ * shards hand theirs to a search thread of its own.
+ */
+public final class ChatHistoryStore {
+
+    private static final Logger LOGGER = Logger.getLogger(ChatHistoryStore.class.getSimpleName());
+
+    // A block is written once it holds this many bytes of messages
+    private static final int MAX_BLOCK_BYTES = 64 * 1024;
+
+    // Or once its first message is this old, so little is lost in a crash
+    private static final long MAX_BLOCK_AGE_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    // Longer messages are cut, Twitch allows 500 characters
+    private static final int MAX_TEXT_LENGTH = 2000;
+
+    private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    // length, raw length, first time, last time
+    private static final int BLOCK_HEADER_BYTES = 24;
+
+    // offset, length, raw length, first time, last time
+    private static final int BLOCK_ENTRY_BYTES = 32;
+
+    // hash, first posting, postings
+    private static final int USER_ENTRY_BYTES = 16;
+
+    private static final String SEGMENT = ".seg";
+
+    private static final String INDEX = ".idx";
+
+    private static final DateTimeFormatter SEGMENT_NAME = DateTimeFormatter.ofPattern("yyyy-MM-dd-HH");
+
+    // Searches waiting for the search thread, past it a search is refused
+    private static final int MAX_QUEUED_SEARCHES = 16;
+
+    /**
+     * A message of the history.
+     */
+    public static final class Message {
+
+        private final long time;
+
+        private final String user;
+
+        private final String text;
+
+        public Message(final long time, final String user, final String text) {
+            this.time = time;
+            this.user = user;
+            this.text = text;
+        }
+
+        /**
+         * @return When the message was posted, in milliseconds since the epoch
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public String getUser() {
+            return user;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+
+    /**
+     * A block of a segment.
+     */
+    private static final class Block {
+
+        // Where its header starts in the segment
+        final long offset;
+
+        final int length;
+
+        final int rawLength;
+
+        final long first;
+
+        final long last;
+
+        Block(final long offset, final int length, final int rawLength, final long first, final long last) {
+            this.offset = offset;
+            this.length = length;
+            this.rawLength = rawLength;
+            this.first = first;
+            this.last = last;
+        }
+    }
+
+    /**
+     * The blocks a user posted in within a segment, in order.
+     */
+    private static final class Postings {
+
+        int[] blocks = new int[4];
+
+        int size;
+
+        void add(final int block) {
+            if (size > 0 && blocks[size - 1] == block) {
+                return;
+            }
+            if (size == blocks.length) {
+                blocks = Arrays.copyOf(blocks, size * 2);
+            }
+            blocks[size++] = block;
+        }
+    }
+
+    private final Path directory;
+
+    private final int retentionDays;
+
+    // Only used by the appending thread
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+    private final ByteArrayOutputStream raw = new ByteArrayOutputStream(MAX_BLOCK_BYTES + 8 * 1024);
+
+    private final DataOutputStream rawOut = new DataOutputStream(raw);
+
+    private byte[] compressed = new byte[MAX_BLOCK_BYTES];
+
+    // The segment being written, guarded by this
+    private long segmentHour = Long.MIN_VALUE;
+
+    private FileChannel segment;
+
+    private long segmentSize;
+
+    private final List<Block> blocks = new ArrayList<>();
+
+    private final Map<String, Postings> postings = new HashMap<>();
+
+    // The messages of the block being filled
+    private final List<Message> pending = new ArrayList<>();
+
+    private final AtomicLong appended = new AtomicLong();
+
+    private final AtomicLong written = new AtomicLong();
+
+    private final AtomicLong segments = new AtomicLong();
+
+    private final AtomicLong searches = new AtomicLong();
+
+    private final AtomicLong errors = new AtomicLong();
+
+    private final AtomicLong refused = new AtomicLong();
+
+    private final ExecutorService searcher = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(MAX_QUEUED_SEARCHES), r -> {
+                final Thread thread = new Thread(r, "history-search");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * @param directory Where the segments are written
+     *
+     * @param retentionDays How many days of history are kept
+     */
+    public ChatHistoryStore(final Path directory, final int retentionDays) {
+        this.directory = directory;
+        this.retentionDays = retentionDays;
+    }
+
+    /**
+     * This method adds a message to the block being filled, the block is
+     * written once it is full.
+     *
+     * @param time When the message was posted, in milliseconds
+     *
+     * @param user The lowercased name of the user
+     *
+     * @param text The message
+     */
+    public synchronized void append(final long time, final String user, final String text) {
+        final long hour = Math.floorDiv(time, HOUR_MILLIS);
+        if (hour > segmentHour) {
+            roll(hour);
+        }
+        final String message = text.length() > MAX_TEXT_LENGTH ? text.substring(0, MAX_TEXT_LENGTH) : text;
+        try {
+            rawOut.writeLong(time);
+            rawOut.writeUTF(user);
+            rawOut.writeUTF(message);
+        } catch (IOException e) {
+            // never thrown by a byte array
+            throw new IllegalStateException(e);
+        }
+        pending.add(new Message(time, user, message));
+        postings.computeIfAbsent(user, u -> new Postings()).add(blocks.size());
+        appended.incrementAndGet();
+        if (raw.size() >= MAX_BLOCK_BYTES) {
+            writeBlock();
+        }
+    }
+
+    /**
+     * This method writes the block being filled if its first message is old
+     * enough, it is called after every batch of messages.
+     *
+     * @param now The time, in milliseconds
+     */
+    public synchronized void flush(final long now) {
+        if (!pending.isEmpty() && now - pending.get(0).time >= MAX_BLOCK_AGE_MILLIS) {
+            writeBlock();
+        }
+    }
+
+    /**
+     * This method writes the block being filled and closes the segment, which
+     * is indexed once messages are appended again.
+     */
+    public synchronized void close() {
+        writeBlock();
+        closeSegment();
+    }
+
+    /**
+     * This method finds the newest messages like {@link #find}, on the search
+     * thread, so the caller never waits for the disk.
+     *
+     * @param user The lowercased name of the user, or null for every user
+     *
+     * @param from The oldest time, in milliseconds
+     *
+     * @param to The newest time, in milliseconds
+     *
+     * @param limit The most messages found
+     *
+     * @param done Called on the search thread with the messages found,
+     * newest first
+     *
+     * @return False if too many searches are waiting and this one was refused
+     */
+    public boolean search(final String user,
+            final long from,
+            final long to,
+            final int limit,
+            final Consumer<List<Message>> done) {
+        try {
+            searcher.execute(() -> done.accept(find(user, from, to, limit)));
+            return true;
+        } catch (RejectedExecutionException e) {
+            refused.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * This method finds the newest messages of a user, or of every user,
+     * within a time range. It reads from disk, see {@link #search}.
+     *
+     * @param user The lowercased name of the user, or null for every user
+     *
+     * @param from The oldest time, in milliseconds
+     *
+     * @param to The newest time, in milliseconds
+     *
+     * @param limit The most messages found
+     *
+     * @return The messages found, newest first
+     */
+    public List<Message> find(final String user, final long from, final long to, final int limit) {
+        searches.incrementAndGet();
+        final List<Message> found = new ArrayList<>();
+        final long hour;
+        final boolean opened;
+        final List<Message> unwritten;
+        final Block[] current;
+        final int[] candidates;
+        synchronized (this) {
+            hour = segmentHour;
+            opened = segmentHour != Long.MIN_VALUE;
+            unwritten = new ArrayList<>(pending);
+            current = blocks.toArray(new Block[0]);
+            final Postings posted = user == null ? null : postings.get(user);
+            candidates = user == null ? null : posted == null ? new int[0] : Arrays.copyOf(posted.blocks, posted.size);
+        }
+        for (int i = unwritten.size() - 1; i >= 0 && found.size() < limit; i--) {
+            collect(unwritten.get(i), user, from, to, found);
+        }
+        if (found.size() < limit && current.length > 0) {
+            try (FileChannel channel = FileChannel.open(segmentFile(hour), StandardOpenOption.READ)) {
+                searchBlocks(channel, current, candidates, user, from, to, limit, found);
+            } catch (IOException | DataFormatException e) {
+                errors.incrementAndGet();
+                LOGGER.log(Level.WARNING, "History could not be read: {0}", e.toString());
+            }
+        }
+        if (found.size() >= limit) {
+            return found;
+        }
+        final List<Long> hours = listSegments();
+        Collections.sort(hours, Collections.reverseOrder());
+        for (long older : hours) {
+            if (found.size() >= limit || (older + 1) * HOUR_MILLIS <= from) {
+                break;
+            }
+            if ((opened && older >= hour) || older * HOUR_MILLIS > to) {
+                continue;
+            }
+            try {
+                if (Files.exists(indexFile(older))) {
+                    searchSegment(older, user, from, to, limit, found);
+                } else {
+                    searchUnindexed(older, user, from, to, limit, found);
+                }
+            } catch (IOException | DataFormatException e) {
+                errors.incrementAndGet();
+                LOGGER.log(Level.WARNING, "History of {0} could not be read: {1}",
+                        new Object[]{segmentName(older), e.toString()});
+            }
+        }
+        return found;
+    }
+
+    private static void collect(final Message message,
+            final String user,
+            final long from,
+            final long to,
+            final List<Message> found) {
+        if (message.time >= from && message.time <= to && (user == null || user.equals(message.user))) {
+            found.add(message);
+        }
+    }
+
+    /**
+     * This method searches an indexed segment, with the blocks of the user
+     * read from its index.
+     */
+    private void searchSegment(final long hour,
+            final String user,
+            final long from,
+            final long to,
+            final int limit,
+            final List<Message> found) throws IOException, DataFormatException {
+        try (FileChannel index = FileChannel.open(indexFile(hour), StandardOpenOption.READ);
+                FileChannel channel = FileChannel.open(segmentFile(hour), StandardOpenOption.READ)) {
+            final int blockCount = read(index, 0, 4).getInt();
+            final long usersAt = 4 + (long) blockCount * BLOCK_ENTRY_BYTES;
+            int[] candidates = null;
+            if (user != null) {
+                candidates = readPostings(index, usersAt, blockCount, hash(user));
+                if (candidates.length == 0) {
+                    return;
+                }
+            }
+            final Block[] table = new Block[blockCount];
+            if (candidates == null) {
+                final ByteBuffer entries = read(index, 4, blockCount * BLOCK_ENTRY_BYTES);
+                for (int i = 0; i < blockCount; i++) {
+                    table[i] = readBlockEntry(entries);
+                }
+            } else {
+                for (int block : candidates) {
+                    table[block] = readBlockEntry(read(index, 4 + (long) block * BLOCK_ENTRY_BYTES, BLOCK_ENTRY_BYTES));
+                }
+            }
+            searchBlocks(channel, table, candidates, user, from, to, limit, found);
+        }
+    }
+
+    /**
+     * This method searches a segment not indexed yet, such as the last one
+     * written before a restart, by reading its blocks back.
+     */
+    private void searchUnindexed(final long hour,
+            final String user,
+            final long from,
+            final long to,
+            final int limit,
+            final List<Message> found) throws IOException, DataFormatException {
+        final List<Block> table = new ArrayList<>();
+        final Map<String, Postings> users = new HashMap<>();
+        recover(segmentFile(hour), table, users);
+        final Postings posted = user == null ? null : users.get(user);
+        if (user != null && posted == null) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(segmentFile(hour), StandardOpenOption.READ)) {
+            searchBlocks(channel, table.toArray(new Block[0]),
+                    posted == null ? null : Arrays.copyOf(posted.blocks, posted.size),
+                    user, from, to, limit, found);
+        }
+    }
+
+    /**
+     * @return The blocks of every user with the hash, found by a binary search
+     * of the users of the index
+     */
+    private static int[] readPostings(final FileChannel index,
+            final long usersAt,
+            final int blockCount,
+            final long hash) throws IOException {
+        final int userCount = read(index, usersAt, 4).getInt();
+        final long entriesAt = usersAt + 4;
+        final long postingsAt = entriesAt + (long) userCount * USER_ENTRY_BYTES;
+        int low = 0;
+        int high = userCount;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (read(index, entriesAt + (long) middle * USER_ENTRY_BYTES, 8).getLong() < hash) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        int[] candidates = new int[0];
+        for (int i = low; i < userCount; i++) {
+            final ByteBuffer entry = read(index, entriesAt + (long) i * USER_ENTRY_BYTES, USER_ENTRY_BYTES);
+            if (entry.getLong() != hash) {
+                break;
+            }
+            final int first = entry.getInt();
+            final int count = entry.getInt();
+            final ByteBuffer posted = read(index, postingsAt + (long) first * 4, count * 4);
+            final int[] merged = Arrays.copyOf(candidates, candidates.length + count);
+            for (int j = 0; j < count; j++) {
+                final int block = posted.getInt();
+                if (block < 0 || block >= blockCount) {
+                    throw new IOException("Index points past its blocks");
+                }
+                merged[candidates.length + j] = block;
+            }
+            candidates = merged;
+        }
+        Arrays.sort(candidates);
+        return candidates;
+    }
+
+    private static Block readBlockEntry(final ByteBuffer entry) {
+        return new Block(entry.getLong(), entry.getInt(), entry.getInt(), entry.getLong(), entry.getLong());
+    }
+
+    /**
+     * This method decompresses the candidate blocks, newest first, and keeps
+     * the messages in the range.
+     *
+     * @param candidates The blocks to search, in order, or null for all
+     */
+    private void searchBlocks(final FileChannel channel,
+            final Block[] table,
+            final int[] candidates,
+            final String user,
+            final long from,
+            final long to,
+            final int limit,
+            final List<Message> found) throws IOException, DataFormatException {
+        final int count = candidates == null ? table.length : candidates.length;
+        for (int i = count - 1; i >= 0 && found.size() < limit; i--) {
+            final int index = candidates == null ? i : candidates[i];
+            if (index >= table.length) {
+                // a block that failed to be written
+                continue;
+            }
+            final Block block = table[index];
+            if (block.last < from) {
+                return;
+            }
+            if (block.first > to) {
+                continue;
+            }
+            final List<Message> messages = readBlock(channel, block);
+            for (int j = messages.size() - 1; j >= 0 && found.size() < limit; j--) {
+                collect(messages.get(j), user, from, to, found);
+            }
+        }
+    }
+
+    private static List<Message> readBlock(final FileChannel channel, final Block block)
+            throws IOException, DataFormatException {
+        final ByteBuffer data = read(channel, block.offset + BLOCK_HEADER_BYTES, block.length);
+        final byte[] bytes = new byte[block.rawLength];
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data.array(), 0, block.length);
+            int done = 0;
+            while (done < bytes.length) {
+                final int inflated = inflater.inflate(bytes, done, bytes.length - done);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new DataFormatException("Block is shorter than its header says");
+                }
+                done += inflated;
+            }
+        } finally {
+            inflater.end();
+        }
+        final List<Message> messages = new ArrayList<>();
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        while (in.available() > 0) {
+            messages.add(new Message(in.readLong(), in.readUTF(), in.readUTF()));
+        }
+        return messages;
+    }
+
+    private static ByteBuffer read(final FileChannel channel, final long position, final int length)
+            throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("History file is shorter than expected");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * This method compresses the block being filled and appends it to the
+     * segment with one write.
+     */
+    private void writeBlock() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        final byte[] bytes = raw.toByteArray();
+        final long first = pending.get(0).time;
+        final long last = pending.get(pending.size() - 1).time;
+        pending.clear();
+        raw.reset();
+        if (segment == null) {
+            errors.incrementAndGet();
+            return;
+        }
+        deflater.reset();
+        deflater.setInput(bytes);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == compressed.length) {
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+        final ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_BYTES);
+        header.putInt(length).putInt(bytes.length).putLong(first).putLong(last).flip();
+        final ByteBuffer[] buffers = {header, ByteBuffer.wrap(compressed, 0, length)};
+        try {
+            while (buffers[1].hasRemaining()) {
+                segment.write(buffers);
+            }
+        } catch (IOException e) {
+            errors.incrementAndGet();
+            LOGGER.log(Level.WARNING, "History could not be written: {0}", e.toString());
+            closeSegment();
+            return;
+        }
+        blocks.add(new Block(segmentSize, length, bytes.length, first, last));
+        segmentSize += BLOCK_HEADER_BYTES + length;
+        written.incrementAndGet();
+    }
+
+    /**
+     * This method indexes the segment of the hour that is over, and opens the
+     * segment of the new hour.
+     */
+    private void roll(final long hour) {
+        writeBlock();
+        if (segment != null) {
+            seal(segmentHour, blocks, postings);
+            closeSegment();
+        }
+        blocks.clear();
+        postings.clear();
+        segmentHour = hour;
+        indexOrphans(hour);
+        deleteExpired(hour);
+        try {
+            Files.createDirectories(directory);
+            final Path file = segmentFile(hour);
+            if (Files.exists(file)) {
+                // the bot was restarted within the hour
+                segmentSize = recover(file, blocks, postings);
+            } else {
+                segmentSize = 0;
+            }
+            segment = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            segment.truncate(segmentSize);
+            segment.position(segmentSize);
+            segments.incrementAndGet();
+        } catch (IOException e) {
+            errors.incrementAndGet();
+            LOGGER.log(Level.WARNING, "History segment could not be opened: {0}", e.toString());
+            closeSegment();
+        }
+    }
+
+    private void closeSegment() {
+        if (segment == null) {
+            return;
+        }
+        try {
+            segment.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "History segment could not be closed: {0}", e.toString());
+        }
+        segment = null;
+    }
+
+    /**
+     * This method indexes the older segments left without an index, by a
+     * crash or by a restart.
+     */
+    private void indexOrphans(final long hour) {
+        for (long older : listSegments()) {
+            if (older >= hour || Files.exists(indexFile(older))) {
+                continue;
+            }
+            final List<Block> table = new ArrayList<>();
+            final Map<String, Postings> users = new HashMap<>();
+            try {
+                recover(segmentFile(older), table, users);
+            } catch (IOException e) {
+                errors.incrementAndGet();
+                LOGGER.log(Level.WARNING, "History of {0} could not be indexed: {1}",
+                        new Object[]{segmentName(older), e.toString()});
+                continue;
+            }
+            seal(older, table, users);
+        }
+    }
+
+    /**
+     * This method reads the blocks of a segment back to rebuild its index.
+     *
+     * @return The length of the blocks read whole, anything after them is
+     * cut short
+     */
+    private static long recover(final Path file, final List<Block> table, final Map<String, Postings> users)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            long offset = 0;
+            while (offset + BLOCK_HEADER_BYTES <= size) {
+                final ByteBuffer header = read(channel, offset, BLOCK_HEADER_BYTES);
+                final int length = header.getInt();
+                final int rawLength = header.getInt();
+                if (length < 0 || rawLength < 0 || offset + BLOCK_HEADER_BYTES + length > size) {
+                    break;
+                }
+                final Block block = new Block(offset, length, rawLength, header.getLong(), header.getLong());
+                final List<Message> messages;
+                try {
+                    messages = readBlock(channel, block);
+                } catch (DataFormatException | IOException e) {
+                    break;
+                }
+                for (Message message : messages) {
+                    users.computeIfAbsent(message.user, u -> new Postings()).add(table.size());
+                }
+                table.add(block);
+                offset += BLOCK_HEADER_BYTES + length;
+            }
+            if (offset < size) {
+                LOGGER.log(Level.WARNING, "History segment {0} was cut short at {1} bytes",
+                        new Object[]{file.getFileName(), offset});
+            }
+            return offset;
+        }
+    }
+
+    /**
+     * This method writes the index of a segment, to a temporary file first so
+     * an index is either whole or missing.
+     */
+    private void seal(final long hour, final List<Block> table, final Map<String, Postings> users) {
+        final List<Map.Entry<String, Postings>> sorted = new ArrayList<>(users.entrySet());
+        final long[] hashes = new long[sorted.size()];
+        sorted.sort((a, b) -> Long.compare(hash(a.getKey()), hash(b.getKey())));
+        int postingCount = 0;
+        for (int i = 0; i < sorted.size(); i++) {
+            hashes[i] = hash(sorted.get(i).getKey());
+            postingCount += sorted.get(i).getValue().size;
+        }
+        final ByteBuffer index = ByteBuffer.allocate(4 + table.size() * BLOCK_ENTRY_BYTES
+                + 4 + sorted.size() * USER_ENTRY_BYTES + postingCount * 4);
+        index.putInt(table.size());
+        for (Block block : table) {
+            index.putLong(block.offset).putInt(block.length).putInt(block.rawLength)
+                    .putLong(block.first).putLong(block.last);
+        }
+        index.putInt(sorted.size());
+        int first = 0;
+        for (int i = 0; i < sorted.size(); i++) {
+            final int count = sorted.get(i).getValue().size;
+            index.putLong(hashes[i]).putInt(first).putInt(count);
+            first += count;
+        }
+        for (Map.Entry<String, Postings> user : sorted) {
+            for (int i = 0; i < user.getValue().size; i++) {
+                index.putInt(user.getValue().blocks[i]);
+            }
+        }
+        index.flip();
+        final Path temporary = directory.resolve(segmentName(hour) + INDEX + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (index.hasRemaining()) {
+                    channel.write(index);
+                }
+                channel.force(true);
+            }
+            Files.move(temporary, indexFile(hour), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            errors.incrementAndGet();
+            LOGGER.log(Level.WARNING, "History of {0} could not be indexed: {1}",
+                    new Object[]{segmentName(hour), e.toString()});
+        }
+    }
+
+    /**
+     * This method deletes the segments older than the retention.
+     */
+    private void deleteExpired(final long hour) {
+        final long oldest = hour - TimeUnit.DAYS.toHours(retentionDays);
+        for (long older : listSegments()) {
+            if (older >= oldest) {
+                continue;
+            }
+            try {
+                Files.deleteIfExists(indexFile(older));
+                Files.deleteIfExists(segmentFile(older));
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "History of {0} could not be deleted: {1}",
+                        new Object[]{segmentName(older), e.toString()});
+            }
+        }
+    }
+
+    /**
+     * @return The hours of every segment in the directory
+     */
+    private List<Long> listSegments() {
+        final List<Long> hours = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return hours;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT)) {
+            for (Path file : files) {
+                final String name = file.getFileName().toString();
+                try {
+                    final LocalDateTime time = LocalDateTime.parse(
+                            name.substring(0, name.length() - SEGMENT.length()), SEGMENT_NAME);
+                    hours.add(TimeUnit.SECONDS.toHours(time.toEpochSecond(ZoneOffset.UTC)));
+                } catch (DateTimeParseException e) {
+                    // not a segment
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "History directory could not be listed: {0}", e.toString());
+        }
+        return hours;
+    }
+
+    private static String segmentName(final long hour) {
+        return SEGMENT_NAME.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(hour * HOUR_MILLIS), ZoneOffset.UTC));
+    }
+
+    private Path segmentFile(final long hour) {
+        return directory.resolve(segmentName(hour) + SEGMENT);
+    }
+
+    private Path indexFile(final long hour) {
+        return directory.resolve(segmentName(hour) + INDEX);
+    }
+
+    /**
+     * @return A 64 bit hash of a username, the same on every run
+     */
+    private static long hash(final String user) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < user.length(); i++) {
+            h = (h ^ user.charAt(i)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        return h ^ (h >>> 33);
+    }
+
+    /**
+     * Registers the history metrics with the reporter.
+     *
+     * @param metrics The reporter to register with
+     */
+    public void registerMetrics(final MetricsReporter metrics) {
+        metrics.register("history.appended", appended::get);
+        metrics.register("history.blocks", written::get);
+        metrics.register("history.segments", segments::get);
+        metrics.register("history.searches", searches::get);
+        metrics.register("history.errors", errors::get);
+        metrics.register("history.refused", refused::get);
+    }
+}
@@ -0,0 +1,443 @@
+package com.twitchbotx.bot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class writes the chat and the moderation actions to log files on a
+ * background thread.
+ *
+ * The shards hand a record over through a preallocated ring of slots, claiming
+ * a slot is a single compare and set and storing a record only stores
+ * references, so logging never waits for the disk. When the ring is full the
+ * record is dropped and counted instead. The writer drains the ring in
+ * batches, one write per batch, into a file per day or per hour that rolls
+ * over to a new one past a size. The chat lines are also appended to the
+ * chat history, if it is on.
+ */
+public final class ChatLogWriter {
+
+    private static final Logger LOGGER = Logger.getLogger(ChatLogWriter.class.getSimpleName());
+
+    // How long the writer sleeps when there is nothing to write
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    // The most records written in one batch
+    private static final int MAX_BATCH = 1024;
+
+    /**
+     * Where the records go.
+     */
+    public enum Mode {
+        FILE,
+        CONSOLE,
+        OFF
+    }
+
+    /**
+     * How a record is written.
+     */
+    public enum Format {
+        // 12:34:56 user: message
+        TEXT,
+        // one JSON object per line
+        JSONL
+    }
+
+    /**
+     * How often a new file is started.
+     */
+    public enum Rotation {
+        DAILY,
+        HOURLY
+    }
+
+    /**
+     * What a record is.
+     */
+    public enum Kind {
+        CHAT,
+        MODERATION
+    }
+
+    /**
+     * A slot of the ring, written by one shard and then read by the writer.
+     */
+    private static final class Record {
+
+        long time;
+
+        Kind kind;
+
+        String user;
+
+        String text;
+    }
+
+    private final LiveConfiguration config;
+
+    private final Path directory;
+
+    // Null if the history is off
+    private final ChatHistoryStore history;
+
+    private final Record[] records;
+
+    // The sequence each slot expects next, a slot is free for sequence s when
+    // it holds s and written for s when it holds s + 1
+    private final AtomicLongArray sequences;
+
+    private final int mask;
+
+    private final AtomicLong tail = new AtomicLong();
+
+    // Only read and written by the writer thread
+    private long head;
+
+    // Advanced by the writer once per batch, it is what other threads read
+    // instead of the head
+    private final AtomicLong written = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicLong files = new AtomicLong();
+
+    private final StringBuilder batch = new StringBuilder(64 * 1024);
+
+    private final Thread thread;
+
+    private volatile boolean running;
+
+    private final ZoneId zone = ZoneId.systemDefault();
+
+    // The second and the period the timestamps were last formatted for
+    private long cachedSecond = Long.MIN_VALUE;
+
+    private final char[] cachedTime = new char[8];
+
+    private String cachedPeriod = "";
+
+    private FileChannel channel;
+
+    private String period = "";
+
+    private int index;
+
+    private long size;
+
+    /**
+     * @param config The configuration, its chat log settings are read for
+     * every batch
+     *
+     * @param directory Where the log files are written
+     *
+     * @param capacity The most records waiting to be written, rounded up to a
+     * power of two
+     *
+     * @param history The chat history the chat lines are appended to, or null
+     */
+    public ChatLogWriter(final LiveConfiguration config,
+            final Path directory,
+            final int capacity,
+            final ChatHistoryStore history) {
+        this.config = config;
+        this.directory = directory;
+        this.history = history;
+        final int slots = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.records = new Record[slots];
+        this.sequences = new AtomicLongArray(slots);
+        for (int i = 0; i < slots; i++) {
+            records[i] = new Record();
+            sequences.set(i, i);
+        }
+        this.mask = slots - 1;
+        this.thread = new Thread(this::run, "chat-log-writer");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        running = true;
+        thread.start();
+    }
+
+    /**
+     * This method stops the writer once it wrote every record handed over,
+     * it is meant to run when the bot shuts down.
+     */
+    public void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * This method hands a record over to the writer, it never blocks.
+     *
+     * @param kind What the record is
+     *
+     * @param user The user who posted the message, or who was acted on
+     *
+     * @param text The message, or the action
+     *
+     * @return False if the writer is behind and the record was dropped
+     */
+    public boolean log(final Kind kind, final String user, final String text) {
+        long position = tail.get();
+        for (;;) {
+            final long sequence = sequences.get((int) position & mask);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (sequence < position) {
+                dropped.incrementAndGet();
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+        final int slot = (int) position & mask;
+        final Record record = records[slot];
+        record.time = System.currentTimeMillis();
+        record.kind = kind;
+        record.user = user;
+        record.text = text;
+        sequences.lazySet(slot, position + 1);
+        return true;
+    }
+
+    private void run() {
+        for (;;) {
+            final boolean stopping = !running;
+            final ConfigParser.Configuration settings = config.get();
+            int count = 0;
+            batch.setLength(0);
+            while (count < MAX_BATCH) {
+                final int slot = (int) head & mask;
+                if (sequences.get(slot) != head + 1) {
+                    break;
+                }
+                final Record record = records[slot];
+                if (settings.chatLog != Mode.OFF) {
+                    append(record, settings);
+                }
+                if (history != null && record.kind == Kind.CHAT) {
+                    history.append(record.time, record.user, record.text);
+                }
+                record.user = null;
+                record.text = null;
+                sequences.lazySet(slot, head + records.length);
+                head++;
+                count++;
+            }
+            writeBatch(settings);
+            written.addAndGet(count);
+            if (history != null) {
+                history.flush(System.currentTimeMillis());
+            }
+            if (count == 0) {
+                if (stopping) {
+                    break;
+                }
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+        closeFile();
+        if (history != null) {
+            history.close();
+        }
+    }
+
+    /**
+     * This method formats a record at the end of the batch, the batch is
+     * written first if the record belongs in another file.
+     */
+    private void append(final Record record, final ConfigParser.Configuration settings) {
+        formatTime(record.time, settings.chatLogRotation);
+        if (settings.chatLog == Mode.FILE && !cachedPeriod.equals(period)) {
+            writeBatch(settings);
+            closeFile();
+            period = cachedPeriod;
+            index = 0;
+        }
+        if (settings.chatLogFormat == Format.JSONL) {
+            batch.append("{\"time\":").append(record.time)
+                    .append(",\"kind\":\"").append(record.kind == Kind.CHAT ? "chat" : "moderation")
+                    .append("\",\"user\":");
+            appendJson(record.user);
+            batch.append(",\"text\":");
+            appendJson(record.text);
+            batch.append("}\n");
+        } else {
+            batch.append(cachedTime).append(' ');
+            if (record.kind == Kind.MODERATION) {
+                batch.append("[mod] ");
+            }
+            batch.append(record.user).append(": ").append(record.text).append('\n');
+        }
+    }
+
+    private void appendJson(final String value) {
+        if (value == null) {
+            batch.append("null");
+            return;
+        }
+        batch.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    batch.append("\\\"");
+                    break;
+                case '\\':
+                    batch.append("\\\\");
+                    break;
+                case '\n':
+                    batch.append("\\n");
+                    break;
+                case '\r':
+                    batch.append("\\r");
+                    break;
+                case '\t':
+                    batch.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        batch.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        batch.append(c);
+                    }
+            }
+        }
+        batch.append('"');
+    }
+
+    /**
+     * This method formats the time of a record, and the period of its file,
+     * only when the second changed since the last record.
+     */
+    private void formatTime(final long millis, final Rotation rotation) {
+        final long second = Math.floorDiv(millis, 1000L);
+        if (second == cachedSecond) {
+            return;
+        }
+        cachedSecond = second;
+        final LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), zone);
+        twoDigits(time.getHour(), 0);
+        cachedTime[2] = ':';
+        twoDigits(time.getMinute(), 3);
+        cachedTime[5] = ':';
+        twoDigits(time.getSecond(), 6);
+        final String day = time.toLocalDate().toString();
+        cachedPeriod = rotation == Rotation.HOURLY ? day + "-" + new String(cachedTime, 0, 2) : day;
+    }
+
+    private void twoDigits(final int value, final int at) {
+        cachedTime[at] = (char) ('0' + value / 10);
+        cachedTime[at + 1] = (char) ('0' + value % 10);
+    }
+
+    /**
+     * This method writes the batch with one write, and starts a new file once
+     * the current one is past the size limit.
+     */
+    private void writeBatch(final ConfigParser.Configuration settings) {
+        if (batch.length() == 0) {
+            return;
+        }
+        final byte[] bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+        batch.setLength(0);
+        if (settings.chatLog == Mode.CONSOLE) {
+            System.out.write(bytes, 0, bytes.length);
+            System.out.flush();
+            return;
+        }
+        try {
+            if (channel == null) {
+                openFile(settings.chatLogMaxBytes);
+            }
+            final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            size += bytes.length;
+            if (size >= settings.chatLogMaxBytes) {
+                closeFile();
+                index++;
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Chat log could not be written: {0}", e.toString());
+            closeFile();
+        }
+    }
+
+    /**
+     * This method opens the file of the current period, the first one of its
+     * files that still has room.
+     */
+    private void openFile(final long maxBytes) throws IOException {
+        Files.createDirectories(directory);
+        Path file = file();
+        while (Files.exists(file) && Files.size(file) >= maxBytes) {
+            index++;
+            file = file();
+        }
+        channel = FileChannel.open(file,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        size = channel.size();
+        files.incrementAndGet();
+    }
+
+    private Path file() {
+        return directory.resolve("chat-" + period + (index == 0 ? "" : "." + index) + ".log");
+    }
+
+    private void closeFile() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Chat log could not be closed: {0}", e.toString());
+        }
+        channel = null;
+    }
+
+    /**
+     * Registers the chat log metrics with the reporter.
+     *
+     * @param metrics The reporter to register with
+     */
+    public void registerMetrics(final MetricsReporter metrics) {
+        metrics.register("chatlog.written", written::get);
+        metrics.register("chatlog.dropped", dropped::get);
+        metrics.register("chatlog.files", files::get);
+        metrics.register("chatlog.pending", () -> {
+            // written is read first, the tail can only be ahead of it then
+            final long done = written.get();
+            return tail.get() - done;
+        });
+    }
+}
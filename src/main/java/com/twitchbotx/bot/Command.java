@@ -0,0 +1,204 @@
+package com.twitchbotx.bot;
+
+import java.util.function.UnaryOperator;
+import org.w3c.dom.Element;
+
+/**
+ * This class is an immutable command read from the XML document.
+ *
+ * A change to a command creates a new instance, the command table is then
+ * swapped, so a handler never sees a command that is half changed.
+ */
+public final class Command {
+
+    private final String name;
+
+    private final String response;
+
+    private final String auth;
+
+    private final AuthRule authRule;
+
+    private final long cooldown;
+
+    private final long userCooldown;
+
+    private final String sound;
+
+    private final boolean repeating;
+
+    private final long initialDelay;
+
+    private final long interval;
+
+    private final boolean disabled;
+
+    private final boolean subscriber;
+
+    /**
+     * @param name The lowercased name, such as !discord
+     *
+     * @param response The text sent to chat, may contain %param%
+     *
+     * @param auth The authorization list, such as "+m -s "
+     *
+     * @param cooldown The cooldown in seconds
+     *
+     * @param userCooldown The cooldown in seconds for each user
+     *
+     * @param sound The sound file played with the response, empty for none
+     *
+     * @param repeating True if the command is broadcast on a timer
+     *
+     * @param initialDelay The delay in seconds before the first broadcast
+     *
+     * @param interval The seconds between broadcasts
+     *
+     * @param disabled True if the command does nothing
+     *
+     * @param subscriber True if this is a subscriber command
+     */
+    public Command(final String name,
+            final String response,
+            final String auth,
+            final long cooldown,
+            final long userCooldown,
+            final String sound,
+            final boolean repeating,
+            final long initialDelay,
+            final long interval,
+            final boolean disabled,
+            final boolean subscriber) {
+        this.name = name;
+        this.response = response;
+        this.auth = auth;
+        this.authRule = AuthRule.compile(auth);
+        this.cooldown = cooldown;
+        this.userCooldown = userCooldown;
+        this.sound = sound;
+        this.repeating = repeating;
+        this.initialDelay = initialDelay;
+        this.interval = interval;
+        this.disabled = disabled;
+        this.subscriber = subscriber;
+    }
+
+    /**
+     * This method reads a command or subcommand node of the XML document.
+     *
+     * @param e The command node
+     *
+     * @param subscriber True if the node is a subcommand
+     *
+     * @return The command
+     */
+    public static Command fromElement(final Element e, final boolean subscriber) {
+        return fromAttributes(e::getAttribute, e.getTextContent(), subscriber);
+    }
+
+    /**
+     * This method creates a command from the attributes of a command or
+     * subcommand tag, however they were read.
+     *
+     * @param attributes Returns the value of an attribute, or an empty string
+     * if there is none
+     *
+     * @param text The text of the tag
+     *
+     * @param subscriber True if the tag is a subcommand
+     *
+     * @return The command
+     */
+    public static Command fromAttributes(final UnaryOperator<String> attributes,
+            final String text,
+            final boolean subscriber) {
+        return new Command(
+                attributes.apply("name").toLowerCase(),
+                text,
+                attributes.apply("auth"),
+                parseLong(attributes.apply("cooldown")),
+                parseLong(attributes.apply("userCooldown")),
+                attributes.apply("sound"),
+                Boolean.parseBoolean(attributes.apply("repeating")),
+                parseLong(attributes.apply("initialDelay")),
+                parseLong(attributes.apply("interval")),
+                Boolean.parseBoolean(attributes.apply("disabled")),
+                subscriber);
+    }
+
+    private static long parseLong(final String value) {
+        if (value.isEmpty()) {
+            return 0L;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return 0L;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getResponse() {
+        return response;
+    }
+
+    public String getAuth() {
+        return auth;
+    }
+
+    /**
+     * @return The auth list compiled when this command was created
+     */
+    public AuthRule getAuthRule() {
+        return authRule;
+    }
+
+    public long getCooldown() {
+        return cooldown;
+    }
+
+    public long getUserCooldown() {
+        return userCooldown;
+    }
+
+    public String getSound() {
+        return sound;
+    }
+
+    public boolean isRepeating() {
+        return repeating;
+    }
+
+    public long getInitialDelay() {
+        return initialDelay;
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    public boolean isDisabled() {
+        return disabled;
+    }
+
+    public boolean isSubscriber() {
+        return subscriber;
+    }
+
+    @Override
+    public String toString() {
+        return "Command{" + "name=" + name
+                + ", auth=" + auth
+                + ", cooldown=" + cooldown
+                + ", userCooldown=" + userCooldown
+                + ", sound=" + sound
+                + ", repeating=" + repeating
+                + ", initialDelay=" + initialDelay
+                + ", interval=" + interval
+                + ", disabled=" + disabled
+                + ", subscriber=" + subscriber + '}';
+    }
+}
@@ -4,37 +4,31 @@ import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.PrintStream;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.PatternSyntaxException;
 import java.util.logging.Logger;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 import org.w3c.dom.DOMException;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
 import sun.audio.AudioPlayer;
 import sun.audio.AudioStream;
 import javax.sound.sampled.*;
 import java.time.LocalDate;
 import java.time.Instant;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 import java.util.Arrays;
-import javax.xml.transform.OutputKeys;
 
 /**
  * This class is a command handler for most of the common commands in this bot.
@@ -51,7 +45,47 @@ public final class CommandHandler {
 
     private final ConfigParser.Elements elements;
 
-    private final PrintStream outstream;
+    private final OutboundScheduler outbound;
+
+    // Shared by every shard, user commands are registered as they change
+    private final CommandRegistry registry;
+
+    // The broadcaster, who may run every command
+    private final String channel;
+
+    // Shared by every shard, never written to the document
+    private final CooldownService cooldowns;
+
+    // Stores every change made to the document
+    private final ConfigStore store;
+
+    // The settings in use, read without the document lock
+    private final LiveConfiguration config;
+
+    // Shared by every shard, rebuilt as filters change
+    private final FilterRegistry filters;
+
+    // Shared by every shard, null if the history is off
+    private final ChatHistoryStore history;
+
+    // Messages whispered by !history at most, and without a count
+    private static final int HISTORY_MAX_MESSAGES = 10;
+
+    private static final int HISTORY_DEFAULT_MESSAGES = 5;
+
+    // Each message is cut past this many characters
+    private static final int HISTORY_MAX_TEXT = 80;
+
+    // The messages are packed into this many whispers of this length at most,
+    // the oldest are left out past it
+    private static final int HISTORY_MAX_WHISPERS = 2;
+
+    private static final int WHISPER_MAX_LENGTH = 450;
+
+    private static final String HISTORY_USAGE = "Usage: !history [user or *] [count] [minutes]";
+
+    private static final DateTimeFormatter HISTORY_TIME = DateTimeFormatter.ofPattern("MM-dd HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
 
     private final List<CachedMessage> recentMessages = new ArrayList<>();
 
@@ -66,6 +100,7 @@ public final class CommandHandler {
         "!command-delay",
         "!command-interval",
         "!command-cooldown",
+        "!command-usercooldown",
         "!command-sound",
         "!set-msgCache",
         "!set-pyramidResponse",
@@ -85,8 +120,11 @@ public final class CommandHandler {
         "!highlight",
         "!filter-all",
         "!filter-add",
+        "!filter-add-regex",
+        "!filter-add-username",
         "!filter-delete",
-        "!filter-reason"};
+        "!filter-reason",
+        "!history"};
 
     /**
      * A simple inner class for storing cached messages.
@@ -125,123 +163,90 @@ public final class CommandHandler {
      *
      * @param elements The element references to the XML data
      *
-     * @param stream The output stream to the Twitch API
+     * @param outbound The scheduler for messages to the Twitch API
+     *
+     * @param registry The command registry shared by every shard
+     *
+     * @param cooldowns The command cooldowns shared by every shard
+     *
+     * @param store Stores every change made to the XML document
+     *
+     * @param config The settings in use
+     *
+     * @param filters The filter matcher shared by every shard
+     *
+     * @param history The chat history shared by every shard, or null
      */
     public CommandHandler(final ConfigParser.Elements elements,
-            final PrintStream stream) {
+            final OutboundScheduler outbound,
+            final CommandRegistry registry,
+            final CooldownService cooldowns,
+            final ConfigStore store,
+            final LiveConfiguration config,
+            final FilterRegistry filters,
+            final ChatHistoryStore history) {
         this.elements = elements;
-        this.outstream = stream;
+        this.outbound = outbound;
+        this.registry = registry;
+        this.cooldowns = cooldowns;
+        this.store = store;
+        this.config = config;
+        this.filters = filters;
+        this.history = history;
+        this.channel = config.get().joinedChannel;
     }
 
+    /**
+     * This method runs a user or subscriber command from the command table.
+     *
+     * @param msg The message from the user, starting with the command
+     *
+     * @param username The lowercased name of the user
+     *
+     * @param userKey The key of the user for per-user cooldowns
+     *
+     * @param roles The roles of the user, see {@link AuthRule}
+     */
     public void parseForUserCommands(String msg,
             String username,
-            boolean mod,
-            boolean sub) {
-
-        for (int i = 0; i < this.elements.commandNodes.getLength(); i++) {
-            try {
-                Node n = this.elements.commandNodes.item(i);
-                Element e = (Element) n;
-
-                int endOfCmd = msg.indexOf(" ");
-                if (endOfCmd == -1) {
-                    endOfCmd = msg.length();
-                }
-                String cmd = msg.substring(0, endOfCmd);
-                cmd = cmd.toLowerCase();
-                if (cmd.contentEquals(e.getAttribute("name"))) {
-                    if (!checkAuthorization(cmd, username, mod, sub)) {
-                        return;
-                    }
-                    if (Boolean.parseBoolean(e.getAttribute("disabled"))) {
-                        return;
-                    }
-                    String sendTxt;
-                    if (msg.contains(" ")) {
-                        String param = msg.substring(endOfCmd + 1);
-                        sendTxt = e.getTextContent().replace("%param%", param);
-                    } else {
-                        sendTxt = e.getTextContent();
-                    }
-                    if (sendTxt.contains("%param%")) {
-                        sendMessage(cmd + " requires a parameter.");
-                        return;
-                    }
-                    if (!username.contentEquals(this.elements.configNode.getElementsByTagName("myChannel").item(0).getTextContent())) {
-                        Calendar calendar = Calendar.getInstance();
-                        Date now = calendar.getTime();
-                        Date cdTime = new Date(0L);
-                        if (!e.getAttribute("cdUntil").isEmpty()) {
-                            cdTime = new Date(Long.parseLong(e.getAttribute("cdUntil")));
-                        }
-                        if (now.before(cdTime)) {
-                            return;
-                        }
-                        cdTime = new Date(now.getTime() + Long.parseLong(e.getAttribute("cooldown")) * 1000L);
-                        e.setAttribute("cdUntil", Long.toString(cdTime.getTime()));
-                    }
-                    sendMessage(sendTxt);
-                    if (!e.getAttribute("sound").isEmpty()) {
-                        playSound(e.getAttribute("sound"));
-                    }
-                }
-            } catch (DOMException | NumberFormatException e) {
-                LOGGER.severe(e.toString());
-            }
+            long userKey,
+            int roles) {
+        int endOfCmd = msg.indexOf(" ");
+        if (endOfCmd == -1) {
+            endOfCmd = msg.length();
+        }
+        String cmd = msg.substring(0, endOfCmd).toLowerCase();
+        final Command command = this.registry.getTable().get(cmd);
+        if (command == null) {
+            return;
         }
-        // Begin checking for subcommands if regular commands fail
-        for (int i = 0; i < this.elements.subCommandNodes.getLength(); i++) {
-            try {
-                Node n = this.elements.subCommandNodes.item(i);
-                Element e = (Element) n;
-
-                int endOfCmd = msg.indexOf(" ");
-                if (endOfCmd == -1) {
-                    endOfCmd = msg.length();
-                }
-                String cmd = msg.substring(0, endOfCmd);
-                cmd = cmd.toLowerCase();
-                if (cmd.contentEquals(e.getAttribute("name"))) {
-                    if (!checkAuthorization(cmd, username, mod, sub)) {
-                        return;
-                    }
-                    if (Boolean.parseBoolean(e.getAttribute("disabled"))) {
-                        return;
-                    }
-                    String sendTxt;
-                    if (msg.contains(" ")) {
-                        String param = msg.substring(endOfCmd + 1);
-                        sendTxt = e.getTextContent().replace("%param%", param);
-                    } else {
-                        sendTxt = e.getTextContent();
-                    }
-                    if (sendTxt.contains("%param%")) {
-                        sendMessage(cmd + " requires a parameter.");
-                        return;
-                    }
-                    if (!username.contentEquals(this.elements.configNode.getElementsByTagName("myChannel").item(0).getTextContent())) {
-                        Calendar calendar = Calendar.getInstance();
-                        Date now = calendar.getTime();
-                        Date cdTime = new Date(0L);
-                        if (!e.getAttribute("cdUntil").isEmpty()) {
-                            cdTime = new Date(Long.parseLong(e.getAttribute("cdUntil")));
-                        }
-                        if (now.before(cdTime)) {
-                            return;
-                        }
-                        cdTime = new Date(now.getTime() + Long.parseLong(e.getAttribute("cooldown")) * 1000L);
-                        e.setAttribute("cdUntil", Long.toString(cdTime.getTime()));
-                    }
-                    sendMessage(sendTxt);
-                    if (!e.getAttribute("sound").isEmpty()) {
-                        playSound(e.getAttribute("sound"));
-                    }
-                }
-            } catch (DOMException | NumberFormatException e) {
-                LOGGER.severe(e.toString());
+        if (!checkAuthorization(command, username, roles)) {
+            return;
+        }
+        if (command.isDisabled()) {
+            return;
+        }
+        String sendTxt;
+        if (msg.contains(" ")) {
+            String param = msg.substring(endOfCmd + 1);
+            sendTxt = command.getResponse().replace("%param%", param);
+        } else {
+            sendTxt = command.getResponse();
+        }
+        if (sendTxt.contains("%param%")) {
+            sendMessage(cmd + " requires a parameter.");
+            return;
+        }
+        if (!username.equals(this.channel)) {
+            if (!this.cooldowns.tryAcquire(cmd, userKey,
+                    command.getCooldown() * 1000L, command.getUserCooldown() * 1000L)) {
+                return;
             }
         }
-
+        sendMessage(sendTxt);
+        if (!command.getSound().isEmpty()) {
+            playSound(command.getSound());
+        }
     }
 
     /**
@@ -259,23 +264,10 @@ public final class CommandHandler {
                 sendMessage("Failed: [" + cmd + "] is a reserved command.");
                 return;
             }
-            // Check for duplicate regular commands
-            for (int i = 0; i < this.elements.commandNodes.getLength(); i++) {
-                Node n = this.elements.commandNodes.item(i);
-                Element e = (Element) n;
-                if (cmd.contentEquals(e.getAttribute("name"))) {
-                    sendMessage("Command [" + cmd + "] already exists.");
-                    return;
-                }
-            }
-            // Check for duplicate sub commands
-            for (int i = 0; i < this.elements.subCommandNodes.getLength(); i++) {
-                Node n = this.elements.subCommandNodes.item(i);
-                Element e = (Element) n;
-                if (cmd.contentEquals(e.getAttribute("name"))) {
-                    sendMessage("Command [" + cmd + "] already exists.");
-                    return;
-                }
+            // Check for duplicate regular and sub commands
+            if (this.registry.getTable().get(cmd.toLowerCase()) != null) {
+                sendMessage("Command [" + cmd + "] already exists.");
+                return;
             }
 
             if (!cmd.startsWith("!")) {
@@ -291,12 +283,13 @@ public final class CommandHandler {
             newNode.setAttribute("initialDelay", "0");
             newNode.setAttribute("interval", "0");
             newNode.setAttribute("cooldown", "10");
-            newNode.setAttribute("cdUntil", "");
+            newNode.setAttribute("userCooldown", "0");
             newNode.setAttribute("sound", "");
             newNode.setAttribute("disabled", "false");
 
             this.elements.commands.appendChild(newNode);
-            writeXML();
+            saveElement(newNode);
+            updateCommand(newNode, false);
             String confirmation = "Added command [" + cmd + "] : [" + txt + "]";
             sendMessage(confirmation);
         } catch (IllegalArgumentException e) {
@@ -316,15 +309,13 @@ public final class CommandHandler {
             sendMessage("Failed: [" + cmd + "] is a reserved command.");
             return;
         }
-        for (int i = 0; i < this.elements.commandNodes.getLength(); i++) {
-            Node n = this.elements.commandNodes.item(i);
-            Element e = (Element) n;
-            if (cmd.contentEquals(e.getAttribute("name"))) {
-                this.elements.commands.removeChild(n);
-                writeXML();
-                sendMessage("Command [" + cmd + "] deleted.");
-                return;
-            }
+        final Element e = findCommandNode(this.elements.commandNodes, cmd);
+        if (e != null) {
+            this.elements.commands.removeChild(e);
+            saveRemoval(e);
+            removeCommand(cmd, false);
+            sendMessage("Command [" + cmd + "] deleted.");
+            return;
         }
         sendMessage("Command [" + cmd + "] not found.");
     }
@@ -348,15 +339,13 @@ public final class CommandHandler {
                 sendMessage("Failed: [" + cmd + "] is a reserved command.");
                 return;
             }
-            for (int i = 0; i < this.elements.commandNodes.getLength(); i++) {
-                Node n = this.elements.commandNodes.item(i);
-                Element e = (Element) n;
-                if (cmd.contentEquals(e.getAttribute("name"))) {
-                    e.setTextContent(txt);
-                    writeXML();
-                    sendMessage("Command [" + cmd + "] changed to " + txt);
-                    return;
-                }
+            final Element e = findCommandNode(this.elements.commandNodes, cmd);
+            if (e != null) {
+                e.setTextContent(txt);
+                saveElement(e);
+                updateCommand(e, false);
+                sendMessage("Command [" + cmd + "] changed to " + txt);
+                return;
             }
             sendMessage("Command [" + cmd + "] not found.");
         } catch (IllegalArgumentException e) {
@@ -381,10 +370,11 @@ public final class CommandHandler {
             cmd = cmd.toLowerCase();
             String auth = parameters.substring(separator + 1) + " ";
             if (isReservedCommand(cmd)) {
-                if (!username.contentEquals(this.elements.configNode.getElementsByTagName("myChannel").item(0).getTextContent())) {
+                if (!username.contentEquals(this.channel)) {
                     sendMessage("Failed: only the channel owner can edit the auth for reserved commands.");
                     return;
                 }
+                addBuiltInNode(cmd);
             }
             if (setUserCmdXMLParam(cmd, "auth", auth, true)) {
                 sendMessage("Command [" + cmd + "] authorization set to [" + auth + "]");
@@ -478,12 +468,32 @@ public final class CommandHandler {
             if (setUserCmdXMLParam(cmd, "cooldown", Long.toString(cooldown), false)) {
                 sendMessage("Command [" + cmd + "] set to cooldown of [" + cooldown + "] seconds.");
             }
-            setUserCmdXMLParam(cmd, "cdUntil", "", false);
+            this.cooldowns.reset(cmd);
         } catch (IllegalArgumentException e) {
             sendMessage("Syntax: !command-cooldown [!command] [seconds]");
         }
     }
 
+    /**
+     * Sets how long each user waits before running the command again.
+     *
+     * @param msg The message from the user
+     */
+    public void cmdUserCooldown(String msg) {
+        try {
+            String parameters = getInputParameter("!command-usercooldown", msg, true);
+            int separator = parameters.indexOf(" ");
+            String cmd = parameters.substring(0, separator);
+            cmd = cmd.toLowerCase();
+            long cooldown = Long.parseLong(parameters.substring(separator + 1));
+            if (setUserCmdXMLParam(cmd, "userCooldown", Long.toString(cooldown), false)) {
+                sendMessage("Command [" + cmd + "] set to cooldown of [" + cooldown + "] seconds per user.");
+            }
+        } catch (IllegalArgumentException e) {
+            sendMessage("Syntax: !command-usercooldown [!command] [seconds]");
+        }
+    }
+
     /**
      * Appends a sounds file to command node
      *
@@ -527,24 +537,16 @@ public final class CommandHandler {
                 return;
             }
 
-            // Check for duplicate sub commands
-            for (int i = 0; i < this.elements.subCommandNodes.getLength(); i++) {
-                Node n = this.elements.subCommandNodes.item(i);
-                Element e = (Element) n;
-                if (cmd.contentEquals(e.getAttribute("name"))) {
-                    sendMessage("Command [" + cmd + "] already exists.");
-                    return;
-                } else if (subAuth.contentEquals(e.getAttribute("auth"))) {
-                    sendMessage("Subscriber " + subscriber + " already has command [" + cmd + "]");
-                    return;
-                }
+            // Check for duplicate sub commands, and make sure the new command
+            // doesn't overlap with regular commands
+            final CommandTable table = this.registry.getTable();
+            if (table.get(cmd.toLowerCase()) != null) {
+                sendMessage("Command [" + cmd + "] already exists.");
+                return;
             }
-            // Check to make sure new command doesn't overlap with regular commands
-            for (int i = 0; i < this.elements.commandNodes.getLength(); i++) {
-                Node n = this.elements.commandNodes.item(i);
-                Element e = (Element) n;
-                if (cmd.contentEquals(e.getAttribute("name"))) {
-                    sendMessage("Command [" + cmd + "] already exists.");
+            for (Command subCommand : table.getSubCommands()) {
+                if (subAuth.contentEquals(subCommand.getAuth())) {
+                    sendMessage("Subscriber " + subscriber + " already has command [" + cmd + "]");
                     return;
                 }
             }
@@ -561,12 +563,12 @@ public final class CommandHandler {
             newNode.setAttribute("initialDelay", "0");
             newNode.setAttribute("interval", "0");
             newNode.setAttribute("cooldown", "10");
-            newNode.setAttribute("cdUntil", "");
             newNode.setAttribute("sound", "");
             newNode.setAttribute("disabled", "false");
 
             this.elements.subCommands.appendChild(newNode);
-            writeXML();
+            saveElement(newNode);
+            updateCommand(newNode, true);
             String confirmation = "Added subcommand [" + cmd + "] for subscriber: [" + subscriber + "] : [" + txt + "]";
             sendMessage(confirmation);
         } catch (IllegalArgumentException e) {
@@ -588,15 +590,13 @@ public final class CommandHandler {
             sendMessage("Failed: [" + cmd + "] is a reserved command.");
             return;
         }
-        for (int i = 0; i < this.elements.subCommandNodes.getLength(); i++) {
-            Node n = this.elements.subCommandNodes.item(i);
-            Element e = (Element) n;
-            if (cmd.contentEquals(e.getAttribute("name"))) {
-                this.elements.subCommands.removeChild(n);
-                writeXML();
-                sendMessage("Command [" + cmd + "] deleted.");
-                return;
-            }
+        final Element e = findCommandNode(this.elements.subCommandNodes, cmd);
+        if (e != null) {
+            this.elements.subCommands.removeChild(e);
+            saveRemoval(e);
+            removeCommand(cmd, true);
+            sendMessage("Command [" + cmd + "] deleted.");
+            return;
         }
         sendMessage("Command [" + cmd + "] not found.");
     }
@@ -620,15 +620,13 @@ public final class CommandHandler {
                 sendMessage("Failed: [" + cmd + "] is a reserved command.");
                 return;
             }
-            for (int i = 0; i < this.elements.subCommandNodes.getLength(); i++) {
-                Node n = this.elements.subCommandNodes.item(i);
-                Element e = (Element) n;
-                if (cmd.contentEquals(e.getAttribute("name"))) {
-                    e.setTextContent(txt);
-                    writeXML();
-                    sendMessage("Command [" + cmd + "] changed to " + txt);
-                    return;
-                }
+            final Element e = findCommandNode(this.elements.subCommandNodes, cmd);
+            if (e != null) {
+                e.setTextContent(txt);
+                saveElement(e);
+                updateCommand(e, true);
+                sendMessage("Command [" + cmd + "] changed to " + txt);
+                return;
             }
             sendMessage("Command [" + cmd + "] not found.");
         } catch (IllegalArgumentException e) {
@@ -653,7 +651,7 @@ public final class CommandHandler {
             cmd = cmd.toLowerCase();
             String auth = parameters.substring(separator + 1) + " ";
             if (isReservedCommand(cmd)) {
-                if (!username.contentEquals(this.elements.configNode.getElementsByTagName("myChannel").item(0).getTextContent())) {
+                if (!username.contentEquals(this.channel)) {
                     sendMessage("Failed: only the channel owner can edit the auth for reserved commands.");
                     return;
                 }
@@ -681,7 +679,7 @@ public final class CommandHandler {
             if (setSubCmdXMLParam(cmd, "cooldown", Long.toString(cooldown), false)) {
                 sendMessage("Command [" + cmd + "] set to cooldown of [" + cooldown + "] seconds.");
             }
-            setSubCmdXMLParam(cmd, "cdUntil", "", false);
+            this.cooldowns.reset(cmd);
         } catch (IllegalArgumentException e) {
             sendMessage("Syntax: !command-cooldown [!command] [seconds]");
         }
@@ -725,13 +723,15 @@ public final class CommandHandler {
 
     public String uptime() {
         try {
-            String statusURL = this.elements.configNode.getElementsByTagName("twitchStreamerStatus").item(0).getTextContent();
-            statusURL = statusURL.replaceAll("#streamer", this.elements.configNode.getElementsByTagName("myChannel").item(0).getTextContent());
+            final ConfigParser.Configuration settings = this.config.get();
+            String statusURL = settings.streamerStatusURL.replaceAll("#streamer", this.channel);
+            String oauth = settings.password;
+            String clientID = settings.clientID;
             URL url = new URL(statusURL);
             URLConnection con = (URLConnection) url.openConnection();
             con.setRequestProperty("Accept", "application/vnd.twitchtv.v3+json");
-            con.setRequestProperty("Authorization", this.elements.configNode.getElementsByTagName("botOAUTH").item(0).getTextContent());
-            con.setRequestProperty("Client-ID", this.elements.configNode.getElementsByTagName("botClientID").item(0).getTextContent());
+            con.setRequestProperty("Authorization", oauth);
+            con.setRequestProperty("Client-ID", clientID);
             BufferedReader brin = new BufferedReader(new InputStreamReader(con.getInputStream()));
             StringBuilder response = new StringBuilder();
             String inputLine;
@@ -773,7 +773,7 @@ public final class CommandHandler {
         if (!uptime.equals("0")) {
             sendMessage("Highlight marked suggested added at " + uptime);
             try {
-                String googleSheetID = this.elements.configNode.getElementsByTagName("googleSheetID").item(0).getTextContent();
+                String googleSheetID = this.config.get().googleSheetID;
                 String sheetAPI = "https://sheets.googleapis.com/v4/spreadsheets/" + googleSheetID + "/values/{range}:append";
                 URL url = new URL(sheetAPI);
                 URLConnection con = (URLConnection) url.openConnection();
@@ -802,15 +802,18 @@ public final class CommandHandler {
 **
      */
     public void followage(String user) {
+        final ConfigParser.Configuration settings = this.config.get();
+        String followURL = settings.followageURL;
+        String oauth = settings.password;
+        String clientID = settings.clientID;
         try {
-            String followURL = this.elements.configNode.getElementsByTagName("twitchFollowage").item(0).getTextContent();
             followURL = followURL.replaceAll("#user", user);
-            followURL = followURL.replaceAll("#streamer", this.elements.configNode.getElementsByTagName("myChannel").item(0).getTextContent());
+            followURL = followURL.replaceAll("#streamer", this.channel);
             URL url = new URL(followURL);
             URLConnection con = (URLConnection) url.openConnection();
             con.setRequestProperty("Accept", "application/vnd.twitchtv.v3+json");
-            con.setRequestProperty("Authorization", this.elements.configNode.getElementsByTagName("botOAUTH").item(0).getTextContent());
-            con.setRequestProperty("Client-ID", this.elements.configNode.getElementsByTagName("botClientID").item(0).getTextContent());
+            con.setRequestProperty("Authorization", oauth);
+            con.setRequestProperty("Client-ID", clientID);
             BufferedReader brin = new BufferedReader(new InputStreamReader(con.getInputStream()));
             StringBuilder response = new StringBuilder();
             String inputLine;
@@ -835,10 +838,10 @@ public final class CommandHandler {
                 brin.close();
             }
         } catch (FileNotFoundException e) {
-            if (user.equalsIgnoreCase(this.elements.configNode.getElementsByTagName("myChannel").item(0).getTextContent())) {
+            if (user.equalsIgnoreCase(channel)) {
                 sendMessage("Broadcasters cannot follow their own stream.");
             } else {
-                sendMessage("User " + user + "  is not following " + this.elements.configNode.getElementsByTagName("myChannel").item(0).getTextContent());
+                sendMessage("User " + user + "  is not following " + channel);
             }
         } catch (Exception e) {
             LOGGER.severe(e.toString());
@@ -897,12 +900,12 @@ public final class CommandHandler {
 
     /*
     ** !commands shows all commands available to user ie mod, sub, username
-    ** @param username, mod status, sub status
+    ** @param username, roles
     ** @return none
      */
-    public void commands(String user, boolean mod, boolean sub) {
+    public void commands(String user, int roles) {
         String auth = "";
-        if (user.contentEquals(this.elements.configNode.getElementsByTagName("myChannel").item(0).getTextContent())) {
+        if (user.contentEquals(this.channel)) {
             sendMessage("Command list too long for chat, see commands text file in main bot folder.");
             writeCommandFile();
         }
@@ -917,7 +920,7 @@ public final class CommandHandler {
             for (int i = 0; i < this.elements.commandNodes.getLength(); i++) {
                 Node n = this.elements.commandNodes.item(i);
                 Element e = (Element) n;
-                if (checkAuthorization(e.getAttribute("name"), user, mod, sub)) {
+                if (checkAuthorization(e.getAttribute("name"), user, roles)) {
                     if (!e.getAttribute("auth").contains("-o ")) {
                         commands[i] = e.getAttribute("name");
                     }
@@ -940,15 +943,9 @@ public final class CommandHandler {
 
     public void writeCommandFile() {
         try {
-            String[] commands = new String[elements.commandNodes.getLength()];
-            for (int i = 0; i < this.elements.commandNodes.getLength(); i++) {
-                Node n = this.elements.commandNodes.item(i);
-                Element e = (Element) n;
-                commands[i] = e.getAttribute("name");
-            }
             FileWriter fw = new FileWriter("commands.txt");
-            for (int j = 0; j < commands.length; j++) {
-                fw.write(commands[j] + "\n");
+            for (Command command : this.registry.getTable().getCommands()) {
+                fw.write(command.getName() + "\n");
                 //LOGGER.info(commands[j]);
             }
             fw.close();
@@ -965,20 +962,12 @@ public final class CommandHandler {
     public void cntAdd(String msg) {
         try {
             String name = getInputParameter("!cnt-add", msg, true);
-            for (int i = 0; i < this.elements.counterNodes.getLength(); i++) {
-                Node n = this.elements.counterNodes.item(i);
-                Element e = (Element) n;
-                if (name.contentEquals(e.getAttribute("name"))) {
-                    sendMessage("Counter [" + name + "] already exists.");
-                    return;
-                }
+            if (this.elements.counterValues.containsKey(name)) {
+                sendMessage("Counter [" + name + "] already exists.");
+                return;
             }
-            Element newNode = this.elements.doc.createElement("counter");
-            newNode.appendChild(this.elements.doc.createTextNode("0"));
-            newNode.setAttribute("name", name);
-
-            this.elements.counters.appendChild(newNode);
-            writeXML();
+            this.elements.counterValues.put(name, 0);
+            this.store.record(Mutation.counter(name, 0));
             String confirmation = "Added counter [" + name + "]";
             sendMessage(confirmation);
         } catch (IllegalArgumentException e) {
@@ -988,15 +977,10 @@ public final class CommandHandler {
 
     public void cntDelete(String msg) {
         String name = getInputParameter("!cnt-delete", msg, true);
-        for (int i = 0; i < this.elements.counterNodes.getLength(); i++) {
-            Node n = this.elements.counterNodes.item(i);
-            Element e = (Element) n;
-            if (name.contentEquals(e.getAttribute("name"))) {
-                this.elements.counters.removeChild(n);
-                writeXML();
-                sendMessage("Counter [" + name + "] deleted.");
-                return;
-            }
+        if (this.elements.counterValues.remove(name) != null) {
+            this.store.record(Mutation.delete("counter", name));
+            sendMessage("Counter [" + name + "] deleted.");
+            return;
         }
         sendMessage("Counter [" + name + "] not found.");
     }
@@ -1007,15 +991,11 @@ public final class CommandHandler {
             int separator = parameters.indexOf(" ");
             String name = parameters.substring(0, separator);
             int value = Integer.parseInt(parameters.substring(separator + 1));
-            for (int i = 0; i < this.elements.counterNodes.getLength(); i++) {
-                Node n = this.elements.counterNodes.item(i);
-                Element e = (Element) n;
-                if (name.contentEquals(e.getAttribute("name"))) {
-                    e.setTextContent(Integer.toString(value));
-                    writeXML();
-                    sendMessage("Counter [" + name + "] set to [" + Integer.toString(value) + "]");
-                    return;
-                }
+            if (this.elements.counterValues.containsKey(name)) {
+                this.elements.counterValues.put(name, value);
+                this.store.record(Mutation.counter(name, value));
+                sendMessage("Counter [" + name + "] set to [" + Integer.toString(value) + "]");
+                return;
             }
             sendMessage("Counter [" + name + "] not found.");
         } catch (IllegalArgumentException e) {
@@ -1025,13 +1005,10 @@ public final class CommandHandler {
 
     public void cntCurrent(String msg) {
         String name = getInputParameter("!cnt-current", msg, true);
-        for (int i = 0; i < this.elements.counterNodes.getLength(); i++) {
-            Node n = this.elements.counterNodes.item(i);
-            Element e = (Element) n;
-            if (name.contentEquals(e.getAttribute("name"))) {
-                sendMessage("Counter [" + name + "] is currently [" + e.getTextContent() + "]");
-                return;
-            }
+        final Integer value = this.elements.counterValues.get(name);
+        if (value != null) {
+            sendMessage("Counter [" + name + "] is currently [" + value + "]");
+            return;
         }
         sendMessage("Counter [" + name + "] not found.");
     }
@@ -1042,16 +1019,13 @@ public final class CommandHandler {
             int separator = parameters.indexOf(" ");
             String name = parameters.substring(0, separator);
             int delta = Integer.parseInt(parameters.substring(separator + 1));
-            for (int i = 0; i < this.elements.counterNodes.getLength(); i++) {
-                Node n = this.elements.counterNodes.item(i);
-                Element e = (Element) n;
-                if (name.contentEquals(e.getAttribute("name"))) {
-                    int value = Integer.parseInt(e.getTextContent()) + delta;
-                    e.setTextContent(Integer.toString(value));
-                    writeXML();
-                    sendMessage(delta + " points added to [" + name + "]");
-                    return;
-                }
+            final Integer current = this.elements.counterValues.get(name);
+            if (current != null) {
+                int value = current + delta;
+                this.elements.counterValues.put(name, value);
+                this.store.record(Mutation.counter(name, value));
+                sendMessage(delta + " points added to [" + name + "]");
+                return;
             }
             sendMessage("Counter [" + name + "] not found.");
         } catch (IllegalArgumentException e) {
@@ -1061,13 +1035,11 @@ public final class CommandHandler {
 
     public void totals(String msg) {
         try {
-            String[][] counters = new String[Integer.decode(elements.configNode.getElementsByTagName("numberOfCounters").item(0).getTextContent())][2];
+            String[][] counters = new String[this.config.get().numberOfCounters][2];
             int count = 0;
-            for (int i = 0; i < this.elements.counterNodes.getLength(); i++) {
-                Node n = this.elements.counterNodes.item(i);
-                Element e = (Element) n;
-                counters[i][0] = e.getAttribute("name");
-                counters[i][1] = e.getTextContent();
+            for (Map.Entry<String, Integer> counter : this.elements.counterValues.entrySet()) {
+                counters[count][0] = counter.getKey();
+                counters[count][1] = Integer.toString(counter.getValue());
                 count++;
             }
             switch (count) {
@@ -1097,11 +1069,9 @@ public final class CommandHandler {
      */
     public void filterAll(String msg, String user) {
         try {
-            String[] filters = new String[elements.filterNodes.getLength()];
-            for (int i = 0; i < this.elements.filterNodes.getLength(); i++) {
-                Node n = this.elements.filterNodes.item(i);
-                Element e = (Element) n;
-                filters[i] = e.getAttribute("name");
+            String[] filters = new String[elements.filterList.size()];
+            for (int i = 0; i < this.elements.filterList.size(); i++) {
+                filters[i] = this.elements.filterList.get(i).getName();
             }
             StringBuilder sb = new StringBuilder();
             for (int j = 0; j < filters.length; j++) {
@@ -1136,38 +1106,78 @@ public final class CommandHandler {
                 int reasonEnd = (msg.length());
                 reason = msg.substring(reasonStart, reasonEnd);
             }
-            for (int i = 0; i < this.elements.filterNodes.getLength(); i++) {
-                Node n = this.elements.filterNodes.item(i);
-                Element e = (Element) n;
-                if (filter.contentEquals(e.getAttribute("name"))) {
-                    sendWhisper(".w " + user + " Filter already exists.");
-                    return;
-                }
+            if (findFilter(filter) != -1) {
+                sendWhisper(".w " + user + " Filter already exists.");
+                return;
             }
-            Element newNode = this.elements.doc.createElement("filter");
-            newNode.setAttribute("name", filter);
-            newNode.setAttribute("reason", reason);
-            newNode.setAttribute("disable", "false");
-            this.elements.filters.appendChild(newNode);
-            writeXML();
+            saveFilter(-1, new Filter(filter, reason, false));
             sendWhisper(".w " + user + " Filter added.");
         } catch (IllegalArgumentException e) {
             LOGGER.info(e.toString());
         }
     }
 
+    /**
+     * This method adds a regex filter, the pattern is compiled first so a
+     * pattern that is not valid or not supported is never added. The pattern
+     * is searched in the message as it was posted, unlike a phrase it is
+     * case sensitive unless it starts with (?i).
+     *
+     * @param msg The message, !filter-add-regex [pattern] [reason]
+     *
+     * @param user The moderator who added it
+     */
+    public void filterAddRegex(String msg, String user) {
+        filterAddPattern("!filter-add-regex", Filter.Type.REGEX, msg, user);
+    }
+
+    /**
+     * This method adds a username filter, chatters whose whole username
+     * matches the pattern are timed out.
+     *
+     * @param msg The message, !filter-add-username [pattern] [reason]
+     *
+     * @param user The moderator who added it
+     */
+    public void filterAddUsername(String msg, String user) {
+        filterAddPattern("!filter-add-username", Filter.Type.USERNAME, msg, user);
+    }
+
+    private void filterAddPattern(String command, Filter.Type type, String msg, String user) {
+        try {
+            String parameters = getInputParameter(command, msg, true);
+            int separator = parameters.indexOf(" ");
+            String filter = separator == -1 ? parameters : parameters.substring(0, separator);
+            String reason = separator == -1 ? "" : parameters.substring(separator + 1);
+            try {
+                RegexCompiler.validate(type == Filter.Type.USERNAME ? FilterMatcher.wholeInput(filter) : filter);
+            } catch (PatternSyntaxException e) {
+                sendWhisper(".w " + user + " Invalid pattern: " + e.getDescription());
+                return;
+            }
+            if (findFilter(filter) != -1) {
+                sendWhisper(".w " + user + " Filter already exists.");
+                return;
+            }
+            saveFilter(-1, new Filter(filter, reason, false, type));
+            sendWhisper(".w " + user + (type == Filter.Type.REGEX
+                    ? " Filter added, it is matched against the message as posted, case sensitive unless it starts with (?i)."
+                    : " Filter added."));
+        } catch (IllegalArgumentException e) {
+            LOGGER.info(e.toString());
+        }
+    }
+
     public void filterDel(String msg, String user) {
         try {
             String filterName = getInputParameter("!filter-delete", msg, true);
-            for (int i = 0; i < this.elements.filterNodes.getLength(); i++) {
-                Node n = this.elements.filterNodes.item(i);
-                Element e = (Element) n;
-                if (filterName.contentEquals(e.getAttribute("name"))) {
-                    this.elements.filters.removeChild(n);
-                    writeXML();
-                    sendWhisper(".w " + user + " Filter deleted.");
-                    return;
-                }
+            final int i = findFilter(filterName);
+            if (i != -1) {
+                this.elements.filterList.remove(i);
+                this.store.record(Mutation.delete("filter", filterName));
+                this.filters.rebuild(this.elements);
+                sendWhisper(".w " + user + " Filter deleted.");
+                return;
             }
 
             sendWhisper(".w " + user + " Filter not found.");
@@ -1193,15 +1203,12 @@ public final class CommandHandler {
                 int reasonEnd = (msg.length());
                 reason = msg.substring(reasonStart, reasonEnd);
             }
-            for (int i = 0; i < this.elements.filterNodes.getLength(); i++) {
-                Node n = this.elements.filterNodes.item(i);
-                Element e = (Element) n;
-                if (filterName.contentEquals(e.getAttribute("name"))) {
-                    e.setAttribute("reason", reason);
-                    writeXML();
-                    sendWhisper(".w " + user + " Filter reason updated.");
-                    return;
-                }
+            final int i = findFilter(filterName);
+            if (i != -1) {
+                final Filter old = this.elements.filterList.get(i);
+                saveFilter(i, new Filter(old.getName(), reason, old.isDisabled(), old.getType()));
+                sendWhisper(".w " + user + " Filter reason updated.");
+                return;
             }
             sendWhisper(".w " + user + " Filter not found.");
         } catch (IllegalArgumentException e) {
@@ -1209,67 +1216,118 @@ public final class CommandHandler {
         }
     }
 
-    private void sendWhisper(final String msg) {
-        final String message = msg;
-        this.outstream.println("PRIVMSG #"
-                + this.elements.configNode.getElementsByTagName("myChannel").item(0).getTextContent()
-                + " "
-                + ":"
-                + message);
-    }
-
-    public boolean checkAuthorization(String command, String username, boolean mod, boolean sub) {
-        String auth = "";
-        //LOGGER.info("COMMAND: " + command + " USERNAME: " + username + " MOD: " + mod + " SUB: " + sub);
-        if (username.contentEquals(this.elements.configNode.getElementsByTagName("myChannel").item(0).getTextContent())) {
-            return true;
+    /**
+     * This method whispers the last messages of a user from the chat history,
+     * oldest first. With * as the user it whispers the last messages of
+     * anyone, and with a number of minutes only the messages posted since.
+     * The history is searched on its own thread, which whispers the answer.
+     *
+     * @param msg The message, !history [user] [count] [minutes]
+     *
+     * @param user The moderator who asked
+     */
+    public void history(String msg, String user) {
+        if (this.history == null) {
+            sendWhisper(".w " + user + " Chat history is off.");
+            return;
         }
-        for (int i = 0; i < this.elements.commandNodes.getLength(); i++) {
-            Node n = this.elements.commandNodes.item(i);
-            Element cmdXmlNode = (Element) n;
-            if (command.contentEquals(cmdXmlNode.getAttribute("name"))) {
-                auth = cmdXmlNode.getAttribute("auth");
-                break;
+        try {
+            String[] parameters = getInputParameter("!history", msg, true).trim().split("\\s+");
+            String target = parameters[0].toLowerCase();
+            if (target.startsWith("@")) {
+                target = target.substring(1);
             }
-        }
-        for (int i = 0; i < this.elements.subCommandNodes.getLength(); i++) {
-            Node n = this.elements.subCommandNodes.item(i);
-            Element cmdXmlNode = (Element) n;
-            if (command.contentEquals(cmdXmlNode.getAttribute("name"))) {
-                auth = cmdXmlNode.getAttribute("auth");
-                break;
+            if (target.isEmpty()) {
+                throw new IllegalArgumentException();
             }
+            int count = parameters.length > 1 ? Integer.parseInt(parameters[1]) : HISTORY_DEFAULT_MESSAGES;
+            count = Math.max(1, Math.min(count, HISTORY_MAX_MESSAGES));
+            long from = parameters.length > 2
+                    ? System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(Long.parseLong(parameters[2]))
+                    : 0L;
+            boolean queued = this.history.search("*".equals(target) ? null : target, from, Long.MAX_VALUE, count,
+                    found -> whisperHistory(user, found));
+            if (!queued) {
+                sendWhisper(".w " + user + " Too many history searches, try again shortly.");
+            }
+        } catch (IllegalArgumentException e) {
+            sendWhisper(".w " + user + " " + HISTORY_USAGE);
         }
-        if (auth.isEmpty()) {
-            return false;
-        }
-        if (auth.toLowerCase().contains("-" + username + " ")) {
-            return false;
-        }
-        if (auth.toLowerCase().contains("+" + username + " ")) {
-            return true;
-        }
-        if ((auth.contains("-m ")) && mod) {
-            //LOGGER.info("MOD FALSE: ");
-            return false;
-        }
-        if ((auth.contains("+m ")) && mod) {
-            // LOGGER.info("MOD TRUE: ");
-            return true;
-        }
-        if ((auth.contains("-s ")) && sub) {
-            return false;
+    }
+
+    /**
+     * This method whispers the messages found by !history, oldest first,
+     * packed into as few whispers as fit.
+     *
+     * @param user The moderator who asked
+     *
+     * @param found The messages, newest first
+     */
+    private void whisperHistory(String user, List<ChatHistoryStore.Message> found) {
+        if (found.isEmpty()) {
+            sendWhisper(".w " + user + " No messages found.");
+            return;
         }
-        if ((auth.contains("+s ")) && sub) {
-            return true;
+        List<String> lines = new ArrayList<>();
+        for (ChatHistoryStore.Message message : found) {
+            String text = message.getText();
+            if (text.length() > HISTORY_MAX_TEXT) {
+                text = text.substring(0, HISTORY_MAX_TEXT) + "...";
+            }
+            lines.add("[" + HISTORY_TIME.format(Instant.ofEpochMilli(message.getTime())) + "] "
+                    + message.getUser() + ": " + text);
+        }
+        // the newest lines are kept when they do not all fit
+        List<StringBuilder> whispers = new ArrayList<>();
+        for (String line : lines) {
+            StringBuilder current = whispers.isEmpty() ? null : whispers.get(whispers.size() - 1);
+            if (current == null || current.length() + 3 + line.length() > WHISPER_MAX_LENGTH) {
+                if (whispers.size() == HISTORY_MAX_WHISPERS) {
+                    break;
+                }
+                current = new StringBuilder();
+                whispers.add(current);
+            } else {
+                current.insert(0, " | ");
+            }
+            current.insert(0, line);
         }
-        if (auth.contains("-a ")) {
-            return false;
+        for (int i = whispers.size() - 1; i >= 0; i--) {
+            sendWhisper(".w " + user + " " + whispers.get(i));
         }
-        if (auth.contains("+a ")) {
+    }
+
+    private void sendWhisper(final String msg) {
+        final String message = msg;
+        this.outbound.send(OutboundScheduler.Priority.REPLY, "PRIVMSG #"
+                + this.channel
+                + " "
+                + ":"
+                + message);
+    }
+
+    /**
+     * This method checks the authorization list of a command against a user.
+     *
+     * @param command The name of the command
+     *
+     * @param username The lowercased name of the user
+     *
+     * @param roles The roles of the user, see {@link AuthRule}
+     *
+     * @return True if the user may run the command
+     */
+    public boolean checkAuthorization(String command, String username, int roles) {
+        return checkAuthorization(this.registry.getTable().get(command), username, roles);
+    }
+
+    private boolean checkAuthorization(Command command, String username, int roles) {
+        //LOGGER.info("COMMAND: " + command + " USERNAME: " + username + " ROLES: " + roles);
+        if (username.equals(this.channel)) {
             return true;
         }
-        return false;
+        final AuthRule rule = command == null ? AuthRule.NONE : command.getAuthRule();
+        return rule.permits(username, roles);
     }
 
     /**
@@ -1284,8 +1342,7 @@ public final class CommandHandler {
      */
     public void pyramidDetection(final String user, String msg) {
         recentMessages.add(new CachedMessage(user, msg));
-        if (recentMessages.size() > Integer.parseInt(
-                this.elements.configNode.getElementsByTagName("recentMessageCacheSize").item(0).getTextContent())) {
+        if (recentMessages.size() > this.config.get().recentMessageCacheSize) {
             recentMessages.remove(0);
         }
         int patternEnd = msg.indexOf(" ");
@@ -1308,7 +1365,7 @@ public final class CommandHandler {
                 //t.println(cm.getMsg() + " CACHED MESSAGE PATTERN 2");
                 patternCount = 2;
             } else if ((patternCount == 2) && (cm.getMsg().contentEquals(pattern)) && (cm.getUser().contentEquals(user))) {
-                sendMessage(this.elements.configNode.getElementsByTagName("pyramidResponse").item(0).getTextContent());
+                sendMessage(this.config.get().pyramidResponse);
                 return;
             }
         }
@@ -1324,8 +1381,8 @@ public final class CommandHandler {
      */
     private void sendMessage(final String msg) {
         final String message = "/me > " + msg;
-        this.outstream.println("PRIVMSG #"
-                + this.elements.configNode.getElementsByTagName("myChannel").item(0).getTextContent()
+        this.outbound.send(OutboundScheduler.Priority.REPLY, "PRIVMSG #"
+                + this.channel
                 + " "
                 + ":"
                 + message);
@@ -1350,21 +1407,55 @@ public final class CommandHandler {
     }
 
     /**
-     * This method writes to a XML file the entire document.
+     * @param name The name of a filter
+     *
+     * @return The position of the first filter with the name, or -1
      */
-    private void writeXML() {
-        try {
-            File configFile = new File("kfbot.xml");
-            TransformerFactory tFactory = TransformerFactory.newInstance();
-            Transformer transformer = tFactory.newTransformer();
-            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-            transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
-            DOMSource source = new DOMSource(this.elements.doc);
-            StreamResult result = new StreamResult(configFile);
-            transformer.transform(source, result);
-        } catch (TransformerException e) {
-            LOGGER.severe(e.toString());
+    private int findFilter(final String name) {
+        for (int i = 0; i < this.elements.filterList.size(); i++) {
+            if (name.contentEquals(this.elements.filterList.get(i).getName())) {
+                return i;
+            }
         }
+        return -1;
+    }
+
+    /**
+     * This method adds or replaces a filter, records it and rebuilds the
+     * matcher.
+     *
+     * @param at The position of the filter it replaces, -1 to add it
+     *
+     * @param filter The filter
+     */
+    private void saveFilter(final int at, final Filter filter) {
+        if (at == -1) {
+            this.elements.filterList.add(filter);
+        } else {
+            this.elements.filterList.set(at, filter);
+        }
+        this.store.record(Mutation.filter(filter));
+        this.filters.rebuild(this.elements);
+    }
+
+    /**
+     * This method records a command or subcommand that was added or
+     * changed, it is written to disk in the background shortly after.
+     *
+     * @param e The element as it is now
+     */
+    private void saveElement(final Element e) {
+        this.store.record(Mutation.upsert(e));
+    }
+
+    /**
+     * This method records a command or subcommand that was removed from the
+     * document.
+     *
+     * @param e The removed element
+     */
+    private void saveRemoval(final Element e) {
+        this.store.record(Mutation.delete(e));
     }
 
     /**
@@ -1384,11 +1475,51 @@ public final class CommandHandler {
         return false;
     }
 
+    /**
+     * This method changes a setting in use, and in the document.
+     *
+     * @param node The tag name of the setting
+     *
+     * @param value The new text of the setting
+     *
+     * @throws IllegalArgumentException If the value is not valid for the
+     * setting, nothing is changed
+     */
     private void setConfigXML(String node, String value) {
-        Node n = this.elements.configNode.getElementsByTagName(node).item(0);
-        Element el = (Element) n;
+        this.config.set(node, value);
+        Element el = (Element) this.elements.configNode.getElementsByTagName(node).item(0);
+        if (el == null) {
+            el = this.elements.doc.createElement(node);
+            this.elements.configNode.appendChild(el);
+        }
         el.setTextContent(value);
-        writeXML();
+        this.store.record(Mutation.config(node, value));
+    }
+
+    /**
+     * This method adds the node of a built-in command that has none yet, a
+     * built-in only needs one to hold its authorization.
+     *
+     * @param cmd The lowercased name of the command
+     */
+    private void addBuiltInNode(final String cmd) {
+        final CommandRegistry.Entry entry = this.registry.lookup(cmd);
+        if (entry == null || !entry.isBuiltIn() || findCommandNode(this.elements.commandNodes, cmd) != null) {
+            return;
+        }
+        Element newNode = this.elements.doc.createElement("command");
+        newNode.setAttribute("name", cmd);
+        newNode.setAttribute("auth", " ");
+        newNode.setAttribute("repeating", "false");
+        newNode.setAttribute("initialDelay", "0");
+        newNode.setAttribute("interval", "0");
+        newNode.setAttribute("cooldown", "0");
+        newNode.setAttribute("userCooldown", "0");
+        newNode.setAttribute("sound", "");
+        newNode.setAttribute("disabled", "false");
+        this.elements.commands.appendChild(newNode);
+        saveElement(newNode);
+        updateCommand(newNode, false);
     }
 
     private boolean setUserCmdXMLParam(
@@ -1397,14 +1528,12 @@ public final class CommandHandler {
             sendMessage("Failed: " + cmd + " is a reserved command.");
             return false;
         }
-        for (int i = 0; i < this.elements.commandNodes.getLength(); i++) {
-            Node n = this.elements.commandNodes.item(i);
-            Element el = (Element) n;
-            if (cmd.contentEquals(el.getAttribute("name"))) {
-                el.setAttribute(attrib, value);
-                writeXML();
-                return true;
-            }
+        final Element el = findCommandNode(this.elements.commandNodes, cmd);
+        if (el != null) {
+            el.setAttribute(attrib, value);
+            saveElement(el);
+            updateCommand(el, false);
+            return true;
         }
         sendMessage("Command " + cmd + " not found.");
         return false;
@@ -1416,19 +1545,56 @@ public final class CommandHandler {
             sendMessage("Failed: " + cmd + " is a reserved command.");
             return false;
         }
-        for (int i = 0; i < this.elements.subCommandNodes.getLength(); i++) {
-            Node n = this.elements.subCommandNodes.item(i);
-            Element el = (Element) n;
-            if (cmd.contentEquals(el.getAttribute("name"))) {
-                el.setAttribute(attrib, value);
-                writeXML();
-                return true;
-            }
+        final Element el = findCommandNode(this.elements.subCommandNodes, cmd);
+        if (el != null) {
+            el.setAttribute(attrib, value);
+            saveElement(el);
+            updateCommand(el, true);
+            return true;
         }
         sendMessage("Command " + cmd + " not found.");
         return false;
     }
 
+    /**
+     * This method finds the node of a command in the XML document, which is
+     * only needed to change it. The caller holds the document lock.
+     *
+     * @param nodes The command or subcommand nodes
+     *
+     * @param cmd The name of the command
+     *
+     * @return The node, or null if there is none
+     */
+    private Element findCommandNode(final NodeList nodes, final String cmd) {
+        if (this.registry.getTable().get(cmd) == null) {
+            return null;
+        }
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Element el = (Element) nodes.item(i);
+            if (cmd.contentEquals(el.getAttribute("name").toLowerCase())) {
+                return el;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * This method swaps in a command table with a changed command node.
+     *
+     * @param el The changed command node
+     *
+     * @param subscriber True if the node is a subcommand
+     */
+    private void updateCommand(final Element el, final boolean subscriber) {
+        final Command command = Command.fromElement(el, subscriber);
+        this.registry.update(table -> table.put(command));
+    }
+
+    private void removeCommand(final String cmd, final boolean subscriber) {
+        this.registry.update(table -> table.remove(cmd, subscriber));
+    }
+
     /**
      * This method checks the arguments for a particular command and the
      * arguments needed and returns the parameters.
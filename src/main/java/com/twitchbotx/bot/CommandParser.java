@@ -1,7 +1,6 @@
 package com.twitchbotx.bot;
 
 import java.io.IOException;
-import java.io.PrintStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.logging.Logger;
@@ -17,8 +16,8 @@ public final class CommandParser {
     // For handling all normal commands
     private final CommandHandler commandHandler;
 
-    // A stream for communicating to twitch chat through IRC
-    private final PrintStream outstream;
+    // A scheduler for communicating to twitch chat through IRC
+    private final OutboundScheduler outbound;
 
     // For handling all youtube link messaging
     private final YoutubeHandler youtubeHandler;
@@ -26,14 +25,165 @@ public final class CommandParser {
     // Soon to be added for filter options
     private final ModerationHandler moderationHandler;
 
+    // The XML document, shared with the parsers of every other shard
+    private final ConfigParser.Elements elements;
+
+    // Reused for every line parsed by this shard
+    private final IrcMessage message = new IrcMessage();
+
+    // Routes everything that is not a chat message to its listeners
+    private final IrcEventDispatcher events = new IrcEventDispatcher();
+
+    // The commands shared by every shard, keyed by name
+    private final CommandRegistry registry;
+
+    // Reused for every command run by this shard
+    private final CommandRegistry.Invocation invocation;
+
     // A simple constructor for this class that takes in the XML elements
     // for quick modification
     public CommandParser(final ConfigParser.Elements elements,
-            final PrintStream stream) {
-        this.commandHandler = new CommandHandler(elements, stream);
-        this.outstream = stream;
-        this.youtubeHandler = new YoutubeHandler(elements, stream);
-        this.moderationHandler = new ModerationHandler(elements, stream);
+            final OutboundScheduler outbound,
+            final CommandRegistry registry,
+            final CooldownService cooldowns,
+            final ConfigStore store,
+            final LiveConfiguration config,
+            final FilterRegistry filters,
+            final DuplicateDetector duplicates,
+            final FloodDetector.Stats floodStats,
+            final ModerationActions.Stats actionStats,
+            final ChatLogWriter chatLog,
+            final ChatHistoryStore history) {
+        this.elements = elements;
+        this.registry = registry;
+        this.commandHandler = new CommandHandler(elements, outbound, registry, cooldowns, store, config, filters,
+                history);
+        this.invocation = new CommandRegistry.Invocation(this.commandHandler);
+        this.outbound = outbound;
+        this.youtubeHandler = new YoutubeHandler(config, outbound);
+        this.moderationHandler = new ModerationHandler(filters, duplicates, floodStats, actionStats,
+                chatLog, outbound, config);
+
+        this.moderationHandler.registerListeners(this.events);
+        this.events.register(IrcCommand.USERSTATE, this::onUserState);
+        this.events.register(IrcCommand.NOTICE, this::onNotice);
+        this.events.register(IrcCommand.USERNOTICE, this::onUserNotice);
+        this.events.register(IrcCommand.ROOMSTATE, this::onRoomState);
+        this.events.register(IrcCommand.WHISPER, this::onWhisper);
+        this.events.register(IrcCommand.JOIN, this::onJoin);
+        this.events.register(IrcCommand.PART, this::onPart);
+    }
+
+    /**
+     * The dispatcher of this parser, for registering listeners for IRC
+     * commands other than PRIVMSG before the parser starts handling lines.
+     *
+     * @return The event dispatcher
+     */
+    public IrcEventDispatcher getEvents() {
+        return events;
+    }
+
+    /**
+     * Twitch sends USERSTATE for the bot itself after joining and after every
+     * message it sends, it tells whether the bot is a moderator.
+     */
+    private void onUserState(final IrcMessage state) {
+        outbound.setModerator(state.tagEquals("mod", "1") || state.hasBadge("broadcaster"));
+    }
+
+    private void onNotice(final IrcMessage notice) {
+        LOGGER.log(Level.WARNING, "Twitch notice [{0}]: {1}",
+                new Object[]{notice.getTag("msg-id"), notice.getTrailing()});
+    }
+
+    private void onUserNotice(final IrcMessage notice) {
+        LOGGER.log(Level.INFO, "Channel event [{0}]: {1}",
+                new Object[]{notice.getTag("msg-id"), notice.getTag("system-msg")});
+    }
+
+    private void onRoomState(final IrcMessage state) {
+        LOGGER.log(Level.INFO, "Room state: {0}", state.raw());
+    }
+
+    private void onWhisper(final IrcMessage whisper) {
+        LOGGER.log(Level.INFO, "Whisper from {0}: {1}",
+                new Object[]{whisper.getNick(), whisper.getTrailing()});
+    }
+
+    /**
+     * Twitch sends JOIN and PART in batches for a busy channel, so they are
+     * only logged at FINE.
+     */
+    private void onJoin(final IrcMessage join) {
+        LOGGER.log(Level.FINE, "{0} joined #{1}", new Object[]{join.getNick(), join.getChannel()});
+    }
+
+    private void onPart(final IrcMessage part) {
+        LOGGER.log(Level.FINE, "{0} left #{1}", new Object[]{part.getNick(), part.getChannel()});
+    }
+
+    /**
+     * This method creates the registry every shard shares, with the built-in
+     * commands and the user commands of the XML document.
+     *
+     * @param commands The user commands, read from the document
+     *
+     * @return A registry for the parsers of every shard
+     */
+    public static CommandRegistry createRegistry(final CommandTable commands) {
+        final CommandRegistry registry = new CommandRegistry(
+                c -> c.handler.parseForUserCommands(c.message, c.username, c.userKey, c.roles));
+
+        // These call out to the Twitch and Google APIs, they only hold the
+        // document lock while reading from it, not during the request
+        registry.registerBuiltIn("!uptime", c -> c.handler.uptimeHandler(), false);
+        registry.registerBuiltIn("!followage", c -> c.handler.followage(c.username), false);
+        registry.registerBuiltIn("!highlight", c -> c.handler.highlight(), false);
+
+        registry.registerBuiltIn("!command-add-sub", c -> c.handler.addSubCmd(c.message), true);
+        registry.registerBuiltIn("!command-edit-sub", c -> c.handler.subEditCmd(c.message), true);
+        registry.registerBuiltIn("!command-delete-sub", c -> c.handler.subDelCmd(c.message), true);
+        registry.registerBuiltIn("!command-cooldown-sub", c -> c.handler.subCmdCooldown(c.message), true);
+        registry.registerBuiltIn("!command-sound-sub", c -> c.handler.cmdSubSound(c.message), true);
+        registry.registerBuiltIn("!command-auth-sub", c -> c.handler.subAuthCmd(c.username, c.message), true);
+
+        registry.registerBuiltIn("!commands", c -> c.handler.commands(c.username, c.roles), true);
+        registry.registerBuiltIn("!command-add", c -> c.handler.addCmd(c.message), true);
+        registry.registerBuiltIn("!command-delete", c -> c.handler.delCmd(c.message), true);
+        registry.registerBuiltIn("!command-edit", c -> c.handler.editCmd(c.message), true);
+        registry.registerBuiltIn("!command-auth", c -> c.handler.authCmd(c.username, c.message), true);
+        registry.registerBuiltIn("!command-enable", c -> c.handler.enableCmd(c.message), true);
+        registry.registerBuiltIn("!command-disable", c -> c.handler.disableCmd(c.message), true);
+        registry.registerBuiltIn("!command-repeat", c -> c.handler.repeatingCmd(c.message), true);
+        registry.registerBuiltIn("!command-delay", c -> c.handler.cmdDelay(c.message), true);
+        registry.registerBuiltIn("!command-interval", c -> c.handler.cmdInterval(c.message), true);
+        registry.registerBuiltIn("!command-cooldown", c -> c.handler.cmdCooldown(c.message), true);
+        registry.registerBuiltIn("!command-usercooldown", c -> c.handler.cmdUserCooldown(c.message), true);
+        registry.registerBuiltIn("!command-sound", c -> c.handler.cmdSound(c.message), true);
+
+        registry.registerBuiltIn("!filter-all", c -> c.handler.filterAll(c.message, c.username), true);
+        registry.registerBuiltIn("!filter-add", c -> c.handler.filterAdd(c.message, c.username), true);
+        registry.registerBuiltIn("!filter-add-regex", c -> c.handler.filterAddRegex(c.message, c.username), true);
+        registry.registerBuiltIn("!filter-add-username",
+                c -> c.handler.filterAddUsername(c.message, c.username), true);
+        registry.registerBuiltIn("!filter-delete", c -> c.handler.filterDel(c.message, c.username), true);
+        registry.registerBuiltIn("!filter-reason", c -> c.handler.filterReason(c.message, c.username), true);
+
+        // Reads the chat history from disk, not the document
+        registry.registerBuiltIn("!history", c -> c.handler.history(c.message, c.username), false);
+
+        registry.registerBuiltIn("!set-msgCache", c -> c.handler.setMsgCacheSize(c.message), true);
+        registry.registerBuiltIn("!set-pyramidResponse", c -> c.handler.setPyramidResponse(c.message), true);
+        registry.registerBuiltIn("!cnt-add", c -> c.handler.cntAdd(c.message), true);
+        registry.registerBuiltIn("!cnt-delete", c -> c.handler.cntDelete(c.message), true);
+        registry.registerBuiltIn("!cnt-set", c -> c.handler.cntSet(c.message), true);
+        registry.registerBuiltIn("!cnt-current", c -> c.handler.cntCurrent(c.message), true);
+        registry.registerBuiltIn("!countadd", c -> c.handler.count(c.message), true);
+        registry.registerBuiltIn("!totals", c -> c.handler.totals(c.message), true);
+
+        registry.load(commands);
+        return registry;
     }
 
     /**
@@ -42,22 +192,25 @@ public final class CommandParser {
      * Requirements set by !command-auth Command enabled/disabled by
      * !command-enable
      *
-     * @param mod A boolean field which indicates whether this is a mod message.
+     * The first word of the message is looked up in the command registry, so
+     * a message costs one lookup no matter how many commands there are.
      *
-     * @param sub A boolean field which indicates whether this is a subscriber
-     * message.
+     * @param username The lowercased name of the user
      *
-     * @param command A command field for the command that was parsed from the
-     * message.
+     * @param userKey The key of the user for per-user cooldowns
      *
-     * @param trailing The trailing message that accompany the command
+     * @param roles The roles of the user from the badges of the message, see
+     * {@link AuthRule}
+     *
+     * @param emotes The emotes tag of the message, or null
      *
-     * @param prefix A prefix for positioning where the username might reside
+     * @param trailing The trailing message that accompany the command
      */
     private void handleCommand(
             final String username,
-            final boolean mod,
-            final boolean sub,
+            final long userKey,
+            final int roles,
+            final String emotes,
             String trailing) {
         if (trailing.contains("")) {
             trailing = trailing.replaceAll("", "");
@@ -66,226 +219,47 @@ public final class CommandParser {
 
         //commandHandler.pyramidDetection(username, trailing);
         youtubeHandler.handleLinkRequest(trailing);
-        moderationHandler.handleTool(username, trailing);
+
+        // the filters are matched without the document lock
+        moderationHandler.handleTool(username, userKey, roles, emotes, trailing);
 
         if (!trailing.startsWith("!")) {
             return;
         }
 
-        if (trailing.indexOf(" ") == -1) {
+        final int endOfCmd = trailing.indexOf(' ');
+        final String command;
+        if (endOfCmd == -1) {
             trailing = trailing.toLowerCase();
+            command = trailing;
+        } else {
+            command = trailing.substring(0, endOfCmd).toLowerCase();
         }
 
-        if (trailing.startsWith("!uptime")) {
-            //LOGGER.log(Level.INFO, "{0} {1} {2}", new Object[]{username, mod, sub});
-            if (commandHandler.checkAuthorization("!uptime", username, mod, sub)) {
-                commandHandler.uptimeHandler();
-            }
-            return;
-        }
-        if (trailing.startsWith("!followage")) {
-            if (commandHandler.checkAuthorization("!followage", username, mod, sub)) {
-                String user = username.toLowerCase();
-                commandHandler.followage(user);
-            }
-            return;
-        }
-
-        if (trailing.startsWith("!highlight")) {
-            if (commandHandler.checkAuthorization("!highlight", username, mod, sub)) {
-                commandHandler.highlight();
-            }
-            return;
-        }
-
-        if (trailing.startsWith("!command-add-sub")) {
-            if (commandHandler.checkAuthorization("!command-add-sub", username, mod, sub)) {
-                commandHandler.addSubCmd(trailing);
-                return;
-            }
-        }
-        if (trailing.startsWith("!command-edit-sub")) {
-            if (commandHandler.checkAuthorization("!command-edit-sub", username, mod, sub)) {
-                commandHandler.subEditCmd(trailing);
-                return;
-            }
-        }
-        if (trailing.startsWith("!command-delete-sub")) {
-            if (commandHandler.checkAuthorization("!command-delete-sub", username, mod, sub)) {
-                commandHandler.subDelCmd(trailing);
-                return;
-            }
-        }
-        if (trailing.startsWith("!command-cooldown-sub")) {
-            if (commandHandler.checkAuthorization("!command-cooldown-sub", username, mod, sub)) {
-                commandHandler.subCmdCooldown(trailing);
-                return;
-            }
-        }
-        if (trailing.startsWith("!command-sound-sub")) {
-            if (commandHandler.checkAuthorization("!command-sound-sub", username, mod, sub)) {
-                commandHandler.cmdSubSound(trailing);
-                return;
-            }
-        }
-        if (trailing.startsWith("!command-auth-sub")) {
-            if (commandHandler.checkAuthorization("!command-auth-sub", username, mod, sub)) {
-                commandHandler.subAuthCmd(username, trailing);
-                return;
-            }
-        }
-
-        if (trailing.startsWith("!commands")) {
-            if (commandHandler.checkAuthorization("!commands", username, mod, sub)) {
-                commandHandler.commands(username, mod, sub);
-                return;
-            }
-        }
-
-        if (trailing.startsWith("!command-add")) {
-            if (commandHandler.checkAuthorization("!command-add", username, mod, sub)) {
-                commandHandler.addCmd(trailing);
-            }
-            return;
-        }
-        if (trailing.startsWith("!command-delete")) {
-            if (commandHandler.checkAuthorization("!command-delete", username, mod, sub)) {
-                commandHandler.delCmd(trailing);
-            }
-            return;
-        }
-        if (trailing.startsWith("!command-edit")) {
-            if (commandHandler.checkAuthorization("!command-edit", username, mod, sub)) {
-                commandHandler.editCmd(trailing);
-            }
-            return;
-        }
-        if (trailing.startsWith("!command-auth")) {
-            if (commandHandler.checkAuthorization("!command-auth", username, mod, sub)) {
-                commandHandler.authCmd(username, trailing);
-            }
-            return;
-        }
-        if (trailing.startsWith("!command-enable")) {
-            if (commandHandler.checkAuthorization("!command-enable", username, mod, sub)) {
-                commandHandler.enableCmd(trailing);
-            }
-            return;
-        }
-        if (trailing.startsWith("!command-disable")) {
-            if (commandHandler.checkAuthorization("!command-disable", username, mod, sub)) {
-                commandHandler.disableCmd(trailing);
-            }
+        final CommandRegistry.Entry entry = registry.lookup(command);
+        if (entry == null) {
             return;
         }
-        if (trailing.startsWith("!command-repeat")) {
-            if (commandHandler.checkAuthorization("!command-repeat", username, mod, sub)) {
-                commandHandler.repeatingCmd(trailing);
-            }
-            return;
-        }
-        if (trailing.startsWith("!command-delay")) {
-            if (commandHandler.checkAuthorization("!command-delay", username, mod, sub)) {
-                commandHandler.cmdDelay(trailing);
-            }
-            return;
-        }
-        if (trailing.startsWith("!command-interval")) {
-            if (commandHandler.checkAuthorization("!command-interval", username, mod, sub)) {
-                commandHandler.cmdInterval(trailing);
-            }
-            return;
-        }
-        if (trailing.startsWith("!command-cooldown")) {
-            if (commandHandler.checkAuthorization("!command-cooldown", username, mod, sub)) {
-                commandHandler.cmdCooldown(trailing);
-            }
-            return;
-        }
-        if (trailing.startsWith("!command-sound")) {
-            if (commandHandler.checkAuthorization("!command-sound", username, mod, sub)) {
-                commandHandler.cmdSound(trailing);
-            }
-            return;
-        }
-
-        if (trailing.startsWith("!filter-all")) {
-            if (commandHandler.checkAuthorization("!filter-all", username, mod, sub)) {
-                commandHandler.filterAll(trailing, username);
-                return;
-            }
-        }
-        if (trailing.startsWith("!filter-add")) {
-            if (commandHandler.checkAuthorization("!filter-add", username, mod, sub)) {
-                commandHandler.filterAdd(trailing, username);
-                return;
-            }
-        }
-        if (trailing.startsWith("!filter-delete")) {
-            if (commandHandler.checkAuthorization("!filter-delete", username, mod, sub)) {
-                commandHandler.filterDel(trailing, username);
-                return;
-            }
-        }
 
-        if (trailing.startsWith("!filter-reason")) {
-            if (commandHandler.checkAuthorization("!filter-reason", username, mod, sub)) {
-                commandHandler.filterReason(trailing, username);
-                return;
-            }
-        }
+        invocation.command = command;
+        invocation.message = trailing;
+        invocation.username = username;
+        invocation.userKey = userKey;
+        invocation.roles = roles;
 
-        if (trailing.startsWith("!set-msgCache")) {
-            if (commandHandler.checkAuthorization("!set-msgCache", username, mod, sub)) {
-                commandHandler.setMsgCacheSize(trailing);
-            }
-            return;
-        }
-        if (trailing.startsWith("!set-pyramidResponse")) {
-            if (commandHandler.checkAuthorization("!set-pyramidResponse", username, mod, sub)) {
-                commandHandler.setPyramidResponse(trailing);
-            }
-            return;
-        }
-        if (trailing.startsWith("!cnt-add")) {
-            if (commandHandler.checkAuthorization("!cnt-add", username, mod, sub)) {
-                commandHandler.cntAdd(trailing);
-            }
-            return;
-        }
-        if (trailing.startsWith("!cnt-delete")) {
-            if (commandHandler.checkAuthorization("!cnt-delete", username, mod, sub)) {
-                commandHandler.cntDelete(trailing);
-            }
-            return;
-        }
-        if (trailing.startsWith("!cnt-set")) {
-            if (commandHandler.checkAuthorization("!cnt-set", username, mod, sub)) {
-                commandHandler.cntSet(trailing);
-            }
-            return;
-        }
-        if (trailing.startsWith("!cnt-current")) {
-            if (commandHandler.checkAuthorization("!cnt-current", username, mod, sub)) {
-                commandHandler.cntCurrent(trailing);
-            }
+        // Authorization only reads the command table, user commands check
+        // their own once they have looked up the command
+        if (entry.isBuiltIn()
+                && !commandHandler.checkAuthorization(entry.getName(), username, roles)) {
             return;
         }
-        if (trailing.startsWith("!countadd")) {
-            if (commandHandler.checkAuthorization("!countadd", username, mod, sub)) {
-                commandHandler.count(trailing);
-
-            }
+        if (!entry.needsDocumentLock()) {
+            entry.getCommand().execute(invocation);
             return;
         }
-
-        if (trailing.startsWith("!totals")) {
-            if (commandHandler.checkAuthorization("!totals", username, mod, sub)) {
-                commandHandler.totals(trailing);
-            }
-            return;
+        synchronized (elements) {
+            entry.getCommand().execute(invocation);
         }
-        commandHandler.parseForUserCommands(trailing, username, mod, sub);
     }
 
     static class checkConnection extends Thread {
@@ -294,16 +268,20 @@ public final class CommandParser {
         long initDelay = 2000000;
         String site = "google.com";
         int port = 80;
-        private final PrintStream outCheck;
-        private final ConfigParser.Elements elements;
+        private final OutboundScheduler outCheck;
+        private final LiveConfiguration config;
 
-        public checkConnection(final ConfigParser.Elements elements, final PrintStream stream) {
-            this.outCheck = stream;
-            this.elements = elements;
+        public checkConnection(final LiveConfiguration config, final OutboundScheduler outbound) {
+            this.outCheck = outbound;
+            this.config = config;
         }
 
         private void sendJoin(final String msg) {
-            this.outCheck.println(msg);
+            this.outCheck.send(OutboundScheduler.Priority.CONTROL, msg);
+        }
+
+        private String channel() {
+            return this.config.get().joinedChannel;
         }
 
         public void run() {
@@ -315,14 +293,14 @@ public final class CommandParser {
             }
             while (true) {
                 try {
-                    sendJoin("Join #" + this.elements.configNode.getElementsByTagName("myChannel").item(0).getTextContent());
+                    sendJoin("Join #" + channel());
                     sendJoin("PING");
                     Socket sock = new Socket();
                     InetSocketAddress addr = new InetSocketAddress(site, port);
                     sock.connect(addr, 3000);
                     LOGGER.info("connected to google.com without issue");
                 } catch (IOException e) {
-                    sendJoin("Join #" + this.elements.configNode.getElementsByTagName("myChannel").item(0).getTextContent());
+                    sendJoin("Join #" + channel());
                     LOGGER.severe("Attemping to reconnect to Twitch chat: " + e);
                 }
                 try {
@@ -335,6 +313,62 @@ public final class CommandParser {
         }
     }
 
+    /**
+     * A ping was sent by the twitch server, complete the handshake by sending
+     * it back pong with the message.
+     *
+     * This only touches the outbound scheduler, so the socket reader can call
+     * it directly instead of queueing the ping behind slow handlers.
+     *
+     * @param msg A raw line from Twitch IRC
+     *
+     * @param outbound The scheduler to send the pong with
+     *
+     * @return True if the line was a ping and has been answered
+     */
+    public static boolean handlePing(final String msg, final OutboundScheduler outbound) {
+        if (!msg.startsWith("PING")) {
+            return false;
+        }
+        final int trailingStart = msg.indexOf(" :");
+        final String trailing = msg.substring(trailingStart + 2);
+        outbound.send(OutboundScheduler.Priority.CONTROL, "PONG " + trailing);
+        return true;
+    }
+
+    /**
+     * This method hashes the username of a message without allocating, so the
+     * socket reader can route every message of a user to the same shard.
+     *
+     * The username is the nick of the prefix that follows the tags, the same
+     * one {@link #parse(String)} hands to the handlers.
+     *
+     * @param msg A raw line from Twitch IRC
+     *
+     * @return The hash of the lowercased username, 0 if the line has none
+     */
+    public static int usernameHash(final String msg) {
+        int start = 0;
+        if (msg.startsWith("@")) {
+            start = msg.indexOf(' ') + 1;
+            if (start == 0) {
+                return 0;
+            }
+        }
+        if (start >= msg.length() || msg.charAt(start) != ':') {
+            return 0;
+        }
+        int hash = 0;
+        for (int i = start + 1; i < msg.length(); i++) {
+            final char c = msg.charAt(i);
+            if (c == '!' || c == ' ') {
+                break;
+            }
+            hash = 31 * hash + Character.toLowerCase(c);
+        }
+        return hash;
+    }
+
     /**
      * This method parses all incoming messages from Twitch IRC.
      *
@@ -347,93 +381,39 @@ public final class CommandParser {
                 return;
             }
 
-            // A ping was sent by the twitch server, complete the handshake
-            // by sending it back pong with the message.
-            if (msg.startsWith("PING")) {
-                final int trailingStart = msg.indexOf(" :");
-                final String trailing = msg.substring(trailingStart + 2);
-                this.outstream.println("PONG " + trailing);
+            if (handlePing(msg, this.outbound)) {
                 return;
             }
 
-            boolean isMod = false;
-            boolean isSub = false;
-            String username = "";
-
-            // This is a message from a user.
-            // If it's the broadcaster, he/she is a mod.
-            //LOGGER.info(msg);
-            if (msg.startsWith("@badges=broadcaster/1")) {
-                isMod = true;
-            }
-
-            // Find the mod indication
-            final int modPosition = msg.indexOf("mod=") + 4;
-            if ("1".equals(msg.substring(modPosition, modPosition + 1))) {
-                isMod = true;
-            }
-
-            // Find the subscriber indication
-            final int subPosition = msg.indexOf("subscriber=") + 11;
-            if ("1".equals(msg.substring(subPosition, subPosition + 1))) {
-                isSub = true;
-            }
-
-            // Find the username
-            // User-id search for V5 switch
-            /*if (msg.contains("user-id=")){
-                int usernameStart = msg.indexOf("user-id=", msg.indexOf(";"));
-                System.out.println(usernameStart);
-            username = msg.substring(msg.indexOf("user-id=") + 8, msg.indexOf(";", msg.indexOf("user-id=")));
-            System.out.println(username + " USERNAME");
-            }*/
-            if (msg.contains("user-type=")) {
-                int usernameStart = msg.indexOf(":", msg.indexOf("user-type="));
-                int usernameEnd = msg.indexOf("!", usernameStart);
-                if (usernameStart != -1 && usernameEnd != -1) {
-                    username = msg.substring(usernameStart + 1, usernameEnd).toLowerCase();
-                    //System.out.println(username + " USERNAME");
-                }
-            }
-
-            // Split the message into pieces to find the real message
-            final int msgPosition = msg.indexOf("user-type=");
-
-            // No message to be processed
-            if (msgPosition == -1) {
+            // One pass over the line, nothing is copied until asked for
+            if (!message.parse(msg)) {
                 return;
             }
-            msg = msg.substring(msgPosition);
 
-            // Find the # for the channel, so we can figured out what type
-            // of message this is.
-            final int channelPosition = msg.indexOf("#");
-            if (msgPosition == -1) {
+            // Classifying the command itself means nobody can fake one by
+            // putting "PRIVMSG" in their message. Everything other than chat
+            // goes to its listeners, chat takes the fast path below.
+            final IrcCommand command = IrcCommand.classify(message);
+            if (command != IrcCommand.PRIVMSG) {
+                events.dispatch(command, message);
                 return;
             }
-
-            // Ensure we can find "PRIVMSG" as an indication that this is a
-            // user message, make sure we only search a limited bound, because
-            // somebody can potentially fake a mod by including "PRIVMSG" 
-            // in their message
-            final String hasPrivMsg = msg.substring(0, channelPosition);
-            final int privMsgIndex = hasPrivMsg.indexOf("PRIVMSG");
-            if (privMsgIndex == -1) {
+            if (!message.hasTrailing()) {
                 return;
             }
 
-            // Capture the raw message, and find the message used
-            final int msgIndex = msg.indexOf(":", channelPosition);
+            // This is a message from a user, the badges tell what they may do
+            final int roles = AuthRule.roles(message);
 
-            // No message found, return immediately
-            if (msgIndex == -1) {
-                return;
-            }
-
-            msg = msg.substring(msgIndex + 1);
+            // Find the username
+            final String username = message.getNick().toLowerCase();
 
             // Handle the message
-            handleCommand(username, isMod, isSub, msg);
+            handleCommand(username,
+                    CooldownService.userKey(message.getTagLong("user-id", -1L), username),
+                    roles,
+                    message.getTag("emotes"),
+                    message.getTrailing());
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -0,0 +1,236 @@
+package com.twitchbotx.bot;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+import java.util.logging.Logger;
+
+/**
+ * This class maps the first word of a chat message to the command it runs.
+ *
+ * Built-in commands are registered once at start up, user and subscriber
+ * commands follow the command table, which is swapped whenever a command is
+ * loaded, added, changed or deleted. Every shard shares the same registry, so
+ * a command added on one shard is visible to all of them, and a message that
+ * is not a command costs a single map lookup.
+ */
+public final class CommandRegistry {
+
+    private static final Logger LOGGER = Logger.getLogger(CommandRegistry.class.getSimpleName());
+
+    /**
+     * A command that can be run from chat.
+     */
+    public interface ChatCommand {
+
+        /**
+         * @param invocation The message that ran the command, only valid
+         * during this call
+         */
+        void execute(Invocation invocation);
+    }
+
+    /**
+     * The message a command was run with. Every shard reuses one instance for
+     * all its messages.
+     */
+    public static final class Invocation {
+
+        // The handler of the shard running the command
+        public final CommandHandler handler;
+
+        // The lowercased first word of the message, such as !uptime
+        public String command;
+
+        // The whole message, starting with the command
+        public String message;
+
+        public String username;
+
+        // Identifies the user for per-user cooldowns, see CooldownService
+        public long userKey;
+
+        // The roles of the user, see AuthRule
+        public int roles;
+
+        public Invocation(final CommandHandler handler) {
+            this.handler = handler;
+        }
+    }
+
+    /**
+     * A registered command.
+     */
+    public static final class Entry {
+
+        private final String name;
+
+        private final ChatCommand command;
+
+        private final boolean builtIn;
+
+        private final boolean documentLock;
+
+        private Entry(final String name,
+                final ChatCommand command,
+                final boolean builtIn,
+                final boolean documentLock) {
+            this.name = name;
+            this.command = command;
+            this.builtIn = builtIn;
+            this.documentLock = documentLock;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public ChatCommand getCommand() {
+            return command;
+        }
+
+        /**
+         * @return True if the command is part of the bot, the registry then
+         * checks its authorization before running it
+         */
+        public boolean isBuiltIn() {
+            return builtIn;
+        }
+
+        /**
+         * @return True if the command has to run while holding the document
+         * lock
+         */
+        public boolean needsDocumentLock() {
+            return documentLock;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> commands = new ConcurrentHashMap<>();
+
+    // Runs every user and subscriber command
+    private final ChatCommand userCommand;
+
+    private final AtomicReference<CommandTable> table = new AtomicReference<>(CommandTable.EMPTY);
+
+    /**
+     * @param userCommand The command that runs every user and subscriber
+     * command from the XML document
+     */
+    public CommandRegistry(final ChatCommand userCommand) {
+        this.userCommand = userCommand;
+    }
+
+    /**
+     * This method registers a command that is part of the bot.
+     *
+     * @param name The name of the command, such as !uptime
+     *
+     * @param command The command to run
+     *
+     * @param documentLock True if the command works on the XML document, false
+     * if it only reads from it and should not hold the lock during slow work
+     */
+    public void registerBuiltIn(final String name, final ChatCommand command, final boolean documentLock) {
+        // the command table keys its rows by the lowercased name
+        final String key = name.toLowerCase();
+        commands.put(key, new Entry(key, command, true, documentLock));
+    }
+
+    /**
+     * This method registers a user or subscriber command. It never replaces
+     * a built-in command, those can have an entry in the document for their
+     * authorization.
+     *
+     * @param name The name of the command
+     */
+    private void registerUserCommand(final String name) {
+        final String key = name.toLowerCase();
+        commands.putIfAbsent(key, new Entry(key, userCommand, false, true));
+    }
+
+    /**
+     * This method removes a user or subscriber command, built-in commands stay
+     * registered.
+     *
+     * @param name The name of the command
+     */
+    private void unregisterUserCommand(final String name) {
+        final String key = name.toLowerCase();
+        final Entry entry = commands.get(key);
+        if (entry != null && !entry.isBuiltIn()) {
+            commands.remove(key, entry);
+        }
+    }
+
+    /**
+     * This method loads every command and subscriber command of the XML
+     * document, the caller holds the document lock.
+     *
+     * @param elements The XML elements
+     */
+    public void load(final ConfigParser.Elements elements) {
+        load(CommandTable.load(elements));
+    }
+
+    /**
+     * This method replaces every command and subscriber command with those of
+     * a table that was already read.
+     *
+     * @param loaded The commands
+     */
+    public void load(final CommandTable loaded) {
+        update(current -> loaded);
+        LOGGER.info("Loaded " + getTable().size() + " commands.");
+    }
+
+    /**
+     * @return The current command table, it never changes once returned
+     */
+    public CommandTable getTable() {
+        return table.get();
+    }
+
+    /**
+     * This method swaps in a changed command table, and registers or removes
+     * the user commands that were added or deleted with it.
+     *
+     * @param change Creates the new table from the current one
+     */
+    public synchronized void update(final UnaryOperator<CommandTable> change) {
+        final CommandTable previous = table.get();
+        final CommandTable next = change.apply(previous);
+        table.set(next);
+
+        final Set<String> removed = new HashSet<>();
+        for (String name : previous.names()) {
+            removed.add(name);
+        }
+        for (String name : next.names()) {
+            if (!removed.remove(name)) {
+                registerUserCommand(name);
+            }
+        }
+        for (String name : removed) {
+            unregisterUserCommand(name);
+        }
+    }
+
+    /**
+     * @param command The lowercased first word of a message
+     *
+     * @return The command registered under it, or null if there is none
+     */
+    public Entry lookup(final String command) {
+        return commands.get(command);
+    }
+
+    /**
+     * @return The number of registered commands
+     */
+    public int size() {
+        return commands.size();
+    }
+}
@@ -0,0 +1,177 @@
+package com.twitchbotx.bot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * This class is an immutable snapshot of every command and subcommand, indexed
+ * by name.
+ *
+ * It is built once from the XML document. A change creates a new table with
+ * {@link #put(Command)} or {@link #remove(String, boolean)}, which is then
+ * swapped in, so readers never need the document or its lock.
+ */
+public final class CommandTable {
+
+    public static final CommandTable EMPTY = new CommandTable(
+            Collections.<Command>emptyList(), Collections.<Command>emptyList());
+
+    // Never changed once the table is built, they are only wrapped in the
+    // getters so put and remove do not stack wrappers on every edit
+    private final List<Command> commands;
+
+    private final List<Command> subCommands;
+
+    private final Map<String, Command> byName;
+
+    private CommandTable(final List<Command> commands, final List<Command> subCommands) {
+        this.commands = commands;
+        this.subCommands = subCommands;
+        final Map<String, Command> index = new HashMap<>((commands.size() + subCommands.size()) * 2);
+        for (Command command : commands) {
+            index.put(command.getName(), command);
+        }
+        // a subcommand wins over a command with the same name
+        for (Command command : subCommands) {
+            index.put(command.getName(), command);
+        }
+        this.byName = index;
+    }
+
+    /**
+     * This method reads every command and subcommand of the XML document, the
+     * caller holds the document lock.
+     *
+     * @param elements The XML elements
+     *
+     * @return A table of all commands
+     */
+    public static CommandTable load(final ConfigParser.Elements elements) {
+        return new CommandTable(
+                read(elements.commandNodes, false),
+                read(elements.subCommandNodes, true));
+    }
+
+    /**
+     * This method creates a table of commands that were already read, those
+     * without a name are left out.
+     *
+     * @param commands The commands
+     *
+     * @param subCommands The subcommands
+     *
+     * @return A table of all commands
+     */
+    public static CommandTable of(final List<Command> commands, final List<Command> subCommands) {
+        return new CommandTable(named(commands), named(subCommands));
+    }
+
+    private static List<Command> named(final List<Command> commands) {
+        final List<Command> list = new ArrayList<>(commands.size());
+        for (Command command : commands) {
+            if (!command.getName().isEmpty()) {
+                list.add(command);
+            }
+        }
+        return list;
+    }
+
+    private static List<Command> read(final NodeList nodes, final boolean subscriber) {
+        final List<Command> list = new ArrayList<>(nodes.getLength());
+        for (int i = 0; i < nodes.getLength(); i++) {
+            final Command command = Command.fromElement((Element) nodes.item(i), subscriber);
+            if (!command.getName().isEmpty()) {
+                list.add(command);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * @param name The lowercased name of the command
+     *
+     * @return The command, or null if there is none
+     */
+    public Command get(final String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * @return Every command in the order of the document
+     */
+    public List<Command> getCommands() {
+        return Collections.unmodifiableList(commands);
+    }
+
+    /**
+     * @return Every subcommand in the order of the document
+     */
+    public List<Command> getSubCommands() {
+        return Collections.unmodifiableList(subCommands);
+    }
+
+    /**
+     * @return The names of every command and subcommand
+     */
+    public Iterable<String> names() {
+        return byName.keySet();
+    }
+
+    public int size() {
+        return byName.size();
+    }
+
+    /**
+     * This method creates a table with a command added, or replaced if one of
+     * the same kind has its name.
+     *
+     * @param command The new command
+     *
+     * @return The new table, this table is unchanged
+     */
+    public CommandTable put(final Command command) {
+        if (command.isSubscriber()) {
+            return new CommandTable(commands, replace(subCommands, command));
+        }
+        return new CommandTable(replace(commands, command), subCommands);
+    }
+
+    /**
+     * This method creates a table without a command.
+     *
+     * @param name The lowercased name of the command
+     *
+     * @param subscriber True to remove the subcommand, false for the command
+     *
+     * @return The new table, this table is unchanged
+     */
+    public CommandTable remove(final String name, final boolean subscriber) {
+        if (subscriber) {
+            return new CommandTable(commands, without(subCommands, name));
+        }
+        return new CommandTable(without(commands, name), subCommands);
+    }
+
+    private static List<Command> replace(final List<Command> list, final Command command) {
+        final List<Command> copy = new ArrayList<>(list);
+        for (int i = 0; i < copy.size(); i++) {
+            if (copy.get(i).getName().equals(command.getName())) {
+                copy.set(i, command);
+                return copy;
+            }
+        }
+        copy.add(command);
+        return copy;
+    }
+
+    private static List<Command> without(final List<Command> list, final String name) {
+        final List<Command> copy = new ArrayList<>(list);
+        copy.removeIf(command -> command.getName().equals(name));
+        return copy;
+    }
+}
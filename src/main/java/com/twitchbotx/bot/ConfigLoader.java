@@ -0,0 +1,309 @@
+package com.twitchbotx.bot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * This class reads the configuration file with a streaming parser.
+ *
+ * Reading only the settings stops at the end of the config node, so the bot
+ * can connect before the rest of the file is read. Reading the whole file
+ * builds the command table, the counters and the filters straight from the
+ * stream. Only the config node and the commands are put in a document, the
+ * one the handlers edit and the stores write, and the whitespace between
+ * tags is left out of it, so it holds far less than
+ * {@link ConfigParser#parseConfiguration(String)} would.
+ */
+public final class ConfigLoader {
+
+    private static final Logger LOGGER = Logger.getLogger(ConfigLoader.class.getSimpleName());
+
+    private static final XMLInputFactory FACTORY = createFactory();
+
+    private ConfigLoader() {
+    }
+
+    private static XMLInputFactory createFactory() {
+        final XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+
+    /**
+     * This method reads the settings of the config node and nothing else.
+     *
+     * @param file The configuration file
+     *
+     * @return The text of every tag in the config node, by tag name
+     *
+     * @throws IOException If the file cannot be read
+     *
+     * @throws XMLStreamException If the file is not valid XML
+     */
+    public static Map<String, String> loadSettings(final Path file) throws IOException, XMLStreamException {
+        try (InputStream in = Files.newInputStream(file)) {
+            final XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT
+                            && "config".equals(reader.getLocalName())) {
+                        return readSettings(reader);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        throw new XMLStreamException(file + " has no config node");
+    }
+
+    /**
+     * This method reads the whole configuration file.
+     *
+     * @param file The configuration file
+     *
+     * @return The document, the counters and filters, and a command table of
+     * the commands in the file
+     *
+     * @throws IOException If the file cannot be read
+     *
+     * @throws XMLStreamException If the file is not valid XML
+     */
+    public static LoadedConfig load(final Path file) throws IOException, XMLStreamException {
+        final long start = System.nanoTime();
+        final ConfigParser.Elements elements = new ConfigParser.Elements();
+        try {
+            elements.doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+        final List<Command> commands = new ArrayList<>();
+        final List<Command> subCommands = new ArrayList<>();
+
+        try (InputStream in = Files.newInputStream(file)) {
+            final XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+            try {
+                while (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    // the prolog
+                }
+                final Element root = elements.doc.createElement(reader.getLocalName());
+                elements.doc.appendChild(root);
+                while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                    switch (reader.getLocalName()) {
+                        case "commands":
+                            elements.commands = readCommands(reader, elements.doc, "command", false, commands);
+                            root.appendChild(elements.commands);
+                            break;
+                        case "subcommands":
+                            elements.subCommands = readCommands(reader, elements.doc, "subcommand", true,
+                                    subCommands);
+                            root.appendChild(elements.subCommands);
+                            break;
+                        case "counters":
+                            elements.counters = readCounters(reader, elements.doc, elements.counterValues);
+                            root.appendChild(elements.counters);
+                            break;
+                        case "filters":
+                            elements.filters = readFilters(reader, elements.doc, elements.filterList);
+                            root.appendChild(elements.filters);
+                            break;
+                        default:
+                            // the config node, and anything the bot does not
+                            // know of, which is written back as it was
+                            final Element section = readElement(reader, elements.doc);
+                            if ("config".equals(section.getTagName()) && elements.configNode == null) {
+                                elements.configNode = section;
+                            }
+                            root.appendChild(section);
+                            break;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        if (elements.configNode == null) {
+            throw new XMLStreamException(file + " has no config node");
+        }
+        elements.commands = section(elements, elements.commands, "commands");
+        elements.subCommands = section(elements, elements.subCommands, "subcommands");
+        elements.counters = section(elements, elements.counters, "counters");
+        elements.filters = section(elements, elements.filters, "filters");
+        elements.commandNodes = elements.commands.getElementsByTagName("command");
+        elements.subCommandNodes = elements.subCommands.getElementsByTagName("subcommand");
+
+        final LoadedConfig loaded = new LoadedConfig(elements, CommandTable.of(commands, subCommands));
+        LOGGER.info("Read " + loaded + " in " + (System.nanoTime() - start) / 1000000L + " ms");
+        return loaded;
+    }
+
+    /**
+     * @return The section, or a new empty one at the end of the document if
+     * the file has none
+     */
+    private static Element section(final ConfigParser.Elements elements, final Element section, final String tag) {
+        if (section != null) {
+            return section;
+        }
+        final Element created = elements.doc.createElement(tag);
+        elements.doc.getDocumentElement().appendChild(created);
+        return created;
+    }
+
+    /**
+     * This method reads the commands or subcommands, the reader is on the
+     * start tag of their section and is left on its end tag.
+     *
+     * @return The section, holding a node for every command
+     */
+    private static Element readCommands(final XMLStreamReader reader,
+            final Document doc,
+            final String tag,
+            final boolean subscriber,
+            final List<Command> commands) throws XMLStreamException {
+        final Element section = doc.createElement(reader.getLocalName());
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            final Element e = readElement(reader, doc);
+            section.appendChild(e);
+            if (tag.equals(e.getTagName())) {
+                commands.add(Command.fromElement(e, subscriber));
+            }
+        }
+        return section;
+    }
+
+    /**
+     * This method reads the counters, the reader is on the start tag of their
+     * section and is left on its end tag.
+     *
+     * @return The section, empty
+     */
+    private static Element readCounters(final XMLStreamReader reader,
+            final Document doc,
+            final Map<String, Integer> counters) throws XMLStreamException {
+        final Element section = doc.createElement(reader.getLocalName());
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if ("counter".equals(reader.getLocalName())) {
+                final String name = attribute(reader, "name");
+                counters.putIfAbsent(name, ConfigParser.parseCounter(reader.getElementText()));
+            } else {
+                skipElement(reader);
+            }
+        }
+        return section;
+    }
+
+    /**
+     * This method reads the filters, the reader is on the start tag of their
+     * section and is left on its end tag.
+     *
+     * @return The section, empty
+     */
+    private static Element readFilters(final XMLStreamReader reader,
+            final Document doc,
+            final List<Filter> filters) throws XMLStreamException {
+        final Element section = doc.createElement(reader.getLocalName());
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if ("filter".equals(reader.getLocalName())) {
+                filters.add(new Filter(
+                        attribute(reader, "name"),
+                        attribute(reader, "reason"),
+                        Boolean.parseBoolean(attribute(reader, "disabled")),
+                        Filter.Type.fromName(attribute(reader, "type"))));
+            }
+            skipElement(reader);
+        }
+        return section;
+    }
+
+    /**
+     * This method copies an element and everything in it into the document,
+     * the reader is on its start tag and is left on its end tag. Whitespace
+     * around child elements is left out.
+     */
+    private static Element readElement(final XMLStreamReader reader, final Document doc) throws XMLStreamException {
+        final Element e = doc.createElement(reader.getLocalName());
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            e.setAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+        }
+        boolean children = false;
+        for (;;) {
+            final int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                children = true;
+                e.appendChild(readElement(reader, doc));
+            } else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) {
+                e.appendChild(doc.createTextNode(reader.getText()));
+            } else if (event == XMLStreamConstants.COMMENT) {
+                e.appendChild(doc.createComment(reader.getText()));
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                break;
+            }
+        }
+        if (children) {
+            // the indentation between the child elements
+            for (Node n = e.getFirstChild(); n != null;) {
+                final Node next = n.getNextSibling();
+                if (n.getNodeType() == Node.TEXT_NODE && n.getNodeValue().trim().isEmpty()) {
+                    e.removeChild(n);
+                }
+                n = next;
+            }
+        } else {
+            e.normalize();
+        }
+        return e;
+    }
+
+    private static void skipElement(final XMLStreamReader reader) throws XMLStreamException {
+        for (int depth = 1; depth > 0;) {
+            final int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private static String attribute(final XMLStreamReader reader, final String name) {
+        final String value = reader.getAttributeValue(null, name);
+        return value == null ? "" : value;
+    }
+
+    /**
+     * This method reads the tags of the config node, the reader is on its
+     * start tag and is left on its end tag.
+     */
+    private static Map<String, String> readSettings(final XMLStreamReader reader) throws XMLStreamException {
+        final Map<String, String> settings = new LinkedHashMap<>();
+        while (reader.hasNext()) {
+            final int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                // getElementText leaves the reader on the end tag of the setting
+                settings.putIfAbsent(reader.getLocalName(), reader.getElementText());
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                break;
+            }
+        }
+        return settings;
+    }
+}
@@ -2,11 +2,17 @@ package com.twitchbotx.bot;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 import java.util.logging.Logger;
@@ -21,7 +27,7 @@ public final class ConfigParser {
     /**
      * An inner class that holds all the positions of all the elements.
      */
-    public final class Elements {
+    public static final class Elements {
 
         public Document doc;
 
@@ -37,44 +43,358 @@ public final class ConfigParser {
 
         public NodeList subCommandNodes;
 
-        public NodeList counterNodes;
-
         public Element filters;
 
-        public NodeList filterNodes;
+        // The counters and filters are kept here instead of in the document,
+        // their sections of the document stay empty until it is written out.
+        // Both are guarded by the document lock.
+        public final Map<String, Integer> counterValues = new LinkedHashMap<>();
+
+        public final List<Filter> filterList = new ArrayList<>();
 
     }
 
     /**
-     * An inner class that holds simple configurations, these fields should not
-     * change once the bot is up, and nobody should be changing them live
-     * anyway.
+     * An inner class that holds simple configurations. A configuration never
+     * changes, a change to a setting creates a new one, which is published
+     * through {@link LiveConfiguration} so it can be read without a lock.
      */
-    public final class Configuration {
+    public static final class Configuration {
+
+        public final String account;
+
+        public final String clientID;
+
+        public final String password;
+
+        public final String joinedChannel;
+
+        public final String host;
+
+        public final int port;
+
+        public final String pubSub;
+
+        // Number of lines buffered between the socket and the handlers
+        public final int ingestBufferSize;
+
+        // How the socket reader and the handlers wait for each other
+        public final String ingestWaitStrategy;
+
+        // Number of handler threads, messages are sharded by username
+        public final int processingShards;
+
+        // Seconds between metric reports in the log, 0 disables them
+        public final long metricsInterval;
+
+        // Seconds a user waits after any command before the next, 0 for none
+        public final long globalUserCooldown;
+
+        // The most users with a cooldown that are kept track of
+        public final int cooldownMaxUsers;
+
+        // Milliseconds changes are collected for before the file is written
+        public final long persistDelayMillis;
+
+        // xml keeps everything in kfbot.xml, kv keeps commands, counters and
+        // filters in kfbot.kv, one record each
+        public final String storage;
+
+        // journal appends each change to kfbot.xml.journal, snapshot rewrites
+        // the whole file
+        public final String persistMode;
+
+        // Journal size in bytes at which it is folded into kfbot.xml
+        public final long journalCompactBytes;
+
+        // Seconds between folding a smaller journal into kfbot.xml
+        public final long journalCompactInterval;
+
+        // Sent when a pyramid is completed in chat
+        public final String pyramidResponse;
+
+        // Number of chat messages kept for pyramid detection
+        public final int recentMessageCacheSize;
+
+        // Microseconds the regex filters may take for one message
+        public final int filterBudgetMicros;
+
+        // Users whose username filter verdict each shard keeps
+        public final int usernameCacheSize;
 
-        public String account;
+        // A message posted by more than this many users within the window is
+        // spam, zero (the default) to never catch duplicates
+        public final int duplicateUsers;
 
-        public String clientID;
+        public final int duplicateWindow;
 
-        public String password;
+        // Shorter messages, once folded, are never duplicates
+        public final int duplicateMinLength;
 
-        public String joinedChannel;
+        // Messages remembered at once for finding duplicates
+        public final int duplicateTableSize;
 
-        public String host;
+        // Seconds over which the messages and characters of a user are counted
+        public final int floodWindow;
 
-        public int port;
+        // The most messages, and characters, a user may post within the
+        // window, zero for no limit
+        public final int floodMessages;
 
-        public String pubSub;
+        public final int floodCharacters;
+
+        // What is done to a user over a limit, none (the default) to not
+        // count it
+        public final FloodDetector.Action floodMessageAction;
+
+        public final FloodDetector.Action floodCharacterAction;
+
+        // Seconds a user is timed out for flooding
+        public final int floodTimeout;
+
+        // Users each shard counts at the same time
+        public final int floodMaxUsers;
+
+        // Rules on the features of a message, such as caps>70:purge
+        public final List<MessageRule> messageRules;
+
+        // Messages shorter than this never break a percentage rule
+        public final int ruleMinLength;
+
+        // Seconds a user breaking a rule is timed out for
+        public final int ruleTimeout;
+
+        // Seconds during which further actions on a user acted on are merged
+        public final int actionMergeWindow;
+
+        // The timeouts, or BAN, for the second strike of a user and on, only
+        // the filters ever escalate to a ban
+        public final List<Integer> escalation;
+
+        // Seconds a strike is remembered
+        public final int strikeMemory;
+
+        // Users each shard remembers actions on at the same time
+        public final int actionMaxUsers;
+
+        // Where the chat is logged, file, console or off
+        public final ChatLogWriter.Mode chatLog;
+
+        // Whether the chat log is text or JSON lines
+        public final ChatLogWriter.Format chatLogFormat;
+
+        // Whether a new chat log file is started every day or every hour
+        public final ChatLogWriter.Rotation chatLogRotation;
+
+        // Bytes past which a new chat log file is started
+        public final int chatLogMaxBytes;
+
+        // The directory the chat log files are written to
+        public final String chatLogDirectory;
+
+        // Chat lines waiting to be written, past it lines are dropped
+        public final int chatLogBufferSize;
+
+        // Days of chat history kept for !history, 0 for no history
+        public final int historyRetentionDays;
+
+        // The directory the chat history is written to
+        public final String historyDirectory;
+
+        public final int numberOfCounters;
+
+        // API URL templates, #streamer and #user are filled in
+        public final String streamerStatusURL;
+
+        public final String followageURL;
+
+        public final String youtubeTitleURL;
+
+        public final String youtubeAPIKey;
+
+        public final String googleSheetID;
+
+        // The text of every tag in the config node, by tag name
+        private final Map<String, String> settings;
+
+        /**
+         * @param settings The text of every tag in the config node, by tag
+         * name
+         *
+         * @throws IllegalArgumentException If a setting the bot needs is
+         * missing, or a setting is not a valid number
+         */
+        public Configuration(final Map<String, String> settings) {
+            this.settings = Collections.unmodifiableMap(new LinkedHashMap<>(settings));
+
+            account = getRequired(settings, "botAccount");
+            password = getRequired(settings, "botOAUTH");
+            joinedChannel = getRequired(settings, "myChannel");
+            host = getRequired(settings, "irc");
+            port = getInt(getRequired(settings, "ircPort").trim(), 1, 65535, "ircPort");
+            clientID = getRequired(settings, "botClientID");
+            pubSub = getRequired(settings, "pubSub");
+
+            ingestBufferSize = getInt(getOptional(settings, "ingestBufferSize", "4096"),
+                    1, MessageRingBuffer.MAX_SIZE, "ingestBufferSize");
+            ingestWaitStrategy = getOptional(settings, "ingestWaitStrategy", "blocking");
+            processingShards = Math.max(1, getInt(getOptional(settings, "processingShards", "1"),
+                    Integer.MIN_VALUE, Integer.MAX_VALUE, "processingShards"));
+            metricsInterval = getLong(getOptional(settings, "metricsInterval", "60"), "metricsInterval");
+            globalUserCooldown = getLong(getOptional(settings, "globalUserCooldown", "0"), "globalUserCooldown");
+            cooldownMaxUsers = getInt(getOptional(settings, "cooldownMaxUsers", "65536"),
+                    1, 10000000, "cooldownMaxUsers");
+            persistDelayMillis = getLong(getOptional(settings, "persistDelayMillis", "2000"), "persistDelayMillis");
+            storage = getOptional(settings, "storage", "xml");
+            persistMode = getOptional(settings, "persistMode", "journal");
+            journalCompactBytes = getLong(getOptional(settings, "journalCompactBytes", "1048576"),
+                    "journalCompactBytes");
+            journalCompactInterval = getLong(getOptional(settings, "journalCompactInterval", "600"),
+                    "journalCompactInterval");
+
+            pyramidResponse = settings.getOrDefault("pyramidResponse", "");
+            recentMessageCacheSize = getInt(getOptional(settings, "recentMessageCacheSize", "15"),
+                    1, 10000, "recentMessageCacheSize");
+            filterBudgetMicros = getInt(getOptional(settings, "filterBudgetMicros", "2000"),
+                    1, 1000000, "filterBudgetMicros");
+            usernameCacheSize = getInt(getOptional(settings, "usernameCacheSize", "4096"),
+                    1, 1000000, "usernameCacheSize");
+            duplicateUsers = getInt(getOptional(settings, "duplicateUsers", "0"),
+                    0, DuplicateDetector.MAX_USERS, "duplicateUsers");
+            duplicateWindow = getInt(getOptional(settings, "duplicateWindow", "30"),
+                    1, 3600, "duplicateWindow");
+            duplicateMinLength = getInt(getOptional(settings, "duplicateMinLength", "20"),
+                    4, 500, "duplicateMinLength");
+            duplicateTableSize = getInt(getOptional(settings, "duplicateTableSize", "4096"),
+                    16, 1000000, "duplicateTableSize");
+            floodWindow = getInt(getOptional(settings, "floodWindow", "10"), 1, 3600, "floodWindow");
+            floodMessages = getInt(getOptional(settings, "floodMessages", "10"), 0, 10000, "floodMessages");
+            floodCharacters = getInt(getOptional(settings, "floodCharacters", "2000"),
+                    0, 1000000, "floodCharacters");
+            floodMessageAction = getAction(getOptional(settings, "floodMessageAction", "none"),
+                    "floodMessageAction");
+            floodCharacterAction = getAction(getOptional(settings, "floodCharacterAction", "none"),
+                    "floodCharacterAction");
+            floodTimeout = getInt(getOptional(settings, "floodTimeout", "60"), 1, 1209600, "floodTimeout");
+            floodMaxUsers = getInt(getOptional(settings, "floodMaxUsers", "100000"),
+                    1, 10000000, "floodMaxUsers");
+            messageRules = getRules(getOptional(settings, "messageRules", ""), "messageRules");
+            ruleMinLength = getInt(getOptional(settings, "ruleMinLength", "10"), 0, 500, "ruleMinLength");
+            ruleTimeout = getInt(getOptional(settings, "ruleTimeout", "60"), 1, 1209600, "ruleTimeout");
+            actionMergeWindow = getInt(getOptional(settings, "actionMergeWindow", "5"),
+                    0, 3600, "actionMergeWindow");
+            escalation = getLadder(getOptional(settings, "escalation", "3600,86400"), "escalation");
+            strikeMemory = getInt(getOptional(settings, "strikeMemory", "86400"), 0, 31536000, "strikeMemory");
+            actionMaxUsers = getInt(getOptional(settings, "actionMaxUsers", "100000"),
+                    1, 10000000, "actionMaxUsers");
+            chatLog = getChoice(ChatLogWriter.Mode.class, getOptional(settings, "chatLog", "file"), "chatLog");
+            chatLogFormat = getChoice(ChatLogWriter.Format.class,
+                    getOptional(settings, "chatLogFormat", "text"), "chatLogFormat");
+            chatLogRotation = getChoice(ChatLogWriter.Rotation.class,
+                    getOptional(settings, "chatLogRotation", "daily"), "chatLogRotation");
+            chatLogMaxBytes = getInt(getOptional(settings, "chatLogMaxBytes", "10485760"),
+                    1024, 1073741824, "chatLogMaxBytes");
+            chatLogDirectory = getOptional(settings, "chatLogDirectory", "logs");
+            chatLogBufferSize = getInt(getOptional(settings, "chatLogBufferSize", "8192"),
+                    2, 1048576, "chatLogBufferSize");
+            historyRetentionDays = getInt(getOptional(settings, "historyRetentionDays", "180"),
+                    0, 3650, "historyRetentionDays");
+            historyDirectory = getOptional(settings, "historyDirectory", "history");
+            numberOfCounters = getInt(getOptional(settings, "numberOfCounters", "0"),
+                    0, 10000, "numberOfCounters");
+            streamerStatusURL = settings.getOrDefault("twitchStreamerStatus", "");
+            followageURL = settings.getOrDefault("twitchFollowage", "");
+            youtubeTitleURL = settings.getOrDefault("youtubeTitle", "");
+            youtubeAPIKey = settings.getOrDefault("youtubeAPI", "");
+            googleSheetID = settings.getOrDefault("googleSheetID", "");
+        }
+
+        /**
+         * @param tag The tag name of a setting
+         *
+         * @return The text of the setting, or null if there is none
+         */
+        public String getSetting(final String tag) {
+            return settings.get(tag);
+        }
+
+        /**
+         * @return The text of every tag in the config node, by tag name
+         */
+        public Map<String, String> getSettings() {
+            return settings;
+        }
+
+        /**
+         * This method creates a configuration with some settings changed.
+         *
+         * @param changes The new text of each changed setting, null to remove
+         * a setting
+         *
+         * @return The new configuration, this one is unchanged
+         *
+         * @throws IllegalArgumentException If a changed setting is not valid
+         */
+        public Configuration with(final Map<String, String> changes) {
+            final Map<String, String> next = new LinkedHashMap<>(settings);
+            for (Map.Entry<String, String> change : changes.entrySet()) {
+                if (change.getValue() == null) {
+                    next.remove(change.getKey());
+                } else {
+                    next.put(change.getKey(), change.getValue());
+                }
+            }
+            return new Configuration(next);
+        }
 
         @Override
         public String toString() {
             return "Configuration{"
                     + "account=" + account
-                    + ", password=" + password
                     + ", joinedChannel=" + joinedChannel
                     + ", host=" + host
                     + ", clientID=" + clientID
-                    + ", port=" + port + '}';
+                    + ", port=" + port
+                    + ", ingestBufferSize=" + ingestBufferSize
+                    + ", ingestWaitStrategy=" + ingestWaitStrategy
+                    + ", processingShards=" + processingShards
+                    + ", metricsInterval=" + metricsInterval
+                    + ", globalUserCooldown=" + globalUserCooldown
+                    + ", cooldownMaxUsers=" + cooldownMaxUsers
+                    + ", persistDelayMillis=" + persistDelayMillis
+                    + ", storage=" + storage
+                    + ", persistMode=" + persistMode
+                    + ", journalCompactBytes=" + journalCompactBytes
+                    + ", journalCompactInterval=" + journalCompactInterval
+                    + ", recentMessageCacheSize=" + recentMessageCacheSize
+                    + ", filterBudgetMicros=" + filterBudgetMicros
+                    + ", usernameCacheSize=" + usernameCacheSize
+                    + ", duplicateUsers=" + duplicateUsers
+                    + ", duplicateWindow=" + duplicateWindow
+                    + ", duplicateMinLength=" + duplicateMinLength
+                    + ", duplicateTableSize=" + duplicateTableSize
+                    + ", floodWindow=" + floodWindow
+                    + ", floodMessages=" + floodMessages
+                    + ", floodCharacters=" + floodCharacters
+                    + ", floodMessageAction=" + floodMessageAction
+                    + ", floodCharacterAction=" + floodCharacterAction
+                    + ", floodTimeout=" + floodTimeout
+                    + ", floodMaxUsers=" + floodMaxUsers
+                    + ", messageRules=" + messageRules
+                    + ", ruleMinLength=" + ruleMinLength
+                    + ", ruleTimeout=" + ruleTimeout
+                    + ", actionMergeWindow=" + actionMergeWindow
+                    + ", escalation=" + escalation
+                    + ", strikeMemory=" + strikeMemory
+                    + ", actionMaxUsers=" + actionMaxUsers
+                    + ", chatLog=" + chatLog
+                    + ", chatLogFormat=" + chatLogFormat
+                    + ", chatLogRotation=" + chatLogRotation
+                    + ", chatLogMaxBytes=" + chatLogMaxBytes
+                    + ", chatLogDirectory=" + chatLogDirectory
+                    + ", chatLogBufferSize=" + chatLogBufferSize
+                    + ", historyRetentionDays=" + historyRetentionDays
+                    + ", historyDirectory=" + historyDirectory + '}';
         }
     }
 
@@ -87,28 +407,121 @@ public final class ConfigParser {
      * @return A class of configurations for unchanged configuration
      */
     public Configuration getConfiguration(final Element configNode) {
-        final Configuration configuration = new Configuration();
-        configuration.account
-                = configNode.getElementsByTagName("botAccount").item(0).getTextContent();
+        final Map<String, String> settings = new LinkedHashMap<>();
+        final NodeList children = configNode.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            if (children.item(i).getNodeType() == Node.ELEMENT_NODE) {
+                settings.putIfAbsent(children.item(i).getNodeName(), children.item(i).getTextContent());
+            }
+        }
+        return getConfiguration(settings);
+    }
+
+    /**
+     * This method pulls the configuration out of the settings of the config
+     * node, such as those read by {@link ConfigLoader#loadSettings}.
+     *
+     * @param settings The text of every tag in the config node, by tag name
+     *
+     * @return A class of configurations for unchanged configuration
+     *
+     * @throws IllegalArgumentException If a setting the bot needs is missing
+     * or not a number
+     */
+    public Configuration getConfiguration(final Map<String, String> settings) {
+        return new Configuration(settings);
+    }
 
-        configuration.password
-                = configNode.getElementsByTagName("botOAUTH").item(0).getTextContent();
+    /**
+     * This method reads a setting every configuration file has.
+     *
+     * @param settings The settings of the config node
+     *
+     * @param tag The tag name of the setting
+     *
+     * @return The text of the setting
+     */
+    private static String getRequired(final Map<String, String> settings, final String tag) {
+        final String value = settings.get(tag);
+        if (value == null) {
+            throw new IllegalArgumentException("The config node has no <" + tag + ">");
+        }
+        return value;
+    }
 
-        configuration.joinedChannel
-                = configNode.getElementsByTagName("myChannel").item(0).getTextContent();
+    /**
+     * This method reads a setting that older configuration files may not have.
+     *
+     * @param settings The settings of the config node
+     *
+     * @param tag The tag name of the setting
+     *
+     * @param defaultValue The value to use if the setting is missing or empty
+     *
+     * @return The text of the setting, or the default
+     */
+    private static String getOptional(final Map<String, String> settings, final String tag, final String defaultValue) {
+        final String value = settings.get(tag);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return value.trim();
+    }
 
-        configuration.host
-                = configNode.getElementsByTagName("irc").item(0).getTextContent();
+    private static int getInt(final String value, final int min, final int max, final String tag) {
+        final int number;
+        try {
+            number = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("<" + tag + "> is not a number: " + value);
+        }
+        if (number < min || number > max) {
+            throw new IllegalArgumentException("<" + tag + "> must be between " + min + " and " + max);
+        }
+        return number;
+    }
+
+    private static FloodDetector.Action getAction(final String value, final String tag) {
+        try {
+            return FloodDetector.Action.fromName(value);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("<" + tag + "> must be none, warn, purge or timeout: " + value);
+        }
+    }
 
-        configuration.port
-                = Integer.parseInt(configNode.getElementsByTagName("ircPort").item(0).getTextContent());
+    private static <E extends Enum<E>> E getChoice(final Class<E> type, final String value, final String tag) {
+        final StringBuilder names = new StringBuilder();
+        for (E choice : type.getEnumConstants()) {
+            if (choice.name().equalsIgnoreCase(value.trim())) {
+                return choice;
+            }
+            names.append(names.length() == 0 ? "" : ", ").append(choice.name().toLowerCase());
+        }
+        throw new IllegalArgumentException("<" + tag + "> must be one of " + names + ": " + value);
+    }
 
-        configuration.clientID
-                = configNode.getElementsByTagName("botClientID").item(0).getTextContent();
+    private static List<MessageRule> getRules(final String value, final String tag) {
+        try {
+            return MessageRule.parseAll(value);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("<" + tag + "> " + e.getMessage());
+        }
+    }
 
-        configuration.pubSub = configNode.getElementsByTagName("pubSub").item(0).getTextContent();
+    private static List<Integer> getLadder(final String value, final String tag) {
+        try {
+            return ModerationActions.parseLadder(value);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("<" + tag + "> " + e.getMessage());
+        }
+    }
 
-        return configuration;
+    private static long getLong(final String value, final String tag) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("<" + tag + "> is not a number: " + value);
+        }
     }
 
     /**
@@ -153,9 +566,39 @@ public final class ConfigParser {
         elements.subCommands = (Element) elements.doc.getElementsByTagName("subcommands").item(0);
         elements.subCommandNodes = elements.subCommands.getElementsByTagName("subcommand");
         elements.counters = (Element) elements.doc.getElementsByTagName("counters").item(0);
-        elements.counterNodes = elements.counters.getElementsByTagName("counter");
         elements.filters = (Element) elements.doc.getElementsByTagName("filters").item(0);
-        elements.filterNodes = elements.filters.getElementsByTagName("filter");
+
+        // the counters and filters leave the document for their own lists
+        final NodeList counterNodes = elements.counters.getElementsByTagName("counter");
+        for (int i = 0; i < counterNodes.getLength(); i++) {
+            final Element e = (Element) counterNodes.item(i);
+            elements.counterValues.putIfAbsent(e.getAttribute("name"), parseCounter(e.getTextContent()));
+        }
+        final NodeList filterNodes = elements.filters.getElementsByTagName("filter");
+        for (int i = 0; i < filterNodes.getLength(); i++) {
+            elements.filterList.add(Filter.fromElement((Element) filterNodes.item(i)));
+        }
+        removeChildren(elements.counters);
+        removeChildren(elements.filters);
         return elements;
     }
+
+    /**
+     * @param text The text of a counter node
+     *
+     * @return Its value, 0 if it is not a number
+     */
+    public static int parseCounter(final String text) {
+        try {
+            return Integer.parseInt(text.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static void removeChildren(final Element section) {
+        while (section.getFirstChild() != null) {
+            section.removeChild(section.getFirstChild());
+        }
+    }
 }
@@ -0,0 +1,453 @@
+package com.twitchbotx.bot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import org.w3c.dom.Element;
+
+/**
+ * This class stores the configuration in the XML file itself, writing the
+ * document back to disk off the chat threads.
+ *
+ * In snapshot mode a change only marks the document dirty. The first change
+ * schedules a write after a short delay, every change within that delay is
+ * written along with it. The document is serialized under its lock, then
+ * written to a temporary file that is moved over the real one, so a crash
+ * never leaves a half written configuration behind.
+ *
+ * In journal mode every change is appended to a journal next to the document
+ * instead, so writing a change costs the size of the change. Changes made
+ * while the journal is syncing are written together with one sync. Once the
+ * journal grows large, and every so often, a snapshot is written as above and
+ * the journal is emptied. On start up the journal is replayed over the
+ * snapshot.
+ */
+public final class ConfigPersistence implements ConfigStore {
+
+    private static final Logger LOGGER = Logger.getLogger(ConfigPersistence.class.getSimpleName());
+
+    private final ConfigParser.Elements elements;
+
+    private final Path file;
+
+    private final Path tempFile;
+
+    private final Path journalFile;
+
+    private final long delayMillis;
+
+    // Null in snapshot mode
+    private final MutationJournal journal;
+
+    private final long compactBytes;
+
+    // Only ever used by the writer thread, or by the final flush after it
+    // has stopped
+    private final Transformer transformer;
+
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "config-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    // Changes waiting for the journal
+    private final ConcurrentLinkedQueue<Mutation> queued = new ConcurrentLinkedQueue<>();
+
+    // Changes taken from the queue that are not on disk yet, guarded by this
+    private final List<Mutation> unwritten = new ArrayList<>();
+
+    // Bumped by every change, the writer remembers the last one it wrote
+    private final AtomicLong changes = new AtomicLong();
+
+    private volatile long writtenChanges;
+
+    private final AtomicLong writes = new AtomicLong();
+
+    private final AtomicLong journalWrites = new AtomicLong();
+
+    private volatile long lastWriteMillis;
+
+    /**
+     * @param elements The XML document to write
+     *
+     * @param file The configuration file, such as ./kfbot.xml
+     *
+     * @param delayMillis How long to wait after a change before writing, all
+     * changes within that time are written at once. In journal mode, how long
+     * to wait before trying again after a failed write.
+     *
+     * @param journalMode True to append changes to a journal, false to write
+     * the whole document every time
+     *
+     * @param compactBytes The journal size at which a snapshot is written
+     *
+     * @param compactIntervalSeconds Seconds between snapshots of a journal
+     * that has not grown that large, 0 to only write one at that size
+     *
+     * @throws TransformerConfigurationException If no XML serializer is
+     * available
+     *
+     * @throws IOException If the journal cannot be opened
+     */
+    public ConfigPersistence(final ConfigParser.Elements elements,
+            final Path file,
+            final long delayMillis,
+            final boolean journalMode,
+            final long compactBytes,
+            final long compactIntervalSeconds) throws TransformerConfigurationException, IOException {
+        this.elements = elements;
+        this.file = file.toAbsolutePath();
+        this.tempFile = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+        this.journalFile = this.file.resolveSibling(this.file.getFileName() + ".journal");
+        this.delayMillis = Math.max(0L, delayMillis);
+        this.compactBytes = Math.max(1L, compactBytes);
+
+        this.transformer = TransformerFactory.newInstance().newTransformer();
+        this.transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+        this.transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
+
+        this.journal = journalMode ? new MutationJournal(journalFile) : null;
+        if (journal != null && compactIntervalSeconds > 0) {
+            writer.scheduleWithFixedDelay(this::compactScheduled,
+                    compactIntervalSeconds, compactIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * This method applies the changes in the journal to the document.
+     *
+     * A journal left behind after journal mode was turned off is applied too,
+     * then written into the document and deleted.
+     *
+     * @throws IOException If the journal cannot be read, or a journal left
+     * behind cannot be written into the document
+     */
+    @Override
+    public int load() throws IOException {
+        if (journal != null) {
+            final int applied = apply(journal.readAll());
+            LOGGER.info("Replayed " + applied + " changes from " + journalFile);
+            return applied;
+        }
+
+        if (!Files.exists(journalFile)) {
+            return 0;
+        }
+        final int applied;
+        try (MutationJournal leftover = new MutationJournal(journalFile)) {
+            applied = apply(leftover.readAll());
+        }
+        if (applied > 0) {
+            markDirty();
+            if (!flush()) {
+                throw new IOException("Could not write the changes of " + journalFile);
+            }
+        }
+        Files.delete(journalFile);
+        LOGGER.info("Moved " + applied + " changes from " + journalFile + " into the configuration");
+        return applied;
+    }
+
+    private int apply(final List<Mutation> mutations) {
+        synchronized (elements) {
+            return Mutation.applyAll(elements, mutations);
+        }
+    }
+
+    /**
+     * This method records a change to the document, it returns immediately.
+     * The caller holds the document lock and has already made the change.
+     *
+     * @param mutation The change
+     */
+    @Override
+    public void record(final Mutation mutation) {
+        if (journal == null) {
+            markDirty();
+            return;
+        }
+        changes.incrementAndGet();
+        queued.add(mutation);
+        schedule(0L);
+    }
+
+    /**
+     * This method records that the document changed, it returns immediately.
+     */
+    public void markDirty() {
+        changes.incrementAndGet();
+        schedule(delayMillis);
+    }
+
+    private void schedule(final long delay) {
+        if (!scheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            writer.schedule(this::writeScheduled, delay, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            // the writer is shut down, the final flush picks the change up
+            scheduled.set(false);
+        }
+    }
+
+    private void writeScheduled() {
+        scheduled.set(false);
+        if (!flush()) {
+            schedule(delayMillis);
+        }
+    }
+
+    private void compactScheduled() {
+        try {
+            if (!compact()) {
+                schedule(delayMillis);
+            }
+        } catch (RuntimeException e) {
+            // an exception would cancel the schedule
+            LOGGER.log(Level.SEVERE, "Could not compact the journal: {0}", e.toString());
+        }
+    }
+
+    /**
+     * This method writes the document if it changed since the last write.
+     *
+     * @return False if the write failed
+     */
+    private synchronized boolean write() {
+        final long target = changes.get();
+        if (target == writtenChanges) {
+            return true;
+        }
+
+        final byte[] snapshot;
+        synchronized (elements) {
+            snapshot = serialize();
+        }
+        if (snapshot == null || !writeSnapshot(snapshot)) {
+            return false;
+        }
+        writtenChanges = target;
+        return true;
+    }
+
+    /**
+     * This method appends the queued changes to the journal, with a single
+     * sync, and writes a snapshot if the journal has grown large.
+     *
+     * @return False if the changes could not be written
+     */
+    private synchronized boolean commit() {
+        for (Mutation mutation; (mutation = queued.poll()) != null;) {
+            unwritten.add(mutation);
+        }
+        if (unwritten.isEmpty()) {
+            return true;
+        }
+        try {
+            journal.append(unwritten);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Could not write to the journal: {0}", e.toString());
+            return false;
+        }
+        writtenChanges += unwritten.size();
+        unwritten.clear();
+        journalWrites.incrementAndGet();
+
+        if (journalSize() >= compactBytes) {
+            compact();
+        }
+        return true;
+    }
+
+    /**
+     * This method writes a snapshot holding every change so far and empties
+     * the journal.
+     *
+     * Changes still queued are in the snapshot, as it is taken under the
+     * document lock they were made under, so they are not appended. If the
+     * journal cannot be emptied it is replayed over a snapshot that already
+     * holds it, which changes nothing.
+     *
+     * @return False if the snapshot failed, the queued changes then wait for
+     * the next commit
+     */
+    private synchronized boolean compact() {
+        if (unwritten.isEmpty() && queued.isEmpty() && journalSize() == 0) {
+            return true;
+        }
+        final byte[] snapshot;
+        synchronized (elements) {
+            for (Mutation mutation; (mutation = queued.poll()) != null;) {
+                unwritten.add(mutation);
+            }
+            snapshot = serialize();
+        }
+        if (snapshot == null || !writeSnapshot(snapshot)) {
+            return false;
+        }
+        writtenChanges += unwritten.size();
+        unwritten.clear();
+
+        try {
+            journal.clear();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not empty the journal: {0}", e.toString());
+        }
+        return true;
+    }
+
+    /**
+     * @return The size of the journal in bytes, -1 if it cannot be read
+     */
+    private long journalSize() {
+        try {
+            return journal.size();
+        } catch (IOException e) {
+            return -1L;
+        }
+    }
+
+    /**
+     * This method serializes the document, the caller holds its lock. The
+     * counters and filters are only put in the document while it is written.
+     *
+     * @return The document, or null if it cannot be serialized
+     */
+    private byte[] serialize() {
+        for (Map.Entry<String, Integer> counter : elements.counterValues.entrySet()) {
+            elements.counters.appendChild(
+                    Mutation.counter(counter.getKey(), counter.getValue()).toElement(elements.doc));
+        }
+        for (Filter filter : elements.filterList) {
+            elements.filters.appendChild(Mutation.filter(filter).toElement(elements.doc));
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+        try {
+            transformer.transform(new DOMSource(elements.doc), new StreamResult(bytes));
+        } catch (TransformerException e) {
+            LOGGER.log(Level.SEVERE, "Could not serialize the configuration: {0}", e.toString());
+            return null;
+        } finally {
+            removeChildren(elements.counters);
+            removeChildren(elements.filters);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void removeChildren(final Element section) {
+        while (section.getFirstChild() != null) {
+            section.removeChild(section.getFirstChild());
+        }
+    }
+
+    /**
+     * This method writes a serialized document over the configuration file.
+     *
+     * @param snapshot The serialized document
+     *
+     * @return False if the write failed
+     */
+    private boolean writeSnapshot(final byte[] snapshot) {
+        final long start = System.nanoTime();
+        try {
+            try (FileChannel channel = FileChannel.open(tempFile,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE)) {
+                final ByteBuffer buffer = ByteBuffer.wrap(snapshot);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            try {
+                Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Could not write the configuration: {0}", e.toString());
+            return false;
+        }
+
+        writes.incrementAndGet();
+        lastWriteMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        return true;
+    }
+
+    /**
+     * This method writes any pending change right away, on the calling thread.
+     *
+     * @return False if there was a change and it could not be written
+     */
+    @Override
+    public boolean flush() {
+        return journal == null ? write() : commit();
+    }
+
+    /**
+     * This method stops the writer thread and writes any pending change, it is
+     * meant to run when the bot shuts down. In journal mode it writes a last
+     * snapshot, so the next start has nothing to replay.
+     */
+    @Override
+    public void stop() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (journal != null && compact()) {
+            return;
+        }
+        if (!flush()) {
+            LOGGER.severe("Changes to the configuration were lost at shutdown.");
+        }
+    }
+
+    /**
+     * Registers the persistence metrics with the reporter.
+     *
+     * @param metrics The reporter to register with
+     */
+    @Override
+    public void registerMetrics(final MetricsReporter metrics) {
+        metrics.register("persist.changes", changes::get);
+        metrics.register("persist.writes", writes::get);
+        metrics.register("persist.pending", () -> changes.get() != writtenChanges);
+        metrics.register("persist.lastWriteMillis", () -> lastWriteMillis);
+        if (journal != null) {
+            metrics.register("persist.journalWrites", journalWrites::get);
+            metrics.register("persist.journalBytes", this::journalSize);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.twitchbotx.bot;
+
+import java.io.IOException;
+
+/**
+ * This interface is where the commands, subcommands, counters, filters and
+ * settings changed from chat are stored.
+ *
+ * The handlers work on the XML document, and on the counters and filters kept
+ * beside it, held by {@link ConfigParser.Elements}, and tell the store about
+ * every change they make. A store decides how those changes reach the disk,
+ * and brings the document and the lists up to date with itself when the bot
+ * starts.
+ */
+public interface ConfigStore {
+
+    /**
+     * This method brings the document up to date with what the store holds.
+     * It runs once at start up, before anything reads the document.
+     *
+     * @return The number of changes applied to the document
+     *
+     * @throws IOException If the store cannot be read
+     */
+    int load() throws IOException;
+
+    /**
+     * This method records a change to the document, it returns immediately.
+     * The caller holds the document lock and has already made the change.
+     *
+     * @param mutation The change
+     */
+    void record(Mutation mutation);
+
+    /**
+     * This method writes any pending change right away, on the calling thread.
+     *
+     * @return False if there was a change and it could not be written
+     */
+    boolean flush();
+
+    /**
+     * This method writes any pending change and releases the store, it is
+     * meant to run when the bot shuts down.
+     */
+    void stop();
+
+    /**
+     * Registers the store metrics with the reporter.
+     *
+     * @param metrics The reporter to register with
+     */
+    void registerMetrics(MetricsReporter metrics);
+}
@@ -0,0 +1,257 @@
+package com.twitchbotx.bot;
+
+import com.twitchbotx.bot.ConfigParser.Configuration;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.xml.stream.XMLStreamException;
+import org.w3c.dom.Element;
+
+/**
+ * This class watches kfbot.xml and applies settings that were edited while
+ * the bot runs, without restarting it or dropping the connection.
+ *
+ * Only the settings of the config node are reloaded, commands, counters and
+ * filters belong to the store and are changed from chat. A reload compares
+ * the file with what it held the last time it was read, so the bot writing
+ * the file itself changes nothing. Settings that are only read at start up,
+ * such as the channel or the number of shards, are reported and left alone.
+ * If the edited settings are not valid the configuration in use is kept, and
+ * the edits are looked at again with the next change of the file.
+ */
+public final class ConfigWatcher {
+
+    private static final Logger LOGGER = Logger.getLogger(ConfigWatcher.class.getSimpleName());
+
+    // Editors save a file in several steps, the last one is read
+    private static final long SETTLE_MILLIS = 500L;
+
+    private static final Set<String> RESTART_SETTINGS = new HashSet<>(Arrays.asList(
+            "botAccount", "myChannel", "irc", "ircPort", "pubSub",
+            "ingestBufferSize", "ingestWaitStrategy", "processingShards", "metricsInterval",
+            "globalUserCooldown", "cooldownMaxUsers", "persistDelayMillis",
+            "storage", "persistMode", "journalCompactBytes", "journalCompactInterval",
+            "usernameCacheSize", "duplicateTableSize", "floodMaxUsers",
+            "actionMaxUsers", "chatLogDirectory", "chatLogBufferSize",
+            "historyRetentionDays", "historyDirectory"));
+
+    // Never written to the log
+    private static final Set<String> SECRET_SETTINGS = new HashSet<>(Arrays.asList(
+            "botOAUTH", "botClientID", "youtubeAPI"));
+
+    private final Path file;
+
+    private final ConfigParser.Elements elements;
+
+    private final ConfigStore store;
+
+    private final LiveConfiguration live;
+
+    // The settings in the file the last time it was read, guarded by this
+    private Map<String, String> fileSettings;
+
+    private final AtomicLong reloads = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private WatchService watchService;
+
+    /**
+     * @param file The configuration file, such as ./kfbot.xml
+     *
+     * @param elements The XML document, its config node is kept in step
+     *
+     * @param store Stores the settings that were changed
+     *
+     * @param live The configuration in use
+     *
+     * @param fileSettings The settings read from the file at start up
+     */
+    public ConfigWatcher(final Path file,
+            final ConfigParser.Elements elements,
+            final ConfigStore store,
+            final LiveConfiguration live,
+            final Map<String, String> fileSettings) {
+        this.file = file.toAbsolutePath();
+        this.elements = elements;
+        this.store = store;
+        this.live = live;
+        this.fileSettings = fileSettings;
+    }
+
+    /**
+     * This method starts watching the file on a background thread.
+     *
+     * @throws IOException If the folder of the file cannot be watched
+     */
+    public void start() throws IOException {
+        watchService = file.getFileSystem().newWatchService();
+        file.getParent().register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        final Thread thread = new Thread(this::watch, "config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * This method stops watching the file.
+     */
+    public void stop() {
+        try {
+            if (watchService != null) {
+                watchService.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not stop watching {0}: {1}", new Object[]{file, e.toString()});
+        }
+    }
+
+    private void watch() {
+        try {
+            for (;;) {
+                if (!isAboutFile(watchService.take())) {
+                    continue;
+                }
+                Thread.sleep(SETTLE_MILLIS);
+                for (WatchKey key; (key = watchService.poll()) != null;) {
+                    isAboutFile(key);
+                }
+                reload();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // stopped
+        }
+    }
+
+    private boolean isAboutFile(final WatchKey key) {
+        boolean aboutFile = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (file.getFileName().equals(event.context())) {
+                aboutFile = true;
+            }
+        }
+        key.reset();
+        return aboutFile;
+    }
+
+    /**
+     * This method reads the settings of the file and applies the ones that
+     * changed since it was last read.
+     *
+     * @return False if the file could not be read or its changes were not
+     * valid
+     */
+    public synchronized boolean reload() {
+        final Map<String, String> settings;
+        try {
+            settings = ConfigLoader.loadSettings(file);
+        } catch (IOException | XMLStreamException e) {
+            LOGGER.log(Level.WARNING, "Could not read {0}, the configuration is unchanged: {1}",
+                    new Object[]{file, e.toString()});
+            rejected.incrementAndGet();
+            return false;
+        }
+
+        final Configuration current = live.get();
+        final Map<String, String> changes = new LinkedHashMap<>();
+        for (String tag : LiveConfiguration.diff(fileSettings, settings)) {
+            final String value = settings.get(tag);
+            if (Objects.equals(current.getSetting(tag), value)) {
+                continue;
+            }
+            if (RESTART_SETTINGS.contains(tag)) {
+                LOGGER.warning("<" + tag + "> was changed in " + file.getFileName()
+                        + ", it takes effect after a restart.");
+                continue;
+            }
+            changes.put(tag, value);
+        }
+        if (changes.isEmpty()) {
+            fileSettings = settings;
+            return true;
+        }
+
+        synchronized (elements) {
+            try {
+                live.update(changes);
+            } catch (IllegalArgumentException e) {
+                LOGGER.log(Level.WARNING, "Ignored the changes to {0}: {1}",
+                        new Object[]{file.getFileName(), e.getMessage()});
+                rejected.incrementAndGet();
+                return false;
+            }
+            for (Map.Entry<String, String> change : changes.entrySet()) {
+                applyToDocument(change.getKey(), change.getValue());
+            }
+        }
+        fileSettings = settings;
+        reloads.incrementAndGet();
+        LOGGER.info("Reloaded " + file.getFileName() + ": " + describe(changes));
+        return true;
+    }
+
+    /**
+     * This method keeps the config node in step with the configuration in
+     * use, so the next write of the file does not undo the change. The
+     * caller holds the document lock.
+     */
+    private void applyToDocument(final String tag, final String value) {
+        Element setting = (Element) elements.configNode.getElementsByTagName(tag).item(0);
+        if (value == null) {
+            if (setting != null) {
+                elements.configNode.removeChild(setting);
+            }
+            return;
+        }
+        if (setting == null) {
+            setting = elements.doc.createElement(tag);
+            elements.configNode.appendChild(setting);
+        }
+        setting.setTextContent(value);
+        store.record(Mutation.config(tag, value));
+    }
+
+    private static String describe(final Map<String, String> changes) {
+        final StringBuilder description = new StringBuilder();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            if (description.length() > 0) {
+                description.append(", ");
+            }
+            description.append(change.getKey()).append(" = ");
+            if (change.getValue() == null) {
+                description.append("(removed)");
+            } else if (SECRET_SETTINGS.contains(change.getKey())) {
+                description.append("(hidden)");
+            } else {
+                description.append('[').append(change.getValue()).append(']');
+            }
+        }
+        return description.toString();
+    }
+
+    /**
+     * Registers the reload metrics with the reporter.
+     *
+     * @param metrics The reporter to register with
+     */
+    public void registerMetrics(final MetricsReporter metrics) {
+        metrics.register("config.reloads", reloads::get);
+        metrics.register("config.rejected", rejected::get);
+    }
+}
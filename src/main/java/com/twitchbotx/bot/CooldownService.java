@@ -0,0 +1,297 @@
+package com.twitchbotx.bot;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * This class keeps track of command cooldowns, in memory only.
+ *
+ * There are three kinds of cooldown: a command for everybody, a command for one
+ * user, and any command for one user. Each is kept in an open addressing table
+ * of primitive longs holding the deadline on the monotonic clock, so a check
+ * creates no objects. Expired entries are not removed, they are reused or
+ * dropped when the table is rebuilt, and a table never grows past its limit.
+ */
+public final class CooldownService {
+
+    private static final Logger LOGGER = Logger.getLogger(CooldownService.class.getSimpleName());
+
+    // Twitch user ids fit in 39 bits, users without one get a key above them
+    private static final long NO_USER_ID = 1L << 39;
+
+    private static final int USER_BITS = 40;
+
+    /**
+     * An open addressing map from a non-zero long key to a deadline.
+     */
+    private static final class DeadlineTable {
+
+        private static final int MIN_CAPACITY = 64;
+
+        // How long a full table waits before trying to make room again
+        private static final long REBUILD_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+        private final int maxCapacity;
+
+        private long[] keys;
+
+        private long[] deadlines;
+
+        // slots holding a key, expired or not
+        private int used;
+
+        private long overflows;
+
+        private boolean full;
+
+        private long retryRebuildAt;
+
+        DeadlineTable(final int maxEntries) {
+            this.maxCapacity = Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, maxEntries - 1)) << 2);
+            this.keys = new long[MIN_CAPACITY];
+            this.deadlines = new long[MIN_CAPACITY];
+        }
+
+        private static int slot(final long key, final int mask) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+
+        /**
+         * @return True if the key has a deadline that has not passed
+         */
+        boolean isActive(final long key, final long now) {
+            final int mask = keys.length - 1;
+            for (int i = slot(key, mask);; i = (i + 1) & mask) {
+                final long k = keys[i];
+                if (k == 0L) {
+                    return false;
+                }
+                if (k == key) {
+                    return deadlines[i] - now > 0;
+                }
+            }
+        }
+
+        void put(final long key, final long deadline, final long now) {
+            if ((used + 1) * 2 > keys.length) {
+                if ((full && now - retryRebuildAt < 0) || !rebuild(now)) {
+                    // full of live cooldowns, letting this one go keeps memory bounded
+                    full = true;
+                    overflows++;
+                    return;
+                }
+            }
+            final int mask = keys.length - 1;
+            int reusable = -1;
+            for (int i = slot(key, mask);; i = (i + 1) & mask) {
+                final long k = keys[i];
+                if (k == key) {
+                    deadlines[i] = deadline;
+                    return;
+                }
+                if (k == 0L) {
+                    if (reusable == -1) {
+                        keys[i] = key;
+                        deadlines[i] = deadline;
+                        used++;
+                    } else {
+                        keys[reusable] = key;
+                        deadlines[reusable] = deadline;
+                    }
+                    return;
+                }
+                if (reusable == -1 && deadlines[i] - now <= 0) {
+                    // the key is not further along, an expired slot will do
+                    reusable = i;
+                }
+            }
+        }
+
+        void remove(final long key, final long now) {
+            final int mask = keys.length - 1;
+            for (int i = slot(key, mask);; i = (i + 1) & mask) {
+                final long k = keys[i];
+                if (k == 0L) {
+                    return;
+                }
+                if (k == key) {
+                    // an expired entry keeps the probe chain intact
+                    deadlines[i] = now;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Copies the live entries into a table sized for them.
+         *
+         * @return False if there is no room for another entry
+         */
+        private boolean rebuild(final long now) {
+            int live = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != 0L && deadlines[i] - now > 0) {
+                    live++;
+                }
+            }
+            int capacity = MIN_CAPACITY;
+            while ((live + 1) * 4 > capacity && capacity < maxCapacity) {
+                capacity <<= 1;
+            }
+            if ((live + 1) * 2 > capacity) {
+                retryRebuildAt = now + REBUILD_RETRY_NANOS;
+                return false;
+            }
+            full = false;
+            final long[] oldKeys = keys;
+            final long[] oldDeadlines = deadlines;
+            keys = new long[capacity];
+            deadlines = new long[capacity];
+            used = 0;
+            final int mask = capacity - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0L && oldDeadlines[i] - now > 0) {
+                    int j = slot(oldKeys[i], mask);
+                    while (keys[j] != 0L) {
+                        j = (j + 1) & mask;
+                    }
+                    keys[j] = oldKeys[i];
+                    deadlines[j] = oldDeadlines[i];
+                    used++;
+                }
+            }
+            return true;
+        }
+
+        int size() {
+            return used;
+        }
+    }
+
+    private final long globalUserCooldownNanos;
+
+    private final DeadlineTable commandCooldowns;
+
+    private final DeadlineTable userCooldowns;
+
+    private final DeadlineTable commandUserCooldowns;
+
+    // Small ids for command names, so a command and a user fit in one key
+    private final Map<String, Integer> commandIds = new HashMap<>();
+
+    /**
+     * @param globalUserCooldownMillis How long a user waits after any command
+     * before running another, 0 for no wait
+     *
+     * @param maxUsers The most users with a cooldown at the same time, past
+     * that new per-user cooldowns are not kept
+     */
+    public CooldownService(final long globalUserCooldownMillis, final int maxUsers) {
+        this.globalUserCooldownNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, globalUserCooldownMillis));
+        this.commandCooldowns = new DeadlineTable(1024);
+        this.userCooldowns = new DeadlineTable(maxUsers);
+        this.commandUserCooldowns = new DeadlineTable(maxUsers);
+    }
+
+    /**
+     * This method turns a chatter into the key for per-user cooldowns.
+     *
+     * @param userId The user-id tag, or a negative number if there is none
+     *
+     * @param username The lowercased name of the chatter
+     *
+     * @return A key that identifies the chatter
+     */
+    public static long userKey(final long userId, final String username) {
+        if (userId > 0 && userId < NO_USER_ID) {
+            return userId;
+        }
+        return NO_USER_ID | (username.hashCode() & 0xFFFFFFFFL);
+    }
+
+    /**
+     * This method checks every cooldown of a command for a user and, if none
+     * of them is running, starts them all.
+     *
+     * @param command The lowercased name of the command
+     *
+     * @param userKey The key of the user, see {@link #userKey(long, String)}
+     *
+     * @param cooldownMillis The cooldown of the command for everybody
+     *
+     * @param userCooldownMillis The cooldown of the command for this user
+     *
+     * @return True if the command may run, false if a cooldown is running
+     */
+    public synchronized boolean tryAcquire(final String command,
+            final long userKey,
+            final long cooldownMillis,
+            final long userCooldownMillis) {
+        final long now = System.nanoTime();
+        final long commandKey = commandId(command);
+        final long commandUserKey = (commandKey << USER_BITS) | userKey;
+
+        if (commandCooldowns.isActive(commandKey, now)
+                || (globalUserCooldownNanos > 0 && userCooldowns.isActive(userKey, now))
+                || (userCooldownMillis > 0 && commandUserCooldowns.isActive(commandUserKey, now))) {
+            return false;
+        }
+
+        if (cooldownMillis > 0) {
+            commandCooldowns.put(commandKey, now + TimeUnit.MILLISECONDS.toNanos(cooldownMillis), now);
+        }
+        if (globalUserCooldownNanos > 0) {
+            userCooldowns.put(userKey, now + globalUserCooldownNanos, now);
+        }
+        if (userCooldownMillis > 0) {
+            commandUserCooldowns.put(commandUserKey, now + TimeUnit.MILLISECONDS.toNanos(userCooldownMillis), now);
+        }
+        return true;
+    }
+
+    /**
+     * This method ends the cooldown of a command for everybody, such as when
+     * the cooldown was changed.
+     *
+     * @param command The lowercased name of the command
+     */
+    public synchronized void reset(final String command) {
+        final Integer id = commandIds.get(command);
+        if (id != null) {
+            commandCooldowns.remove(id, System.nanoTime());
+        }
+    }
+
+    private int commandId(final String command) {
+        final Integer id = commandIds.get(command);
+        if (id != null) {
+            return id;
+        }
+        if (commandIds.size() >= (1 << (63 - USER_BITS)) - 1) {
+            // never happens with a sane number of commands, share the last id
+            LOGGER.warning("Too many commands for cooldowns, " + command + " shares an id.");
+            return commandIds.size();
+        }
+        final int next = commandIds.size() + 1;
+        commandIds.put(command, next);
+        return next;
+    }
+
+    /**
+     * @return The number of cooldown entries held, including expired ones
+     */
+    public synchronized int getEntryCount() {
+        return commandCooldowns.size() + userCooldowns.size() + commandUserCooldowns.size();
+    }
+
+    /**
+     * @return How many per-user cooldowns were not kept because the tables
+     * were full
+     */
+    public synchronized long getOverflowCount() {
+        return commandCooldowns.overflows + userCooldowns.overflows + commandUserCooldowns.overflows;
+    }
+}
@@ -0,0 +1,253 @@
+package com.twitchbotx.bot;
+
+import java.util.Arrays;
+
+/**
+ * This class finds the same message, or nearly the same, posted by many users
+ * in a short time, the way a bot raid spams a channel.
+ *
+ * Each message gets a SimHash fingerprint of its folded text, messages a few
+ * words apart have fingerprints a few bits apart. Recent fingerprints are kept
+ * in a fixed number of clusters, indexed by seven bands of their bits: two
+ * fingerprints at most six bits apart share a band, so a message finds its
+ * cluster with seven lookups whatever the number of clusters. A band points
+ * to the cluster that last had its bits, the clusters of a raid keep theirs
+ * as long as it goes on. When the table is full the oldest cluster is
+ * reused. Everything is kept in primitive arrays, so a check creates no
+ * objects.
+ */
+public final class DuplicateDetector {
+
+    /**
+     * The most distinct users a raid can take to be caught.
+     */
+    public static final int MAX_USERS = 32;
+
+    private static final int BANDS = 7;
+
+    // Fingerprints this many bits apart are the same message, one less than
+    // the number of bands
+    private static final int MAX_DISTANCE = BANDS - 1;
+
+    // The widest band, the bands take 9 or 10 bits
+    private static final int BAND_BITS = (64 + BANDS - 1) / BANDS;
+
+    private static final int SHINGLE_LENGTH = 4;
+
+    // Long messages are fingerprinted from their beginning
+    private static final int MAX_SHINGLES = 512;
+
+    // Users tracked per cluster, one more than it takes to be a raid
+    private static final int TRACKED = MAX_USERS + 1;
+
+    private final int capacity;
+
+    private final long[] fingerprints;
+
+    private final long[] lastSeen;
+
+    private final boolean[] raids;
+
+    private final int[] userCounts;
+
+    // The users of cluster c and when they posted, from c * TRACKED
+    private final int[] users;
+
+    private final long[] postedAt;
+
+    // The cluster of each band value plus one, zero if there is none
+    private final int[][] bands = new int[BANDS][1 << BAND_BITS];
+
+    // The cluster reused next
+    private int next;
+
+    private long caught;
+
+    private long raidCount;
+
+    /**
+     * @param capacity The number of messages remembered at once
+     */
+    public DuplicateDetector(final int capacity) {
+        this.capacity = capacity;
+        this.fingerprints = new long[capacity];
+        this.lastSeen = new long[capacity];
+        this.raids = new boolean[capacity];
+        this.userCounts = new int[capacity];
+        this.users = new int[capacity * TRACKED];
+        this.postedAt = new long[capacity * TRACKED];
+    }
+
+    /**
+     * This method computes the SimHash fingerprint of a message from the
+     * shingles of four characters of its text, the whitespace left out.
+     *
+     * @param text The folded message
+     *
+     * @param weights The memory of the computation, 64 ints
+     *
+     * @return The fingerprint
+     */
+    public static long fingerprint(final CharSequence text, final int[] weights) {
+        Arrays.fill(weights, 0);
+        long shingle = 0L;
+        int read = 0;
+        int shingles = 0;
+        for (int i = 0; i < text.length() && shingles < MAX_SHINGLES; i++) {
+            final char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                continue;
+            }
+            // four characters fill the 64 bits of a shingle
+            shingle = shingle << 16 | c;
+            if (++read < SHINGLE_LENGTH) {
+                continue;
+            }
+            final long hash = mix(shingle);
+            for (int bit = 0; bit < 64; bit++) {
+                weights[bit] += (int) (hash >>> bit & 1L) * 2 - 1;
+            }
+            shingles++;
+        }
+        long fingerprint = 0L;
+        for (int bit = 0; bit < 64; bit++) {
+            if (weights[bit] > 0) {
+                fingerprint |= 1L << bit;
+            }
+        }
+        return fingerprint;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+        z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return z ^ (z >>> 33);
+    }
+
+    /**
+     * This method records a message and tells whether it is part of a raid,
+     * more than the given number of distinct users posting it within the
+     * window. Once a message is a raid every user posting it is caught,
+     * until nobody posted it for a whole window.
+     *
+     * @param username The user who posted it
+     *
+     * @param fingerprint The fingerprint of the message
+     *
+     * @param maxUsers The most users that may post it, up to MAX_USERS
+     *
+     * @param windowNanos How far back posts are counted
+     *
+     * @return True if the message is part of a raid
+     */
+    public synchronized boolean check(final String username,
+            final long fingerprint,
+            final int maxUsers,
+            final long windowNanos) {
+        final long now = System.nanoTime();
+        int cluster = find(fingerprint, now, windowNanos);
+        if (cluster < 0) {
+            cluster = add(fingerprint);
+        }
+        index(cluster, fingerprint);
+        lastSeen[cluster] = now;
+        if (raids[cluster]) {
+            caught++;
+            return true;
+        }
+        final int user = username.hashCode();
+        final int base = cluster * TRACKED;
+        int count = 0;
+        boolean found = false;
+        for (int i = 0; i < userCounts[cluster]; i++) {
+            // forget the posts that left the window
+            if (now - postedAt[base + i] > windowNanos) {
+                continue;
+            }
+            users[base + count] = users[base + i];
+            postedAt[base + count] = postedAt[base + i];
+            if (users[base + count] == user) {
+                postedAt[base + count] = now;
+                found = true;
+            }
+            count++;
+        }
+        if (!found && count < TRACKED) {
+            users[base + count] = user;
+            postedAt[base + count] = now;
+            count++;
+        }
+        userCounts[cluster] = count;
+        if (count > Math.min(maxUsers, MAX_USERS)) {
+            raids[cluster] = true;
+            raidCount++;
+            caught++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return The cluster of a recent fingerprint at most MAX_DISTANCE bits
+     * apart, or -1
+     */
+    private int find(final long fingerprint, final long now, final long windowNanos) {
+        for (int b = 0; b < BANDS; b++) {
+            final int cluster = bands[b][band(fingerprint, b)] - 1;
+            if (cluster >= 0
+                    && now - lastSeen[cluster] <= windowNanos
+                    && Long.bitCount(fingerprints[cluster] ^ fingerprint) <= MAX_DISTANCE) {
+                return cluster;
+            }
+        }
+        return -1;
+    }
+
+    private int add(final long fingerprint) {
+        final int cluster = next;
+        next = (next + 1) % capacity;
+        fingerprints[cluster] = fingerprint;
+        raids[cluster] = false;
+        userCounts[cluster] = 0;
+        return cluster;
+    }
+
+    /**
+     * This method points the bands of a fingerprint to its cluster.
+     */
+    private void index(final int cluster, final long fingerprint) {
+        for (int b = 0; b < BANDS; b++) {
+            bands[b][band(fingerprint, b)] = cluster + 1;
+        }
+    }
+
+    private static int band(final long fingerprint, final int band) {
+        final int start = band * 64 / BANDS;
+        final int end = (band + 1) * 64 / BANDS;
+        return (int) (fingerprint >>> start & ((1L << (end - start)) - 1));
+    }
+
+    /**
+     * @return The messages caught as part of a raid
+     */
+    public synchronized long getCaughtCount() {
+        return caught;
+    }
+
+    /**
+     * @return The messages that became a raid
+     */
+    public synchronized long getRaidCount() {
+        return raidCount;
+    }
+
+    /**
+     * Registers the duplicate metrics with the reporter.
+     *
+     * @param metrics The reporter to register with
+     */
+    public void registerMetrics(final MetricsReporter metrics) {
+        metrics.register("duplicates.raids", this::getRaidCount);
+        metrics.register("duplicates.caught", this::getCaughtCount);
+    }
+}
@@ -0,0 +1,126 @@
+package com.twitchbotx.bot;
+
+import org.w3c.dom.Element;
+
+/**
+ * This class is an immutable filter read from the XML document, a phrase that
+ * gets a chatter timed out.
+ *
+ * A filter with type="regex" is a pattern instead, see {@link RegexCompiler}
+ * for the syntax. A filter with type="username" is a pattern the whole
+ * username of a chatter is checked against.
+ *
+ * Phrases are found in the message folded by {@link TextNormalizer}, a phrase
+ * is folded the same way. Patterns see the message as it was posted, so a
+ * pattern can tell capitals apart.
+ */
+public final class Filter {
+
+    /**
+     * What a filter checks.
+     */
+    public enum Type {
+        // A phrase anywhere in a message
+        PHRASE,
+        // A pattern anywhere in a message
+        REGEX,
+        // A pattern matching the whole username
+        USERNAME;
+
+        /**
+         * @param name The type attribute of a filter node
+         *
+         * @return The type, a phrase if the attribute is empty or unknown
+         */
+        public static Type fromName(final String name) {
+            if ("regex".equalsIgnoreCase(name)) {
+                return REGEX;
+            }
+            if ("username".equalsIgnoreCase(name)) {
+                return USERNAME;
+            }
+            return PHRASE;
+        }
+
+        /**
+         * @return The type attribute of a filter node of this type
+         */
+        public String getName() {
+            return name().toLowerCase();
+        }
+    }
+
+    private final String name;
+
+    private final String reason;
+
+    private final boolean disabled;
+
+    private final Type type;
+
+    /**
+     * @param name The phrase that is filtered
+     *
+     * @param reason The reason given with the timeout
+     *
+     * @param disabled True if the filter does nothing
+     */
+    public Filter(final String name, final String reason, final boolean disabled) {
+        this(name, reason, disabled, Type.PHRASE);
+    }
+
+    /**
+     * @param name The phrase or pattern that is filtered
+     *
+     * @param reason The reason given with the timeout
+     *
+     * @param disabled True if the filter does nothing
+     *
+     * @param type What the filter checks
+     */
+    public Filter(final String name, final String reason, final boolean disabled, final Type type) {
+        this.name = name;
+        this.reason = reason;
+        this.disabled = disabled;
+        this.type = type;
+    }
+
+    /**
+     * This method reads a filter node of the XML document.
+     *
+     * @param e The filter node
+     *
+     * @return The filter
+     */
+    public static Filter fromElement(final Element e) {
+        return new Filter(
+                e.getAttribute("name"),
+                e.getAttribute("reason"),
+                Boolean.parseBoolean(e.getAttribute("disabled")),
+                Type.fromName(e.getAttribute("type")));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    public boolean isDisabled() {
+        return disabled;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    @Override
+    public String toString() {
+        return "Filter{" + "name=" + name
+                + ", reason=" + reason
+                + ", disabled=" + disabled
+                + ", type=" + type + '}';
+    }
+}
@@ -0,0 +1,405 @@
+package com.twitchbotx.bot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * This class finds the filters in a chat message, an Aho-Corasick automaton
+ * of every enabled filter phrase, and a {@link RegexFilterSet} of every
+ * enabled regex filter. The username filters are a second
+ * {@link RegexFilterSet}.
+ *
+ * A message is scanned once whatever the number of filters, instead of once
+ * per filter. It never changes once built, so every shard can use it without
+ * a lock, a changed set of filters builds a new matcher.
+ */
+public final class FilterMatcher {
+
+    private static final Logger LOGGER = Logger.getLogger(FilterMatcher.class.getSimpleName());
+
+    /**
+     * The username rule the bot always has, usernames made of digits that
+     * spam bots are created with.
+     */
+    public static final Filter BANNED_USERNAME = new Filter("(\\d{7}([A-z]{1})\\d{7}|\\d{14})",
+            "Username caught by filter", false, Filter.Type.USERNAME);
+
+    public static final FilterMatcher EMPTY = build(Collections.<Filter>emptyList());
+
+    // Used for states that end no filter
+    private static final int NO_FILTER = Integer.MAX_VALUE;
+
+    // The enabled filters, in the order of the document
+    private final Filter[] filters;
+
+    // The regex filters, and the index in filters of each of their patterns
+    private final RegexFilterSet regexes;
+
+    private final int[] regexFilters;
+
+    // The username filters, the document ones first
+    private final Filter[] usernameFilters;
+
+    private final RegexFilterSet usernames;
+
+    // The transitions of state s are edgeChars and edgeTargets from
+    // edgeStart[s] up to edgeStart[s + 1], sorted by character
+    private final int[] edgeStart;
+
+    private final char[] edgeChars;
+
+    private final int[] edgeTargets;
+
+    // The longest proper suffix of a state that is also a state
+    private final int[] fail;
+
+    // The first filter, in the order of the document, ending in a state or in
+    // one of its suffixes
+    private final int[] firstFilter;
+
+    private FilterMatcher(final Filter[] filters,
+            final RegexFilterSet regexes,
+            final int[] regexFilters,
+            final Filter[] usernameFilters,
+            final RegexFilterSet usernames,
+            final int[] edgeStart,
+            final char[] edgeChars,
+            final int[] edgeTargets,
+            final int[] fail,
+            final int[] firstFilter) {
+        this.filters = filters;
+        this.regexes = regexes;
+        this.regexFilters = regexFilters;
+        this.usernameFilters = usernameFilters;
+        this.usernames = usernames;
+        this.edgeStart = edgeStart;
+        this.edgeChars = edgeChars;
+        this.edgeTargets = edgeTargets;
+        this.fail = fail;
+        this.firstFilter = firstFilter;
+    }
+
+    /**
+     * This method builds a matcher of the enabled filters.
+     *
+     * @param all The filters, in the order of the document
+     *
+     * @return The matcher
+     */
+    public static FilterMatcher build(final List<Filter> all) {
+        return build(all, new ConcurrentHashMap<>());
+    }
+
+    /**
+     * This method builds a matcher of the enabled filters. Phrases are folded
+     * by {@link TextNormalizer}. Filters with an empty phrase are left out,
+     * they would match every message, and so are
+     * regex and username filters that do not compile. The username filters
+     * are followed by {@link #BANNED_USERNAME}.
+     *
+     * @param all The filters, in the order of the document
+     *
+     * @param costs The steps taken for each pattern, kept from one matcher to
+     * the next, patterns that are no longer filtered are removed from it
+     *
+     * @return The matcher
+     */
+    public static FilterMatcher build(final List<Filter> all, final Map<String, LongAdder> costs) {
+        final List<Filter> enabled = new ArrayList<>(all.size());
+        // the folded phrase of each enabled filter, null for patterns
+        final List<String> phrases = new ArrayList<>(all.size());
+        final RegexCompiler compiler = new RegexCompiler();
+        final List<LongAdder> regexCosts = new ArrayList<>();
+        final List<Integer> regexFilters = new ArrayList<>();
+        final RegexCompiler usernameCompiler = new RegexCompiler();
+        final List<LongAdder> usernameCosts = new ArrayList<>();
+        final List<Filter> usernameFilters = new ArrayList<>();
+        final Set<String> patterns = new HashSet<>();
+        final List<Filter> withBuiltIn = new ArrayList<>(all);
+        withBuiltIn.add(BANNED_USERNAME);
+        for (Filter filter : withBuiltIn) {
+            if (filter.isDisabled() || filter.getName().isEmpty()) {
+                continue;
+            }
+            switch (filter.getType()) {
+                case REGEX:
+                    if (!compile(compiler, filter.getName(), filter)) {
+                        continue;
+                    }
+                    regexCosts.add(costs.computeIfAbsent(filter.getName(), pattern -> new LongAdder()));
+                    regexFilters.add(enabled.size());
+                    patterns.add(filter.getName());
+                    break;
+                case USERNAME:
+                    if (compile(usernameCompiler, wholeInput(filter.getName()), filter)) {
+                        usernameCosts.add(costs.computeIfAbsent(filter.getName(), pattern -> new LongAdder()));
+                        usernameFilters.add(filter);
+                        patterns.add(filter.getName());
+                    }
+                    continue;
+                default:
+                    final String phrase = TextNormalizer.normalize(filter.getName());
+                    if (phrase.isEmpty()) {
+                        continue;
+                    }
+                    enabled.add(filter);
+                    phrases.add(phrase);
+                    continue;
+            }
+            enabled.add(filter);
+            phrases.add(null);
+        }
+        costs.keySet().retainAll(patterns);
+
+        // the trie, one map of transitions per state
+        final List<Map<Character, Integer>> trie = new ArrayList<>();
+        final List<Integer> ends = new ArrayList<>();
+        trie.add(new HashMap<>());
+        ends.add(NO_FILTER);
+        int edges = 0;
+        for (int f = 0; f < enabled.size(); f++) {
+            final String phrase = phrases.get(f);
+            if (phrase == null) {
+                continue;
+            }
+            int state = 0;
+            for (int i = 0; i < phrase.length(); i++) {
+                final Integer next = trie.get(state).get(phrase.charAt(i));
+                if (next != null) {
+                    state = next;
+                    continue;
+                }
+                trie.get(state).put(phrase.charAt(i), trie.size());
+                state = trie.size();
+                trie.add(new HashMap<>());
+                ends.add(NO_FILTER);
+                edges++;
+            }
+            ends.set(state, Math.min(ends.get(state), f));
+        }
+
+        // flatten the trie, states are numbered breadth first from here on so
+        // a state is always numbered after its suffixes
+        final int states = trie.size();
+        final int[] order = new int[states];
+        final int[] edgeStart = new int[states + 1];
+        final char[] edgeChars = new char[edges];
+        final int[] edgeTargets = new int[edges];
+        int queued = 1;
+        int edge = 0;
+        for (int n = 0; n < states; n++) {
+            final Map<Character, Integer> transitions = trie.get(order[n]);
+            final Character[] chars = transitions.keySet().toArray(new Character[0]);
+            Arrays.sort(chars);
+            edgeStart[n] = edge;
+            for (Character c : chars) {
+                final int child = transitions.get(c);
+                order[queued] = child;
+                edgeChars[edge] = c;
+                edgeTargets[edge] = queued++;
+                edge++;
+            }
+        }
+        edgeStart[states] = edge;
+
+        final int[] regexIndexes = new int[regexFilters.size()];
+        for (int i = 0; i < regexIndexes.length; i++) {
+            regexIndexes[i] = regexFilters.get(i);
+        }
+        final FilterMatcher matcher = new FilterMatcher(enabled.toArray(new Filter[0]),
+                compiler.size() == 0 ? null : compiler.build(regexCosts.toArray(new LongAdder[0])),
+                regexIndexes,
+                usernameFilters.toArray(new Filter[0]),
+                usernameCompiler.build(usernameCosts.toArray(new LongAdder[0])),
+                edgeStart, edgeChars, edgeTargets, new int[states], new int[states]);
+        for (int n = 0; n < states; n++) {
+            matcher.firstFilter[n] = ends.get(order[n]);
+        }
+        for (int n = 0; n < states; n++) {
+            for (int e = edgeStart[n]; e < edgeStart[n + 1]; e++) {
+                final int child = edgeTargets[e];
+                final int suffix = n == 0 ? 0 : matcher.step(matcher.fail[n], edgeChars[e]);
+                matcher.fail[child] = suffix;
+                matcher.firstFilter[child] = Math.min(matcher.firstFilter[child], matcher.firstFilter[suffix]);
+            }
+        }
+        return matcher;
+    }
+
+    private static boolean compile(final RegexCompiler compiler, final String pattern, final Filter filter) {
+        try {
+            compiler.add(pattern);
+            return true;
+        } catch (PatternSyntaxException e) {
+            LOGGER.log(Level.WARNING, "Filter [{0}] left out: {1}",
+                    new Object[]{filter.getName(), e.getDescription()});
+            return false;
+        }
+    }
+
+    /**
+     * This method anchors a username pattern, a username filter has to match
+     * the whole username like Matcher.matches().
+     *
+     * @param pattern The pattern of the filter
+     *
+     * @return The pattern that is compiled for it
+     */
+    static String wholeInput(final String pattern) {
+        if (pattern.startsWith("(?i)")) {
+            return "(?i)^(?:" + pattern.substring(4) + ")$";
+        }
+        return "^(?:" + pattern + ")$";
+    }
+
+    /**
+     * This method finds the first filter, in the order of the document, whose
+     * phrase or pattern is in a message, without a time budget.
+     *
+     * @param folded The chat message, folded by {@link TextNormalizer}
+     *
+     * @param message The chat message as it was posted
+     *
+     * @return The filter, or null if the message has none of them
+     */
+    public Filter match(final CharSequence folded, final CharSequence message) {
+        return match(folded, message, new RegexFilterSet.Search(), Long.MAX_VALUE);
+    }
+
+    /**
+     * This method finds the first filter, in the order of the document, whose
+     * phrase or pattern is in a message. Only the patterns before the first
+     * phrase found are searched for.
+     *
+     * @param folded The chat message, folded by {@link TextNormalizer}, the
+     * phrases are found in it
+     *
+     * @param message The chat message as it was posted, the patterns are
+     * searched in it
+     *
+     * @param search The memory for searching the patterns, it tells whether
+     * the search ran out of time
+     *
+     * @param deadline The System.nanoTime() at which searching the patterns
+     * gives up
+     *
+     * @return The filter, or null if the message has none of them
+     */
+    public Filter match(final CharSequence folded,
+            final CharSequence message,
+            final RegexFilterSet.Search search,
+            final long deadline) {
+        int first = NO_FILTER;
+        if (fail.length > 1) {
+            int state = 0;
+            for (int i = 0; i < folded.length(); i++) {
+                state = step(state, folded.charAt(i));
+                if (firstFilter[state] < first) {
+                    first = firstFilter[state];
+                    if (first == 0) {
+                        break;
+                    }
+                }
+            }
+        }
+        if (regexes != null) {
+            int limit = Arrays.binarySearch(regexFilters, first);
+            if (limit < 0) {
+                limit = -limit - 1;
+            }
+            final int found = regexes.find(message, search, limit, deadline);
+            if (found >= 0) {
+                first = regexFilters[found];
+            }
+        }
+        return first == NO_FILTER ? null : filters[first];
+    }
+
+    /**
+     * This method follows a character from a state, falling back to shorter
+     * suffixes until one has a transition for it.
+     */
+    private int step(int state, final char c) {
+        for (;;) {
+            final int target = transition(state, c);
+            if (target >= 0) {
+                return target;
+            }
+            if (state == 0) {
+                return 0;
+            }
+            state = fail[state];
+        }
+    }
+
+    private int transition(final int state, final char c) {
+        int low = edgeStart[state];
+        int high = edgeStart[state + 1] - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final char found = edgeChars[mid];
+            if (found < c) {
+                low = mid + 1;
+            } else if (found > c) {
+                high = mid - 1;
+            } else {
+                return edgeTargets[mid];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The number of enabled filters
+     */
+    public int size() {
+        return filters.length;
+    }
+
+    /**
+     * This method finds the first username filter that matches a whole
+     * username.
+     *
+     * @param username The username of a chatter
+     *
+     * @param search The memory for searching the patterns
+     *
+     * @return The filter, or null if none of them match
+     */
+    public Filter matchUsername(final CharSequence username, final RegexFilterSet.Search search) {
+        final int found = usernames.find(username, search, usernameFilters.length, Long.MAX_VALUE);
+        return found < 0 ? null : usernameFilters[found];
+    }
+
+    /**
+     * @return The number of username filters, with the built-in one
+     */
+    public int getUsernameCount() {
+        return usernameFilters.length;
+    }
+
+    /**
+     * @return The number of enabled regex filters
+     */
+    public int getRegexCount() {
+        return regexes == null ? 0 : regexes.size();
+    }
+
+    /**
+     * @return The number of states of the automaton
+     */
+    public int getStateCount() {
+        return fail.length;
+    }
+}
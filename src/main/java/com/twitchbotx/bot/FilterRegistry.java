@@ -0,0 +1,224 @@
+package com.twitchbotx.bot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * This class holds the filter matcher every shard shares.
+ *
+ * The matcher is built from the filters of the XML document at start up.
+ * When a filter is added, deleted or changed, a new matcher is built on a
+ * background thread and swapped in, messages are checked against the old one
+ * until then. Changes made while a matcher is built are folded into a single
+ * rebuild.
+ *
+ * The steps taken for each regex filter are counted across rebuilds, and a
+ * message whose patterns take longer than the time budget is let through and
+ * counted.
+ *
+ * The username filters are cached per user by each shard, the caches count
+ * their hits and misses here.
+ */
+public final class FilterRegistry {
+
+    private static final Logger LOGGER = Logger.getLogger(FilterRegistry.class.getSimpleName());
+
+    private final AtomicReference<FilterMatcher> matcher = new AtomicReference<>(FilterMatcher.EMPTY);
+
+    // The latest filters waiting to be built, null if there are none
+    private final AtomicReference<List<Filter>> pending = new AtomicReference<>();
+
+    private final ExecutorService builder = Executors.newSingleThreadExecutor(r -> {
+        final Thread thread = new Thread(r, "filter-builder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicLong rebuilds = new AtomicLong();
+
+    // Steps taken for each regex filter, by pattern
+    private final Map<String, LongAdder> regexCosts = new ConcurrentHashMap<>();
+
+    private final LongAdder budgetExceeded = new LongAdder();
+
+    private volatile long lastBuildMillis;
+
+    private final LongAdder usernameHits = new LongAdder();
+
+    private final LongAdder usernameMisses = new LongAdder();
+
+    private final LongAdder usernameInvalidations = new LongAdder();
+
+    /**
+     * This method builds the matcher from the filters of the XML document
+     * right away, the caller holds the document lock.
+     *
+     * @param elements The XML elements
+     */
+    public void load(final ConfigParser.Elements elements) {
+        matcher.set(build(readFilters(elements)));
+        LOGGER.info("Loaded " + matcher.get().size() + " filters.");
+    }
+
+    /**
+     * @return The current matcher, it never changes once returned
+     */
+    public FilterMatcher getMatcher() {
+        return matcher.get();
+    }
+
+    /**
+     * This method finds the first filter, in the order of the document, in a
+     * message.
+     *
+     * @param folded The chat message folded by {@link TextNormalizer}, for the
+     * phrases
+     *
+     * @param message The chat message as it was posted, for the patterns
+     *
+     * @param search The memory of the search, each shard has its own
+     *
+     * @param budgetNanos How long the regex filters may take
+     *
+     * @return The filter, or null if the message has none of them or the
+     * regex filters ran out of time before finding one
+     */
+    public Filter match(final CharSequence folded,
+            final CharSequence message,
+            final RegexFilterSet.Search search,
+            final long budgetNanos) {
+        final Filter filter = matcher.get().match(folded, message, search, System.nanoTime() + budgetNanos);
+        if (search.isBudgetExceeded()) {
+            budgetExceeded.increment();
+            LOGGER.fine("Regex filters ran out of time after " + search.getSteps() + " steps.");
+        }
+        return filter;
+    }
+
+    /**
+     * This method creates a cache of username filter verdicts for one shard,
+     * counted in the metrics of this registry.
+     *
+     * @param capacity The most users a verdict is kept for
+     *
+     * @return The cache
+     */
+    public UsernameVerdictCache newUsernameCache(final int capacity) {
+        return new UsernameVerdictCache(capacity, usernameHits, usernameMisses, usernameInvalidations);
+    }
+
+    /**
+     * This method finds the username filter a user matches, from the cache
+     * while the filters are unchanged.
+     *
+     * @param username The username of the chatter
+     *
+     * @param cache The cache of the shard
+     *
+     * @param search The memory of the search, each shard has its own
+     *
+     * @return The filter, or null if none of them match
+     */
+    public Filter matchUsername(final String username,
+            final UsernameVerdictCache cache,
+            final RegexFilterSet.Search search) {
+        return cache.get(username, matcher.get(), search);
+    }
+
+    /**
+     * This method builds a new matcher in the background from the filters of
+     * the XML document as they are now, the caller holds the document lock.
+     *
+     * @param elements The XML elements
+     */
+    public void rebuild(final ConfigParser.Elements elements) {
+        if (pending.getAndSet(readFilters(elements)) != null) {
+            // a rebuild is queued already, it builds the latest filters
+            return;
+        }
+        try {
+            builder.execute(this::buildPending);
+        } catch (RuntimeException e) {
+            // shutting down, messages are checked against the old filters
+            pending.set(null);
+        }
+    }
+
+    private void buildPending() {
+        final List<Filter> filters = pending.getAndSet(null);
+        if (filters != null) {
+            matcher.set(build(filters));
+            rebuilds.incrementAndGet();
+        }
+    }
+
+    private FilterMatcher build(final List<Filter> filters) {
+        final long start = System.nanoTime();
+        final FilterMatcher built = FilterMatcher.build(filters, regexCosts);
+        lastBuildMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        return built;
+    }
+
+    /**
+     * This method copies the filters, the caller holds the document lock.
+     *
+     * @param elements The XML elements
+     *
+     * @return The filters, in the order of the document
+     */
+    public static List<Filter> readFilters(final ConfigParser.Elements elements) {
+        return new ArrayList<>(elements.filterList);
+    }
+
+    /**
+     * Registers the filter metrics with the reporter.
+     *
+     * @param metrics The reporter to register with
+     */
+    public void registerMetrics(final MetricsReporter metrics) {
+        metrics.register("filters.enabled", () -> matcher.get().size());
+        metrics.register("filters.states", () -> matcher.get().getStateCount());
+        metrics.register("filters.rebuilds", rebuilds::get);
+        metrics.register("filters.buildMillis", () -> lastBuildMillis);
+        metrics.register("filters.regex", () -> matcher.get().getRegexCount());
+        metrics.register("filters.regexSteps", () -> {
+            long steps = 0L;
+            for (LongAdder cost : regexCosts.values()) {
+                steps += cost.sum();
+            }
+            return steps;
+        });
+        metrics.register("filters.regexBudgetExceeded", budgetExceeded::sum);
+        metrics.register("filters.costliestRegex", this::getCostliestRegex);
+        metrics.register("filters.username", () -> matcher.get().getUsernameCount());
+        metrics.register("usernames.cacheHits", usernameHits::sum);
+        metrics.register("usernames.cacheMisses", usernameMisses::sum);
+        metrics.register("usernames.cacheInvalidations", usernameInvalidations::sum);
+    }
+
+    /**
+     * @return The regex filter that took the most steps and the number of
+     * steps, or an empty string if there are none
+     */
+    public String getCostliestRegex() {
+        String costliest = "";
+        long most = -1L;
+        for (Map.Entry<String, LongAdder> cost : regexCosts.entrySet()) {
+            final long steps = cost.getValue().sum();
+            if (steps > most) {
+                most = steps;
+                costliest = cost.getKey() + " (" + steps + " steps)";
+            }
+        }
+        return costliest;
+    }
+}
@@ -0,0 +1,295 @@
+package com.twitchbotx.bot;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class counts how many messages, and how many characters, each user
+ * posted recently, to catch users flooding the chat.
+ *
+ * Each user has two counts for two windows in a row, the current one and the
+ * one before it. The count over the last window is the current count plus the
+ * part of the previous count that is still in it, so a window slides without
+ * remembering every message. The counts are kept in an open addressing table
+ * of primitive arrays keyed by the user key, a check creates no objects. Idle
+ * users are not removed, they are dropped when the table is rebuilt, and a
+ * table never grows past its limit.
+ *
+ * Each shard has its own detector, the messages of a user always land on the
+ * same shard. It is not safe for concurrent use.
+ */
+public final class FloodDetector {
+
+    /**
+     * What is done to a user who goes over a limit.
+     */
+    public enum Action {
+        // Nothing, the limit is off
+        NONE,
+        // Asked in chat to slow down
+        WARN,
+        // Timed out for a second, which deletes their messages
+        PURGE,
+        // Timed out for the configured time
+        TIMEOUT;
+
+        /**
+         * @param name The name of the action, in any case
+         *
+         * @return The action
+         *
+         * @throws IllegalArgumentException If there is no action by that name
+         */
+        public static Action fromName(final String name) {
+            for (Action action : values()) {
+                if (action.name().equalsIgnoreCase(name.trim())) {
+                    return action;
+                }
+            }
+            throw new IllegalArgumentException("Unknown action: " + name);
+        }
+    }
+
+    /**
+     * The limit a user went over.
+     */
+    public enum Limit {
+        MESSAGES,
+        CHARACTERS
+    }
+
+    /**
+     * The counts of every shard, for the metrics.
+     */
+    public static final class Stats {
+
+        private final LongAdder messages = new LongAdder();
+
+        private final LongAdder characters = new LongAdder();
+
+        private final LongAdder overflows = new LongAdder();
+
+        /**
+         * Registers the flood metrics with the reporter.
+         *
+         * @param metrics The reporter to register with
+         */
+        public void registerMetrics(final MetricsReporter metrics) {
+            metrics.register("flood.messageLimit", messages::sum);
+            metrics.register("flood.characterLimit", characters::sum);
+            metrics.register("flood.overflows", overflows::sum);
+        }
+    }
+
+    private static final int MIN_CAPACITY = 64;
+
+    // How long a full table waits before trying to make room again
+    private static final long REBUILD_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Stats stats;
+
+    private final int maxCapacity;
+
+    private long[] keys;
+
+    // When the current window of each user started
+    private long[] starts;
+
+    private int[] messages;
+
+    private int[] previousMessages;
+
+    private int[] characters;
+
+    private int[] previousCharacters;
+
+    // slots holding a key, idle or not
+    private int used;
+
+    private boolean full;
+
+    private long retryRebuildAt;
+
+    /**
+     * @param maxUsers The most users counted at the same time, past it new
+     * users are not counted until others are idle
+     *
+     * @param stats The counts shared with the other shards
+     */
+    public FloodDetector(final int maxUsers, final Stats stats) {
+        this.stats = stats;
+        this.maxCapacity = Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, maxUsers - 1)) << 2);
+        allocate(MIN_CAPACITY);
+    }
+
+    private void allocate(final int capacity) {
+        keys = new long[capacity];
+        starts = new long[capacity];
+        messages = new int[capacity];
+        previousMessages = new int[capacity];
+        characters = new int[capacity];
+        previousCharacters = new int[capacity];
+        used = 0;
+    }
+
+    private static int slot(final long key, final int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * This method counts a message and tells whether the user went over a
+     * limit within the window. The counts of a user who goes over a limit
+     * start again from zero, so the action is not repeated for every message
+     * that follows.
+     *
+     * @param userKey The key of the user, see {@link CooldownService#userKey}
+     *
+     * @param length The number of characters of the message
+     *
+     * @param maxMessages The most messages in a window, 0 for no limit
+     *
+     * @param maxCharacters The most characters in a window, 0 for no limit
+     *
+     * @param windowNanos The length of the window
+     *
+     * @return The limit the user went over, or null
+     */
+    public Limit check(final long userKey,
+            final int length,
+            final int maxMessages,
+            final int maxCharacters,
+            final long windowNanos) {
+        final long now = System.nanoTime();
+        final int i = find(userKey == 0L ? 1L : userKey, now, windowNanos);
+        if (i < 0) {
+            return null;
+        }
+        final long elapsed = now - starts[i];
+        if (elapsed >= 2 * windowNanos) {
+            previousMessages[i] = 0;
+            previousCharacters[i] = 0;
+            messages[i] = 0;
+            characters[i] = 0;
+            starts[i] = now;
+        } else if (elapsed >= windowNanos) {
+            previousMessages[i] = messages[i];
+            previousCharacters[i] = characters[i];
+            messages[i] = 0;
+            characters[i] = 0;
+            starts[i] += windowNanos;
+        }
+        messages[i]++;
+        characters[i] += length;
+
+        // the share of the previous window still inside the last window
+        final long left = windowNanos - (now - starts[i]);
+        Limit limit = null;
+        if (maxMessages > 0 && messages[i] + previousMessages[i] * left / windowNanos > maxMessages) {
+            limit = Limit.MESSAGES;
+            stats.messages.increment();
+        } else if (maxCharacters > 0
+                && characters[i] + previousCharacters[i] * left / windowNanos > maxCharacters) {
+            limit = Limit.CHARACTERS;
+            stats.characters.increment();
+        }
+        if (limit != null) {
+            previousMessages[i] = 0;
+            previousCharacters[i] = 0;
+            messages[i] = 0;
+            characters[i] = 0;
+        }
+        return limit;
+    }
+
+    /**
+     * @return The slot of the user, added if needed, or -1 if the table is
+     * full
+     */
+    private int find(final long key, final long now, final long windowNanos) {
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        for (;; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return i;
+            }
+            if (keys[i] == 0L) {
+                break;
+            }
+        }
+        if ((used + 1) * 2 > keys.length) {
+            if ((full && now - retryRebuildAt < 0) || !rebuild(now, windowNanos)) {
+                full = true;
+                stats.overflows.increment();
+                return -1;
+            }
+            mask = keys.length - 1;
+            for (i = slot(key, mask); keys[i] != 0L; i = (i + 1) & mask) {
+                // find the free slot in the new table
+            }
+        }
+        keys[i] = key;
+        starts[i] = now;
+        messages[i] = 0;
+        previousMessages[i] = 0;
+        characters[i] = 0;
+        previousCharacters[i] = 0;
+        used++;
+        return i;
+    }
+
+    /**
+     * Copies the users who posted within the last two windows into a table
+     * sized for them, the others have nothing left to count.
+     *
+     * @return False if there is no room for another user
+     */
+    private boolean rebuild(final long now, final long windowNanos) {
+        int live = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0L && now - starts[i] < 2 * windowNanos) {
+                live++;
+            }
+        }
+        int capacity = MIN_CAPACITY;
+        while ((live + 1) * 4 > capacity && capacity < maxCapacity) {
+            capacity <<= 1;
+        }
+        if ((live + 1) * 2 > capacity) {
+            retryRebuildAt = now + REBUILD_RETRY_NANOS;
+            return false;
+        }
+        full = false;
+        final long[] oldKeys = keys;
+        final long[] oldStarts = starts;
+        final int[] oldMessages = messages;
+        final int[] oldPreviousMessages = previousMessages;
+        final int[] oldCharacters = characters;
+        final int[] oldPreviousCharacters = previousCharacters;
+        allocate(capacity);
+        final int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0L && now - oldStarts[i] < 2 * windowNanos) {
+                int j = slot(oldKeys[i], mask);
+                while (keys[j] != 0L) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = oldKeys[i];
+                starts[j] = oldStarts[i];
+                messages[j] = oldMessages[i];
+                previousMessages[j] = oldPreviousMessages[i];
+                characters[j] = oldCharacters[i];
+                previousCharacters[j] = oldPreviousCharacters[i];
+                used++;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The users counted, idle or not
+     */
+    public int size() {
+        return used;
+    }
+}
@@ -0,0 +1,223 @@
+package com.twitchbotx.bot;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class decouples reading the socket from handling messages.
+ *
+ * The connection's reader thread only frames lines and publishes them into a
+ * ring buffer. Handler threads take them off and run the command parser, so a
+ * slow handler (an HTTP call to YouTube or Twitch) delays later messages but
+ * never stops the socket from being drained.
+ *
+ * With more than one shard, every line is routed by a hash of its username.
+ * All lines of one user land on the same shard and are handled in order, while
+ * different users are handled in parallel.
+ */
+public final class IngestPipeline implements IrcConnection.LineListener {
+
+    private static final Logger LOGGER = Logger.getLogger(IngestPipeline.class.getSimpleName());
+
+    /**
+     * A single worker, its own ring buffer, thread and consumer.
+     */
+    private final class Shard implements Runnable {
+
+        final MessageRingBuffer ringBuffer;
+
+        final IrcConnection.LineListener consumer;
+
+        Thread worker;
+
+        Shard(final MessageRingBuffer ringBuffer, final IrcConnection.LineListener consumer) {
+            this.ringBuffer = ringBuffer;
+            this.consumer = consumer;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                final String line;
+                try {
+                    line = ringBuffer.take();
+                } catch (InterruptedException e) {
+                    LOGGER.info("Ingest handler " + Thread.currentThread().getName() + " stopped.");
+                    return;
+                }
+                try {
+                    consumer.onLine(line);
+                } catch (Exception e) {
+                    LOGGER.log(Level.SEVERE, "A general error occurred parsing the message: {0}", e.toString());
+                }
+            }
+        }
+    }
+
+    private final Shard[] shards;
+
+    private final ToIntFunction<String> keyHash;
+
+    private volatile boolean running;
+
+    /**
+     * A pipeline with a single handler thread, every line is handled in the
+     * order it was read.
+     *
+     * @param bufferSize The number of lines the buffer can hold
+     *
+     * @param waitStrategy How the reader and the handler wait for each other
+     *
+     * @param consumer The handler for every line, called on the handler thread
+     */
+    public IngestPipeline(final int bufferSize,
+            final MessageRingBuffer.WaitStrategy waitStrategy,
+            final IrcConnection.LineListener consumer) {
+        this(1, bufferSize, waitStrategy, () -> consumer, line -> 0);
+    }
+
+    /**
+     * A pipeline with one handler thread per shard.
+     *
+     * @param shardCount The number of handler threads
+     *
+     * @param bufferSize The number of lines each shard's buffer can hold
+     *
+     * @param waitStrategy How the reader and the handlers wait for each other
+     *
+     * @param consumers Creates the handler of each shard, a handler is only
+     * ever called from its own shard's thread
+     *
+     * @param keyHash Hashes the ordering key of a line, lines with the same hash
+     * are always handled by the same shard
+     */
+    public IngestPipeline(final int shardCount,
+            final int bufferSize,
+            final MessageRingBuffer.WaitStrategy waitStrategy,
+            final Supplier<IrcConnection.LineListener> consumers,
+            final ToIntFunction<String> keyHash) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("At least one shard is needed");
+        }
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            this.shards[i] = new Shard(new MessageRingBuffer(bufferSize, waitStrategy), consumers.get());
+        }
+        this.keyHash = keyHash;
+    }
+
+    /**
+     * This method starts the handler threads.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        for (int i = 0; i < shards.length; i++) {
+            final Shard shard = shards[i];
+            shard.worker = new Thread(shard, "ingest-handler-" + i);
+            shard.worker.setDaemon(true);
+            shard.worker.start();
+        }
+    }
+
+    /**
+     * This method stops the handler threads, lines still buffered are dropped.
+     */
+    public synchronized void stop() {
+        running = false;
+        for (Shard shard : shards) {
+            if (shard.worker != null) {
+                shard.worker.interrupt();
+                shard.worker = null;
+            }
+        }
+    }
+
+    /**
+     * Publishes a line read from the socket, called on the reader thread.
+     *
+     * @param line A raw line from Twitch IRC
+     */
+    @Override
+    public void onLine(final String line) {
+        final Shard shard;
+        if (shards.length == 1) {
+            shard = shards[0];
+        } else {
+            final int hash = keyHash.applyAsInt(line);
+            shard = shards[Math.floorMod(hash ^ (hash >>> 16), shards.length)];
+        }
+        // a full shard drops the line rather than stop the socket for all
+        shard.ringBuffer.publish(line);
+    }
+
+    /**
+     * Registers the pipeline metrics with the reporter, totals over all shards
+     * plus the occupancy of each shard to spot a hot user.
+     *
+     * @param metrics The reporter to register with
+     */
+    public void registerMetrics(final MetricsReporter metrics) {
+        metrics.register("ingest.shards", () -> shards.length);
+        metrics.register("ingest.capacity", () -> {
+            long total = 0;
+            for (Shard shard : shards) {
+                total += shard.ringBuffer.capacity();
+            }
+            return total;
+        });
+        metrics.register("ingest.occupancy", () -> {
+            long total = 0;
+            for (Shard shard : shards) {
+                total += shard.ringBuffer.occupancy();
+            }
+            return total;
+        });
+        metrics.register("ingest.published", () -> {
+            long total = 0;
+            for (Shard shard : shards) {
+                total += shard.ringBuffer.getPublishedCount();
+            }
+            return total;
+        });
+        metrics.register("ingest.producerStalls", () -> {
+            long total = 0;
+            for (Shard shard : shards) {
+                total += shard.ringBuffer.getProducerStalls();
+            }
+            return total;
+        });
+        metrics.register("ingest.dropped", () -> {
+            long total = 0;
+            for (Shard shard : shards) {
+                total += shard.ringBuffer.getDroppedCount();
+            }
+            return total;
+        });
+        metrics.register("ingest.lastLagMillis", () -> {
+            long max = 0;
+            for (Shard shard : shards) {
+                max = Math.max(max, shard.ringBuffer.getLastLagNanos());
+            }
+            return TimeUnit.NANOSECONDS.toMillis(max);
+        });
+        metrics.register("ingest.maxLagMillis", () -> {
+            long max = 0;
+            for (Shard shard : shards) {
+                max = Math.max(max, shard.ringBuffer.drainMaxLagNanos());
+            }
+            return TimeUnit.NANOSECONDS.toMillis(max);
+        });
+        if (shards.length > 1) {
+            for (int i = 0; i < shards.length; i++) {
+                final MessageRingBuffer ringBuffer = shards[i].ringBuffer;
+                metrics.register("ingest.shard" + i + ".occupancy", ringBuffer::occupancy);
+            }
+        }
+    }
+}
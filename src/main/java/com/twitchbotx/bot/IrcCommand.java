@@ -0,0 +1,99 @@
+package com.twitchbotx.bot;
+
+/**
+ * The IRC commands Twitch sends to a bot with the tags, commands and
+ * membership capabilities, everything else is UNKNOWN.
+ */
+public enum IrcCommand {
+    PRIVMSG,
+    USERNOTICE,
+    CLEARCHAT,
+    CLEARMSG,
+    ROOMSTATE,
+    USERSTATE,
+    GLOBALUSERSTATE,
+    NOTICE,
+    RECONNECT,
+    JOIN,
+    PART,
+    WHISPER,
+    HOSTTARGET,
+    PING,
+    UNKNOWN;
+
+    /**
+     * This method classifies a parsed line by its command.
+     *
+     * It branches on the length and first letter of the command, then checks
+     * the one candidate in place, so no string is created and the cost does not
+     * grow with the number of commands.
+     *
+     * @param message A parsed line
+     *
+     * @return The command of the line, UNKNOWN if it is not one of these
+     */
+    public static IrcCommand classify(final IrcMessage message) {
+        final int start = message.getCommandStart();
+        if (start == -1) {
+            return UNKNOWN;
+        }
+        final String raw = message.raw();
+        final IrcCommand candidate;
+        switch (message.getCommandEnd() - start) {
+            case 4:
+                switch (raw.charAt(start)) {
+                    case 'J':
+                        candidate = JOIN;
+                        break;
+                    case 'P':
+                        candidate = raw.charAt(start + 1) == 'A' ? PART : PING;
+                        break;
+                    default:
+                        return UNKNOWN;
+                }
+                break;
+            case 6:
+                candidate = NOTICE;
+                break;
+            case 7:
+                candidate = raw.charAt(start) == 'P' ? PRIVMSG : WHISPER;
+                break;
+            case 8:
+                candidate = CLEARMSG;
+                break;
+            case 9:
+                switch (raw.charAt(start)) {
+                    case 'C':
+                        candidate = CLEARCHAT;
+                        break;
+                    case 'R':
+                        candidate = raw.charAt(start + 2) == 'O' ? ROOMSTATE : RECONNECT;
+                        break;
+                    case 'U':
+                        candidate = USERSTATE;
+                        break;
+                    default:
+                        return UNKNOWN;
+                }
+                break;
+            case 10:
+                switch (raw.charAt(start)) {
+                    case 'U':
+                        candidate = USERNOTICE;
+                        break;
+                    case 'H':
+                        candidate = HOSTTARGET;
+                        break;
+                    default:
+                        return UNKNOWN;
+                }
+                break;
+            case 15:
+                candidate = GLOBALUSERSTATE;
+                break;
+            default:
+                return UNKNOWN;
+        }
+        return message.isCommand(candidate.name()) ? candidate : UNKNOWN;
+    }
+}
@@ -0,0 +1,370 @@
+package com.twitchbotx.bot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class is the transport for the Twitch IRC connection.
+ *
+ * It uses a non-blocking socket channel driven by a selector. Incoming bytes
+ * are read into a single reusable direct buffer, framed on CRLF and decoded as
+ * UTF-8 before each complete line is handed to a listener. Outgoing bytes are
+ * queued and drained by the same selector loop, so a slow network never blocks
+ * the threads writing to the print stream.
+ */
+public final class IrcConnection {
+
+    private static final Logger LOGGER = Logger.getLogger(IrcConnection.class.getSimpleName());
+
+    // Size of the direct buffer that the socket is read into
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    // IRCv3 allows 8191 bytes of tags plus 512 bytes for the rest of the line,
+    // anything longer than this is not a valid line and is thrown away
+    private static final int MAX_LINE_LENGTH = 16 * 1024;
+
+    /**
+     * A simple callback for every complete line read from the connection.
+     */
+    public interface LineListener {
+
+        void onLine(String line);
+    }
+
+    private final String host;
+
+    private final int port;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    // Holds the start of a line that was split across two reads
+    private final byte[] partialLine = new byte[MAX_LINE_LENGTH];
+
+    private int partialLength;
+
+    private boolean discardingLine;
+
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private final CharBuffer decodeBuffer = CharBuffer.allocate(MAX_LINE_LENGTH);
+
+    private final Queue<ByteBuffer> pendingWrites = new ConcurrentLinkedQueue<>();
+
+    // Chat lines that were still queued for the previous connection, they
+    // already spent their rate tokens and are sent again after the login
+    private final List<String> unsent = new ArrayList<>();
+
+    private final PrintStream printStream;
+
+    private volatile SocketChannel channel;
+
+    private volatile Selector selector;
+
+    /**
+     * This is a simple constructor for the connection, it does not connect.
+     *
+     * @param host A given host, such as irc.chat.twitch.tv
+     *
+     * @param port A integer indicating the port of the connection
+     */
+    public IrcConnection(final String host, final int port) {
+        this.host = host;
+        this.port = port;
+        try {
+            this.printStream = new PrintStream(new ChannelOutputStream(), true, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * This method will attempt to establish a connection to the host and port.
+     *
+     * @throws IOException An exception thrown if connection is not established
+     * or timed out.
+     */
+    public void connect() throws IOException {
+        close();
+        carryOverWrites();
+        partialLength = 0;
+        discardingLine = false;
+        readBuffer.clear();
+
+        final SocketChannel socketChannel = SocketChannel.open();
+        socketChannel.socket().setTcpNoDelay(true);
+        socketChannel.socket().setKeepAlive(true);
+        socketChannel.connect(new InetSocketAddress(host, port));
+        socketChannel.configureBlocking(false);
+
+        final Selector newSelector = Selector.open();
+        socketChannel.register(newSelector, SelectionKey.OP_READ);
+
+        this.selector = newSelector;
+        this.channel = socketChannel;
+    }
+
+    /**
+     * This method hands over the chat lines that the previous connection did
+     * not get to write, so they can be queued again once logged in.
+     *
+     * @return The unsent lines in the order they were written, without a line
+     * terminator
+     */
+    public List<String> takeUnsentLines() {
+        final List<String> lines = new ArrayList<>(unsent);
+        unsent.clear();
+        return lines;
+    }
+
+    /**
+     * The stream every sender writes to, lines are written in UTF-8.
+     *
+     * @return A print stream that queues its bytes onto this connection
+     */
+    public PrintStream getPrintStream() {
+        return printStream;
+    }
+
+    /**
+     * This method runs the selector loop until the connection is closed by
+     * either side, handing every complete line to the listener.
+     *
+     * @param listener The callback for each line read
+     *
+     * @throws IOException If the channel fails while reading or writing
+     */
+    public void readMessages(final LineListener listener) throws IOException {
+        final SocketChannel socketChannel = this.channel;
+        final Selector currentSelector = this.selector;
+        if (socketChannel == null || currentSelector == null) {
+            throw new IOException("Connection has not been established");
+        }
+        final SelectionKey key = socketChannel.keyFor(currentSelector);
+
+        try {
+            while (socketChannel.isOpen()) {
+                currentSelector.select();
+                currentSelector.selectedKeys().clear();
+
+                if (key.isValid() && key.isReadable()) {
+                    final int read = socketChannel.read(readBuffer);
+                    if (read == -1) {
+                        LOGGER.warning("Twitch closed the IRC connection.");
+                        close();
+                        return;
+                    }
+                    frameLines(listener);
+                }
+
+                if (key.isValid()) {
+                    flushWrites(socketChannel, key);
+                }
+            }
+        } catch (ClosedSelectorException e) {
+            // closed from another thread, such as on a RECONNECT
+            LOGGER.info("The IRC connection was closed.");
+        }
+    }
+
+    /**
+     * This method closes the connection, the selector loop will exit. It is
+     * safe to call from any thread.
+     */
+    public void close() {
+        final SocketChannel socketChannel = this.channel;
+        final Selector currentSelector = this.selector;
+        try {
+            if (socketChannel != null) {
+                socketChannel.close();
+            }
+            if (currentSelector != null) {
+                currentSelector.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error closing the IRC connection: {0}", e.toString());
+        }
+    }
+
+    /**
+     * Splits everything in the read buffer into CRLF terminated lines.
+     *
+     * A line entirely inside the buffer is decoded in place, only a line split
+     * across two reads is copied into the partial line buffer.
+     */
+    private void frameLines(final LineListener listener) {
+        readBuffer.flip();
+        final int limit = readBuffer.limit();
+        int start = readBuffer.position();
+
+        for (int i = start; i < limit; i++) {
+            if (readBuffer.get(i) != '\n') {
+                continue;
+            }
+            if (discardingLine) {
+                discardingLine = false;
+            } else if (partialLength == 0) {
+                int end = i;
+                if (end > start && readBuffer.get(end - 1) == '\r') {
+                    end--;
+                }
+                if (end - start > MAX_LINE_LENGTH) {
+                    LOGGER.warning("Discarding an IRC line longer than " + MAX_LINE_LENGTH + " bytes.");
+                } else {
+                    readBuffer.limit(end).position(start);
+                    deliver(readBuffer, listener);
+                    readBuffer.limit(limit);
+                }
+            } else if (appendPartial(start, i)) {
+                int length = partialLength;
+                if (length > 0 && partialLine[length - 1] == '\r') {
+                    length--;
+                }
+                deliver(ByteBuffer.wrap(partialLine, 0, length), listener);
+            } else {
+                // The overlong line ends here, the next one is fine
+                discardingLine = false;
+            }
+            partialLength = 0;
+            start = i + 1;
+        }
+
+        // Keep whatever is left for the next read
+        if (start < limit && !discardingLine) {
+            appendPartial(start, limit);
+        }
+        readBuffer.clear();
+    }
+
+    private boolean appendPartial(final int from, final int to) {
+        final int length = to - from;
+        if (partialLength + length > MAX_LINE_LENGTH) {
+            LOGGER.warning("Discarding an IRC line longer than " + MAX_LINE_LENGTH + " bytes.");
+            partialLength = 0;
+            discardingLine = true;
+            return false;
+        }
+        final int limit = readBuffer.limit();
+        readBuffer.limit(to).position(from);
+        readBuffer.get(partialLine, partialLength, length);
+        readBuffer.limit(limit);
+        partialLength += length;
+        return true;
+    }
+
+    private void deliver(final ByteBuffer bytes, final LineListener listener) {
+        if (!bytes.hasRemaining()) {
+            return;
+        }
+        decoder.reset();
+        decodeBuffer.clear();
+        decoder.decode(bytes, decodeBuffer, true);
+        decoder.flush(decodeBuffer);
+        decodeBuffer.flip();
+        final String line = new String(decodeBuffer.array(), 0, decodeBuffer.limit());
+        try {
+            listener.onLine(line);
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "A general error occurred handling a line: {0}", e.toString());
+        }
+    }
+
+    /**
+     * Takes everything the previous connection did not write off the queue.
+     *
+     * The rest of a line the socket had started on is thrown away, and so is
+     * anything but a chat line, the login writes its own PASS, NICK, JOIN and
+     * CAP lines again.
+     */
+    private void carryOverWrites() {
+        final ByteBuffer head = pendingWrites.peek();
+        boolean skipping = head != null && head.position() > 0;
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ByteBuffer pending;
+        while ((pending = pendingWrites.poll()) != null) {
+            bytes.write(pending.array(), pending.arrayOffset() + pending.position(), pending.remaining());
+        }
+        if (bytes.size() == 0) {
+            return;
+        }
+
+        int kept = 0;
+        int dropped = 0;
+        for (String line : new String(bytes.toByteArray(), StandardCharsets.UTF_8).split("\r?\n")) {
+            if (skipping) {
+                skipping = false;
+                dropped++;
+            } else if (line.startsWith("PRIVMSG ")) {
+                unsent.add(line);
+                kept++;
+            } else if (!line.isEmpty()) {
+                dropped++;
+            }
+        }
+        LOGGER.log(Level.WARNING, "{0} lines were not written before the connection closed, "
+                + "{1} of them will be sent again.", new Object[]{kept + dropped, kept});
+    }
+
+    /**
+     * Writes as much of the pending output as the socket accepts, and asks the
+     * selector to wake up once it is writable again if anything is left.
+     */
+    private void flushWrites(final SocketChannel socketChannel, final SelectionKey key) throws IOException {
+        ByteBuffer pending;
+        while ((pending = pendingWrites.peek()) != null) {
+            socketChannel.write(pending);
+            if (pending.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            pendingWrites.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * An output stream that hands its bytes to the selector loop.
+     */
+    private final class ChannelOutputStream extends OutputStream {
+
+        @Override
+        public void write(final int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) {
+            if (len == 0) {
+                return;
+            }
+            final ByteBuffer copy = ByteBuffer.allocate(len);
+            copy.put(b, off, len);
+            copy.flip();
+            pendingWrites.add(copy);
+            final Selector currentSelector = selector;
+            if (currentSelector != null) {
+                currentSelector.wakeup();
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.twitchbotx.bot;
+
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class routes parsed IRC lines to the listeners registered for their
+ * command.
+ *
+ * Listeners are registered while the bot starts up, and every shard has its
+ * own dispatcher, so dispatching needs no locking. A command without listeners
+ * costs one array lookup.
+ */
+public final class IrcEventDispatcher {
+
+    private static final Logger LOGGER = Logger.getLogger(IrcEventDispatcher.class.getSimpleName());
+
+    /**
+     * A listener for one kind of IRC command.
+     */
+    public interface Listener {
+
+        /**
+         * @param message The parsed line, only valid during this call
+         */
+        void onEvent(IrcMessage message);
+    }
+
+    private static final Listener[] NONE = new Listener[0];
+
+    private final Listener[][] listeners = new Listener[IrcCommand.values().length][];
+
+    public IrcEventDispatcher() {
+        Arrays.fill(listeners, NONE);
+    }
+
+    /**
+     * Registers a listener for a command.
+     *
+     * @param command The command to listen for
+     *
+     * @param listener Called on the shard thread for every line with that
+     * command
+     */
+    public synchronized void register(final IrcCommand command, final Listener listener) {
+        final Listener[] current = listeners[command.ordinal()];
+        final Listener[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = listener;
+        listeners[command.ordinal()] = updated;
+    }
+
+    /**
+     * @param command A command
+     *
+     * @return True if anything listens for the command
+     */
+    public boolean hasListeners(final IrcCommand command) {
+        return listeners[command.ordinal()].length > 0;
+    }
+
+    /**
+     * This method hands a line to every listener of its command.
+     *
+     * @param command The classified command of the line
+     *
+     * @param message The parsed line
+     */
+    public void dispatch(final IrcCommand command, final IrcMessage message) {
+        for (Listener listener : listeners[command.ordinal()]) {
+            try {
+                listener.onEvent(message);
+            } catch (Exception e) {
+                LOGGER.log(Level.SEVERE, "Error handling " + command + ": {0}", e.toString());
+            }
+        }
+    }
+}
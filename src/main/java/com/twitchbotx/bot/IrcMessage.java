@@ -0,0 +1,395 @@
+package com.twitchbotx.bot;
+
+/**
+ * This class is a reusable view over a single raw IRCv3 line.
+ *
+ * A line is parsed in one pass into offsets for the tags, prefix, command,
+ * channel and trailing message. Nothing is copied while parsing; tag values are
+ * only unescaped, and strings only created, when a caller asks for them. One
+ * instance is meant to be reused for every line handled by a thread.
+ */
+public final class IrcMessage {
+
+    // Twitch sends around 20 tags on a chat message
+    private static final int MAX_TAGS = 64;
+
+    private String raw;
+
+    private int tagCount;
+
+    private final int[] keyStart = new int[MAX_TAGS];
+
+    private final int[] keyEnd = new int[MAX_TAGS];
+
+    private final int[] valueStart = new int[MAX_TAGS];
+
+    private final int[] valueEnd = new int[MAX_TAGS];
+
+    private int prefixStart;
+
+    private int prefixEnd;
+
+    private int nickEnd;
+
+    private int commandStart;
+
+    private int commandEnd;
+
+    private int channelStart;
+
+    private int channelEnd;
+
+    private int trailingStart;
+
+    private final StringBuilder unescaped = new StringBuilder();
+
+    /**
+     * This method parses a raw line into this view, replacing whatever was
+     * parsed before.
+     *
+     * @param line A raw line from Twitch IRC, without the line terminator
+     *
+     * @return False if the line has no command, the view is then empty
+     */
+    public boolean parse(final String line) {
+        raw = line;
+        tagCount = 0;
+        prefixStart = -1;
+        prefixEnd = -1;
+        nickEnd = -1;
+        commandStart = -1;
+        commandEnd = -1;
+        channelStart = -1;
+        channelEnd = -1;
+        trailingStart = -1;
+        if (line == null) {
+            return false;
+        }
+
+        final int length = line.length();
+        int i = 0;
+
+        // @key=value;key2=value2
+        if (i < length && line.charAt(i) == '@') {
+            i++;
+            int start = i;
+            int equals = -1;
+            for (; i <= length; i++) {
+                final char c = i < length ? line.charAt(i) : ' ';
+                if (c == '=' && equals == -1) {
+                    equals = i;
+                } else if (c == ';' || c == ' ') {
+                    if (i > start && tagCount < MAX_TAGS) {
+                        keyStart[tagCount] = start;
+                        keyEnd[tagCount] = equals == -1 ? i : equals;
+                        valueStart[tagCount] = equals == -1 ? i : equals + 1;
+                        valueEnd[tagCount] = i;
+                        tagCount++;
+                    }
+                    start = i + 1;
+                    equals = -1;
+                    if (c == ' ') {
+                        break;
+                    }
+                }
+            }
+            i = skipSpaces(line, i);
+        }
+
+        // :nick!user@host
+        if (i < length && line.charAt(i) == ':') {
+            prefixStart = i + 1;
+            i = prefixStart;
+            while (i < length && line.charAt(i) != ' ') {
+                final char c = line.charAt(i);
+                if (nickEnd == -1 && (c == '!' || c == '@')) {
+                    nickEnd = i;
+                }
+                i++;
+            }
+            prefixEnd = i;
+            if (nickEnd == -1) {
+                nickEnd = prefixEnd;
+            }
+            i = skipSpaces(line, i);
+        }
+
+        // COMMAND
+        commandStart = i;
+        while (i < length && line.charAt(i) != ' ') {
+            i++;
+        }
+        commandEnd = i;
+        if (commandEnd == commandStart) {
+            commandStart = -1;
+            commandEnd = -1;
+            return false;
+        }
+
+        // middle params, then :trailing
+        while (i < length) {
+            i = skipSpaces(line, i);
+            if (i >= length) {
+                break;
+            }
+            if (line.charAt(i) == ':') {
+                trailingStart = i + 1;
+                break;
+            }
+            final int paramStart = i;
+            while (i < length && line.charAt(i) != ' ') {
+                i++;
+            }
+            if (channelStart == -1 && line.charAt(paramStart) == '#') {
+                channelStart = paramStart + 1;
+                channelEnd = i;
+            }
+        }
+        return true;
+    }
+
+    private static int skipSpaces(final String line, int i) {
+        while (i < line.length() && line.charAt(i) == ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return The raw line this view was parsed from
+     */
+    public String raw() {
+        return raw;
+    }
+
+    public int getTagCount() {
+        return tagCount;
+    }
+
+    /**
+     * @param key The tag name, such as mod or user-id
+     *
+     * @return The position of the tag, or -1 if the line does not have it
+     */
+    public int indexOfTag(final String key) {
+        final int keyLength = key.length();
+        for (int t = 0; t < tagCount; t++) {
+            if (keyEnd[t] - keyStart[t] == keyLength
+                    && raw.regionMatches(keyStart[t], key, 0, keyLength)) {
+                return t;
+            }
+        }
+        return -1;
+    }
+
+    public boolean hasTag(final String key) {
+        return indexOfTag(key) != -1;
+    }
+
+    /**
+     * Compares a tag value without creating a string for it.
+     *
+     * @param key The tag name
+     *
+     * @param value The unescaped value to compare with
+     *
+     * @return True if the tag exists and has exactly this value
+     */
+    public boolean tagEquals(final String key, final String value) {
+        final int t = indexOfTag(key);
+        if (t == -1) {
+            return false;
+        }
+        final int start = valueStart[t];
+        final int length = valueEnd[t] - start;
+        if (indexOfEscape(start, valueEnd[t]) == -1) {
+            return length == value.length() && raw.regionMatches(start, value, 0, length);
+        }
+        return value.equals(getTag(key));
+    }
+
+    /**
+     * This method unescapes a tag value per IRCv3, only when it is asked for.
+     *
+     * @param key The tag name
+     *
+     * @return The unescaped value, an empty string for a tag without a value,
+     * or null if the line does not have the tag
+     */
+    public String getTag(final String key) {
+        final int t = indexOfTag(key);
+        if (t == -1) {
+            return null;
+        }
+        final int start = valueStart[t];
+        final int end = valueEnd[t];
+        final int escape = indexOfEscape(start, end);
+        if (escape == -1) {
+            return raw.substring(start, end);
+        }
+        unescaped.setLength(0);
+        unescaped.append(raw, start, escape);
+        for (int i = escape; i < end; i++) {
+            final char c = raw.charAt(i);
+            if (c != '\\') {
+                unescaped.append(c);
+                continue;
+            }
+            i++;
+            if (i >= end) {
+                // a lone trailing backslash is dropped
+                break;
+            }
+            switch (raw.charAt(i)) {
+                case ':':
+                    unescaped.append(';');
+                    break;
+                case 's':
+                    unescaped.append(' ');
+                    break;
+                case 'r':
+                    unescaped.append('\r');
+                    break;
+                case 'n':
+                    unescaped.append('\n');
+                    break;
+                default:
+                    unescaped.append(raw.charAt(i));
+                    break;
+            }
+        }
+        return unescaped.toString();
+    }
+
+    private int indexOfEscape(final int start, final int end) {
+        for (int i = start; i < end; i++) {
+            if (raw.charAt(i) == '\\') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads a numeric tag, such as user-id, without creating a string.
+     *
+     * @param key The tag name
+     *
+     * @param defaultValue The value if the tag is missing or not a number
+     *
+     * @return The tag value as a number
+     */
+    public long getTagLong(final String key, final long defaultValue) {
+        final int t = indexOfTag(key);
+        if (t == -1 || valueStart[t] == valueEnd[t]) {
+            return defaultValue;
+        }
+        long value = 0;
+        for (int i = valueStart[t]; i < valueEnd[t]; i++) {
+            final char c = raw.charAt(i);
+            if (c < '0' || c > '9' || value > (Long.MAX_VALUE - 9) / 10) {
+                return defaultValue;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Checks the badges tag, a comma separated list of name/version pairs.
+     *
+     * @param badge The badge name, such as broadcaster or vip
+     *
+     * @return True if the user has the badge at any version
+     */
+    public boolean hasBadge(final String badge) {
+        final int t = indexOfTag("badges");
+        if (t == -1) {
+            return false;
+        }
+        final int end = valueEnd[t];
+        final int length = badge.length();
+        int start = valueStart[t];
+        while (start < end) {
+            if (start + length < end
+                    && raw.charAt(start + length) == '/'
+                    && raw.regionMatches(start, badge, 0, length)) {
+                return true;
+            }
+            final int comma = raw.indexOf(',', start);
+            if (comma == -1 || comma >= end) {
+                return false;
+            }
+            start = comma + 1;
+        }
+        return false;
+    }
+
+    public boolean hasPrefix() {
+        return prefixStart != -1;
+    }
+
+    /**
+     * @return The nick of the prefix, or an empty string if there is none
+     */
+    public String getNick() {
+        return prefixStart == -1 ? "" : raw.substring(prefixStart, nickEnd);
+    }
+
+    /**
+     * @return The command, such as PRIVMSG, or null if the line had none
+     */
+    public String getCommand() {
+        return commandStart == -1 ? null : raw.substring(commandStart, commandEnd);
+    }
+
+    /**
+     * @param command A command name, such as PRIVMSG
+     *
+     * @return True if this line has exactly that command
+     */
+    public boolean isCommand(final String command) {
+        final int length = command.length();
+        return commandStart != -1
+                && commandEnd - commandStart == length
+                && raw.regionMatches(commandStart, command, 0, length);
+    }
+
+    public int getCommandStart() {
+        return commandStart;
+    }
+
+    public int getCommandEnd() {
+        return commandEnd;
+    }
+
+    /**
+     * @return The channel without the #, or null if the line has none
+     */
+    public String getChannel() {
+        return channelStart == -1 ? null : raw.substring(channelStart, channelEnd);
+    }
+
+    public boolean hasTrailing() {
+        return trailingStart != -1;
+    }
+
+    /**
+     * @return The trailing message, or null if the line has none
+     */
+    public String getTrailing() {
+        return trailingStart == -1 ? null : raw.substring(trailingStart);
+    }
+
+    /**
+     * @return The offset of the trailing message in the raw line, or -1
+     */
+    public int getTrailingStart() {
+        return trailingStart;
+    }
+
+    @Override
+    public String toString() {
+        return "IrcMessage{" + "raw=" + raw + '}';
+    }
+}
@@ -0,0 +1,228 @@
+package com.twitchbotx.bot;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * This class stores every command, subcommand, counter and filter, and every
+ * setting changed from chat, under its own key in a {@link KeyValueStore}.
+ *
+ * Changing a counter writes that counter and nothing else. The first start
+ * with an empty store copies the elements of the XML document into it, from
+ * then on the store holds them and the XML file only holds the connection
+ * settings. Changes are written by a background thread, every change queued
+ * while the store was syncing is written with the next sync.
+ */
+public final class KeyValueConfigStore implements ConfigStore {
+
+    private static final Logger LOGGER = Logger.getLogger(KeyValueConfigStore.class.getSimpleName());
+
+    // Set once the XML document was copied into the store
+    private static final String IMPORTED_KEY = "meta\nimported";
+
+    private static final String META_PREFIX = "meta\n";
+
+    private final ConfigParser.Elements elements;
+
+    private final KeyValueStore store;
+
+    private final long retryMillis;
+
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "config-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private final ConcurrentLinkedQueue<Mutation> queued = new ConcurrentLinkedQueue<>();
+
+    // Changes taken from the queue that are not on disk yet, guarded by this
+    private final List<Mutation> unwritten = new ArrayList<>();
+
+    private final AtomicLong changes = new AtomicLong();
+
+    private volatile long writtenChanges;
+
+    private final AtomicLong syncs = new AtomicLong();
+
+    /**
+     * @param elements The XML document the handlers work on
+     *
+     * @param file The store file, such as ./kfbot.kv
+     *
+     * @param retryMillis How long to wait before trying again after a failed
+     * write
+     *
+     * @throws IOException If the store cannot be opened
+     */
+    public KeyValueConfigStore(final ConfigParser.Elements elements,
+            final Path file,
+            final long retryMillis) throws IOException {
+        this.elements = elements;
+        this.store = new KeyValueStore(file);
+        this.retryMillis = Math.max(0L, retryMillis);
+    }
+
+    /**
+     * This method replaces the commands, subcommands, counters and filters
+     * held by the elements with the ones in the store, and applies the settings
+     * changed from chat. An empty store is filled from the document instead.
+     *
+     * @throws IOException If the store cannot be read or filled
+     */
+    @Override
+    public int load() throws IOException {
+        synchronized (elements) {
+            if (store.get(IMPORTED_KEY) == null) {
+                return importDocument();
+            }
+
+            clear(elements.commands, elements.commandNodes);
+            clear(elements.subCommands, elements.subCommandNodes);
+            elements.counterValues.clear();
+            elements.filterList.clear();
+
+            final List<Mutation> mutations = new ArrayList<>(store.size());
+            for (String key : store.keys()) {
+                if (!key.startsWith(META_PREFIX)) {
+                    mutations.add(Mutation.fromBytes(store.get(key)));
+                }
+            }
+            final int applied = Mutation.applyAll(elements, mutations);
+            LOGGER.info("Loaded " + applied + " entries from the store.");
+            return applied;
+        }
+    }
+
+    private int importDocument() throws IOException {
+        final List<Mutation> mutations = new ArrayList<>();
+        for (NodeList nodes : new NodeList[]{elements.commandNodes, elements.subCommandNodes}) {
+            for (int i = 0; i < nodes.getLength(); i++) {
+                mutations.add(Mutation.upsert((Element) nodes.item(i)));
+            }
+        }
+        for (Map.Entry<String, Integer> counter : elements.counterValues.entrySet()) {
+            mutations.add(Mutation.counter(counter.getKey(), counter.getValue()));
+        }
+        for (Filter filter : elements.filterList) {
+            mutations.add(Mutation.filter(filter));
+        }
+        int imported = 0;
+        for (Mutation mutation : mutations) {
+            store.put(mutation.getKey(), mutation.toBytes());
+            imported++;
+        }
+        store.put(IMPORTED_KEY, "1".getBytes(StandardCharsets.UTF_8));
+        store.sync();
+        LOGGER.info("Copied " + imported + " entries from the XML document into the store.");
+        return 0;
+    }
+
+    private static void clear(final Element section, final NodeList nodes) {
+        // the list is live, it shrinks as nodes are removed
+        while (nodes.getLength() > 0) {
+            section.removeChild(nodes.item(nodes.getLength() - 1));
+        }
+    }
+
+    @Override
+    public void record(final Mutation mutation) {
+        changes.incrementAndGet();
+        queued.add(mutation);
+        schedule(0L);
+    }
+
+    private void schedule(final long delay) {
+        if (!scheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            writer.schedule(this::writeScheduled, delay, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException e) {
+            // the writer is shut down, the final flush picks the change up
+            scheduled.set(false);
+        }
+    }
+
+    private void writeScheduled() {
+        scheduled.set(false);
+        if (!flush()) {
+            schedule(retryMillis);
+        }
+    }
+
+    /**
+     * This method writes the queued changes to the store, with a single sync.
+     * A failed write is tried again in full, writing a key twice does no harm.
+     */
+    @Override
+    public synchronized boolean flush() {
+        for (Mutation mutation; (mutation = queued.poll()) != null;) {
+            unwritten.add(mutation);
+        }
+        if (unwritten.isEmpty()) {
+            return true;
+        }
+        try {
+            for (Mutation mutation : unwritten) {
+                if (mutation.getType() == Mutation.Type.DELETE) {
+                    store.delete(mutation.getKey());
+                } else {
+                    store.put(mutation.getKey(), mutation.toBytes());
+                }
+            }
+            store.sync();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Could not write to the store: {0}", e.toString());
+            return false;
+        }
+        writtenChanges += unwritten.size();
+        unwritten.clear();
+        syncs.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public void stop() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!flush()) {
+            LOGGER.severe("Changes to the configuration were lost at shutdown.");
+        }
+        try {
+            store.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not close the store: {0}", e.toString());
+        }
+    }
+
+    @Override
+    public void registerMetrics(final MetricsReporter metrics) {
+        metrics.register("persist.changes", changes::get);
+        metrics.register("persist.pending", () -> changes.get() != writtenChanges);
+        metrics.register("store.syncs", syncs::get);
+        metrics.register("store.keys", store::size);
+        metrics.register("store.compactions", store::getCompactionCount);
+        metrics.register("store.fileBytes", store::fileSize);
+    }
+}
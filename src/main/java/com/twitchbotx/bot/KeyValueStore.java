@@ -0,0 +1,379 @@
+package com.twitchbotx.bot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * This class is a small key-value store kept in a single local file.
+ *
+ * The file is a log of records, each a key with either a value or a
+ * tombstone, framed by lengths and a checksum. Writing a key appends one
+ * record, so a change costs the size of that key and value. Only the position
+ * of every live value is held in memory, a value is read from the file when
+ * it is asked for. Once more than half the file is overwritten or deleted
+ * records, the live records are copied to a new file that replaces the old
+ * one.
+ *
+ * Only one thread writes to a store at a time. The counts are kept in
+ * volatile fields by that thread, so any thread can read them.
+ */
+public final class KeyValueStore implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(KeyValueStore.class.getSimpleName());
+
+    // key length, value length and checksum
+    private static final int HEADER_BYTES = 12;
+
+    private static final int TOMBSTONE = -1;
+
+    private static final int MAX_KEY_BYTES = 64 * 1024;
+
+    private static final int MAX_VALUE_BYTES = 16 * 1024 * 1024;
+
+    // Files smaller than this are never compacted
+    private static final long MIN_COMPACT_BYTES = 1024 * 1024;
+
+    /**
+     * Where a live value is in the file.
+     */
+    private static final class Location {
+
+        final long position;
+
+        final int length;
+
+        // the whole record, header and key included
+        final int recordLength;
+
+        Location(final long position, final int length, final int recordLength) {
+            this.position = position;
+            this.length = length;
+            this.recordLength = recordLength;
+        }
+    }
+
+    private final Path file;
+
+    private final Path tempFile;
+
+    private FileChannel channel;
+
+    // Kept in the order keys were first written
+    private final Map<String, Location> index = new LinkedHashMap<>();
+
+    private long liveBytes;
+
+    // Written by the thread that owns the store, read by the metrics
+    private volatile int keyCount;
+
+    private volatile long fileBytes;
+
+    private volatile long compactions;
+
+    // The file size a compaction last failed at, it is not tried again until
+    // the file has grown by another MIN_COMPACT_BYTES
+    private long failedCompactSize = -MIN_COMPACT_BYTES;
+
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * This method opens a store, reading the position of every live value,
+     * and cuts off a record that was only partly written.
+     *
+     * @param file The store file, created if it does not exist
+     *
+     * @throws IOException If the file cannot be opened or read
+     */
+    public KeyValueStore(final Path file) throws IOException {
+        this.file = file.toAbsolutePath();
+        this.tempFile = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+        this.channel = FileChannel.open(this.file,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        scan();
+    }
+
+    private void scan() throws IOException {
+        final long size = channel.size();
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        long position = 0L;
+        while (position + HEADER_BYTES <= size) {
+            header.clear();
+            readFully(header, position);
+            header.flip();
+            final int keyLength = header.getInt();
+            final int valueLength = header.getInt();
+            final long checksum = header.getInt() & 0xFFFFFFFFL;
+            final int dataLength = keyLength + Math.max(0, valueLength);
+            if (keyLength <= 0 || keyLength > MAX_KEY_BYTES
+                    || valueLength < TOMBSTONE || valueLength > MAX_VALUE_BYTES
+                    || position + HEADER_BYTES + dataLength > size) {
+                break;
+            }
+            final ByteBuffer data = ByteBuffer.allocate(dataLength);
+            readFully(data, position + HEADER_BYTES);
+            crc.reset();
+            crc.update(data.array(), 0, dataLength);
+            if (crc.getValue() != checksum) {
+                break;
+            }
+            final String key = new String(data.array(), 0, keyLength, StandardCharsets.UTF_8);
+            final int recordLength = HEADER_BYTES + dataLength;
+            if (valueLength == TOMBSTONE) {
+                unindex(key);
+            } else {
+                index(key, new Location(position + HEADER_BYTES + keyLength, valueLength, recordLength));
+            }
+            position += recordLength;
+        }
+        if (position < size) {
+            LOGGER.warning("Dropped " + (size - position) + " bytes of a partly written record from " + file);
+            channel.truncate(position);
+            channel.force(true);
+        }
+        channel.position(position);
+        fileBytes = position;
+    }
+
+    private void index(final String key, final Location location) {
+        final Location previous = index.put(key, location);
+        if (previous != null) {
+            liveBytes -= previous.recordLength;
+        }
+        liveBytes += location.recordLength;
+        keyCount = index.size();
+    }
+
+    private void unindex(final String key) {
+        final Location previous = index.remove(key);
+        if (previous != null) {
+            liveBytes -= previous.recordLength;
+        }
+        keyCount = index.size();
+    }
+
+    private void readFully(final ByteBuffer target, final long position) throws IOException {
+        long at = position;
+        while (target.hasRemaining()) {
+            final int read = channel.read(target, at);
+            if (read < 0) {
+                throw new IOException("Unexpected end of " + file);
+            }
+            at += read;
+        }
+    }
+
+    /**
+     * @param key The key
+     *
+     * @return The value, or null if the key has none
+     *
+     * @throws IOException If the value cannot be read
+     */
+    public byte[] get(final String key) throws IOException {
+        final Location location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+        final ByteBuffer value = ByteBuffer.allocate(location.length);
+        readFully(value, location.position);
+        return value.array();
+    }
+
+    /**
+     * @return Every key with a value, in the order they were first written
+     */
+    public List<String> keys() {
+        return new ArrayList<>(index.keySet());
+    }
+
+    /**
+     * This method writes a value. It is on disk once {@link #sync()} returns.
+     *
+     * @param key The key
+     *
+     * @param value The value
+     *
+     * @throws IOException If the value cannot be written
+     */
+    public void put(final String key, final byte[] value) throws IOException {
+        if (value.length > MAX_VALUE_BYTES) {
+            throw new IOException("Value of " + key + " is too large");
+        }
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        final long position = append(keyBytes, value);
+        index(key, new Location(position + HEADER_BYTES + keyBytes.length, value.length,
+                HEADER_BYTES + keyBytes.length + value.length));
+    }
+
+    /**
+     * This method deletes a value. It is gone from disk once {@link #sync()}
+     * returns.
+     *
+     * @param key The key
+     *
+     * @throws IOException If the deletion cannot be written
+     */
+    public void delete(final String key) throws IOException {
+        if (!index.containsKey(key)) {
+            return;
+        }
+        append(key.getBytes(StandardCharsets.UTF_8), null);
+        unindex(key);
+    }
+
+    /**
+     * @return The position of the appended record
+     */
+    private long append(final byte[] key, final byte[] value) throws IOException {
+        if (key.length == 0 || key.length > MAX_KEY_BYTES) {
+            throw new IOException("Bad key length " + key.length);
+        }
+        final int valueLength = value == null ? 0 : value.length;
+        final ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + key.length + valueLength);
+        crc.reset();
+        crc.update(key, 0, key.length);
+        if (value != null) {
+            crc.update(value, 0, value.length);
+        }
+        record.putInt(key.length);
+        record.putInt(value == null ? TOMBSTONE : value.length);
+        record.putInt((int) crc.getValue());
+        record.put(key);
+        if (value != null) {
+            record.put(value);
+        }
+        record.flip();
+
+        final long position = channel.position();
+        try {
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+        } catch (IOException e) {
+            try {
+                channel.truncate(position);
+                channel.position(position);
+            } catch (IOException ignored) {
+                // the checksums catch it on the next open
+            }
+            throw e;
+        }
+        fileBytes = channel.position();
+        return position;
+    }
+
+    /**
+     * This method waits until every write so far is on disk, then compacts
+     * the file if most of it is dead records. A failed compaction is only
+     * logged, the writes are on disk either way.
+     *
+     * @throws IOException If the file cannot be synced
+     */
+    public void sync() throws IOException {
+        channel.force(false);
+        final long size = channel.size();
+        if (size >= MIN_COMPACT_BYTES && size - liveBytes > liveBytes
+                && size >= failedCompactSize + MIN_COMPACT_BYTES) {
+            try {
+                compact();
+                failedCompactSize = -MIN_COMPACT_BYTES;
+            } catch (IOException e) {
+                failedCompactSize = size;
+                LOGGER.log(Level.WARNING, "Could not compact " + file + ": {0}", e.toString());
+            }
+        }
+    }
+
+    /**
+     * This method copies the live records to a new file and replaces the old
+     * one with it.
+     *
+     * @throws IOException If the new file cannot be written, the old one is
+     * then still in use
+     */
+    public void compact() throws IOException {
+        final Map<String, Location> compacted = new LinkedHashMap<>();
+        try (FileChannel target = FileChannel.open(tempFile,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            for (Map.Entry<String, Location> entry : index.entrySet()) {
+                final Location location = entry.getValue();
+                final long from = location.position + location.length - location.recordLength;
+                final long position = target.position();
+                long copied = 0L;
+                while (copied < location.recordLength) {
+                    copied += channel.transferTo(from + copied, location.recordLength - copied, target);
+                }
+                compacted.put(entry.getKey(), new Location(
+                        position + (location.position - from), location.length, location.recordLength));
+            }
+            target.force(true);
+        }
+        // Windows does not replace a file that is still open
+        channel.close();
+        try {
+            try {
+                Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            reopen();
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+        reopen();
+        fileBytes = channel.position();
+        index.clear();
+        index.putAll(compacted);
+        compactions++;
+    }
+
+    private void reopen() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+    }
+
+    /**
+     * @return The number of keys with a value
+     */
+    public int size() {
+        return keyCount;
+    }
+
+    /**
+     * @return The size of the file in bytes, as of the last write
+     */
+    public long fileSize() {
+        return fileBytes;
+    }
+
+    /**
+     * @return How many times the file was compacted
+     */
+    public long getCompactionCount() {
+        return compactions;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
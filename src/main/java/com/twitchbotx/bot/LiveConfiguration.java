@@ -0,0 +1,97 @@
+package com.twitchbotx.bot;
+
+import com.twitchbotx.bot.ConfigParser.Configuration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class holds the configuration in use.
+ *
+ * Readers get an immutable snapshot without taking a lock. A setting changed
+ * from chat, or in kfbot.xml while the bot runs, swaps in a new snapshot, so a
+ * reader sees either every change or none of it.
+ */
+public final class LiveConfiguration {
+
+    private final AtomicReference<Configuration> current;
+
+    /**
+     * @param initial The configuration read at start up
+     */
+    public LiveConfiguration(final Configuration initial) {
+        this.current = new AtomicReference<>(initial);
+    }
+
+    /**
+     * @return The configuration in use, it never changes once returned
+     */
+    public Configuration get() {
+        return current.get();
+    }
+
+    /**
+     * This method changes one setting, such as from a chat command.
+     *
+     * @param tag The tag name of the setting
+     *
+     * @param value The new text of the setting
+     *
+     * @throws IllegalArgumentException If the value is not valid for the
+     * setting, the configuration is then unchanged
+     */
+    public void set(final String tag, final String value) {
+        update(Collections.singletonMap(tag, value));
+    }
+
+    /**
+     * This method changes several settings at once.
+     *
+     * @param changes The new text of each changed setting, null to remove a
+     * setting
+     *
+     * @return The new configuration
+     *
+     * @throws IllegalArgumentException If a value is not valid for its
+     * setting, the configuration is then unchanged
+     */
+    public Configuration update(final Map<String, String> changes) {
+        return current.updateAndGet(config -> config.with(changes));
+    }
+
+    /**
+     * This method swaps in a new configuration.
+     *
+     * @param next The new configuration
+     */
+    public void replace(final Configuration next) {
+        current.set(next);
+    }
+
+    /**
+     * This method compares two sets of settings.
+     *
+     * @param before The settings before
+     *
+     * @param after The settings after
+     *
+     * @return The tag names of the settings that were added, removed or
+     * changed, in alphabetical order
+     */
+    public static TreeSet<String> diff(final Map<String, String> before, final Map<String, String> after) {
+        final TreeSet<String> changed = new TreeSet<>();
+        for (Map.Entry<String, String> entry : before.entrySet()) {
+            if (!Objects.equals(entry.getValue(), after.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        for (String tag : after.keySet()) {
+            if (!before.containsKey(tag)) {
+                changed.add(tag);
+            }
+        }
+        return changed;
+    }
+}
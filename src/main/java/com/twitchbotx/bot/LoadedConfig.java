@@ -0,0 +1,38 @@
+package com.twitchbotx.bot;
+
+/**
+ * This class is the configuration file as read by {@link ConfigLoader}, the
+ * document the handlers edit and the commands that were read along with it.
+ */
+public final class LoadedConfig {
+
+    private final ConfigParser.Elements elements;
+
+    // The commands of the file, before any store changed the document
+    private final CommandTable commandTable;
+
+    /**
+     * @param elements The document, the counters and the filters
+     *
+     * @param commandTable The commands and subcommands of the file
+     */
+    public LoadedConfig(final ConfigParser.Elements elements, final CommandTable commandTable) {
+        this.elements = elements;
+        this.commandTable = commandTable;
+    }
+
+    public ConfigParser.Elements getElements() {
+        return elements;
+    }
+
+    public CommandTable getCommandTable() {
+        return commandTable;
+    }
+
+    @Override
+    public String toString() {
+        return "LoadedConfig{" + "commands=" + commandTable.size()
+                + ", counters=" + elements.counterValues.size()
+                + ", filters=" + elements.filterList.size() + '}';
+    }
+}
@@ -0,0 +1,171 @@
+package com.twitchbotx.bot;
+
+import java.util.Arrays;
+
+/**
+ * This class holds what the message rules look at in a chat message, all of
+ * it computed in one pass over the characters and the emote ranges.
+ *
+ * The emotes are left out of the letters and symbols counted, an emote such
+ * as PogChamp is not shouting. Each shard reuses one for all its messages, it
+ * is not safe for concurrent use.
+ */
+public final class MessageFeatures {
+
+    // Whether each character of the message is part of an emote
+    private boolean[] emote = new boolean[512];
+
+    // in code points, like the emote ranges
+    private int length;
+
+    private int letters;
+
+    private int uppercase;
+
+    // Characters that are not letters, digits or whitespace
+    private int symbols;
+
+    // Characters that are not whitespace
+    private int visible;
+
+    private int emoteCount;
+
+    private int emoteCharacters;
+
+    private int longestRun;
+
+    /**
+     * This method computes the features of a message.
+     *
+     * @param message The chat message
+     *
+     * @param emotes The emotes tag of the message, such as
+     * 25:0-4,12-16/1902:6-10, or null if it has none
+     *
+     * @return This, with the features of the message
+     */
+    public MessageFeatures compute(final CharSequence message, final String emotes) {
+        final int chars = message.length();
+        if (emote.length < chars) {
+            emote = new boolean[Math.max(chars, emote.length * 2)];
+        } else {
+            Arrays.fill(emote, 0, chars, false);
+        }
+        letters = 0;
+        uppercase = 0;
+        symbols = 0;
+        visible = 0;
+        longestRun = 0;
+        markEmotes(emotes, chars);
+
+        int index = 0;
+        int previous = -1;
+        int run = 0;
+        for (int i = 0; i < chars; index++) {
+            final int c = Character.codePointAt(message, i);
+            i += Character.charCount(c);
+            run = c == previous ? run + 1 : 1;
+            previous = c;
+            if (run > longestRun) {
+                longestRun = run;
+            }
+            if (emote[index] || Character.isWhitespace(c)) {
+                continue;
+            }
+            visible++;
+            if (Character.isLetter(c)) {
+                letters++;
+                if (Character.isUpperCase(c)) {
+                    uppercase++;
+                }
+            } else if (!Character.isDigit(c)) {
+                symbols++;
+            }
+        }
+        length = index;
+        return this;
+    }
+
+    /**
+     * This method marks the characters covered by the ranges of the emotes
+     * tag, counting each range as an emote.
+     */
+    private void markEmotes(final String emotes, final int chars) {
+        emoteCount = 0;
+        emoteCharacters = 0;
+        if (emotes == null) {
+            return;
+        }
+        int i = emotes.indexOf(':');
+        while (i >= 0 && i < emotes.length()) {
+            // i is on the ':' or ',' before a range
+            int start = 0;
+            int end = 0;
+            int j = i + 1;
+            while (j < emotes.length() && Character.isDigit(emotes.charAt(j))) {
+                start = start * 10 + emotes.charAt(j++) - '0';
+            }
+            if (j >= emotes.length() || emotes.charAt(j) != '-') {
+                return;
+            }
+            j++;
+            while (j < emotes.length() && Character.isDigit(emotes.charAt(j))) {
+                end = end * 10 + emotes.charAt(j++) - '0';
+            }
+            emoteCount++;
+            for (int k = Math.max(0, start); k <= end && k < chars; k++) {
+                if (!emote[k]) {
+                    emote[k] = true;
+                    emoteCharacters++;
+                }
+            }
+            if (j < emotes.length() && emotes.charAt(j) == '/') {
+                j = emotes.indexOf(':', j);
+            }
+            i = j;
+        }
+    }
+
+    /**
+     * @return The number of characters, in code points
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return The percentage of the letters outside emotes that are capitals
+     */
+    public int getUppercasePercent() {
+        return letters == 0 ? 0 : uppercase * 100 / letters;
+    }
+
+    /**
+     * @return The percentage of the visible characters outside emotes that
+     * are neither letters nor digits
+     */
+    public int getSymbolPercent() {
+        return visible == 0 ? 0 : symbols * 100 / visible;
+    }
+
+    /**
+     * @return The number of emotes
+     */
+    public int getEmoteCount() {
+        return emoteCount;
+    }
+
+    /**
+     * @return The percentage of the characters that are part of an emote
+     */
+    public int getEmotePercent() {
+        return length == 0 ? 0 : emoteCharacters * 100 / length;
+    }
+
+    /**
+     * @return The longest run of the same character
+     */
+    public int getLongestRun() {
+        return longestRun;
+    }
+}
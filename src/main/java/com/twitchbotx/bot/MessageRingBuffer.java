@@ -0,0 +1,269 @@
+package com.twitchbotx.bot;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * This class is a preallocated single producer, single consumer ring buffer
+ * for raw IRC lines.
+ *
+ * The socket reader publishes into it and exactly one handler thread consumes
+ * from it. Slots are allocated once, publishing a line only stores a reference
+ * and a timestamp, and sequences are only ever advanced by their owning thread.
+ *
+ * The reader never waits for a slow shard, that would stop the socket for
+ * every other shard too. When a buffer is full it tries for a short while and
+ * then drops the line, which is counted.
+ */
+public final class MessageRingBuffer {
+
+    /**
+     * How the consumer waits for a line.
+     *
+     * BLOCKING parks on a lock and uses no CPU while idle, the others trade
+     * CPU for latency, from SLEEPING (least) to BUSY_SPIN (most).
+     */
+    public enum WaitStrategy {
+        BLOCKING,
+        SLEEPING,
+        YIELDING,
+        BUSY_SPIN;
+
+        /**
+         * @param name A strategy name from the configuration file
+         *
+         * @return The matching strategy, BLOCKING if there is no match
+         */
+        public static WaitStrategy fromName(final String name) {
+            for (WaitStrategy strategy : values()) {
+                if (strategy.name().equalsIgnoreCase(name.trim().replace('-', '_'))) {
+                    return strategy;
+                }
+            }
+            return BLOCKING;
+        }
+    }
+
+    /**
+     * The most slots a buffer may have.
+     */
+    public static final int MAX_SIZE = 1 << 20;
+
+    private static final int SPIN_TRIES = 100;
+
+    private static final int YIELD_TRIES = 200;
+
+    private static final long SLEEP_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final String[] lines;
+
+    private final long[] publishedAt;
+
+    private final int mask;
+
+    private final WaitStrategy waitStrategy;
+
+    // next sequence to publish, only written by the producer
+    private final AtomicLong tail = new AtomicLong();
+
+    // next sequence to consume, only written by the consumer
+    private final AtomicLong head = new AtomicLong();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition stateChanged = lock.newCondition();
+
+    private final BooleanSupplier hasData = () -> head.get() != tail.get();
+
+    // True while the consumer is parked, so the producer only takes the lock
+    // to wake it when it has to
+    private volatile boolean consumerParked;
+
+    private final AtomicLong producerStalls = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile long lastLagNanos;
+
+    private volatile long maxLagNanos;
+
+    /**
+     * @param size The number of slots, rounded up to a power of two, up to
+     * MAX_SIZE
+     *
+     * @param waitStrategy How the consumer waits when the buffer is empty
+     */
+    public MessageRingBuffer(final int size, final WaitStrategy waitStrategy) {
+        if (size < 1 || size > MAX_SIZE) {
+            throw new IllegalArgumentException("Ring buffer size " + size + " is not between 1 and " + MAX_SIZE);
+        }
+        int capacity = 1;
+        while (capacity < size) {
+            capacity <<= 1;
+        }
+        this.lines = new String[capacity];
+        this.publishedAt = new long[capacity];
+        this.mask = capacity - 1;
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * This method publishes a line. If the consumer has fallen a full buffer
+     * behind it spins, then yields, for a bounded number of tries, and then
+     * drops the line. Only the producer thread may call it.
+     *
+     * @param line A raw line from Twitch IRC
+     *
+     * @return False if the buffer stayed full and the line was dropped
+     */
+    public boolean publish(final String line) {
+        final long sequence = tail.get();
+        if (sequence - head.get() >= capacity()) {
+            producerStalls.incrementAndGet();
+            int attempt = 0;
+            while (sequence - head.get() >= capacity()) {
+                if (attempt++ >= YIELD_TRIES) {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+                if (attempt > SPIN_TRIES) {
+                    Thread.yield();
+                }
+            }
+        }
+        final int index = (int) sequence & mask;
+        lines[index] = line;
+        publishedAt[index] = System.nanoTime();
+        if (waitStrategy == WaitStrategy.BLOCKING) {
+            // a full write, so the consumer setting consumerParked and then
+            // reading the tail cannot miss this line
+            tail.set(sequence + 1);
+            wake();
+        } else {
+            tail.lazySet(sequence + 1);
+        }
+        return true;
+    }
+
+    /**
+     * This method takes the next line, waiting for one if the buffer is empty.
+     * Only the consumer thread may call it.
+     *
+     * @return The oldest line in the buffer
+     *
+     * @throws InterruptedException If the consumer is stopped while waiting
+     */
+    public String take() throws InterruptedException {
+        final long sequence = head.get();
+        if (sequence == tail.get()) {
+            await(hasData);
+        }
+        final int index = (int) sequence & mask;
+        final String line = lines[index];
+        final long lag = System.nanoTime() - publishedAt[index];
+        lines[index] = null;
+        head.lazySet(sequence + 1);
+
+        lastLagNanos = lag;
+        if (lag > maxLagNanos) {
+            maxLagNanos = lag;
+        }
+        return line;
+    }
+
+    public int capacity() {
+        return lines.length;
+    }
+
+    /**
+     * @return The number of lines published and not yet consumed
+     */
+    public int occupancy() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public long getPublishedCount() {
+        return tail.get();
+    }
+
+    public long getProducerStalls() {
+        return producerStalls.get();
+    }
+
+    /**
+     * @return The number of lines dropped because the buffer stayed full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return How long the last consumed line waited in the buffer
+     */
+    public long getLastLagNanos() {
+        return lastLagNanos;
+    }
+
+    /**
+     * @return The longest wait since the previous call, and starts over
+     */
+    public long drainMaxLagNanos() {
+        final long max = maxLagNanos;
+        maxLagNanos = 0;
+        return max;
+    }
+
+    private void await(final BooleanSupplier ready) throws InterruptedException {
+        int attempt = 0;
+        while (!ready.getAsBoolean()) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            switch (waitStrategy) {
+                case BUSY_SPIN:
+                    break;
+                case YIELDING:
+                    if (attempt > SPIN_TRIES) {
+                        Thread.yield();
+                    }
+                    break;
+                case SLEEPING:
+                    if (attempt > YIELD_TRIES) {
+                        LockSupport.parkNanos(SLEEP_NANOS);
+                    } else if (attempt > SPIN_TRIES) {
+                        Thread.yield();
+                    }
+                    break;
+                default:
+                    lock.lock();
+                    try {
+                        consumerParked = true;
+                        if (!ready.getAsBoolean()) {
+                            stateChanged.await();
+                        }
+                    } finally {
+                        consumerParked = false;
+                        lock.unlock();
+                    }
+                    break;
+            }
+            attempt++;
+        }
+    }
+
+    private void wake() {
+        if (!consumerParked) {
+            return;
+        }
+        lock.lock();
+        try {
+            stateChanged.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
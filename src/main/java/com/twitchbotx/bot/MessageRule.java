@@ -0,0 +1,167 @@
+package com.twitchbotx.bot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class is an immutable rule on the features of a chat message, such as
+ * caps>70:purge for a message that is more than 70 percent capitals.
+ *
+ * The rules only read a {@link MessageFeatures} computed once per message, so
+ * adding a rule does not add a pass over the message.
+ */
+public final class MessageRule {
+
+    /**
+     * What a rule looks at.
+     */
+    public enum Feature {
+        // Percentage of the letters that are capitals
+        CAPS("caps", "Too many capital letters", true),
+        // Number of emotes
+        EMOTES("emotes", "Too many emotes", false),
+        // Percentage of the characters that are emotes
+        EMOTE_COVERAGE("emotecoverage", "Too many emotes", true),
+        // Percentage of the characters that are symbols
+        SYMBOLS("symbols", "Too many symbols", true),
+        // Longest run of the same character
+        REPEAT("repeat", "Too many repeated characters", false),
+        // Number of characters
+        LENGTH("length", "Message too long", false);
+
+        private final String name;
+
+        private final String reason;
+
+        private final boolean ratio;
+
+        Feature(final String name, final String reason, final boolean ratio) {
+            this.name = name;
+            this.reason = reason;
+            this.ratio = ratio;
+        }
+
+        int valueOf(final MessageFeatures features) {
+            switch (this) {
+                case CAPS:
+                    return features.getUppercasePercent();
+                case EMOTES:
+                    return features.getEmoteCount();
+                case EMOTE_COVERAGE:
+                    return features.getEmotePercent();
+                case SYMBOLS:
+                    return features.getSymbolPercent();
+                case REPEAT:
+                    return features.getLongestRun();
+                default:
+                    return features.getLength();
+            }
+        }
+
+        /**
+         * @param name The name of the feature, in any case
+         *
+         * @return The feature
+         *
+         * @throws IllegalArgumentException If there is no feature by that name
+         */
+        public static Feature fromName(final String name) {
+            for (Feature feature : values()) {
+                if (feature.name.equalsIgnoreCase(name.trim())) {
+                    return feature;
+                }
+            }
+            throw new IllegalArgumentException("Unknown message feature: " + name);
+        }
+    }
+
+    private final Feature feature;
+
+    private final int limit;
+
+    private final FloodDetector.Action action;
+
+    public MessageRule(final Feature feature, final int limit, final FloodDetector.Action action) {
+        this.feature = feature;
+        this.limit = limit;
+        this.action = action;
+    }
+
+    /**
+     * This method parses a list of rules, such as
+     * caps>70:purge, repeat>20:timeout. A rule without an action times out.
+     *
+     * @param text The rules, separated by commas
+     *
+     * @return The rules, in order
+     *
+     * @throws IllegalArgumentException If a rule is not valid
+     */
+    public static List<MessageRule> parseAll(final String text) {
+        final List<MessageRule> rules = new ArrayList<>();
+        for (String rule : text.split(",")) {
+            if (rule.trim().isEmpty()) {
+                continue;
+            }
+            final int greater = rule.indexOf('>');
+            final int colon = rule.indexOf(':');
+            if (greater < 0 || (colon >= 0 && colon < greater)) {
+                throw new IllegalArgumentException("Rule is not feature>limit:action: " + rule.trim());
+            }
+            final String limit = colon < 0 ? rule.substring(greater + 1) : rule.substring(greater + 1, colon);
+            final int number;
+            try {
+                number = Integer.parseInt(limit.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Rule limit is not a number: " + rule.trim());
+            }
+            final FloodDetector.Action action = colon < 0
+                    ? FloodDetector.Action.TIMEOUT
+                    : FloodDetector.Action.fromName(rule.substring(colon + 1));
+            rules.add(new MessageRule(Feature.fromName(rule.substring(0, greater)), number, action));
+        }
+        return Collections.unmodifiableList(rules);
+    }
+
+    /**
+     * This method checks the rule against a message.
+     *
+     * @param features The features of the message
+     *
+     * @param minLength Messages shorter than this never break a percentage
+     * rule, a short message is easily all capitals
+     *
+     * @return True if the message breaks the rule
+     */
+    public boolean isBrokenBy(final MessageFeatures features, final int minLength) {
+        if (feature.ratio && features.getLength() < minLength) {
+            return false;
+        }
+        return feature.valueOf(features) > limit;
+    }
+
+    public Feature getFeature() {
+        return feature;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public FloodDetector.Action getAction() {
+        return action;
+    }
+
+    /**
+     * @return Why a user breaking the rule was acted on
+     */
+    public String getReason() {
+        return feature.reason;
+    }
+
+    @Override
+    public String toString() {
+        return feature.name + ">" + limit + ":" + action.name().toLowerCase();
+    }
+}
@@ -0,0 +1,81 @@
+package com.twitchbotx.bot;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class collects named runtime metrics and logs them periodically.
+ *
+ * Components register a gauge once, and the value is only read when a report
+ * is produced, so registering costs nothing on the message path.
+ */
+public final class MetricsReporter {
+
+    private static final Logger LOGGER = Logger.getLogger(MetricsReporter.class.getSimpleName());
+
+    private final Map<String, Supplier<?>> gauges = new ConcurrentSkipListMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Registers a gauge, replacing any gauge with the same name.
+     *
+     * @param name A dotted name, such as ingest.occupancy
+     *
+     * @param gauge Reads the current value
+     */
+    public void register(final String name, final Supplier<?> gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * @return Every metric as name=value pairs, sorted by name
+     */
+    public String report() {
+        final StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Supplier<?>> entry : gauges.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(entry.getKey()).append('=');
+            try {
+                sb.append(entry.getValue().get());
+            } catch (RuntimeException e) {
+                sb.append('?');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * This method starts logging a report at a fixed interval.
+     *
+     * @param intervalSeconds Seconds between reports, 0 or less disables it
+     */
+    public synchronized void start(final long intervalSeconds) {
+        if (intervalSeconds <= 0 || scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(
+                () -> LOGGER.log(Level.INFO, "Metrics: {0}", report()),
+                intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+}
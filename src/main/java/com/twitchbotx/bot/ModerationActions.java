@@ -0,0 +1,392 @@
+package com.twitchbotx.bot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class decides what is actually sent when a user is to be acted on, so
+ * a spammer whose every message breaks a filter costs one timeout instead of
+ * one per message.
+ *
+ * Each user acted on recently has an incident, which lasts for the merge
+ * window or until their timeout ends, whichever is later. During an incident
+ * an action no stronger than the one sent is dropped, and a stronger one
+ * replaces it. The first action of a new incident within the strike memory is
+ * escalated along the configured ladder, a longer timeout and then a ban if
+ * the ladder has one. A warning or a purge is never a strike, and only a
+ * filter match is ever escalated to a ban. The
+ * users are kept in an open addressing table of primitive arrays keyed by the
+ * user key, users with nothing left to remember are dropped when the table is
+ * rebuilt.
+ *
+ * Each shard has its own, the messages of a user always land on the same
+ * shard. It is not safe for concurrent use.
+ */
+public final class ModerationActions {
+
+    /**
+     * A step of the escalation ladder that bans instead of timing out.
+     */
+    public static final int BAN = 0;
+
+    // Twitch times out for two weeks at most
+    private static final int MAX_TIMEOUT = 1209600;
+
+    private static final long BANNED = Long.MAX_VALUE;
+
+    private static final int MIN_CAPACITY = 64;
+
+    // How long a full table waits before trying to make room again
+    private static final long REBUILD_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * The counts of every shard, for the metrics.
+     */
+    public static final class Stats {
+
+        private final LongAdder sent = new LongAdder();
+
+        private final LongAdder suppressed = new LongAdder();
+
+        private final LongAdder upgraded = new LongAdder();
+
+        private final LongAdder escalated = new LongAdder();
+
+        private final LongAdder overflows = new LongAdder();
+
+        /**
+         * Registers the moderation metrics with the reporter.
+         *
+         * @param metrics The reporter to register with
+         */
+        public void registerMetrics(final MetricsReporter metrics) {
+            metrics.register("moderation.sent", sent::sum);
+            metrics.register("moderation.suppressed", suppressed::sum);
+            metrics.register("moderation.upgraded", upgraded::sum);
+            metrics.register("moderation.escalated", escalated::sum);
+            metrics.register("moderation.overflows", overflows::sum);
+        }
+    }
+
+    private final Stats stats;
+
+    private final int maxCapacity;
+
+    private long[] keys;
+
+    // When the incident of each user ends
+    private long[] incidentEnds;
+
+    // How strong the action sent for the incident was, see severity()
+    private long[] severities;
+
+    private int[] strikes;
+
+    private long[] lastStrikes;
+
+    // slots holding a key, idle or not
+    private int used;
+
+    private boolean full;
+
+    private long retryRebuildAt;
+
+    /**
+     * @param maxUsers The most users remembered at the same time, past it
+     * actions on new users are sent as they are until others are forgotten
+     *
+     * @param stats The counts shared with the other shards
+     */
+    public ModerationActions(final int maxUsers, final Stats stats) {
+        this.stats = stats;
+        this.maxCapacity = Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, maxUsers - 1)) << 2);
+        allocate(MIN_CAPACITY);
+    }
+
+    private void allocate(final int capacity) {
+        keys = new long[capacity];
+        incidentEnds = new long[capacity];
+        severities = new long[capacity];
+        strikes = new int[capacity];
+        lastStrikes = new long[capacity];
+        used = 0;
+    }
+
+    private static int slot(final long key, final int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * This method parses an escalation ladder, such as 3600,86400,ban.
+     *
+     * @param text The timeouts in seconds, or ban, separated by commas
+     *
+     * @return The steps, BAN for a ban
+     *
+     * @throws IllegalArgumentException If a step is not valid
+     */
+    public static List<Integer> parseLadder(final String text) {
+        final List<Integer> ladder = new ArrayList<>();
+        for (String step : text.split(",")) {
+            if (step.trim().isEmpty()) {
+                continue;
+            }
+            if ("ban".equalsIgnoreCase(step.trim())) {
+                ladder.add(BAN);
+                continue;
+            }
+            final int seconds;
+            try {
+                seconds = Integer.parseInt(step.trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Step is not a number of seconds or ban: " + step.trim());
+            }
+            if (seconds < 1 || seconds > MAX_TIMEOUT) {
+                throw new IllegalArgumentException("Step must be between 1 and " + MAX_TIMEOUT + ": " + seconds);
+            }
+            ladder.add(seconds);
+        }
+        return Collections.unmodifiableList(ladder);
+    }
+
+    /**
+     * This method decides what to send for an action on a user.
+     *
+     * @param userKey The key of the user, see {@link CooldownService#userKey}
+     *
+     * @param username The name of the user
+     *
+     * @param action What was asked for
+     *
+     * @param seconds How long a timeout was asked for
+     *
+     * @param reason Why, shown to the user
+     *
+     * @param mayBan False if a ban step of the ladder is to time out for the
+     * longest timeout of the ladder instead, for the spam heuristics
+     *
+     * @param settings The configuration with the merge window, the ladder and
+     * the strike memory
+     *
+     * @return The chat command to send, or null if nothing is sent
+     */
+    public String resolve(final long userKey,
+            final String username,
+            final FloodDetector.Action action,
+            final int seconds,
+            final String reason,
+            final boolean mayBan,
+            final ConfigParser.Configuration settings) {
+        if (action == FloodDetector.Action.NONE) {
+            return null;
+        }
+        final long now = System.nanoTime();
+        final long memory = TimeUnit.SECONDS.toNanos(settings.strikeMemory);
+        final int i = find(userKey == 0L ? 1L : userKey, now, memory);
+        if (i < 0) {
+            stats.sent.increment();
+            return command(username, action, seconds, reason);
+        }
+        final long mergeEnd = now + TimeUnit.SECONDS.toNanos(settings.actionMergeWindow);
+        final long requested = severity(action, seconds);
+        if (now - incidentEnds[i] < 0) {
+            // the same incident, only a stronger action is sent
+            if (requested <= severities[i]) {
+                stats.suppressed.increment();
+                return null;
+            }
+            stats.upgraded.increment();
+            return send(i, username, action, seconds, reason, mergeEnd, now);
+        }
+        if (action == FloodDetector.Action.WARN || action == FloodDetector.Action.PURGE) {
+            return send(i, username, action, seconds, reason, mergeEnd, now);
+        }
+
+        strikes[i] = strikes[i] > 0 && now - lastStrikes[i] < memory ? strikes[i] + 1 : 1;
+        lastStrikes[i] = now;
+        final List<Integer> ladder = settings.escalation;
+        if (strikes[i] > 1 && !ladder.isEmpty()) {
+            stats.escalated.increment();
+            int step = ladder.get(Math.min(strikes[i] - 2, ladder.size() - 1));
+            if (step == BAN && !mayBan) {
+                // a ladder of only bans leaves the timeout that was asked for
+                step = longestTimeout(ladder);
+            } else if (step == BAN) {
+                // a ban is remembered like a strike, in case it is lifted
+                return send(i, username, null, 0, reason, Math.max(mergeEnd, now + memory), now);
+            }
+            return send(i, username, FloodDetector.Action.TIMEOUT, Math.max(seconds, step), reason, mergeEnd, now);
+        }
+        return send(i, username, action, seconds, reason, mergeEnd, now);
+    }
+
+    /**
+     * @return The longest timeout of the ladder, or 0 if it only bans
+     */
+    private static int longestTimeout(final List<Integer> ladder) {
+        int longest = 0;
+        for (int i = 0; i < ladder.size(); i++) {
+            longest = Math.max(longest, ladder.get(i));
+        }
+        return longest;
+    }
+
+    /**
+     * This method records what is sent as the action of the incident.
+     *
+     * @param action The action, null for a ban
+     *
+     * @param end When the incident ends at the earliest
+     */
+    private String send(final int i,
+            final String username,
+            final FloodDetector.Action action,
+            final int seconds,
+            final String reason,
+            final long end,
+            final long now) {
+        severities[i] = severity(action, seconds);
+        incidentEnds[i] = end;
+        if (action != null && action != FloodDetector.Action.WARN) {
+            final long timeoutEnd = now + TimeUnit.SECONDS.toNanos(seconds(action, seconds));
+            if (timeoutEnd - end > 0) {
+                incidentEnds[i] = timeoutEnd;
+            }
+        }
+        stats.sent.increment();
+        return command(username, action, seconds, reason);
+    }
+
+    /**
+     * @return How strong an action is, a warning is the weakest and a ban the
+     * strongest, timeouts are stronger the longer they are
+     */
+    private static long severity(final FloodDetector.Action action, final int seconds) {
+        if (action == null) {
+            return BANNED;
+        }
+        if (action == FloodDetector.Action.WARN) {
+            return 1L;
+        }
+        return 1L + seconds(action, seconds);
+    }
+
+    private static int seconds(final FloodDetector.Action action, final int seconds) {
+        return action == FloodDetector.Action.PURGE ? 1 : Math.min(seconds, MAX_TIMEOUT);
+    }
+
+    private static String command(final String username,
+            final FloodDetector.Action action,
+            final int seconds,
+            final String reason) {
+        if (action == null) {
+            return ".ban " + username + " " + reason;
+        }
+        if (action == FloodDetector.Action.WARN) {
+            return "@" + username + " " + reason + ", please slow down.";
+        }
+        return ".timeout " + username + " " + seconds(action, seconds) + " " + reason;
+    }
+
+    /**
+     * @return The slot of the user, added if needed, or -1 if the table is
+     * full
+     */
+    private int find(final long key, final long now, final long memory) {
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        for (;; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return i;
+            }
+            if (keys[i] == 0L) {
+                break;
+            }
+        }
+        if ((used + 1) * 2 > keys.length) {
+            if ((full && now - retryRebuildAt < 0) || !rebuild(now, memory)) {
+                full = true;
+                stats.overflows.increment();
+                return -1;
+            }
+            mask = keys.length - 1;
+            for (i = slot(key, mask); keys[i] != 0L; i = (i + 1) & mask) {
+                // find the free slot in the new table
+            }
+        }
+        keys[i] = key;
+        incidentEnds[i] = now;
+        severities[i] = 0L;
+        strikes[i] = 0;
+        lastStrikes[i] = now;
+        used++;
+        return i;
+    }
+
+    /**
+     * @return True if a user has an incident going on or a strike to remember
+     */
+    private boolean isRemembered(final int i, final long now, final long memory) {
+        return now - incidentEnds[i] < 0 || (strikes[i] > 0 && now - lastStrikes[i] < memory);
+    }
+
+    /**
+     * Copies the users with something to remember into a table sized for them.
+     *
+     * @return False if there is no room for another user
+     */
+    private boolean rebuild(final long now, final long memory) {
+        int live = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0L && isRemembered(i, now, memory)) {
+                live++;
+            }
+        }
+        int capacity = MIN_CAPACITY;
+        while ((live + 1) * 4 > capacity && capacity < maxCapacity) {
+            capacity <<= 1;
+        }
+        if ((live + 1) * 2 > capacity) {
+            retryRebuildAt = now + REBUILD_RETRY_NANOS;
+            return false;
+        }
+        full = false;
+        final long[] oldKeys = keys;
+        final long[] oldIncidentEnds = incidentEnds;
+        final long[] oldSeverities = severities;
+        final int[] oldStrikes = strikes;
+        final long[] oldLastStrikes = lastStrikes;
+        final boolean[] remembered = new boolean[oldKeys.length];
+        for (int i = 0; i < oldKeys.length; i++) {
+            remembered[i] = oldKeys[i] != 0L && isRemembered(i, now, memory);
+        }
+        allocate(capacity);
+        final int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (remembered[i]) {
+                int j = slot(oldKeys[i], mask);
+                while (keys[j] != 0L) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = oldKeys[i];
+                incidentEnds[j] = oldIncidentEnds[i];
+                severities[j] = oldSeverities[i];
+                strikes[j] = oldStrikes[i];
+                lastStrikes[j] = oldLastStrikes[i];
+                used++;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The users remembered, forgotten or not
+     */
+    public int size() {
+        return used;
+    }
+}
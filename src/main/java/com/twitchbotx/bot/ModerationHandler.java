@@ -5,13 +5,9 @@
  */
 package com.twitchbotx.bot;
 
-import java.io.PrintStream;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import org.w3c.dom.Element;
 
 /**
  *
@@ -19,52 +15,141 @@ import org.w3c.dom.Element;
  */
 public class ModerationHandler {
 
-    private final PrintStream outstream;
+    private final OutboundScheduler outbound;
     private static final Logger LOGGER = Logger.getLogger(YoutubeHandler.class.getSimpleName());
-    private final ConfigParser.Elements elements;
+    private final FilterRegistry filters;
+    private final DuplicateDetector duplicates;
+    private final FloodDetector flood;
+    private final ModerationActions actions;
+    private final ChatLogWriter chatLog;
+    private final LiveConfiguration config;
     private String reason;
-    private Pattern pattern;
-    private Matcher matcher;
-    private static final String BANNED_USERNAME = "(\\d{7}([A-z]{1})\\d{7}|\\d{14})";
-
-    public ModerationHandler(final ConfigParser.Elements elements,
-            final PrintStream stream) {
-        this.elements = elements;
-        this.outstream = stream;
+
+    // Seconds a user is timed out for by a filter
+    private static final int FILTER_TIMEOUT = 600;
+
+    // The roles the duplicate and flood checks leave alone
+    private static final int PRIVILEGED = AuthRule.BROADCASTER | AuthRule.MOD | AuthRule.VIP;
+
+    // Reused for every message checked by this shard
+    private final RegexFilterSet.Search search = new RegexFilterSet.Search();
+
+    private final TextNormalizer.Normalized normalized = new TextNormalizer.Normalized();
+
+    private final int[] weights = new int[64];
+
+    private final MessageFeatures features = new MessageFeatures();
+
+    // The username filter each recent chatter of this shard matched
+    private final UsernameVerdictCache usernames;
+
+    public ModerationHandler(final FilterRegistry filters,
+            final DuplicateDetector duplicates,
+            final FloodDetector.Stats floodStats,
+            final ModerationActions.Stats actionStats,
+            final ChatLogWriter chatLog,
+            final OutboundScheduler outbound,
+            final LiveConfiguration config) {
+        this.filters = filters;
+        this.duplicates = duplicates;
+        this.chatLog = chatLog;
+        this.outbound = outbound;
+        this.config = config;
+        this.usernames = filters.newUsernameCache(config.get().usernameCacheSize);
+        this.flood = new FloodDetector(config.get().floodMaxUsers, floodStats);
+        this.actions = new ModerationActions(config.get().actionMaxUsers, actionStats);
     }
 
+    /**
+     * This method registers the moderation listeners for IRC events.
+     *
+     * @param events The dispatcher of the parser owning this handler
+     */
+    public void registerListeners(final IrcEventDispatcher events) {
+        events.register(IrcCommand.CLEARCHAT, this::onClearChat);
+        events.register(IrcCommand.CLEARMSG, this::onClearMessage);
+    }
+
+    /**
+     * A user was timed out or banned, by this bot or by a moderator.
+     */
+    private void onClearChat(final IrcMessage clear) {
+        if (!clear.hasTrailing()) {
+            LOGGER.info("Chat was cleared by a moderator.");
+            return;
+        }
+        final String duration = clear.getTag("ban-duration");
+        LOGGER.info(clear.getTrailing()
+                + (duration == null ? " was banned." : " was timed out for " + duration + " seconds."));
+    }
+
+    private void onClearMessage(final IrcMessage clear) {
+        LOGGER.info("Message from " + clear.getTag("login") + " deleted: " + clear.getTrailing());
+    }
+
+    /**
+     * This method checks a message against every enabled filter in a single
+     * pass, the regex filters get the time budget of the configuration. The
+     * message is folded once first, so look-alike spellings of a phrase are
+     * caught by the phrase. The patterns see the message as it was posted.
+     *
+     * @param msg The chat message
+     *
+     * @return The reason of the first filter in the message, or "no filter"
+     */
     public String filterCheck(String msg) {
-        for (int i = 0; i < elements.filterNodes.getLength(); i++) {
-            Element ca = (Element) elements.filterNodes.item(i);
-            if (!Boolean.parseBoolean(ca.getAttribute("disabled"))) {
-                String filter = ca.getAttribute("name");
-                reason = ca.getAttribute("reason");
-                if (msg.contains(filter)) {
-                    return reason;
-                }
-            } else {
-                reason = "no filter";
-                return reason;
-            }
+        TextNormalizer.normalize(msg, this.normalized);
+        final Filter filter = this.filters.match(this.normalized, msg, this.search,
+                TimeUnit.MICROSECONDS.toNanos(this.config.get().filterBudgetMicros));
+        if (filter != null && filter.getType() == Filter.Type.PHRASE) {
+            logMatch(filter, msg);
         }
-        reason = "no filter";
+        reason = filter == null ? "no filter" : filter.getReason();
         return reason;
     }
 
-    public void handleTool(String username, String msg) {
+    /**
+     * This method logs the part of the original message a phrase was found in.
+     */
+    private void logMatch(final Filter filter, final String msg) {
+        final String phrase = TextNormalizer.normalize(filter.getName());
+        final int at = this.normalized.indexOf(phrase);
+        if (at >= 0) {
+            LOGGER.info("Filter [" + filter.getName() + "] found in \""
+                    + msg.substring(this.normalized.getOriginalStart(at),
+                            this.normalized.getOriginalEnd(at + phrase.length())) + "\"");
+        }
+    }
+
+    public void handleTool(String username, long userKey, int roles, String emotes, String msg) {
+        // the broadcaster, moderators and VIPs are never checked for
+        // duplicates or flooding, they may post fast and repeat hype
+        final boolean privileged = (roles & PRIVILEGED) != 0;
         for (;;) {
-            Calendar cal = Calendar.getInstance();
-            SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
-            System.out.println(sdf.format(cal.getTime()) + " " + username + ": " + msg);
+            this.chatLog.log(ChatLogWriter.Kind.CHAT, username, msg);
             try {
                 if (!filterCheck(msg).equals("no filter")) {
-                    //System.out.println(reason);
-                    sendMessage(".timeout " + username + " 600 " + reason);
+                    act(username, userKey, FloodDetector.Action.TIMEOUT, FILTER_TIMEOUT, reason, true);
                     return;
-                } else if (userCheck(username)) {
-                    sendMessage(".timeout " + username + " 600 Username caught by filter");
+                }
+                final Filter verdict = userCheck(username);
+                if (verdict != null) {
+                    act(username, userKey, FloodDetector.Action.TIMEOUT, FILTER_TIMEOUT, verdict.getReason(), true);
+                    return;
+                }
+                if (!privileged && duplicateCheck(username)) {
+                    act(username, userKey, FloodDetector.Action.TIMEOUT, FILTER_TIMEOUT,
+                            "Same message posted by too many users", false);
                     return;
                 }
+                final MessageRule rule = ruleCheck(msg, emotes);
+                if (rule != null) {
+                    act(username, userKey, rule.getAction(), this.config.get().ruleTimeout, rule.getReason(), false);
+                    return;
+                }
+                if (!privileged) {
+                    floodCheck(username, userKey, msg);
+                }
                 return;
 
             } catch (Exception e) {
@@ -75,18 +160,106 @@ public class ModerationHandler {
 
     }
 
-    private boolean userCheck(String username) {
-        pattern = Pattern.compile(BANNED_USERNAME);
-        matcher = pattern.matcher(username);
-        // System.out.println(matcher.matches());
-        //System.out.println(username);
-        return matcher.matches();
+    /**
+     * This method checks a username against the username filters, once per
+     * user while the filters are unchanged.
+     *
+     * @param username The username of the chatter
+     *
+     * @return The first filter the username matches, or null
+     */
+    private Filter userCheck(String username) {
+        return this.filters.matchUsername(username, this.usernames, this.search);
+    }
+
+    /**
+     * This method checks whether the message just folded by filterCheck is
+     * posted by too many users at once.
+     *
+     * @param username The user who posted it
+     *
+     * @return True if the message is part of a raid
+     */
+    private boolean duplicateCheck(String username) {
+        final ConfigParser.Configuration settings = this.config.get();
+        if (settings.duplicateUsers == 0 || this.normalized.length() < settings.duplicateMinLength) {
+            return false;
+        }
+        return this.duplicates.check(username,
+                DuplicateDetector.fingerprint(this.normalized, this.weights),
+                settings.duplicateUsers,
+                TimeUnit.SECONDS.toNanos(settings.duplicateWindow));
+    }
+
+    /**
+     * This method counts a message against the flood limits of its user, and
+     * acts on a user who went over one.
+     *
+     * @param username The user who posted it
+     *
+     * @param userKey The key of the user
+     *
+     * @param msg The chat message
+     */
+    private void floodCheck(String username, long userKey, String msg) {
+        final ConfigParser.Configuration settings = this.config.get();
+        final FloodDetector.Limit limit = this.flood.check(userKey, msg.length(),
+                settings.floodMessageAction == FloodDetector.Action.NONE ? 0 : settings.floodMessages,
+                settings.floodCharacterAction == FloodDetector.Action.NONE ? 0 : settings.floodCharacters,
+                TimeUnit.SECONDS.toNanos(settings.floodWindow));
+        if (limit == null) {
+            return;
+        }
+        final FloodDetector.Action action = limit == FloodDetector.Limit.MESSAGES
+                ? settings.floodMessageAction
+                : settings.floodCharacterAction;
+        act(username, userKey, action, settings.floodTimeout, "Flooding chat", false);
+    }
+
+    /**
+     * This method checks a message against the message rules, its features
+     * are computed once whatever the number of rules.
+     *
+     * @param msg The chat message
+     *
+     * @param emotes The emotes tag of the message, or null
+     *
+     * @return The first rule the message breaks, or null
+     */
+    private MessageRule ruleCheck(String msg, String emotes) {
+        final ConfigParser.Configuration settings = this.config.get();
+        final List<MessageRule> rules = settings.messageRules;
+        if (rules.isEmpty()) {
+            return null;
+        }
+        this.features.compute(msg, emotes);
+        for (int i = 0; i < rules.size(); i++) {
+            if (rules.get(i).isBrokenBy(this.features, settings.ruleMinLength)) {
+                return rules.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * This method acts on a user, unless an action as strong was just sent
+     * for them. Actions on a user still waiting to be sent are merged into
+     * one.
+     */
+    private void act(String username, long userKey, FloodDetector.Action action, int timeout, String why,
+            boolean mayBan) {
+        final String command = this.actions.resolve(userKey, username, action, timeout, why, mayBan,
+                this.config.get());
+        if (command != null) {
+            this.chatLog.log(ChatLogWriter.Kind.MODERATION, username, command);
+            sendMessage("mod:" + username, command);
+        }
     }
 
-    private void sendMessage(final String msg) {
+    private void sendMessage(final String key, final String msg) {
         final String message = msg;
-        this.outstream.println("PRIVMSG #"
-                + this.elements.configNode.getElementsByTagName("myChannel").item(0).getTextContent()
+        this.outbound.send(OutboundScheduler.Priority.MODERATION, key, "PRIVMSG #"
+                + this.config.get().joinedChannel
                 + " "
                 + ":"
                 + message);
@@ -0,0 +1,417 @@
+package com.twitchbotx.bot;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * This class is one change to the XML document, as written to the journal.
+ *
+ * A change records the whole state of the command, subcommand, counter or
+ * filter it touched, not the edit itself, so applying it twice gives the same
+ * document as applying it once. Replaying a journal over a snapshot that
+ * already holds some of its changes is therefore safe.
+ *
+ * Counters and filters are not in the document, their changes are applied to
+ * the lists of {@link ConfigParser.Elements} instead.
+ */
+public final class Mutation {
+
+    /**
+     * The kinds of change.
+     */
+    public enum Type {
+
+        // An element was added or changed, the record holds all of it
+        UPSERT,
+        // An element was deleted
+        DELETE,
+        // A setting of the config node was changed
+        CONFIG
+    }
+
+    private static final String[] NO_ATTRIBUTES = new String[0];
+
+    private final Type type;
+
+    // command, subcommand, counter or filter, or the tag of a setting
+    private final String tag;
+
+    private final String name;
+
+    // Attribute names and values, one after the other
+    private final String[] attributes;
+
+    private final String text;
+
+    private Mutation(final Type type,
+            final String tag,
+            final String name,
+            final String[] attributes,
+            final String text) {
+        this.type = type;
+        this.tag = tag;
+        this.name = name;
+        this.attributes = attributes;
+        this.text = text;
+    }
+
+    /**
+     * @param e A command, subcommand, counter or filter element that was added
+     * or changed
+     *
+     * @return A change holding the element as it is now
+     */
+    public static Mutation upsert(final Element e) {
+        final NamedNodeMap attrs = e.getAttributes();
+        final String[] attributes = new String[attrs.getLength() * 2];
+        for (int i = 0; i < attrs.getLength(); i++) {
+            final Node attr = attrs.item(i);
+            attributes[i * 2] = attr.getNodeName();
+            attributes[i * 2 + 1] = attr.getNodeValue();
+        }
+        return new Mutation(Type.UPSERT, e.getTagName(), e.getAttribute("name"), attributes, e.getTextContent());
+    }
+
+    /**
+     * @param e A command, subcommand, counter or filter element that was
+     * removed from the document
+     *
+     * @return A change deleting the element
+     */
+    public static Mutation delete(final Element e) {
+        return delete(e.getTagName(), e.getAttribute("name"));
+    }
+
+    /**
+     * @param tag command, subcommand, counter or filter
+     *
+     * @param name The name of what was removed
+     *
+     * @return A change deleting it
+     */
+    public static Mutation delete(final String tag, final String name) {
+        return new Mutation(Type.DELETE, tag, name, NO_ATTRIBUTES, "");
+    }
+
+    /**
+     * @param name The name of a counter that was added or changed
+     *
+     * @param value Its value now
+     *
+     * @return A change holding the counter
+     */
+    public static Mutation counter(final String name, final int value) {
+        return new Mutation(Type.UPSERT, "counter", name, new String[]{"name", name}, Integer.toString(value));
+    }
+
+    /**
+     * @param filter A filter that was added or changed
+     *
+     * @return A change holding the filter, with the attributes of a filter
+     * node
+     */
+    public static Mutation filter(final Filter filter) {
+        final String[] attributes = filter.getType() == Filter.Type.PHRASE
+                ? new String[]{"name", filter.getName(), "reason", filter.getReason(),
+                    "disabled", Boolean.toString(filter.isDisabled())}
+                : new String[]{"name", filter.getName(), "reason", filter.getReason(),
+                    "disabled", Boolean.toString(filter.isDisabled()), "type", filter.getType().getName()};
+        return new Mutation(Type.UPSERT, "filter", filter.getName(), attributes, "");
+    }
+
+    /**
+     * @param tag The tag of a setting in the config node
+     *
+     * @param value The new text of the setting
+     *
+     * @return A change setting it
+     */
+    public static Mutation config(final String tag, final String value) {
+        return new Mutation(Type.CONFIG, tag, "", NO_ATTRIBUTES, value);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getTag() {
+        return tag;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The key of the element or setting this change is about, the
+     * same for every change to it
+     */
+    public String getKey() {
+        return type == Type.CONFIG ? "config\n" + tag : tag + '\n' + name;
+    }
+
+    /**
+     * This method creates the element an upsert holds, the caller holds the
+     * document lock.
+     *
+     * @param doc The document to create it in
+     *
+     * @return The element, not yet added to the document
+     */
+    public Element toElement(final Document doc) {
+        final Element e = doc.createElement(tag);
+        for (int i = 0; i < attributes.length; i += 2) {
+            e.setAttribute(attributes[i], attributes[i + 1]);
+        }
+        if (!text.isEmpty()) {
+            e.setTextContent(text);
+        }
+        return e;
+    }
+
+    private String attribute(final String attribute) {
+        for (int i = 0; i < attributes.length; i += 2) {
+            if (attributes[i].equals(attribute)) {
+                return attributes[i + 1];
+            }
+        }
+        return "";
+    }
+
+    /**
+     * This method applies changes read from the journal to the document, the
+     * caller holds the document lock.
+     *
+     * @param elements The XML elements
+     *
+     * @param mutations The changes, oldest first
+     *
+     * @return The number of changes that were applied
+     */
+    public static int applyAll(final ConfigParser.Elements elements, final List<Mutation> mutations) {
+        // Built on the first change, a journal can hold thousands of them
+        final Map<String, Element> index = new HashMap<>();
+        final Map<String, Integer> filterIndex = new HashMap<>();
+        int applied = 0;
+        for (Mutation mutation : mutations) {
+            if (mutation.apply(elements, index, filterIndex)) {
+                applied++;
+            }
+        }
+        return applied;
+    }
+
+    private boolean apply(final ConfigParser.Elements elements,
+            final Map<String, Element> index,
+            final Map<String, Integer> filterIndex) {
+        if ("counter".equals(tag)) {
+            if (type == Type.DELETE) {
+                elements.counterValues.remove(name);
+            } else {
+                elements.counterValues.put(name, ConfigParser.parseCounter(text));
+            }
+            return true;
+        }
+        if ("filter".equals(tag)) {
+            applyFilter(elements.filterList, filterIndex);
+            return true;
+        }
+        if (type == Type.CONFIG) {
+            Element setting = (Element) elements.configNode.getElementsByTagName(tag).item(0);
+            if (setting == null) {
+                setting = elements.doc.createElement(tag);
+                elements.configNode.appendChild(setting);
+            }
+            setting.setTextContent(text);
+            return true;
+        }
+
+        final Element section = section(elements, tag);
+        if (section == null) {
+            return false;
+        }
+        if (index.isEmpty()) {
+            indexSection(elements.commandNodes, index);
+            indexSection(elements.subCommandNodes, index);
+        }
+
+        final String key = getKey();
+        Element e = index.get(key);
+        if (type == Type.DELETE) {
+            if (e != null) {
+                section.removeChild(e);
+                index.remove(key);
+            }
+            return true;
+        }
+
+        if (e == null) {
+            e = elements.doc.createElement(tag);
+            section.appendChild(e);
+            index.put(key, e);
+        } else {
+            final NamedNodeMap attrs = e.getAttributes();
+            while (attrs.getLength() > 0) {
+                e.removeAttribute(attrs.item(0).getNodeName());
+            }
+        }
+        for (int i = 0; i < attributes.length; i += 2) {
+            e.setAttribute(attributes[i], attributes[i + 1]);
+        }
+        e.setTextContent(text);
+        return true;
+    }
+
+    /**
+     * This method changes the first filter with the name, as the handlers do,
+     * the index of the filters by name is built on the first change and
+     * dropped when a filter is deleted.
+     */
+    private void applyFilter(final List<Filter> filters, final Map<String, Integer> filterIndex) {
+        if (filterIndex.isEmpty()) {
+            for (int i = 0; i < filters.size(); i++) {
+                filterIndex.putIfAbsent(filters.get(i).getName(), i);
+            }
+        }
+        final Integer at = filterIndex.get(name);
+        if (type == Type.DELETE) {
+            if (at != null) {
+                filters.remove((int) at);
+                filterIndex.clear();
+            }
+            return;
+        }
+        final Filter filter = new Filter(name,
+                attribute("reason"),
+                Boolean.parseBoolean(attribute("disabled")),
+                Filter.Type.fromName(attribute("type")));
+        if (at == null) {
+            filterIndex.put(name, filters.size());
+            filters.add(filter);
+        } else {
+            filters.set(at, filter);
+        }
+    }
+
+    private static Element section(final ConfigParser.Elements elements, final String tag) {
+        switch (tag) {
+            case "command":
+                return elements.commands;
+            case "subcommand":
+                return elements.subCommands;
+            default:
+                return null;
+        }
+    }
+
+    private static void indexSection(final NodeList nodes, final Map<String, Element> index) {
+        for (int i = 0; i < nodes.getLength(); i++) {
+            final Element e = (Element) nodes.item(i);
+            // handlers change the first element with a name, so does replay
+            index.putIfAbsent(e.getTagName() + '\n' + e.getAttribute("name"), e);
+        }
+    }
+
+    /**
+     * This method writes the change in the journal format.
+     *
+     * @param out The stream to write to
+     *
+     * @throws IOException If the stream fails
+     */
+    public void writeTo(final DataOutputStream out) throws IOException {
+        out.writeByte(type.ordinal());
+        writeString(out, tag);
+        writeString(out, name);
+        out.writeShort(attributes.length / 2);
+        for (String attribute : attributes) {
+            writeString(out, attribute);
+        }
+        writeString(out, text);
+    }
+
+    /**
+     * @return The change in the journal format
+     */
+    public byte[] toBytes() {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try {
+            writeTo(new DataOutputStream(bytes));
+        } catch (IOException e) {
+            // a byte array does not fail
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param bytes A change written by {@link #toBytes()}
+     *
+     * @return The change
+     *
+     * @throws IOException If the bytes do not hold a change
+     */
+    public static Mutation fromBytes(final byte[] bytes) throws IOException {
+        return readFrom(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    /**
+     * This method reads a change written by {@link #writeTo(DataOutputStream)}.
+     *
+     * @param in The stream to read from
+     *
+     * @return The change
+     *
+     * @throws IOException If the stream fails or does not hold a change
+     */
+    public static Mutation readFrom(final DataInputStream in) throws IOException {
+        final int ordinal = in.readUnsignedByte();
+        if (ordinal >= Type.values().length) {
+            throw new IOException("Unknown change type " + ordinal);
+        }
+        final String tag = readString(in);
+        final String name = readString(in);
+        final int count = in.readUnsignedShort();
+        final String[] attributes = count == 0 ? NO_ATTRIBUTES : new String[count * 2];
+        for (int i = 0; i < attributes.length; i++) {
+            attributes[i] = readString(in);
+        }
+        return new Mutation(Type.values()[ordinal], tag, name, attributes, readString(in));
+    }
+
+    // writeUTF stops at 64KB, a response has no such limit
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Bad string length " + length);
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return "Mutation{" + "type=" + type
+                + ", tag=" + tag
+                + ", name=" + name + '}';
+    }
+}
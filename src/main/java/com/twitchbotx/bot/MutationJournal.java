@@ -0,0 +1,193 @@
+package com.twitchbotx.bot;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * This class is an append only file of changes to the XML document.
+ *
+ * Every record is framed by its length and a checksum. A batch of records is
+ * written with one write and made durable with one sync, however many changes
+ * it holds. A record cut short by a crash fails its checksum, reading stops
+ * there and the file is cut back to the last whole record.
+ *
+ * Only one thread uses a journal at a time.
+ */
+public final class MutationJournal implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(MutationJournal.class.getSimpleName());
+
+    // length and checksum in front of every record
+    private static final int HEADER_BYTES = 8;
+
+    // No single change comes close, a bigger length is a torn header
+    private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+
+    private final Path file;
+
+    private final FileChannel channel;
+
+    // One record while it is encoded
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream(512);
+
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+
+    // Every record of a batch, with their headers
+    private final ByteArrayOutputStream batch = new ByteArrayOutputStream(4096);
+
+    private final DataOutputStream batchOut = new DataOutputStream(batch);
+
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * @param file The journal file, created if it does not exist
+     *
+     * @throws IOException If the file cannot be opened
+     */
+    public MutationJournal(final Path file) throws IOException {
+        this.file = file.toAbsolutePath();
+        this.channel = FileChannel.open(this.file,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.channel.position(this.channel.size());
+    }
+
+    /**
+     * This method reads every whole record of the journal, and cuts off a
+     * record that was only partly written.
+     *
+     * @return The changes, oldest first
+     *
+     * @throws IOException If the file cannot be read
+     */
+    public List<Mutation> readAll() throws IOException {
+        final List<Mutation> mutations = new ArrayList<>();
+        final long size = channel.size();
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        long position = 0L;
+        while (position + HEADER_BYTES <= size) {
+            header.clear();
+            readFully(header, position);
+            header.flip();
+            final int length = header.getInt();
+            final long checksum = header.getInt() & 0xFFFFFFFFL;
+            if (length <= 0 || length > MAX_RECORD_BYTES || position + HEADER_BYTES + length > size) {
+                break;
+            }
+            final ByteBuffer body = ByteBuffer.allocate(length);
+            readFully(body, position + HEADER_BYTES);
+            crc.reset();
+            crc.update(body.array(), 0, length);
+            if (crc.getValue() != checksum) {
+                break;
+            }
+            try {
+                mutations.add(Mutation.readFrom(new DataInputStream(new ByteArrayInputStream(body.array()))));
+            } catch (IOException e) {
+                break;
+            }
+            position += HEADER_BYTES + length;
+        }
+        if (position < size) {
+            LOGGER.warning("Dropped " + (size - position) + " bytes of a partly written change from " + file);
+            channel.truncate(position);
+            channel.force(true);
+        }
+        channel.position(position);
+        return mutations;
+    }
+
+    private void readFully(final ByteBuffer target, final long position) throws IOException {
+        long at = position;
+        while (target.hasRemaining()) {
+            final int read = channel.read(target, at);
+            if (read < 0) {
+                throw new IOException("Unexpected end of " + file);
+            }
+            at += read;
+        }
+    }
+
+    /**
+     * This method appends changes and waits until they are on disk.
+     *
+     * @param mutations The changes, oldest first
+     *
+     * @throws IOException If the changes could not be written, the journal
+     * then holds none of them
+     */
+    public void append(final List<Mutation> mutations) throws IOException {
+        if (mutations.isEmpty()) {
+            return;
+        }
+        batch.reset();
+        for (Mutation mutation : mutations) {
+            record.reset();
+            mutation.writeTo(recordOut);
+            recordOut.flush();
+            final byte[] bytes = record.toByteArray();
+            crc.reset();
+            crc.update(bytes, 0, bytes.length);
+            batchOut.writeInt(bytes.length);
+            batchOut.writeInt((int) crc.getValue());
+            batchOut.write(bytes);
+        }
+        batchOut.flush();
+
+        final long start = channel.position();
+        try {
+            final ByteBuffer bytes = ByteBuffer.wrap(batch.toByteArray());
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            // leave no half batch behind for the next one to follow
+            try {
+                channel.truncate(start);
+                channel.position(start);
+            } catch (IOException ignored) {
+                // the checksums catch it on the next start
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * This method empties the journal, once a snapshot holds every change in
+     * it.
+     *
+     * @throws IOException If the file cannot be cut
+     */
+    public void clear() throws IOException {
+        channel.truncate(0L);
+        channel.position(0L);
+        channel.force(true);
+    }
+
+    /**
+     * @return The size of the journal in bytes
+     *
+     * @throws IOException If the size cannot be read
+     */
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
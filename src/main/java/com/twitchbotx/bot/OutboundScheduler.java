@@ -0,0 +1,345 @@
+package com.twitchbotx.bot;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class is the single writer for everything the bot sends to Twitch IRC.
+ *
+ * Senders queue lines into priority lanes instead of writing to the socket.
+ * One thread drains the lanes in priority order and keeps chat messages within
+ * the Twitch command budget: 20 per 30 seconds, or 100 per 30 seconds while
+ * the bot is a moderator of the channel.
+ */
+public final class OutboundScheduler {
+
+    private static final Logger LOGGER = Logger.getLogger(OutboundScheduler.class.getSimpleName());
+
+    // Twitch counts commands and messages over a 30 second window
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private static final int REGULAR_LIMIT = 20;
+
+    private static final int MODERATOR_LIMIT = 100;
+
+    /**
+     * What happens when a lane is full.
+     */
+    public enum OverflowPolicy {
+        DROP_OLDEST,
+        DROP_NEWEST
+    }
+
+    /**
+     * The lanes, in the order they are drained.
+     *
+     * CONTROL is protocol traffic (PONG, PING, JOIN, login) which does not use
+     * the command budget. The others are all chat messages and share it.
+     */
+    public enum Priority {
+        CONTROL(64, false, OverflowPolicy.DROP_OLDEST),
+        MODERATION(256, true, OverflowPolicy.DROP_OLDEST),
+        REPLY(128, true, OverflowPolicy.DROP_OLDEST),
+        TIMER(16, true, OverflowPolicy.DROP_NEWEST);
+
+        final int capacity;
+
+        final boolean rateLimited;
+
+        final OverflowPolicy overflow;
+
+        Priority(final int capacity, final boolean rateLimited, final OverflowPolicy overflow) {
+            this.capacity = capacity;
+            this.rateLimited = rateLimited;
+            this.overflow = overflow;
+        }
+    }
+
+    /**
+     * A queued line, the key is used to merge lines that say the same thing.
+     */
+    private static final class Outbound {
+
+        final String key;
+
+        String line;
+
+        Outbound(final String key, final String line) {
+            this.key = key;
+            this.line = line;
+        }
+    }
+
+    /**
+     * A bounded queue for a single priority.
+     */
+    private static final class Lane {
+
+        final Priority priority;
+
+        final ArrayDeque<Outbound> queue;
+
+        final Map<String, Outbound> pendingByKey = new HashMap<>();
+
+        Lane(final Priority priority) {
+            this.priority = priority;
+            this.queue = new ArrayDeque<>(priority.capacity);
+        }
+
+        Outbound poll() {
+            final Outbound outbound = queue.poll();
+            if (outbound != null && outbound.key != null) {
+                pendingByKey.remove(outbound.key);
+            }
+            return outbound;
+        }
+    }
+
+    /**
+     * A token bucket matching the Twitch limit.
+     *
+     * Every message spends a token and the token only returns to the bucket a
+     * full window after it was spent, so no 30 second window ever holds more
+     * messages than the limit allows.
+     */
+    private static final class CommandBudget {
+
+        private final long[] spentAt = new long[MODERATOR_LIMIT];
+
+        private long spent;
+
+        /**
+         * @return 0 if a token is available now, otherwise how many
+         * nanoseconds until one is
+         */
+        long delayNanos(final long now, final int limit) {
+            if (spent < limit) {
+                return 0;
+            }
+            final long oldest = spentAt[(int) ((spent - limit) % spentAt.length)];
+            final long wait = oldest + WINDOW_NANOS - now;
+            return wait > 0 ? wait : 0;
+        }
+
+        void spend(final long now) {
+            spentAt[(int) (spent % spentAt.length)] = now;
+            spent++;
+        }
+    }
+
+    private final PrintStream out;
+
+    private final Lane[] lanes;
+
+    private final CommandBudget budget = new CommandBudget();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition changed = lock.newCondition();
+
+    private final AtomicLong sent = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicLong merged = new AtomicLong();
+
+    private volatile boolean moderator;
+
+    private volatile boolean running;
+
+    private Thread writer;
+
+    /**
+     * A simple constructor for the scheduler.
+     *
+     * @param out The output stream to the Twitch API
+     */
+    public OutboundScheduler(final PrintStream out) {
+        this.out = out;
+        final Priority[] priorities = Priority.values();
+        this.lanes = new Lane[priorities.length];
+        for (Priority priority : priorities) {
+            this.lanes[priority.ordinal()] = new Lane(priority);
+        }
+    }
+
+    /**
+     * This method starts the thread that writes queued lines to Twitch.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        writer = new Thread(this::drain, "outbound-scheduler");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * This method stops the writer thread, anything still queued is dropped.
+     */
+    public synchronized void stop() {
+        running = false;
+        if (writer != null) {
+            writer.interrupt();
+            writer = null;
+        }
+    }
+
+    /**
+     * Moderators get a larger command budget from Twitch.
+     *
+     * @param moderator True if the bot is a moderator in the joined channel
+     */
+    public void setModerator(final boolean moderator) {
+        if (this.moderator != moderator) {
+            LOGGER.log(Level.INFO, "Outbound budget set to {0} messages per 30 seconds",
+                    moderator ? MODERATOR_LIMIT : REGULAR_LIMIT);
+        }
+        this.moderator = moderator;
+        signal();
+    }
+
+    /**
+     * Queues a raw IRC line, a line identical to one already queued in the same
+     * lane is merged into it.
+     *
+     * @param priority The lane for this line
+     *
+     * @param line The raw IRC line, without a line terminator
+     */
+    public void send(final Priority priority, final String line) {
+        send(priority, line, line);
+    }
+
+    /**
+     * Queues a raw IRC line. If a line with the same key is still waiting in
+     * this lane, it is replaced in place instead of queued again.
+     *
+     * @param priority The lane for this line
+     *
+     * @param key The merge key, or null to never merge this line
+     *
+     * @param line The raw IRC line, without a line terminator
+     */
+    public void send(final Priority priority, final String key, final String line) {
+        final Lane lane = lanes[priority.ordinal()];
+        lock.lock();
+        try {
+            if (key != null) {
+                final Outbound pending = lane.pendingByKey.get(key);
+                if (pending != null) {
+                    pending.line = line;
+                    merged.incrementAndGet();
+                    return;
+                }
+            }
+            if (lane.queue.size() >= priority.capacity) {
+                dropped.incrementAndGet();
+                if (priority.overflow == OverflowPolicy.DROP_NEWEST) {
+                    return;
+                }
+                lane.poll();
+            }
+            final Outbound outbound = new Outbound(key, line);
+            lane.queue.add(outbound);
+            if (key != null) {
+                lane.pendingByKey.put(key, outbound);
+            }
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getMergedCount() {
+        return merged.get();
+    }
+
+    /**
+     * @return The number of lines waiting in every lane
+     */
+    public int getQueuedCount() {
+        lock.lock();
+        try {
+            int queued = 0;
+            for (Lane lane : lanes) {
+                queued += lane.queue.size();
+            }
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void signal() {
+        lock.lock();
+        try {
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The writer loop, it always picks the highest priority line, and waits
+     * for a token when that line is a chat message and the budget is spent. A
+     * higher priority line arriving while waiting wakes it up again.
+     */
+    private void drain() {
+        lock.lock();
+        try {
+            while (running) {
+                Lane lane = null;
+                for (Lane candidate : lanes) {
+                    if (!candidate.queue.isEmpty()) {
+                        lane = candidate;
+                        break;
+                    }
+                }
+                if (lane == null) {
+                    changed.await();
+                    continue;
+                }
+                if (lane.priority.rateLimited) {
+                    final long now = System.nanoTime();
+                    final long wait = budget.delayNanos(now, moderator ? MODERATOR_LIMIT : REGULAR_LIMIT);
+                    if (wait > 0) {
+                        changed.awaitNanos(wait);
+                        continue;
+                    }
+                    budget.spend(now);
+                }
+                final Outbound outbound = lane.poll();
+                lock.unlock();
+                try {
+                    out.println(outbound.line);
+                    sent.incrementAndGet();
+                } finally {
+                    lock.lock();
+                }
+            }
+        } catch (InterruptedException e) {
+            LOGGER.info("Outbound scheduler stopped.");
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -56,11 +56,11 @@ public class PubSubHandler {
 
     private final ConfigParser.Elements elements;
 
-    private final PrintStream outstream;
+    private final OutboundScheduler outbound;
 
-    public PubSubHandler(ConfigParser.Elements elements, PrintStream outstream, String host, int port) {
+    public PubSubHandler(ConfigParser.Elements elements, OutboundScheduler outbound, String host, int port) {
         this.elements = elements;
-        this.outstream = outstream;
+        this.outbound = outbound;
         try {
             Socket pubS = new Socket(host, port);
             out = new PrintStream(pubS.getOutputStream());
@@ -83,7 +83,7 @@ public class PubSubHandler {
 
     public void sendWhisper(final String msg) {
         final String message = msg;
-        this.outstream.println("PRIVMSG #"
+        this.outbound.send(OutboundScheduler.Priority.REPLY, "PRIVMSG #"
                 + this.elements.configNode.getElementsByTagName("myChannel").item(0).getTextContent()
                 + " "
                 + ":"
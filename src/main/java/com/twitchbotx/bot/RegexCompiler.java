@@ -0,0 +1,590 @@
+package com.twitchbotx.bot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * This class compiles regex filters into one program for
+ * {@link RegexFilterSet}.
+ *
+ * Every pattern becomes a Thompson automaton, which is run without
+ * backtracking, so the time a message takes grows with its length and the
+ * size of the patterns and nothing else. The syntax is the part of
+ * java.util.regex such an automaton can run: literals, escapes, character
+ * classes, the predefined classes \d \w \s and their negations, groups,
+ * alternation, greedy and lazy quantifiers, ^ $ \b \B and a leading (?i).
+ * Backreferences, lookaround, possessive quantifiers and other flags are
+ * rejected.
+ */
+final class RegexCompiler {
+
+    // Keeps a single pattern from growing the program without bounds, such as
+    // with nested counted repetition
+    static final int MAX_PATTERN_SIZE = 10000;
+
+    static final int MAX_REPEAT = 1000;
+
+    // Unbounded repetition
+    private static final int INFINITE = -1;
+
+    private static final char[] DIGIT = {'0', '9'};
+
+    private static final char[] WORD = {'0', '9', 'A', 'Z', '_', '_', 'a', 'z'};
+
+    private static final char[] SPACE = {'\t', '\r', ' ', ' '};
+
+    // The line terminators, which . does not match
+    private static final char[] LINE_TERMINATORS = {'\n', '\n', '\r', '\r', '\u0085', '\u0085', '\u2028', '\u2029'};
+
+    // The parsed pattern
+    private static final class Node {
+
+        static final int CLASS = 0;
+        static final int CONCAT = 1;
+        static final int ALTERNATE = 2;
+        static final int REPEAT = 3;
+        static final int ASSERT = 4;
+
+        final int kind;
+
+        RegexFilterSet.CharClass charClass;
+
+        // The instruction of an assertion
+        int assertion;
+
+        final List<Node> children = new ArrayList<>();
+
+        int min;
+
+        int max;
+
+        Node(final int kind) {
+            this.kind = kind;
+        }
+    }
+
+    // The program of every pattern added so far
+    private final IntList ops = new IntList();
+    private final IntList args1 = new IntList();
+    private final IntList args2 = new IntList();
+    private final IntList owners = new IntList();
+    private final List<RegexFilterSet.CharClass> classes = new ArrayList<>();
+    private final IntList starts = new IntList();
+
+    // The pattern being parsed
+    private String regex;
+    private int pos;
+    private boolean foldCase;
+
+    /**
+     * This method checks that a pattern can be compiled.
+     *
+     * @param regex The pattern
+     *
+     * @throws PatternSyntaxException If it is not valid or uses syntax that
+     * is not supported
+     */
+    static void validate(final String regex) {
+        new RegexCompiler().add(regex);
+    }
+
+    /**
+     * This method adds a pattern to the program, patterns are numbered in
+     * the order they are added.
+     *
+     * @param pattern The pattern
+     *
+     * @throws PatternSyntaxException If it is not valid or uses syntax that
+     * is not supported, the program is then unchanged
+     */
+    void add(final String pattern) {
+        this.regex = pattern;
+        this.pos = 0;
+        this.foldCase = false;
+        if (regex.startsWith("(?i)")) {
+            foldCase = true;
+            pos = 4;
+        }
+        final Node root = parseAlternation();
+        if (pos < regex.length()) {
+            throw error(regex.charAt(pos) == ')' ? "Unmatched closing ')'" : "Unexpected character");
+        }
+
+        final int mark = ops.size();
+        final int classMark = classes.size();
+        try {
+            starts.add(mark);
+            emit(root);
+            emitOp(RegexFilterSet.MATCH, 0, 0);
+        } catch (PatternSyntaxException e) {
+            ops.truncate(mark);
+            args1.truncate(mark);
+            args2.truncate(mark);
+            owners.truncate(mark);
+            starts.truncate(starts.size() - 1);
+            classes.subList(classMark, classes.size()).clear();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The number of patterns added
+     */
+    int size() {
+        return starts.size();
+    }
+
+    /**
+     * This method creates the automaton of every pattern added.
+     *
+     * @param costs Counts the steps taken for each pattern, in the order they
+     * were added
+     *
+     * @return The automaton
+     */
+    RegexFilterSet build(final LongAdder[] costs) {
+        return new RegexFilterSet(ops.toArray(), args1.toArray(), args2.toArray(), owners.toArray(),
+                classes.toArray(new RegexFilterSet.CharClass[0]), starts.toArray(), costs);
+    }
+
+    private Node parseAlternation() {
+        final Node first = parseConcatenation();
+        if (pos >= regex.length() || regex.charAt(pos) != '|') {
+            return first;
+        }
+        final Node alternation = new Node(Node.ALTERNATE);
+        alternation.children.add(first);
+        while (pos < regex.length() && regex.charAt(pos) == '|') {
+            pos++;
+            alternation.children.add(parseConcatenation());
+        }
+        return alternation;
+    }
+
+    private Node parseConcatenation() {
+        final Node concatenation = new Node(Node.CONCAT);
+        while (pos < regex.length() && regex.charAt(pos) != '|' && regex.charAt(pos) != ')') {
+            concatenation.children.add(parseRepetition());
+        }
+        return concatenation;
+    }
+
+    private Node parseRepetition() {
+        final Node atom = parseAtom();
+        if (pos >= regex.length()) {
+            return atom;
+        }
+        int min;
+        int max;
+        switch (regex.charAt(pos)) {
+            case '*':
+                min = 0;
+                max = INFINITE;
+                pos++;
+                break;
+            case '+':
+                min = 1;
+                max = INFINITE;
+                pos++;
+                break;
+            case '?':
+                min = 0;
+                max = 1;
+                pos++;
+                break;
+            case '{':
+                pos++;
+                min = parseCount();
+                max = min;
+                if (pos < regex.length() && regex.charAt(pos) == ',') {
+                    pos++;
+                    max = pos < regex.length() && regex.charAt(pos) == '}' ? INFINITE : parseCount();
+                }
+                if (pos >= regex.length() || regex.charAt(pos) != '}') {
+                    throw error("Unclosed counted closure");
+                }
+                pos++;
+                if (max != INFINITE && max < min) {
+                    throw error("Illegal repetition range");
+                }
+                break;
+            default:
+                return atom;
+        }
+        if (pos < regex.length()) {
+            final char next = regex.charAt(pos);
+            if (next == '?') {
+                // lazy and greedy find the same matches
+                pos++;
+            } else if (next == '+') {
+                throw error("Possessive quantifiers are not supported");
+            }
+        }
+        if (pos < regex.length() && "*+?{".indexOf(regex.charAt(pos)) >= 0) {
+            throw error("Dangling meta character '" + regex.charAt(pos) + "'");
+        }
+        final Node repetition = new Node(Node.REPEAT);
+        repetition.children.add(atom);
+        repetition.min = min;
+        repetition.max = max;
+        return repetition;
+    }
+
+    private int parseCount() {
+        final int start = pos;
+        while (pos < regex.length() && Character.isDigit(regex.charAt(pos))) {
+            pos++;
+        }
+        if (pos == start) {
+            throw error("Illegal repetition");
+        }
+        if (pos - start > 4 || Integer.parseInt(regex.substring(start, pos)) > MAX_REPEAT) {
+            throw error("Repetition above " + MAX_REPEAT);
+        }
+        return Integer.parseInt(regex.substring(start, pos));
+    }
+
+    private Node parseAtom() {
+        final char c = regex.charAt(pos);
+        switch (c) {
+            case '(':
+                pos++;
+                if (regex.startsWith("?:", pos)) {
+                    pos += 2;
+                } else if (pos < regex.length() && regex.charAt(pos) == '?') {
+                    throw error("Only (?:...) groups and a leading (?i) are supported");
+                }
+                final Node group = parseAlternation();
+                if (pos >= regex.length() || regex.charAt(pos) != ')') {
+                    throw error("Unclosed group");
+                }
+                pos++;
+                return group;
+            case '[':
+                pos++;
+                return classNode(parseClass());
+            case '.':
+                pos++;
+                return classNode(new RegexFilterSet.CharClass(LINE_TERMINATORS, true, false));
+            case '^':
+                pos++;
+                return assertion(RegexFilterSet.BEGIN);
+            case '$':
+                pos++;
+                return assertion(RegexFilterSet.END);
+            case '\\':
+                pos++;
+                return parseEscape();
+            case '*':
+            case '+':
+            case '?':
+                throw error("Dangling meta character '" + c + "'");
+            case '{':
+                throw error("Illegal repetition");
+            default:
+                pos++;
+                return classNode(literal(c));
+        }
+    }
+
+    private Node parseEscape() {
+        if (pos >= regex.length()) {
+            throw error("Unexpected internal error");
+        }
+        final char c = regex.charAt(pos);
+        switch (c) {
+            case 'b':
+                pos++;
+                return assertion(RegexFilterSet.WORD_BOUNDARY);
+            case 'B':
+                pos++;
+                return assertion(RegexFilterSet.NOT_WORD_BOUNDARY);
+            default:
+                final char[] predefined = predefinedClass(c);
+                if (predefined != null) {
+                    pos++;
+                    return classNode(new RegexFilterSet.CharClass(predefined, false, false));
+                }
+                return classNode(literal(escapedChar()));
+        }
+    }
+
+    /**
+     * @return The ranges of \d \w \s or their negations, null for any other
+     * escape
+     */
+    private static char[] predefinedClass(final char c) {
+        switch (c) {
+            case 'd':
+                return DIGIT;
+            case 'D':
+                return complement(DIGIT);
+            case 'w':
+                return WORD;
+            case 'W':
+                return complement(WORD);
+            case 's':
+                return SPACE;
+            case 'S':
+                return complement(SPACE);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * This method reads the character of an escape that stands for a single
+     * character, the position is on the character after the backslash.
+     */
+    private char escapedChar() {
+        final char c = regex.charAt(pos++);
+        switch (c) {
+            case 't':
+                return '\t';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 'f':
+                return '\f';
+            case 'a':
+                return '\u0007';
+            case 'e':
+                return '\u001b';
+            case 'x':
+                return (char) hex(2);
+            case 'u':
+                return (char) hex(4);
+            default:
+                if (c >= '1' && c <= '9') {
+                    throw error("Backreferences are not supported");
+                }
+                if (Character.isLetterOrDigit(c)) {
+                    throw error("Unsupported escape sequence \\" + c);
+                }
+                return c;
+        }
+    }
+
+    private int hex(final int digits) {
+        if (pos + digits > regex.length()) {
+            throw error("Illegal hexadecimal escape sequence");
+        }
+        try {
+            final int value = Integer.parseInt(regex.substring(pos, pos + digits), 16);
+            pos += digits;
+            return value;
+        } catch (NumberFormatException e) {
+            throw error("Illegal hexadecimal escape sequence");
+        }
+    }
+
+    /**
+     * This method parses a character class, the position is on the character
+     * after the opening bracket.
+     */
+    private RegexFilterSet.CharClass parseClass() {
+        boolean negated = false;
+        if (pos < regex.length() && regex.charAt(pos) == '^') {
+            negated = true;
+            pos++;
+        }
+        final List<Character> ranges = new ArrayList<>();
+        boolean first = true;
+        for (;;) {
+            if (pos >= regex.length()) {
+                throw error("Unclosed character class");
+            }
+            char c = regex.charAt(pos);
+            if (c == ']' && !first) {
+                pos++;
+                break;
+            }
+            first = false;
+            if (c == '[' || regex.startsWith("&&", pos)) {
+                throw error("Nested classes and intersections are not supported");
+            }
+            pos++;
+            if (c == '\\') {
+                if (pos >= regex.length()) {
+                    throw error("Unclosed character class");
+                }
+                final char[] predefined = predefinedClass(regex.charAt(pos));
+                if (predefined != null) {
+                    pos++;
+                    for (char bound : predefined) {
+                        ranges.add(bound);
+                    }
+                    continue;
+                }
+                c = escapedChar();
+            }
+            char high = c;
+            if (pos + 1 < regex.length() && regex.charAt(pos) == '-' && regex.charAt(pos + 1) != ']') {
+                pos++;
+                high = regex.charAt(pos++);
+                if (high == '\\') {
+                    if (pos >= regex.length()) {
+                        throw error("Unclosed character class");
+                    }
+                    high = escapedChar();
+                }
+                if (high < c) {
+                    throw error("Illegal character range");
+                }
+            }
+            ranges.add(c);
+            ranges.add(high);
+        }
+        final char[] bounds = new char[ranges.size()];
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = ranges.get(i);
+        }
+        return new RegexFilterSet.CharClass(bounds, negated, foldCase);
+    }
+
+    private RegexFilterSet.CharClass literal(final char c) {
+        return new RegexFilterSet.CharClass(new char[]{c, c}, false, foldCase);
+    }
+
+    /**
+     * @return The ranges of every character outside the given sorted ranges
+     */
+    private static char[] complement(final char[] ranges) {
+        final List<Character> out = new ArrayList<>();
+        int next = 0;
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (ranges[i] > next) {
+                out.add((char) next);
+                out.add((char) (ranges[i] - 1));
+            }
+            next = ranges[i + 1] + 1;
+        }
+        if (next <= Character.MAX_VALUE) {
+            out.add((char) next);
+            out.add(Character.MAX_VALUE);
+        }
+        final char[] bounds = new char[out.size()];
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = out.get(i);
+        }
+        return bounds;
+    }
+
+    private static Node classNode(final RegexFilterSet.CharClass charClass) {
+        final Node node = new Node(Node.CLASS);
+        node.charClass = charClass;
+        return node;
+    }
+
+    private static Node assertion(final int op) {
+        final Node node = new Node(Node.ASSERT);
+        node.assertion = op;
+        return node;
+    }
+
+    private void emit(final Node node) {
+        switch (node.kind) {
+            case Node.CLASS:
+                classes.add(node.charClass);
+                emitOp(RegexFilterSet.CLASS, classes.size() - 1, 0);
+                break;
+            case Node.ASSERT:
+                emitOp(node.assertion, 0, 0);
+                break;
+            case Node.CONCAT:
+                for (Node child : node.children) {
+                    emit(child);
+                }
+                break;
+            case Node.ALTERNATE:
+                final IntList jumps = new IntList();
+                for (int i = 0; i < node.children.size() - 1; i++) {
+                    final int split = emitOp(RegexFilterSet.SPLIT, ops.size() + 1, 0);
+                    emit(node.children.get(i));
+                    jumps.add(emitOp(RegexFilterSet.JUMP, 0, 0));
+                    args2.set(split, ops.size());
+                }
+                emit(node.children.get(node.children.size() - 1));
+                for (int i = 0; i < jumps.size(); i++) {
+                    args1.set(jumps.get(i), ops.size());
+                }
+                break;
+            case Node.REPEAT:
+                final Node child = node.children.get(0);
+                for (int i = 0; i < node.min; i++) {
+                    emit(child);
+                }
+                if (node.max == INFINITE) {
+                    final int loop = emitOp(RegexFilterSet.SPLIT, ops.size() + 1, 0);
+                    emit(child);
+                    emitOp(RegexFilterSet.JUMP, loop, 0);
+                    args2.set(loop, ops.size());
+                } else {
+                    for (int i = node.min; i < node.max; i++) {
+                        final int split = emitOp(RegexFilterSet.SPLIT, ops.size() + 1, 0);
+                        emit(child);
+                        args2.set(split, ops.size());
+                    }
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown node " + node.kind);
+        }
+    }
+
+    private int emitOp(final int op, final int arg1, final int arg2) {
+        if (ops.size() - starts.get(starts.size() - 1) >= MAX_PATTERN_SIZE) {
+            throw new PatternSyntaxException("Pattern is too large", regex, -1);
+        }
+        ops.add(op);
+        args1.add(arg1);
+        args2.add(arg2);
+        owners.add(starts.size() - 1);
+        return ops.size() - 1;
+    }
+
+    private PatternSyntaxException error(final String description) {
+        return new PatternSyntaxException(description, regex, pos);
+    }
+
+    /**
+     * A growable list of ints, the program is built from a few of them.
+     */
+    private static final class IntList {
+
+        private int[] values = new int[64];
+
+        private int size;
+
+        void add(final int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int get(final int index) {
+            return values[index];
+        }
+
+        void set(final int index, final int value) {
+            values[index] = value;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void truncate(final int newSize) {
+            size = newSize;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
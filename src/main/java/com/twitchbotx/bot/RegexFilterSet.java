@@ -0,0 +1,342 @@
+package com.twitchbotx.bot;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class is the automaton of every regex filter, compiled by
+ * {@link RegexCompiler} into one program.
+ *
+ * A message is searched for every pattern at once by simulating the
+ * automaton one character at a time, keeping each state at most once per
+ * position. The work is bounded by the length of the message times the size
+ * of the program, a pattern cannot make it backtrack. It never changes once
+ * built, every shard searches it with its own {@link Search}.
+ */
+public final class RegexFilterSet {
+
+    // Instructions of the program
+    static final int CLASS = 0;
+    static final int SPLIT = 1;
+    static final int JUMP = 2;
+    static final int MATCH = 3;
+    static final int BEGIN = 4;
+    static final int END = 5;
+    static final int WORD_BOUNDARY = 6;
+    static final int NOT_WORD_BOUNDARY = 7;
+
+    // How many characters are searched between checks of the time budget
+    private static final int BUDGET_CHECK_INTERVAL = 32;
+
+    /**
+     * A set of characters, the ranges are inclusive pairs of bounds.
+     */
+    static final class CharClass {
+
+        private final char[] ranges;
+
+        private final boolean negated;
+
+        private final boolean foldCase;
+
+        CharClass(final char[] ranges, final boolean negated, final boolean foldCase) {
+            this.ranges = ranges;
+            this.negated = negated;
+            this.foldCase = foldCase;
+        }
+
+        boolean matches(final char c) {
+            boolean found = contains(c);
+            if (!found && foldCase) {
+                found = contains(Character.toLowerCase(c)) || contains(Character.toUpperCase(c));
+            }
+            return found != negated;
+        }
+
+        private boolean contains(final char c) {
+            for (int i = 0; i < ranges.length; i += 2) {
+                if (c >= ranges[i] && c <= ranges[i + 1]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The memory of a search, each shard reuses one for all its messages.
+     */
+    public static final class Search {
+
+        // The instructions waiting for the current and the next character
+        private int[] current = new int[0];
+        private int[] next = new int[0];
+
+        // The generation an instruction was last added in
+        private int[] added = new int[0];
+        private int generation;
+
+        private int[] stack = new int[0];
+
+        // Steps taken for each pattern during this search
+        private int[] steps = new int[0];
+
+        private long totalSteps;
+
+        private boolean budgetExceeded;
+
+        // The lowest numbered pattern found so far, or the limit
+        private int matched;
+
+        private void prepare(final int programSize, final int patterns, final int limit) {
+            if (added.length < programSize) {
+                current = new int[programSize];
+                next = new int[programSize];
+                added = new int[programSize];
+                stack = new int[programSize * 2 + 1];
+                generation = 0;
+            }
+            if (steps.length < patterns) {
+                steps = new int[patterns];
+            }
+            totalSteps = 0L;
+            budgetExceeded = false;
+            matched = limit;
+        }
+
+        private int nextGeneration() {
+            if (generation == Integer.MAX_VALUE) {
+                Arrays.fill(added, 0);
+                generation = 0;
+            }
+            return ++generation;
+        }
+
+        /**
+         * @return True if the last search stopped because it ran out of time,
+         * it then found no pattern
+         */
+        public boolean isBudgetExceeded() {
+            return budgetExceeded;
+        }
+
+        /**
+         * @return The states the last search went through
+         */
+        public long getSteps() {
+            return totalSteps;
+        }
+    }
+
+    private final int[] ops;
+
+    private final int[] args1;
+
+    private final int[] args2;
+
+    // The pattern each instruction belongs to
+    private final int[] owners;
+
+    private final CharClass[] classes;
+
+    // The first instruction of each pattern
+    private final int[] starts;
+
+    // Steps taken for each pattern, over every search
+    private final LongAdder[] costs;
+
+    RegexFilterSet(final int[] ops,
+            final int[] args1,
+            final int[] args2,
+            final int[] owners,
+            final CharClass[] classes,
+            final int[] starts,
+            final LongAdder[] costs) {
+        this.ops = ops;
+        this.args1 = args1;
+        this.args2 = args2;
+        this.owners = owners;
+        this.classes = classes;
+        this.starts = starts;
+        this.costs = costs;
+    }
+
+    /**
+     * This method searches a message for the patterns.
+     *
+     * @param message The chat message
+     *
+     * @param search The memory of the search
+     *
+     * @param limit Only the patterns numbered below this are searched for
+     *
+     * @param deadline The System.nanoTime() at which the search gives up
+     *
+     * @return The lowest numbered pattern found in the message, or -1
+     */
+    public int find(final CharSequence message, final Search search, final int limit, final long deadline) {
+        final int patterns = Math.min(limit, starts.length);
+        if (patterns <= 0) {
+            return -1;
+        }
+        search.prepare(ops.length, starts.length, patterns);
+        final int length = message.length();
+        int[] current = search.current;
+        int[] next = search.next;
+        int currentSize = 0;
+
+        int generation = search.nextGeneration();
+        for (int pos = 0;; pos++) {
+            // a pattern may start at any position, once one is found only
+            // the patterns numbered below it are searched for
+            for (int p = 0; p < search.matched; p++) {
+                currentSize = add(search, current, currentSize, generation, starts[p], message, pos);
+            }
+            if (search.matched == 0 || pos == length) {
+                break;
+            }
+            if (pos % BUDGET_CHECK_INTERVAL == BUDGET_CHECK_INTERVAL - 1 && System.nanoTime() > deadline) {
+                search.budgetExceeded = true;
+                search.matched = patterns;
+                break;
+            }
+
+            final char c = message.charAt(pos);
+            generation = search.nextGeneration();
+            int nextSize = 0;
+            for (int i = 0; i < currentSize; i++) {
+                final int pc = current[i];
+                if (owners[pc] < search.matched && classes[args1[pc]].matches(c)) {
+                    nextSize = add(search, next, nextSize, generation, pc + 1, message, pos + 1);
+                }
+            }
+            final int[] swap = current;
+            current = next;
+            next = swap;
+            currentSize = nextSize;
+        }
+        record(search);
+        return search.matched < patterns ? search.matched : -1;
+    }
+
+    /**
+     * This method adds an instruction to a list of waiting instructions,
+     * following every jump, split and assertion that can be passed at the
+     * position without reading a character.
+     *
+     * @return The new size of the list
+     */
+    private int add(final Search search,
+            final int[] list,
+            int size,
+            final int generation,
+            final int first,
+            final CharSequence message,
+            final int pos) {
+        final int[] added = search.added;
+        final int[] stack = search.stack;
+        int top = 0;
+        stack[top++] = first;
+        while (top > 0) {
+            final int pc = stack[--top];
+            if (added[pc] == generation || owners[pc] >= search.matched) {
+                continue;
+            }
+            added[pc] = generation;
+            search.steps[owners[pc]]++;
+            search.totalSteps++;
+            switch (ops[pc]) {
+                case CLASS:
+                    list[size++] = pc;
+                    break;
+                case SPLIT:
+                    stack[top++] = args2[pc];
+                    stack[top++] = args1[pc];
+                    break;
+                case JUMP:
+                    stack[top++] = args1[pc];
+                    break;
+                case MATCH:
+                    search.matched = owners[pc];
+                    break;
+                case BEGIN:
+                    if (pos == 0) {
+                        stack[top++] = pc + 1;
+                    }
+                    break;
+                case END:
+                    if (isEnd(message, pos)) {
+                        stack[top++] = pc + 1;
+                    }
+                    break;
+                case WORD_BOUNDARY:
+                    if (isWord(message, pos - 1) != isWord(message, pos)) {
+                        stack[top++] = pc + 1;
+                    }
+                    break;
+                case NOT_WORD_BOUNDARY:
+                    if (isWord(message, pos - 1) == isWord(message, pos)) {
+                        stack[top++] = pc + 1;
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown instruction " + ops[pc]);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return True at the end of the message, or before a line terminator
+     * that ends it, like $ in java.util.regex
+     */
+    private static boolean isEnd(final CharSequence message, final int pos) {
+        final int left = message.length() - pos;
+        if (left == 0) {
+            return true;
+        }
+        if (left == 2) {
+            return message.charAt(pos) == '\r' && message.charAt(pos + 1) == '\n';
+        }
+        if (left == 1) {
+            final char c = message.charAt(pos);
+            if (c == '\n') {
+                // not between the two characters of \r\n
+                return pos == 0 || message.charAt(pos - 1) != '\r';
+            }
+            return c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+        }
+        return false;
+    }
+
+    private static boolean isWord(final CharSequence message, final int index) {
+        if (index < 0 || index >= message.length()) {
+            return false;
+        }
+        final char c = message.charAt(index);
+        return c == '_' || Character.isLetterOrDigit(c);
+    }
+
+    private void record(final Search search) {
+        for (int p = 0; p < starts.length; p++) {
+            if (search.steps[p] != 0) {
+                costs[p].add(search.steps[p]);
+                search.steps[p] = 0;
+            }
+        }
+    }
+
+    /**
+     * @return The number of patterns
+     */
+    public int size() {
+        return starts.length;
+    }
+
+    /**
+     * @return The number of instructions of the program
+     */
+    public int getProgramSize() {
+        return ops.length;
+    }
+}
@@ -0,0 +1,312 @@
+package com.twitchbotx.bot;
+
+import java.text.Normalizer;
+import java.util.Arrays;
+
+/**
+ * This class folds a chat message into the form the filters are matched
+ * against, so that look-alike spellings of a filtered phrase are caught by
+ * the phrase itself.
+ *
+ * Every character is decomposed by compatibility (full-width letters,
+ * ligatures and styled letters become plain ones), combining marks and
+ * invisible characters are dropped, letters are case folded, and letters of
+ * other scripts that look like latin ones are replaced by them. The result of
+ * every character is looked up in a table built once, a message is folded in
+ * a single pass.
+ */
+public final class TextNormalizer {
+
+    // Marks a table entry whose character is dropped
+    private static final int REMOVE = -1;
+
+    // Marks a table entry whose character folds into several, the rest of the
+    // entry is the offset into EXPANSIONS shifted by 5 and the length
+    private static final int EXPANDS = 1 << 30;
+
+    private static final int LENGTH_BITS = 5;
+
+    // The folding of every character of the basic multilingual plane
+    private static final int[] TABLE = new int[Character.MAX_VALUE + 1];
+
+    // The blocks beyond it spam uses, styled and boxed letters
+    private static final int MATH_START = 0x1D400;
+    private static final int BOXED_START = 0x1F100;
+    private static final int SUPPLEMENTARY_SIZE = 0x400;
+    private static final int BOXED_SIZE = 0x100;
+    private static final int[] SUPPLEMENTARY_TABLE = new int[SUPPLEMENTARY_SIZE + BOXED_SIZE];
+
+    private static final char[] EXPANSIONS;
+
+    // Letters of other scripts that look like latin letters, in pairs
+    private static final String CONFUSABLES = ""
+            // cyrillic
+            + "\u0430a\u0435e\u043ak\u043eo\u0440p\u0441c\u0443y\u0445x\u0456i\u0458j\u0455s"
+            + "\u0501d\u051bq\u051dw\u04bbh\u04cfl\u0457i\u0454e"
+            // greek
+            + "\u03b1a\u03b9i\u03bak\u03bdv\u03bfo\u03c1p\u03c4t\u03c5u\u03c7x"
+            // armenian
+            + "\u0585o\u057du\u0570h\u0578n"
+            // latin
+            + "\u0131i\u0237j\u0251a\u0261g\u026ai";
+
+    static {
+        final StringBuilder expansions = new StringBuilder();
+        for (int c = 0; c <= Character.MAX_VALUE; c++) {
+            if (Character.isSurrogate((char) c)) {
+                // pairs are looked up as one character when folding
+                TABLE[c] = c;
+            } else {
+                TABLE[c] = entry(fold(c), c, expansions);
+            }
+        }
+        for (int i = 0; i < SUPPLEMENTARY_SIZE; i++) {
+            SUPPLEMENTARY_TABLE[i] = entry(fold(MATH_START + i), -1, expansions);
+        }
+        for (int i = 0; i < BOXED_SIZE; i++) {
+            SUPPLEMENTARY_TABLE[SUPPLEMENTARY_SIZE + i] = entry(fold(BOXED_START + i), -1, expansions);
+        }
+        EXPANSIONS = expansions.toString().toCharArray();
+    }
+
+    /**
+     * The folded form of a message, each shard reuses one for all its
+     * messages. It knows which characters of the original message each of its
+     * characters came from.
+     */
+    public static final class Normalized implements CharSequence {
+
+        private char[] chars = new char[256];
+
+        // The characters of the original message each character came from,
+        // from start inclusive to end exclusive
+        private int[] starts = new int[256];
+        private int[] ends = new int[256];
+
+        private int length;
+
+        private void append(final char c, final int start, final int end) {
+            if (length == chars.length) {
+                final int capacity = chars.length * 2;
+                chars = Arrays.copyOf(chars, capacity);
+                starts = Arrays.copyOf(starts, capacity);
+                ends = Arrays.copyOf(ends, capacity);
+            }
+            chars[length] = c;
+            starts[length] = start;
+            ends[length] = end;
+            length++;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(final int index) {
+            if (index >= length) {
+                throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+            }
+            return chars[index];
+        }
+
+        @Override
+        public CharSequence subSequence(final int start, final int end) {
+            return toString().substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return new String(chars, 0, length);
+        }
+
+        /**
+         * This method finds a folded phrase.
+         *
+         * @param phrase The phrase, folded already
+         *
+         * @return The index of the first occurrence, or -1
+         */
+        public int indexOf(final String phrase) {
+            final int last = length - phrase.length();
+            for (int i = 0; i <= last; i++) {
+                int j = 0;
+                while (j < phrase.length() && chars[i + j] == phrase.charAt(j)) {
+                    j++;
+                }
+                if (j == phrase.length()) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @param index The first folded character
+         *
+         * @return The index in the original message it came from
+         */
+        public int getOriginalStart(final int index) {
+            return starts[index];
+        }
+
+        /**
+         * @param index The last folded character, exclusive
+         *
+         * @return The index in the original message after the character it
+         * came from
+         */
+        public int getOriginalEnd(final int index) {
+            return index == 0 ? 0 : ends[index - 1];
+        }
+    }
+
+    private TextNormalizer() {
+    }
+
+    /**
+     * This method folds a message, reusing the memory of the previous one.
+     *
+     * @param text The chat message
+     *
+     * @param into Where the folded message is written
+     *
+     * @return The folded message
+     */
+    public static Normalized normalize(final CharSequence text, final Normalized into) {
+        into.length = 0;
+        final int length = text.length();
+        for (int i = 0; i < length; i++) {
+            final char c = text.charAt(i);
+            int entry = TABLE[c];
+            int end = i + 1;
+            if (Character.isHighSurrogate(c) && end < length && Character.isLowSurrogate(text.charAt(end))) {
+                final char low = text.charAt(end++);
+                entry = supplementary(Character.toCodePoint(c, low), c, low, into, i, end);
+                if (entry == REMOVE) {
+                    i++;
+                    continue;
+                }
+            }
+            if (entry == REMOVE) {
+                continue;
+            }
+            if ((entry & EXPANDS) == 0) {
+                into.append((char) entry, i, end);
+            } else {
+                final int offset = (entry & ~EXPANDS) >>> LENGTH_BITS;
+                final int count = entry & ((1 << LENGTH_BITS) - 1);
+                for (int k = 0; k < count; k++) {
+                    into.append(EXPANSIONS[offset + k], i, end);
+                }
+            }
+            i = end - 1;
+        }
+        return into;
+    }
+
+    /**
+     * This method folds a phrase, such as the phrase of a filter.
+     *
+     * @param text The phrase
+     *
+     * @return The folded phrase
+     */
+    public static String normalize(final CharSequence text) {
+        return normalize(text, new Normalized()).toString();
+    }
+
+    /**
+     * This method looks up a character beyond the basic multilingual plane,
+     * a character outside the folded blocks is kept as it is unless it is
+     * invisible.
+     *
+     * @return The table entry, or REMOVE if the character was kept or dropped
+     */
+    private static int supplementary(final int codePoint,
+            final char high,
+            final char low,
+            final Normalized into,
+            final int start,
+            final int end) {
+        if (codePoint >= MATH_START && codePoint < MATH_START + SUPPLEMENTARY_SIZE) {
+            return SUPPLEMENTARY_TABLE[codePoint - MATH_START];
+        }
+        if (codePoint >= BOXED_START && codePoint < BOXED_START + BOXED_SIZE) {
+            return SUPPLEMENTARY_TABLE[SUPPLEMENTARY_SIZE + codePoint - BOXED_START];
+        }
+        if (!isInvisible(codePoint)) {
+            into.append(high, start, end);
+            into.append(low, start, end);
+        }
+        return REMOVE;
+    }
+
+    /**
+     * This method builds the table entry of a character.
+     *
+     * @param folded The folded form of the character
+     *
+     * @param same The character itself, kept as a single character
+     *
+     * @param expansions The characters of the entries folding into several
+     */
+    private static int entry(final String folded, final int same, final StringBuilder expansions) {
+        if (folded.isEmpty()) {
+            return REMOVE;
+        }
+        if (folded.length() == 1) {
+            return folded.charAt(0);
+        }
+        if (folded.length() >= 1 << LENGTH_BITS) {
+            return same < 0 ? REMOVE : same;
+        }
+        final int offset = expansions.length();
+        expansions.append(folded);
+        return EXPANDS | offset << LENGTH_BITS | folded.length();
+    }
+
+    /**
+     * This method folds one character, it is only used to build the tables.
+     */
+    private static String fold(final int codePoint) {
+        final String decomposed = Normalizer.normalize(new String(Character.toChars(codePoint)),
+                Normalizer.Form.NFKD);
+        final StringBuilder folded = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length();) {
+            final int c = decomposed.codePointAt(i);
+            i += Character.charCount(c);
+            if (isInvisible(c)) {
+                continue;
+            }
+            final int lower = Character.toLowerCase(Character.toUpperCase(c));
+            final int confusable = CONFUSABLES.indexOf(lower);
+            if (confusable >= 0 && confusable % 2 == 0) {
+                folded.append(CONFUSABLES.charAt(confusable + 1));
+            } else if (lower >= 0x1F170 && lower <= 0x1F189) {
+                // negative squared latin letters
+                folded.append((char) ('a' + lower - 0x1F170));
+            } else {
+                folded.appendCodePoint(lower);
+            }
+        }
+        return folded.toString();
+    }
+
+    /**
+     * @return True for combining marks, format characters such as zero width
+     * spaces, and the blank fillers that render as nothing
+     */
+    private static boolean isInvisible(final int codePoint) {
+        switch (Character.getType(codePoint)) {
+            case Character.NON_SPACING_MARK:
+            case Character.ENCLOSING_MARK:
+            case Character.FORMAT:
+                return true;
+            default:
+                return codePoint == 0x115F || codePoint == 0x1160 || codePoint == 0x3164
+                        || codePoint == 0xFFA0 || codePoint == 0x2800;
+        }
+    }
+}
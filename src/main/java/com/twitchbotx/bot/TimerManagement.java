@@ -1,8 +1,6 @@
 package com.twitchbotx.bot;
 
-import java.io.PrintStream;
 import java.util.logging.Logger;
-import org.w3c.dom.Element;
 
 /*
 ** Roughly 15 minute intervals between command sendMessage, 
@@ -17,7 +15,7 @@ import org.w3c.dom.Element;
 public final class TimerManagement extends Thread {
 
 
-    private final ConfigParser.Elements elements;
+    private final LiveConfiguration config;
 
 
     /*
@@ -26,27 +24,25 @@ public final class TimerManagement extends Thread {
 ** "repeating" = True commands need to start when the bot starts
 ** all commands set to repeat need to start (including created/edited commands)
      */
-    public TimerManagement(final ConfigParser.Elements elements,
-            final PrintStream stream) {
-        this.elements = elements;
+    public TimerManagement(final LiveConfiguration config,
+            final OutboundScheduler outbound) {
+        this.config = config;
     }
 
-    public void setupPeriodicBroadcast(final ConfigParser.Elements repeating, final PrintStream stream) {
+    public void setupPeriodicBroadcast(final CommandTable table, final OutboundScheduler outbound) {
 
-        ConfigParser.Elements ce = (ConfigParser.Elements) repeating;
-        for (int i = 0; i < elements.commandNodes.getLength(); i++) {
-            Element ca = (Element) ce.commandNodes.item(i);
+        for (Command command : table.getCommands()) {
 
-            if (Boolean.parseBoolean(ca.getAttribute("repeating"))) {
-                long d = Long.parseLong(ca.getAttribute("initialDelay")) * 1000L;
-                Long l = Long.parseLong(ca.getAttribute("interval")) * 1000L;
+            if (command.isRepeating()) {
+                long d = command.getInitialDelay() * 1000L;
+                long l = command.getInterval() * 1000L;
                 if (l < 60000L) {
-                    System.out.println("Repeating interval too short for command " + ca.getAttribute("name"));
+                    System.out.println("Repeating interval too short for command " + command.getName());
                 } else {
-                    rTimer t = new rTimer(ca.getTextContent(), l, elements, stream, d);
+                    rTimer t = new rTimer(command.getResponse(), l, config, outbound, d);
                     Thread r = new Thread(t);
                     r.start();
-                    System.out.println("Starting repeating command " + ca.getTextContent());
+                    System.out.println("Starting repeating command " + command.getResponse());
                 }
             }
         }
@@ -54,26 +50,26 @@ public final class TimerManagement extends Thread {
 
     static class rTimer extends Thread {
         
-        private final PrintStream outstream;
-        private final ConfigParser.Elements elements;
+        private final OutboundScheduler outbound;
+        private final LiveConfiguration config;
         private static final Logger LOGGER = Logger.getLogger(TwitchBotX.class.getSimpleName());
 
         String message;
         long repeatingTimer;
         long initialDelay;
 
-        public rTimer(String msg, long timer, final ConfigParser.Elements elements, final PrintStream stream, long delay) {
+        public rTimer(String msg, long timer, final LiveConfiguration config, final OutboundScheduler outbound, long delay) {
             this.message = msg;
             this.repeatingTimer = timer;
-            this.elements = elements;
-            this.outstream = stream;
+            this.config = config;
+            this.outbound = outbound;
             this.initialDelay = delay;
         }
 
         private void sendMessage(final String msg) {
             final String message = "/me > " + msg;
-            this.outstream.println("PRIVMSG #"
-                    + this.elements.configNode.getElementsByTagName("myChannel").item(0).getTextContent()
+            this.outbound.send(OutboundScheduler.Priority.TIMER, "PRIVMSG #"
+                    + this.config.get().joinedChannel
                     + " "
                     + ":"
                     + message);
@@ -2,16 +2,17 @@ package com.twitchbotx.bot;
 
 import com.twitchbotx.bot.ConfigParser.Configuration;
 import com.twitchbotx.bot.ConfigParser.Elements;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintStream;
-import java.net.Socket;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.xml.parsers.ParserConfigurationException;
-import org.xml.sax.SAXException;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.transform.TransformerConfigurationException;
 
 /**
  * This class is the application for a Twitch Bot.
@@ -20,11 +21,56 @@ public final class TwitchBotX {
 
     private static final Logger LOGGER = Logger.getLogger(TwitchBotX.class.getSimpleName());
 
-    private PrintStream out;
-    private BufferedReader in;
-    private String dataIn;
+    private OutboundScheduler outbound;
+    private IrcConnection connection;
+
+    // The commands shared by every shard
+    private CommandRegistry registry;
+
+    // The command cooldowns shared by every shard
+    private CooldownService cooldowns;
+
+    // The filters shared by every shard
+    private final FilterRegistry filters = new FilterRegistry();
+
+    // The recent messages of every shard, for catching spam raids
+    private DuplicateDetector duplicates;
+
+    // The flood counts of every shard
+    private final FloodDetector.Stats floodStats = new FloodDetector.Stats();
+
+    // The moderation actions of every shard
+    private final ModerationActions.Stats actionStats = new ModerationActions.Stats();
+
+    // Writes the chat and the moderation actions of every shard to disk
+    private ChatLogWriter chatLog;
+
+    // The chat history searched by !history, null if it is off
+    private ChatHistoryStore history;
+
+    // Stores what is changed from chat, in kfbot.xml or in kfbot.kv
+    private ConfigStore store;
+
+    // The settings in use, changed from chat or by editing kfbot.xml
+    private LiveConfiguration liveConfig;
+
+    // Applies the settings edited in kfbot.xml while the bot runs
+    private ConfigWatcher watcher;
+
+    private final MetricsReporter metrics = new MetricsReporter();
+
+    // How long parsing and loading the document took, in the background
+    private volatile long documentLoadMillis;
 
     private static final String BOT_VERSION = "v1.10";
+
+    private static final String CONFIG_FILE = "./kfbot.xml";
+
+    private static final String STORE_FILE = "./kfbot.kv";
+
+    // Reconnect attempts back off from one second up to a minute
+    private static final long MIN_RECONNECT_DELAY = 1000L;
+    private static final long MAX_RECONNECT_DELAY = 60000L;
     private final ArrayList RecentMessages = new ArrayList();
 
     private final ConfigParser configParser = new ConfigParser();
@@ -44,8 +90,8 @@ public final class TwitchBotX {
      * @throws IOException An exception thrown if connection is not established
      * or timed out.
      */
-    public void startConnectionTest(final Elements elements) throws IOException {
-        CommandParser.checkConnection c = new CommandParser.checkConnection(elements, out);
+    public void startConnectionTest(final LiveConfiguration config) throws IOException {
+        CommandParser.checkConnection c = new CommandParser.checkConnection(config, outbound);
         Thread check = new Thread(c);
         check.start();
     }
@@ -57,26 +103,121 @@ public final class TwitchBotX {
     *
      */
  /* public void beginListeningPubSub(final Elements elements, String url, int port) {
-        final PubSubHandler pubSub = new PubSubHandler(elements, out, url, port);
+        final PubSubHandler pubSub = new PubSubHandler(elements, outbound, url, port);
     }*/
+    /**
+     * This method sends the IRC login sequence on a fresh connection.
+     *
+     * @param config The account and channel to log in with
+     */
+    public void login(final Configuration config) {
+        // Twitch uses IRC protocol to connect, this is how to connect
+        // to the Twitch API
+        outbound.send(OutboundScheduler.Priority.CONTROL, "PASS " + config.password);
+        outbound.send(OutboundScheduler.Priority.CONTROL, "NICK " + config.account);
+        outbound.send(OutboundScheduler.Priority.CONTROL, "JOIN #" + config.joinedChannel);
+        outbound.send(OutboundScheduler.Priority.CONTROL, "CAP REQ :twitch.tv/tags");
+        outbound.send(OutboundScheduler.Priority.CONTROL, "CAP REQ :twitch.tv/commands");
+        outbound.send(OutboundScheduler.Priority.CONTROL, "CAP REQ :twitch.tv/membership");
+    }
+
+    /**
+     * This method queues the chat lines the last connection did not write
+     * again, behind the login. Moderation commands go back in their own lane.
+     */
+    private void resendUnsent() {
+        for (String line : connection.takeUnsentLines()) {
+            final int text = line.indexOf(" :");
+            final boolean command = text >= 0 && text + 2 < line.length()
+                    && (line.charAt(text + 2) == '/' || line.charAt(text + 2) == '.');
+            outbound.send(command
+                    ? OutboundScheduler.Priority.MODERATION
+                    : OutboundScheduler.Priority.REPLY, line);
+        }
+    }
+
     /**
      * This method will begin reading for incoming messages from Twitch IRC API.
      *
+     * The reader thread answers pings itself and publishes everything else to
+     * the ingest pipeline, which runs the parsers on its handler threads.
+     *
+     * If the connection drops, or Twitch asks for it with RECONNECT, it
+     * reconnects and logs in again. It never returns.
+     *
      * @param elements
+     *
+     * @param config The configuration for sizing the ingest pipeline
      */
-    public void beginReadingMessages(final Elements elements) {
+    public void beginReadingMessages(final Elements elements, final Configuration config) {
 
-        final CommandParser parser = new CommandParser(elements, out);
+        duplicates = new DuplicateDetector(config.duplicateTableSize);
+        duplicates.registerMetrics(metrics);
+        floodStats.registerMetrics(metrics);
+        actionStats.registerMetrics(metrics);
+        if (config.historyRetentionDays > 0) {
+            history = new ChatHistoryStore(Paths.get(config.historyDirectory), config.historyRetentionDays);
+            history.registerMetrics(metrics);
+        }
+        chatLog = new ChatLogWriter(liveConfig, Paths.get(config.chatLogDirectory), config.chatLogBufferSize,
+                history);
+        chatLog.registerMetrics(metrics);
+        chatLog.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(chatLog::stop, "chat-log-flush"));
+
+        // every shard gets its own parser, messages of one user always
+        // land on the same shard so they are handled in order
+        final IngestPipeline pipeline = new IngestPipeline(
+                config.processingShards,
+                config.ingestBufferSize,
+                MessageRingBuffer.WaitStrategy.fromName(config.ingestWaitStrategy),
+                () -> {
+                    final CommandParser parser = new CommandParser(elements, outbound, registry, cooldowns, store, liveConfig,
+                            filters, duplicates, floodStats, actionStats, chatLog, history);
+                    parser.getEvents().register(IrcCommand.RECONNECT, message -> {
+                        LOGGER.warning("Twitch asked the bot to reconnect.");
+                        connection.close();
+                    });
+                    return parser::parse;
+                },
+                CommandParser::usernameHash);
+        pipeline.registerMetrics(metrics);
+        pipeline.start();
+
+        long reconnectDelay = MIN_RECONNECT_DELAY;
+        for (;;) {
+            try {
+                connection.readMessages(line -> {
+                    if (!CommandParser.handlePing(line, outbound)) {
+                        pipeline.onLine(line);
+                    }
+                });
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "An error occurred with I/O, perhaps with the Twitch API: {0}", e.toString());
+            } catch (Exception e) {
+                LOGGER.log(Level.SEVERE, "A general error occurred parsing the message: {0}", e.toString());
+            }
 
-        try {
             for (;;) {
-                dataIn = in.readLine();
-                parser.parse(dataIn);
+                try {
+                    Thread.sleep(reconnectDelay);
+                } catch (InterruptedException e) {
+                    LOGGER.severe("Interrupted while reconnecting, shutting down.");
+                    return;
+                }
+                reconnectDelay = Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY);
+                try {
+                    LOGGER.info("Attempt to reconnect to Twitch servers.");
+                    connection.connect();
+                    // the password may have been changed in kfbot.xml
+                    login(liveConfig.get());
+                    resendUnsent();
+                    reconnectDelay = MIN_RECONNECT_DELAY;
+                    break;
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not reconnect: {0}", e.toString());
+                }
             }
-        } catch (IOException e) {
-            LOGGER.log(Level.WARNING, "An error occurred with I/O, perhaps with the Twitch API: {0}", e.toString());
-        } catch (Exception e) {
-            LOGGER.log(Level.SEVERE, "A general error occurred parsing the message: {0}", e.toString());
         }
     }
 
@@ -85,42 +226,62 @@ public final class TwitchBotX {
     **
      */
     public void startTimers(final Elements elements) {
-        final TimerManagement timers = new TimerManagement(elements, out);
-        timers.setupPeriodicBroadcast(elements, out);
+        final TimerManagement timers = new TimerManagement(liveConfig, outbound);
+        timers.setupPeriodicBroadcast(registry.getTable(), outbound);
     }
 
     /**
-     * This method will start a sequence of events for starting the bot. 1) Load
-     * and Read the configuration file. 2) Connect to the Twitch API 3) Start
-     * all periodic timers for broadcasting (if there are any) 4) Start a
-     * blocking read on the socket for incoming message
+     * This method will start a sequence of events for starting the bot. 1) Read
+     * the settings of the configuration file. 2) Connect to the Twitch API,
+     * while the rest of the file is loaded in the background 3) Start all
+     * periodic timers for broadcasting (if there are any) 4) Start a read loop
+     * on the connection for incoming message
      */
     public void start() {
         try {
             LOGGER.info("kfbot for Twitch " + BOT_VERSION + " by Raxa");
+            final long startNanos = System.nanoTime();
 
+            // only the settings are needed to connect, they are streamed from
+            // the top of the file without building the document
             LOGGER.info("Reading configuration XML file");
-            final Elements elements
-                    = configParser.parseConfiguration("./kfbot.xml");
+            final Map<String, String> fileSettings = ConfigLoader.loadSettings(Paths.get(CONFIG_FILE));
+            final Configuration config = configParser.getConfiguration(fileSettings);
+            liveConfig = new LiveConfiguration(config);
+            final long settingsNanos = System.nanoTime();
 
-            final Configuration config
-                    = configParser.getConfiguration(elements.configNode);
+            // the document is only needed once messages are read, so it is
+            // parsed while the connection to Twitch is made
+            final FutureTask<Elements> document = new FutureTask<>(() -> loadDocument(config, fileSettings));
+            final Thread loader = new Thread(document, "config-loader");
+            loader.setDaemon(true);
+            loader.start();
 
             LOGGER.info("Attempt to connect to Twitch servers.");
-            final Socket socket = new Socket(config.host, config.port);
+            connection = new IrcConnection(config.host, config.port);
+            connection.connect();
 
-            out = new PrintStream(socket.getOutputStream());
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            // every message to Twitch goes through the scheduler from here on
+            outbound = new OutboundScheduler(connection.getPrintStream());
+            outbound.start();
 
-            // Twitch uses IRC protocol to connect, this is how to connect
-            // to the Twitch API
-            out.println("PASS " + config.password);
-            out.println("NICK " + config.account);
-            out.println("JOIN #" + config.joinedChannel);
-            out.println("CAP REQ :twitch.tv/tags");
-            out.println("CAP REQ :twitch.tv/commands");
-            out.println("CAP REQ :twitch.tv/membership");
-            startConnectionTest(elements);
+            metrics.register("outbound.queued", outbound::getQueuedCount);
+            metrics.register("outbound.sent", outbound::getSentCount);
+            metrics.register("outbound.dropped", outbound::getDroppedCount);
+            metrics.register("outbound.merged", outbound::getMergedCount);
+
+            login(config);
+            final long connectedNanos = System.nanoTime();
+
+            final Elements elements = awaitDocument(document);
+            final long documentNanos = System.nanoTime();
+
+            cooldowns = new CooldownService(config.globalUserCooldown * 1000L, config.cooldownMaxUsers);
+            metrics.register("cooldowns.entries", cooldowns::getEntryCount);
+            metrics.register("cooldowns.overflows", cooldowns::getOverflowCount);
+            metrics.start(config.metricsInterval);
+
+            startConnectionTest(liveConfig);
 
             // Begin connecting to and listening to Twitch PubSub 
             // whispers and stream is live function 
@@ -128,23 +289,125 @@ public final class TwitchBotX {
             //LOGGER.info("Attempt to start reading PUBSUB feed.");
             // beginListeningPubSub(elements, config.pubSub, config.port);
             final String ReadyMessage = "/me > " + BOT_VERSION + " has joined the channel.";
-            out.println("PRIVMSG #"
-                    + elements.configNode.getElementsByTagName("myChannel").item(0).getTextContent()
+            outbound.send(OutboundScheduler.Priority.REPLY, "PRIVMSG #"
+                    + config.joinedChannel
                     + " :"
                     + ReadyMessage);
 
-            LOGGER.info("Bot is now ready for service.");
-
             // start all periodic timers for broadcasting events
             startTimers(elements);
 
-            // start doing a blocking read on the socket
-            beginReadingMessages(elements);
-        } catch (ParserConfigurationException | SAXException | IOException e) {
+            final long readyNanos = System.nanoTime();
+            recordStartup("startup.settingsMillis", startNanos, settingsNanos);
+            recordStartup("startup.connectMillis", settingsNanos, connectedNanos);
+            recordStartup("startup.documentWaitMillis", connectedNanos, documentNanos);
+            recordStartup("startup.readyMillis", startNanos, readyNanos);
+            metrics.register("startup.documentMillis", () -> documentLoadMillis);
+            LOGGER.info("Bot is now ready for service, " + nanosToMillis(startNanos, readyNanos)
+                    + " ms after start. Settings " + nanosToMillis(startNanos, settingsNanos)
+                    + " ms, connect " + nanosToMillis(settingsNanos, connectedNanos)
+                    + " ms, document " + documentLoadMillis
+                    + " ms of which " + nanosToMillis(connectedNanos, documentNanos) + " ms waited for.");
+
+            // start the selector loop reading the connection
+            beginReadingMessages(elements, config);
+        } catch (IOException | XMLStreamException | IllegalArgumentException e) {
             LOGGER.log(Level.SEVERE, "Error caught at start up: {0}", e.toString());
         }
     }
 
+    /**
+     * This method streams the XML document, lets the store bring it up to
+     * date, and loads the commands from it. It runs on its own thread while
+     * the bot connects.
+     *
+     * @param config The configuration for the store
+     *
+     * @param fileSettings The settings read from the file at start up
+     *
+     * @return The document
+     */
+    private Elements loadDocument(final Configuration config, final Map<String, String> fileSettings)
+            throws XMLStreamException, IOException, TransformerConfigurationException {
+        final long start = System.nanoTime();
+        final LoadedConfig loaded = ConfigLoader.load(Paths.get(CONFIG_FILE));
+        final Elements elements = loaded.getElements();
+
+        // changes are written in the background, and once more on the
+        // way out so nothing is lost. The store brings the document up to
+        // date before anything reads it.
+        if ("kv".equalsIgnoreCase(config.storage)) {
+            store = new KeyValueConfigStore(elements, Paths.get(STORE_FILE), config.persistDelayMillis);
+        } else {
+            store = new ConfigPersistence(elements,
+                    Paths.get(CONFIG_FILE),
+                    config.persistDelayMillis,
+                    "journal".equalsIgnoreCase(config.persistMode),
+                    config.journalCompactBytes,
+                    config.journalCompactInterval);
+        }
+        final int replayed = store.load();
+        store.registerMetrics(metrics);
+        Runtime.getRuntime().addShutdownHook(new Thread(store::stop, "config-flush"));
+
+        // settings changed from chat were applied to the document by the store
+        liveConfig.replace(configParser.getConfiguration(elements.configNode));
+        watcher = new ConfigWatcher(Paths.get(CONFIG_FILE), elements, store, liveConfig, fileSettings);
+        watcher.registerMetrics(metrics);
+        try {
+            watcher.start();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Edits to {0} are only read at start up: {1}",
+                    new Object[]{CONFIG_FILE, e.toString()});
+        }
+
+        // the table read with the file is stale once the store has changed
+        // the commands in the document
+        final CommandTable commands;
+        if (replayed == 0) {
+            commands = loaded.getCommandTable();
+        } else {
+            synchronized (elements) {
+                commands = CommandTable.load(elements);
+            }
+        }
+        registry = CommandParser.createRegistry(commands);
+        metrics.register("commands.registered", registry::size);
+        synchronized (elements) {
+            filters.load(elements);
+        }
+        filters.registerMetrics(metrics);
+
+        documentLoadMillis = nanosToMillis(start, System.nanoTime());
+        return elements;
+    }
+
+    /**
+     * @return The document once it is loaded, the fields set while loading it
+     * are visible from here on
+     *
+     * @throws IOException If loading the document failed
+     */
+    private Elements awaitDocument(final FutureTask<Elements> document) throws IOException {
+        try {
+            return document.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading " + CONFIG_FILE, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not load " + CONFIG_FILE + ": " + e.getCause(), e.getCause());
+        }
+    }
+
+    private void recordStartup(final String name, final long fromNanos, final long toNanos) {
+        final long millis = nanosToMillis(fromNanos, toNanos);
+        metrics.register(name, () -> millis);
+    }
+
+    private static long nanosToMillis(final long fromNanos, final long toNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(toNanos - fromNanos);
+    }
+
     /**
      * The application starts here.
      */
@@ -0,0 +1,96 @@
+package com.twitchbotx.bot;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class remembers which username filter each recent chatter matched, so
+ * the filters run once per user instead of once per message.
+ *
+ * It holds the least recently seen users up to its capacity. The verdicts are
+ * dropped when a new filter matcher is swapped in, so a changed filter applies
+ * to every user from their next message. Each shard has its own cache, the
+ * messages of a user always land on the same shard. It is not safe for
+ * concurrent use.
+ */
+public final class UsernameVerdictCache {
+
+    // The verdict of a username no filter matches
+    private static final Filter PASSED = new Filter("", "", true);
+
+    private final LinkedHashMap<String, Filter> verdicts;
+
+    // The matcher the verdicts were made with
+    private FilterMatcher rules;
+
+    private final LongAdder hits;
+
+    private final LongAdder misses;
+
+    private final LongAdder invalidations;
+
+    /**
+     * @param capacity The most users a verdict is kept for
+     *
+     * @param hits Counts the users found in the cache
+     *
+     * @param misses Counts the users checked against the filters
+     *
+     * @param invalidations Counts the times the filters changed
+     */
+    UsernameVerdictCache(final int capacity,
+            final LongAdder hits,
+            final LongAdder misses,
+            final LongAdder invalidations) {
+        this.verdicts = new LinkedHashMap<String, Filter>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Filter> eldest) {
+                return size() > capacity;
+            }
+        };
+        this.hits = hits;
+        this.misses = misses;
+        this.invalidations = invalidations;
+    }
+
+    /**
+     * This method finds the username filter a user matches.
+     *
+     * @param username The username of the chatter
+     *
+     * @param matcher The current filter matcher
+     *
+     * @param search The memory for searching the patterns
+     *
+     * @return The filter, or null if none of them match
+     */
+    public Filter get(final String username, final FilterMatcher matcher, final RegexFilterSet.Search search) {
+        if (matcher != rules) {
+            if (rules != null) {
+                invalidations.increment();
+            }
+            verdicts.clear();
+            rules = matcher;
+        }
+        Filter verdict = verdicts.get(username);
+        if (verdict != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+            verdict = matcher.matchUsername(username, search);
+            if (verdict == null) {
+                verdict = PASSED;
+            }
+            verdicts.put(username, verdict);
+        }
+        return verdict == PASSED ? null : verdict;
+    }
+
+    /**
+     * @return The number of users a verdict is kept for
+     */
+    public int size() {
+        return verdicts.size();
+    }
+}
@@ -3,7 +3,6 @@ package com.twitchbotx.bot;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintStream;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.logging.Logger;
@@ -16,15 +15,15 @@ import java.util.logging.Logger;
  */
 public final class YoutubeHandler {
     
-    private final PrintStream outstream;
+    private final OutboundScheduler outbound;
     private static final Logger LOGGER = Logger.getLogger(YoutubeHandler.class.getSimpleName());
-    private final ConfigParser.Elements elements;
+    private final LiveConfiguration config;
 
 
-    public YoutubeHandler(final ConfigParser.Elements elements,
-            final PrintStream stream) {
-        this.elements = elements;
-        this.outstream = stream;
+    public YoutubeHandler(final LiveConfiguration config,
+            final OutboundScheduler outbound) {
+        this.config = config;
+        this.outbound = outbound;
     }
 
     /**
@@ -35,9 +34,11 @@ public final class YoutubeHandler {
      */
     private void getYoutubeTitle(String request) {
         try {
-            String ytAPI = this.elements.configNode.getElementsByTagName("youtubeTitle").item(0).getTextContent();
+            final ConfigParser.Configuration settings = this.config.get();
+            String ytAPI = settings.youtubeTitleURL;
+            String ytKey = settings.youtubeAPIKey;
             ytAPI = ytAPI.replaceAll("#id", "&id=" + request);
-            ytAPI = ytAPI.replaceAll("#key", "&key=" + this.elements.configNode.getElementsByTagName("youtubeAPI").item(0).getTextContent());
+            ytAPI = ytAPI.replaceAll("#key", "&key=" + ytKey);
             URL url = new URL(ytAPI);
             URLConnection con = (URLConnection) url.openConnection();
             BufferedReader bufReader = new BufferedReader(new InputStreamReader(con.getInputStream()));
@@ -109,8 +110,8 @@ public final class YoutubeHandler {
      */
     private void sendMessage(final String msg) {
         final String message = "/me > " + msg;
-        this.outstream.println("PRIVMSG #"
-                + this.elements.configNode.getElementsByTagName("myChannel").item(0).getTextContent()
+        this.outbound.send(OutboundScheduler.Priority.REPLY, "PRIVMSG #"
+                + this.config.get().joinedChannel
                 + " "
                 + ":"
                 + message);
@@ -0,0 +1,146 @@
+package com.twitchbotx.bot;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * This class compares loading the configuration file into a full document
+ * with {@link ConfigParser} against streaming it with {@link ConfigLoader}.
+ * Both end with the settings, the command table, the counters and the
+ * filters.
+ *
+ * It writes configuration files of 1k, 10k and 100k entries, or of the sizes
+ * given on the command line, and prints the average load time and the heap
+ * kept by the result of each loader.
+ *
+ * Run it after mvn test-compile with:
+ * java -cp target/classes:target/test-classes com.twitchbotx.bot.ConfigLoadBenchmark
+ */
+public final class ConfigLoadBenchmark {
+
+    private static final int[] DEFAULT_SIZES = {1000, 10000, 100000};
+
+    private static final int WARMUP_RUNS = 3;
+
+    private static final int MEASURED_RUNS = 5;
+
+    // Keeps the result of a load reachable while the heap is measured
+    private static volatile Object retained;
+
+    /**
+     * A way of loading the file, returning whatever it keeps in memory.
+     */
+    private interface Loader {
+
+        Object load(Path file) throws Exception;
+    }
+
+    private ConfigLoadBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = DEFAULT_SIZES;
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        final ConfigParser parser = new ConfigParser();
+        final Loader dom = file -> {
+            final ConfigParser.Elements elements = parser.parseConfiguration(file.toString());
+            parser.getConfiguration(elements.configNode);
+            return new LoadedConfig(elements, CommandTable.load(elements));
+        };
+        final Loader stax = file -> {
+            final LoadedConfig loaded = ConfigLoader.load(file);
+            parser.getConfiguration(loaded.getElements().configNode);
+            return loaded;
+        };
+        final Loader settings = file -> parser.getConfiguration(ConfigLoader.loadSettings(file));
+
+        System.out.printf("%-9s %-14s %12s %12s %12s%n", "entries", "loader", "file KB", "avg ms", "heap KB");
+        for (int size : sizes) {
+            final Path file = Files.createTempFile("kfbot-bench", ".xml");
+            try {
+                writeConfig(file, size);
+                run(size, "dom", dom, file);
+                run(size, "stax", stax, file);
+                run(size, "stax settings", settings, file);
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private static void run(final int size, final String name, final Loader loader, final Path file)
+            throws Exception {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            loader.load(file);
+        }
+        long total = 0L;
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            final long start = System.nanoTime();
+            loader.load(file);
+            total += System.nanoTime() - start;
+        }
+
+        retained = null;
+        final long before = usedHeap();
+        retained = loader.load(file);
+        final long after = usedHeap();
+        System.out.printf("%-9d %-14s %12d %12.1f %12d%n", size, name,
+                Files.size(file) / 1024, total / (double) MEASURED_RUNS / 1000000.0,
+                (after - before) / 1024);
+        retained = null;
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * This method writes a configuration file with the given number of
+     * entries, four in ten commands, one in ten subcommands, one in ten
+     * counters and four in ten filters.
+     */
+    private static void writeConfig(final Path file, final int entries) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<kfbot>\n  <config>\n");
+            out.write("    <botAccount>benchbot</botAccount>\n    <botOAUTH>oauth:none</botOAUTH>\n");
+            out.write("    <botClientID>none</botClientID>\n    <myChannel>benchchannel</myChannel>\n");
+            out.write("    <irc>irc.chat.twitch.tv</irc>\n    <ircPort>6667</ircPort>\n");
+            out.write("    <pubSub>wss://pubsub-edge.twitch.tv</pubSub>\n  </config>\n");
+
+            out.write("  <commands>\n");
+            for (int i = 0; i < entries * 4 / 10; i++) {
+                out.write("    <command name=\"!cmd" + i + "\" auth=\"+m -s \" cooldown=\"30\""
+                        + " userCooldown=\"0\" sound=\"\" repeating=\"false\" initialDelay=\"0\""
+                        + " interval=\"0\" disabled=\"false\">Response number " + i
+                        + " with a %param% in it</command>\n");
+            }
+            out.write("  </commands>\n  <subcommands>\n");
+            for (int i = 0; i < entries / 10; i++) {
+                out.write("    <subcommand name=\"!sub" + i + "\" auth=\"+s \" cooldown=\"0\""
+                        + " sound=\"\" disabled=\"false\">Subscriber response " + i + "</subcommand>\n");
+            }
+            out.write("  </subcommands>\n  <counters>\n");
+            for (int i = 0; i < entries / 10; i++) {
+                out.write("    <counter name=\"counter" + i + "\">" + i + "</counter>\n");
+            }
+            out.write("  </counters>\n  <filters>\n");
+            for (int i = 0; i < entries * 4 / 10; i++) {
+                out.write("    <filter name=\"banned phrase " + i + "\" reason=\"spam\" disabled=\"false\"/>\n");
+            }
+            out.write("  </filters>\n</kfbot>\n");
+        }
+    }
+}